@@ -0,0 +1,87 @@
+package uk.gov.caz.notify.benchmark;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Builds email requests of a given size for the benchmarks.
+ */
+public final class BenchmarkMessages {
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private static final String[] WORDS = {"your", "payment", "for", "the", "clean", "air",
+      "zone", "charge", "of", "vehicle", "registration", "was", "received", "on", "date",
+      "amount", "paid", "reference", "receipt", "thank", "you", "and", "daily", "12.50"};
+
+  private BenchmarkMessages() {
+  }
+
+  /**
+   * Builds a personalisation map.
+   *
+   * @param entries the number of entries
+   * @param valueLength the length of each value
+   * @return the personalisation
+   */
+  public static Map<String, Object> personalisation(int entries, int valueLength) {
+    // words rather than a repeated character, so that values compress like real text
+    Random random = new Random(entries * 31L + valueLength);
+    Map<String, Object> personalisation = new LinkedHashMap<>();
+    for (int i = 0; i < entries; i++) {
+      StringBuilder value = new StringBuilder(valueLength + 16);
+      while (value.length() < valueLength) {
+        value.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      value.setLength(valueLength);
+      personalisation.put("field" + i, value.toString());
+    }
+    return personalisation;
+  }
+
+  /**
+   * Builds the JSON body of a queued email request.
+   *
+   * @param entries the number of personalisation entries
+   * @param valueLength the length of each personalisation value
+   * @return the message body
+   */
+  public static String body(int entries, int valueLength) {
+    Map<String, Object> request = new LinkedHashMap<>();
+    request.put("templateId", UUID.randomUUID().toString());
+    request.put("emailAddress", "benchmark@example.com");
+    request.put("personalisation", personalisation(entries, valueLength));
+    request.put("reference", UUID.randomUUID().toString());
+    try {
+      return OBJECT_MAPPER.writeValueAsString(request);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Builds a batch of received messages.
+   *
+   * @param count the number of messages
+   * @param entries the number of personalisation entries of each message
+   * @param valueLength the length of each personalisation value
+   * @return the messages
+   */
+  public static List<Message> messages(int count, int entries, int valueLength) {
+    List<Message> messages = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      messages.add(new Message()
+          .withMessageId(UUID.randomUUID().toString())
+          .withReceiptHandle(UUID.randomUUID().toString())
+          .withBody(body(entries, valueLength)));
+    }
+    return messages;
+  }
+}
@@ -0,0 +1,65 @@
+package uk.gov.caz.notify.benchmark;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AbstractAmazonSQSAsync;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * In-memory SQS which returns the same batch of messages on every receive and accepts every
+ * batched send and delete.
+ */
+public class StubAmazonSqs extends AbstractAmazonSQSAsync {
+
+  private final List<Message> messages;
+
+  public StubAmazonSqs(List<Message> messages) {
+    this.messages = messages;
+  }
+
+  @Override
+  public GetQueueUrlResult getQueueUrl(String queueName) {
+    return new GetQueueUrlResult().withQueueUrl("https://sqs.local/" + queueName);
+  }
+
+  @Override
+  public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+    return new ReceiveMessageResult().withMessages(messages);
+  }
+
+  @Override
+  public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+    return new SendMessageBatchResult();
+  }
+
+  @Override
+  public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+    return new DeleteMessageBatchResult();
+  }
+
+  @Override
+  public Future<SendMessageBatchResult> sendMessageBatchAsync(SendMessageBatchRequest request,
+      AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler) {
+    SendMessageBatchResult result = sendMessageBatch(request);
+    handler.onSuccess(request, result);
+    return CompletableFuture.completedFuture(result);
+  }
+
+  @Override
+  public Future<DeleteMessageBatchResult> deleteMessageBatchAsync(
+      DeleteMessageBatchRequest request,
+      AsyncHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult> handler) {
+    DeleteMessageBatchResult result = deleteMessageBatch(request);
+    handler.onSuccess(request, result);
+    return CompletableFuture.completedFuture(result);
+  }
+}
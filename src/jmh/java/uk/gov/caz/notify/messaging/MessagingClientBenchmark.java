@@ -0,0 +1,118 @@
+package uk.gov.caz.notify.messaging;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.gov.caz.notify.benchmark.BenchmarkMessages;
+import uk.gov.caz.notify.benchmark.StubAmazonSqs;
+import uk.gov.caz.notify.domain.MessageEnvelope;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.repository.StubGovUkNotify;
+
+/**
+ * Measures reading, sending and re-queueing of a single email request with
+ * {@link MessagingClient}, with re-queued requests written in the given envelope. The length of
+ * the body in each envelope is printed when the benchmark is set up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagingClientBenchmark {
+
+  @Param({"1", "10", "100"})
+  int personalisationEntries;
+
+  @Param({"10", "1000"})
+  int valueLength;
+
+  @Param({"json", "compact-v1"})
+  String envelope;
+
+  MessagingClient messagingClient;
+
+  EmailMessageReader emailMessageReader;
+
+  EmailMessageWriter emailMessageWriter;
+
+  String body;
+
+  EmailMessage emailMessage;
+
+  EmailMessage unwrittenEmailMessage;
+
+  Message requeuedMessage;
+
+  EmailMessage requeuedEmailMessage;
+
+  @Setup
+  public void setUp() throws IOException {
+    StubAmazonSqs amazonSqs = new StubAmazonSqs(Collections.emptyList());
+    QueueUrlRegistry queueUrlRegistry = new QueueUrlRegistry(amazonSqs,
+        new SimpleMeterRegistry(), 3600, "new", "request-limit", "service-error",
+        "service-down", "dlq");
+    emailMessageWriter = new EmailMessageWriter(new ObjectMapper(),
+        MessageEnvelope.fromString(envelope) == MessageEnvelope.COMPACT_V1, 0);
+    messagingClient = new MessagingClient(new SqsBatchBuffer(amazonSqs, 0), queueUrlRegistry,
+        StubGovUkNotify.wrapper(), new ExponentialBackoffRetryPolicy(0, 0, 0, 0, 0, 0, 0),
+        new IdempotencyCache(null, false, 1, 1, new SimpleMeterRegistry()), emailMessageWriter,
+        "PAYMENTS_RECEIPT", 1);
+    emailMessageReader = new EmailMessageReader();
+    body = BenchmarkMessages.body(personalisationEntries, valueLength);
+    emailMessage = emailMessageReader.read(body);
+    unwrittenEmailMessage = emailMessage.toBuilder().rawBody(null).build();
+
+    SendMessageRequest requeued = messagingClient.createSendMessageRequest(QueueName.SERVICE_DOWN,
+        unwrittenEmailMessage);
+    requeuedMessage = new Message().withMessageId("benchmark").withBody(requeued.getMessageBody())
+        .withMessageAttributes(requeued.getMessageAttributes());
+    requeuedEmailMessage = emailMessageReader.read(requeuedMessage);
+    System.out.printf("%n# %s body length: %d (JSON: %d)%n", envelope,
+        requeued.getMessageBody().length(), body.length());
+  }
+
+  @Benchmark
+  public EmailMessage readEmailMessage() throws IOException {
+    return emailMessageReader.read(requeuedMessage);
+  }
+
+  @Benchmark
+  public EmailMessageWriter.EncodedMessage writeEmailMessage() throws IOException {
+    return emailMessageWriter.write(unwrittenEmailMessage);
+  }
+
+  @Benchmark
+  public EmailMessage handleMessage() throws IOException, InstantiationException {
+    messagingClient.handleMessage(emailMessage);
+    return emailMessage;
+  }
+
+  @Benchmark
+  public SendMessageRequest createSendMessageRequestFromBody() {
+    return messagingClient.createSendMessageRequest(body);
+  }
+
+  @Benchmark
+  public SendMessageRequest createSendMessageRequestForRequeue() throws IOException {
+    return messagingClient.createSendMessageRequest(QueueName.SERVICE_DOWN,
+        requeuedEmailMessage);
+  }
+}
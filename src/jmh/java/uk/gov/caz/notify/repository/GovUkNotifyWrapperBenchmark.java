@@ -0,0 +1,55 @@
+package uk.gov.caz.notify.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.gov.caz.notify.benchmark.BenchmarkMessages;
+import uk.gov.service.notify.NotificationClientException;
+import uk.gov.service.notify.SendEmailResponse;
+
+/**
+ * Measures the personalisation parsing of {@link GovUkNotifyWrapper}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GovUkNotifyWrapperBenchmark {
+
+  @Param({"1", "10", "100"})
+  int personalisationEntries;
+
+  @Param({"10", "1000"})
+  int valueLength;
+
+  GovUkNotifyWrapper govUkNotifyWrapper;
+
+  String personalisation;
+
+  @Setup
+  public void setUp() throws IOException {
+    govUkNotifyWrapper = StubGovUkNotify.wrapper();
+    personalisation = new ObjectMapper().writeValueAsString(
+        BenchmarkMessages.personalisation(personalisationEntries, valueLength));
+  }
+
+  @Benchmark
+  public SendEmailResponse sendEmailWithPersonalisationString()
+      throws NotificationClientException, IOException, InstantiationException {
+    return govUkNotifyWrapper.sendEmail("templateId", "benchmark@example.com", personalisation,
+        "reference");
+  }
+}
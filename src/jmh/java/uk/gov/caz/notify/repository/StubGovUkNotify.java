@@ -0,0 +1,52 @@
+package uk.gov.caz.notify.repository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Map;
+import java.util.UUID;
+import uk.gov.service.notify.NotificationClient;
+import uk.gov.service.notify.SendEmailResponse;
+import uk.gov.service.notify.Template;
+
+/**
+ * Creates a {@link GovUkNotifyWrapper} whose client does not call Gov.UK Notify, without rate
+ * limiting and with a circuit breaker that never opens.
+ */
+public final class StubGovUkNotify {
+
+  private StubGovUkNotify() {
+  }
+
+  /**
+   * Creates the wrapper.
+   *
+   * @return a wrapper around a client which accepts every email and whose templates have no
+   *     placeholders
+   */
+  public static GovUkNotifyWrapper wrapper() {
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    return new GovUkNotifyWrapper(new StubNotificationClient(), null,
+        new NotifyRateLimiter(0, 1, 0, meterRegistry),
+        new NotifyCircuitBreaker(1.1, 1, 1, 0, 1, meterRegistry), meterRegistry);
+  }
+
+  private static class StubNotificationClient extends NotificationClient {
+
+    StubNotificationClient() {
+      super("benchmark-" + UUID.randomUUID() + "-" + UUID.randomUUID());
+    }
+
+    @Override
+    public SendEmailResponse sendEmail(String templateId, String emailAddress,
+        Map<String, ?> personalisation, String reference) {
+      return null;
+    }
+
+    @Override
+    public Template getTemplateById(String templateId) {
+      return new Template("{\"id\": \"" + templateId + "\", \"name\": \"benchmark\", "
+          + "\"type\": \"email\", \"created_at\": \"2019-06-01T12:00:00.000000Z\", "
+          + "\"updated_at\": null, \"created_by\": \"benchmark@example.com\", "
+          + "\"version\": 1, \"body\": \"benchmark\", \"subject\": \"benchmark\"}");
+    }
+  }
+}
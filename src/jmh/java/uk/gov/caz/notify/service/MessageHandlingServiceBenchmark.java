@@ -0,0 +1,102 @@
+package uk.gov.caz.notify.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import uk.gov.caz.notify.benchmark.BenchmarkMessages;
+import uk.gov.caz.notify.benchmark.StubAmazonSqs;
+import uk.gov.caz.notify.messaging.EmailMessageReader;
+import uk.gov.caz.notify.messaging.EmailMessageValidator;
+import uk.gov.caz.notify.messaging.EmailMessageWriter;
+import uk.gov.caz.notify.messaging.ExponentialBackoffRetryPolicy;
+import uk.gov.caz.notify.messaging.IdempotencyCache;
+import uk.gov.caz.notify.messaging.IdempotencyStore;
+import uk.gov.caz.notify.messaging.MessagingClient;
+import uk.gov.caz.notify.messaging.QueueUrlRegistry;
+import uk.gov.caz.notify.messaging.SqsBatchBuffer;
+import uk.gov.caz.notify.messaging.VisibilityHeartbeat;
+import uk.gov.caz.notify.metrics.MessageMetrics;
+import uk.gov.caz.notify.repository.GovUkNotifyWrapper;
+import uk.gov.caz.notify.repository.NotifyRateLimiter;
+import uk.gov.caz.notify.repository.StubGovUkNotify;
+import uk.gov.caz.notify.repository.TemplateSchemaCache;
+
+/**
+ * Measures a polling iteration of {@link MessageHandlingService}: receiving a batch of ten
+ * messages, sending them and deleting them from the queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageHandlingServiceBenchmark {
+
+  private static final int BATCH_SIZE = 10;
+
+  @Param({"1", "10", "100"})
+  int personalisationEntries;
+
+  @Param({"10", "1000"})
+  int valueLength;
+
+  @Param({"1", "10"})
+  int dispatchConcurrency;
+
+  MessageDispatcher messageDispatcher;
+
+  MessageHandlingService messageHandlingService;
+
+  @Setup
+  public void setUp() {
+    StubAmazonSqs amazonSqs = new StubAmazonSqs(
+        BenchmarkMessages.messages(BATCH_SIZE, personalisationEntries, valueLength));
+    SqsBatchBuffer sqsBatchBuffer = new SqsBatchBuffer(amazonSqs, 0);
+    QueueUrlRegistry queueUrlRegistry = new QueueUrlRegistry(amazonSqs,
+        new SimpleMeterRegistry(), 3600, "new", "request-limit", "service-error",
+        "service-down", "dlq");
+    GovUkNotifyWrapper govUkNotifyWrapper = StubGovUkNotify.wrapper();
+    MessagingClient messagingClient = new MessagingClient(sqsBatchBuffer, queueUrlRegistry,
+        govUkNotifyWrapper, new ExponentialBackoffRetryPolicy(0, 0, 0, 0, 0, 0, 0),
+        new IdempotencyCache(false, 1, 1,
+            new StaticListableBeanFactory().getBeanProvider(IdempotencyStore.class),
+            new SimpleMeterRegistry()),
+        new EmailMessageWriter(new ObjectMapper(), false, 0), "PAYMENTS_RECEIPT", 1);
+    messageDispatcher = new MessageDispatcher(dispatchConcurrency, 0);
+    messageHandlingService = new MessageHandlingService(amazonSqs, messagingClient,
+        messageDispatcher, sqsBatchBuffer, queueUrlRegistry, new EmailMessageReader(),
+        new EmailMessageValidator(true, new TemplateSchemaCache(govUkNotifyWrapper, 1000, 3600, 60)),
+        new MessageMetrics(new SimpleMeterRegistry()),
+        new QueueScheduler(new NotifyRateLimiter(0, 1, 0, new SimpleMeterRegistry()),
+            BATCH_SIZE, 8, 4, 2, 1, false),
+        new VisibilityHeartbeat(amazonSqs, 0, 60));
+    ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 1);
+    ReflectionTestUtils.setField(messageHandlingService, "messageBatchRate", BATCH_SIZE);
+  }
+
+  @TearDown
+  public void tearDown() {
+    messageDispatcher.shutdown();
+    messageHandlingService.shutdown();
+  }
+
+  @Benchmark
+  public void sendQueuedMessages() {
+    messageHandlingService.sendQueuedMessages("new");
+  }
+}
@@ -0,0 +1,61 @@
+package uk.gov.caz.notify.amazonaws;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import uk.gov.caz.notify.configuration.QueueConsumerConfiguration;
+
+/**
+ * Holds the {@link QueueConsumerConfiguration} context shared by the queue consuming Lambda
+ * handlers. The context is started when the class is initialised, which happens during the
+ * initialisation phase of the Lambda runtime, and the phases of the cold start are logged and
+ * recorded as timers.
+ */
+@Slf4j
+final class QueueConsumerContext {
+
+  private static final ConfigurableApplicationContext CONTEXT = start();
+
+  private QueueConsumerContext() {
+  }
+
+  /**
+   * Returns a bean of the queue consumer context.
+   */
+  static <T> T getBean(Class<T> beanClass) {
+    return CONTEXT.getBean(beanClass);
+  }
+
+  private static ConfigurableApplicationContext start() {
+    long jvmStartupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+    long start = System.nanoTime();
+
+    ConfigurableApplicationContext context =
+        new SpringApplicationBuilder(QueueConsumerConfiguration.class)
+            .web(WebApplicationType.NONE)
+            .profiles(QueueConsumerConfiguration.PROFILE)
+            .logStartupInfo(false)
+            .run();
+
+    long contextMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    log.info("Cold start phases: JVM startup {} ms, application context {} ms",
+        jvmStartupMillis, contextMillis);
+
+    MeterRegistry meterRegistry = context.getBean(MeterRegistry.class);
+    recordPhase(meterRegistry, "jvm", jvmStartupMillis);
+    recordPhase(meterRegistry, "context", contextMillis);
+    return context;
+  }
+
+  private static void recordPhase(MeterRegistry meterRegistry, String phase, long millis) {
+    Timer.builder("notify.cold.start").tag("phase", phase)
+        .description("Duration of the phases of a Lambda cold start")
+        .register(meterRegistry)
+        .record(millis, TimeUnit.MILLISECONDS);
+  }
+}
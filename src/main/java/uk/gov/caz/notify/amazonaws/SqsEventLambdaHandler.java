@@ -0,0 +1,104 @@
+package uk.gov.caz.notify.amazonaws;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.MessageAttribute;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.dto.SqsBatchResponse;
+import uk.gov.caz.notify.dto.SqsBatchResponse.BatchItemFailure;
+import uk.gov.caz.notify.messaging.QueueUrlRegistry;
+import uk.gov.caz.notify.metrics.EmfMetricsPublisher;
+import uk.gov.caz.notify.service.MessageHandlingService;
+
+/**
+ * Entry point for batches of messages delivered by an SQS event source mapping. Successfully
+ * handled records are deleted by Lambda, only the records reported as failed become visible on
+ * the queue again.
+ */
+@Slf4j
+public class SqsEventLambdaHandler implements RequestHandler<SQSEvent, SqsBatchResponse> {
+
+  private final MessageHandlingService messageHandlingService;
+
+  private final QueueUrlRegistry queueUrlRegistry;
+
+  private final EmfMetricsPublisher metricsPublisher;
+
+  /**
+   * Creates the handler with the beans of the queue consumer context, which is started the first
+   * time a handler is created.
+   */
+  public SqsEventLambdaHandler() {
+    this(QueueConsumerContext.getBean(MessageHandlingService.class),
+        QueueConsumerContext.getBean(QueueUrlRegistry.class),
+        QueueConsumerContext.getBean(EmfMetricsPublisher.class));
+  }
+
+  SqsEventLambdaHandler(MessageHandlingService messageHandlingService,
+      QueueUrlRegistry queueUrlRegistry, EmfMetricsPublisher metricsPublisher) {
+    this.messageHandlingService = messageHandlingService;
+    this.queueUrlRegistry = queueUrlRegistry;
+    this.metricsPublisher = metricsPublisher;
+  }
+
+  @Override
+  public SqsBatchResponse handleRequest(SQSEvent event, Context context) {
+
+    List<Message> messages = new ArrayList<>(event.getRecords().size());
+    for (SQSMessage record : event.getRecords()) {
+      messages.add(new Message()
+          .withMessageId(record.getMessageId())
+          .withReceiptHandle(record.getReceiptHandle())
+          .withBody(record.getBody())
+          .withAttributes(record.getAttributes())
+          .withMessageAttributes(messageAttributes(record)));
+    }
+    QueueName source = event.getRecords().isEmpty()
+        ? null
+        : queueUrlRegistry.getQueueName(queueName(event.getRecords().get(0)));
+    log.info("Processing {} messages from the {} queue", messages.size(), source);
+
+    Set<String> failedMessageIds;
+    try {
+      failedMessageIds = messageHandlingService.processMessages(source, messages,
+          Deadline.in(context.getRemainingTimeInMillis()));
+    } finally {
+      metricsPublisher.publish();
+    }
+
+    log.info("Reporting {} batch item failures", failedMessageIds.size());
+    return new SqsBatchResponse(failedMessageIds.stream()
+        .map(BatchItemFailure::new)
+        .collect(Collectors.toList()));
+  }
+
+  private static Map<String, MessageAttributeValue> messageAttributes(SQSMessage record) {
+    Map<String, MessageAttributeValue> attributes = new HashMap<>();
+    if (record.getMessageAttributes() != null) {
+      for (Map.Entry<String, MessageAttribute> attribute
+          : record.getMessageAttributes().entrySet()) {
+        attributes.put(attribute.getKey(), new MessageAttributeValue()
+            .withDataType(attribute.getValue().getDataType())
+            .withStringValue(attribute.getValue().getStringValue()));
+      }
+    }
+    return attributes;
+  }
+
+  private static String queueName(SQSMessage record) {
+    String arn = record.getEventSourceArn();
+    return arn.substring(arn.lastIndexOf(':') + 1);
+  }
+}
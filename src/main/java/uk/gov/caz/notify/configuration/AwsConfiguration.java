@@ -1,7 +1,8 @@
 package uk.gov.caz.notify.configuration;
 
-import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClientBuilder;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -16,16 +17,24 @@ public class AwsConfiguration {
   @Value("${cloud.aws.region.static}")
   private String region;
 
+  @Value("${application.sqs-max-connections}")
+  private int sqsMaxConnections;
+
   /**
-   * Creates the AmazonSqs Bean with a given region.
+   * Creates the AmazonSqs Bean with a given region. The client is asynchronous, so that batches
+   * of deletions and outbound messages do not block the caller, and it also serves the
+   * synchronous calls. Its connection pool, and the pool of threads running its asynchronous
+   * calls, have the configured size.
    * 
    * @return the AmazonSqs Bean
    */
   @Primary
   @Bean
-  public AmazonSQS amazonSqs() {
-    AmazonSQSClientBuilder builder = AmazonSQSClientBuilder.standard();
+  public AmazonSQSAsync amazonSqs() {
+    AmazonSQSAsyncClientBuilder builder = AmazonSQSAsyncClientBuilder.standard();
     builder.withRegion(region);
+    builder.withClientConfiguration(new ClientConfiguration()
+        .withMaxConnections(sqsMaxConnections));
     return builder.build();
   }
 
@@ -0,0 +1,63 @@
+package uk.gov.caz.notify.configuration;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import uk.gov.caz.notify.messaging.EmailMessageReader;
+import uk.gov.caz.notify.messaging.EmailMessageValidator;
+import uk.gov.caz.notify.messaging.EmailMessageWriter;
+import uk.gov.caz.notify.messaging.ExponentialBackoffRetryPolicy;
+import uk.gov.caz.notify.messaging.IdempotencyCache;
+import uk.gov.caz.notify.messaging.MessagingClient;
+import uk.gov.caz.notify.messaging.QueueUrlRegistry;
+import uk.gov.caz.notify.messaging.SqsBatchBuffer;
+import uk.gov.caz.notify.messaging.VisibilityHeartbeat;
+import uk.gov.caz.notify.metrics.EmfMetricsPublisher;
+import uk.gov.caz.notify.metrics.MessageMetrics;
+import uk.gov.caz.notify.repository.GovUkNotifyWrapper;
+import uk.gov.caz.notify.repository.NotifyCircuitBreaker;
+import uk.gov.caz.notify.repository.NotifyRateLimiter;
+import uk.gov.caz.notify.repository.TemplateSchemaCache;
+import uk.gov.caz.notify.service.MessageDispatcher;
+import uk.gov.caz.notify.service.MessageHandlingService;
+import uk.gov.caz.notify.service.QueueScheduler;
+
+/**
+ * Lightweight, non-web application context for invocations which only consume queues. Only the
+ * beans the queue consumers use are imported, without component scanning, auto-configuration,
+ * the servlet container, Swagger or actuator endpoints, nor the beans of the bulk send and of
+ * queueing emails.
+ */
+@Configuration
+@Profile(QueueConsumerConfiguration.PROFILE)
+@Import({AwsConfiguration.class,
+    MessageHandlingService.class, MessageDispatcher.class, QueueScheduler.class,
+    MessagingClient.class, SqsBatchBuffer.class, QueueUrlRegistry.class,
+    VisibilityHeartbeat.class, EmailMessageReader.class, EmailMessageWriter.class,
+    EmailMessageValidator.class, ExponentialBackoffRetryPolicy.class, IdempotencyCache.class,
+    GovUkNotifyWrapper.class, TemplateSchemaCache.class, NotifyRateLimiter.class,
+    NotifyCircuitBreaker.class, MessageMetrics.class, EmfMetricsPublisher.class})
+public class QueueConsumerConfiguration {
+
+  public static final String PROFILE = "queue-consumer";
+
+  @Bean
+  public static PropertySourcesPlaceholderConfigurer propertySourcesPlaceholderConfigurer() {
+    return new PropertySourcesPlaceholderConfigurer();
+  }
+
+  @Bean
+  public ObjectMapper objectMapper() {
+    return new ObjectMapper();
+  }
+
+  @Bean
+  public MeterRegistry meterRegistry() {
+    return new SimpleMeterRegistry();
+  }
+}
@@ -1,23 +1,40 @@
 package uk.gov.caz.notify.controller;
 
+import com.amazonaws.serverless.proxy.RequestReader;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import uk.gov.caz.notify.domain.Deadline;
 import uk.gov.caz.notify.dto.MessageConsumerRequest;
+import uk.gov.caz.notify.dto.QueueEmailResponse;
 import uk.gov.caz.notify.dto.SendEmailRequest;
+import uk.gov.caz.notify.messaging.InvalidEmailMessageException;
 import uk.gov.caz.notify.repository.GovUkNotifyWrapper;
+import uk.gov.caz.notify.service.BulkEmailService;
+import uk.gov.caz.notify.service.EmailQueueService;
 import uk.gov.caz.notify.service.MessageHandlingService;
 import uk.gov.service.notify.NotificationClientException;
 import uk.gov.service.notify.SendEmailResponse;
 
+@Slf4j
 @RestController
 @RequestMapping(value = "/notify", produces = {
     MediaType.APPLICATION_JSON_UTF8_VALUE, MediaType.APPLICATION_XML_VALUE})
@@ -26,11 +43,24 @@ public class ManualDispatchController {
 
   private final GovUkNotifyWrapper govUkNotifyWrapper;
   private final MessageHandlingService messageHandlingService;
+  private final BulkEmailService bulkEmailService;
+  private final EmailQueueService emailQueueService;
 
+  /**
+   * Creates the controller.
+   *
+   * @param govUkNotifyWrapper     the wrapper sending single emails
+   * @param messageHandlingService the service consuming the queues
+   * @param bulkEmailService       the service sending bulk emails
+   * @param emailQueueService      the service queueing emails to be sent later
+   */
   public ManualDispatchController(GovUkNotifyWrapper govUkNotifyWrapper,
-      MessageHandlingService messageHandlingService) {
+      MessageHandlingService messageHandlingService, BulkEmailService bulkEmailService,
+      EmailQueueService emailQueueService) {
     this.govUkNotifyWrapper = govUkNotifyWrapper;
     this.messageHandlingService = messageHandlingService;
+    this.bulkEmailService = bulkEmailService;
+    this.emailQueueService = emailQueueService;
   }
 
   /**
@@ -66,6 +96,135 @@ public class ManualDispatchController {
     }
   }
 
+  /**
+   * A controller method to dispatch many emails at once. The request body is a
+   * JSON array of email requests, which is read and sent in chunks through the
+   * same rate limited dispatch as queued messages. The response is a JSON array
+   * with the result of each request at the same position, written out as each
+   * chunk is finished. Requests which could not be sent are re-queued. No
+   * request is started once the Lambda invocation, if any, is about to end.
+   *
+   * @param  request     the request with the JSON array of email requests
+   * @param  response    the response the JSON array of results is written to
+   * @throws IOException if the results cannot be written
+   */
+  @ApiOperation(value = "Dispatch many emails")
+  @ApiResponses({
+      @ApiResponse(code = 400, message = "Bad request"),
+      @ApiResponse(code = 200, message = "Results of the email requests"),})
+  @PostMapping(value = "/sendEmails", consumes = MediaType.APPLICATION_JSON_VALUE)
+  public void sendEmails(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+    try {
+      bulkEmailService.sendEmails(request.getInputStream(),
+          response.getOutputStream(), invocationDeadline(request));
+    } catch (JsonProcessingException e) {
+      if (response.isCommitted()) {
+        throw e;
+      }
+      log.error("Rejected bulk send: {}", e.getOriginalMessage());
+      response.setStatus(HttpStatus.BAD_REQUEST.value());
+    }
+  }
+
+  /**
+   * Returns the end of the Lambda invocation serving the request.
+   *
+   * @param  request the request, with the Lambda context as an attribute
+   * @return         the end of the invocation, or no deadline when the
+   *                 request is not served by Lambda
+   */
+  private static Deadline invocationDeadline(HttpServletRequest request) {
+    Object context = request.getAttribute(RequestReader.LAMBDA_CONTEXT_PROPERTY);
+    if (context instanceof Context) {
+      return Deadline.in(((Context) context).getRemainingTimeInMillis());
+    }
+    return Deadline.none();
+  }
+
+  /**
+   * A controller method to queue an email to be sent later. The request is
+   * validated and put on the new queue, and the response does not wait for
+   * Gov.UK Notify.
+   *
+   * @param  request containing email, templateId, reference and
+   *                   personalisation
+   * @return         the ID of the queued message, or the problems with the
+   *                 request
+   */
+  @ApiOperation(value = "Queue an email")
+  @ApiResponses({
+      @ApiResponse(code = 503, message = "Queue unavailable"),
+      @ApiResponse(code = 400, message = "Bad request"),
+      @ApiResponse(code = 202, message = "Email queued"),})
+  @PostMapping("/queueEmail")
+  public CompletableFuture<ResponseEntity<QueueEmailResponse>> queueEmail(
+      @RequestBody SendEmailRequest request) {
+    return queueEmails(Collections.singletonList(request));
+  }
+
+  /**
+   * A controller method to queue many emails to be sent later. No email is
+   * queued unless all of the requests are valid. When only some of the
+   * requests could be written to the queue, the response lists the IDs of
+   * those which were, so that only the others are retried.
+   *
+   * @param  requests the email requests
+   * @return          the IDs of the queued messages in the order of the
+   *                  requests, or the problems with the requests
+   */
+  @ApiOperation(value = "Queue many emails")
+  @ApiResponses({
+      @ApiResponse(code = 503, message = "Queue unavailable"),
+      @ApiResponse(code = 400, message = "Bad request"),
+      @ApiResponse(code = 207, message = "Some emails queued"),
+      @ApiResponse(code = 202, message = "Emails queued"),})
+  @PostMapping("/queueEmails")
+  public CompletableFuture<ResponseEntity<QueueEmailResponse>> queueEmails(
+      @RequestBody List<SendEmailRequest> requests) {
+    try {
+      return emailQueueService.queueEmails(requests)
+          .thenApply(ManualDispatchController::queuedResponse)
+          .exceptionally(e -> {
+            log.error("Failed to queue email requests: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+          });
+    } catch (InvalidEmailMessageException e) {
+      return CompletableFuture.completedFuture(
+          ResponseEntity.badRequest().body(QueueEmailResponse.rejected(e.getProblems())));
+    }
+  }
+
+  /**
+   * Returns the response to email requests of which some may not have been
+   * queued.
+   *
+   * @param  messageIds the IDs of the queued messages, null for a request
+   *                    which was not queued
+   * @return            202 if every request was queued, 207 if some were,
+   *                    and 503 if none was
+   */
+  private static ResponseEntity<QueueEmailResponse> queuedResponse(
+      List<String> messageIds) {
+    List<String> errors = new ArrayList<>();
+    for (int i = 0; i < messageIds.size(); i++) {
+      if (messageIds.get(i) == null) {
+        errors.add((messageIds.size() == 1 ? "" : "request " + i + ": ")
+            + "could not be queued");
+      }
+    }
+    if (errors.isEmpty()) {
+      return ResponseEntity.status(HttpStatus.ACCEPTED)
+          .body(QueueEmailResponse.queued(messageIds));
+    }
+    log.error("Failed to queue {} of {} email requests", errors.size(),
+        messageIds.size());
+    return ResponseEntity.status(errors.size() == messageIds.size()
+        ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.MULTI_STATUS)
+        .body(QueueEmailResponse.partiallyQueued(messageIds, errors));
+  }
+
   /**
    * A controller method to manually receive messages from a queue.
    * 
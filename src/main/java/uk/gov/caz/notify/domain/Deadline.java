@@ -0,0 +1,88 @@
+package uk.gov.caz.notify.domain;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time by which the current invocation has to finish its work, e.g. derived from the
+ * remaining execution time of a Lambda invocation.
+ */
+public final class Deadline {
+
+  private static final Deadline NONE = new Deadline(false, 0);
+
+  private final boolean bounded;
+  private final long expiresAtNanos;
+
+  private Deadline(boolean bounded, long expiresAtNanos) {
+    this.bounded = bounded;
+    this.expiresAtNanos = expiresAtNanos;
+  }
+
+  /**
+   * Creates a deadline which never expires.
+   *
+   * @return an unbounded deadline
+   */
+  public static Deadline none() {
+    return NONE;
+  }
+
+  /**
+   * Creates a deadline which expires after the given amount of milliseconds.
+   *
+   * @param millis time left until the deadline expires
+   * @return a bounded deadline
+   */
+  public static Deadline in(long millis) {
+    return new Deadline(true, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /**
+   * Creates a deadline that expires the given amount of milliseconds earlier than this one.
+   *
+   * @param millis the safety margin to subtract
+   * @return a new deadline, or this one if it is unbounded
+   */
+  public Deadline minus(long millis) {
+    if (!bounded) {
+      return this;
+    }
+    return new Deadline(true, expiresAtNanos - TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /**
+   * Returns whichever of this deadline and the other one expires first.
+   *
+   * @param other the other deadline
+   * @return the earlier deadline, or this one if neither is bounded
+   */
+  public Deadline earliest(Deadline other) {
+    if (!other.bounded) {
+      return this;
+    }
+    if (!bounded || other.expiresAtNanos - expiresAtNanos < 0) {
+      return other;
+    }
+    return this;
+  }
+
+  /**
+   * Returns the time left until the deadline expires.
+   *
+   * @return remaining milliseconds, never negative, {@link Long#MAX_VALUE} if unbounded
+   */
+  public long remainingMillis() {
+    if (!bounded) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+  }
+
+  public boolean isExpired() {
+    return bounded && expiresAtNanos - System.nanoTime() <= 0;
+  }
+
+  public boolean isBounded() {
+    return bounded;
+  }
+}
@@ -0,0 +1,19 @@
+package uk.gov.caz.notify.domain;
+
+import java.util.UUID;
+import lombok.Value;
+
+/**
+ * What happened to an email request, together with the ID Gov.UK Notify gave the email if it
+ * was sent.
+ */
+@Value
+public class DispatchResult {
+
+  private final RoutingOutcome outcome;
+  private final UUID notificationId;
+
+  public static DispatchResult of(RoutingOutcome outcome) {
+    return new DispatchResult(outcome, null);
+  }
+}
@@ -0,0 +1,45 @@
+package uk.gov.caz.notify.domain;
+
+/**
+ * The format the body of a queued email request is written in. The format is given by a message
+ * attribute, and a message without one is plain JSON.
+ */
+public enum MessageEnvelope {
+  /**
+   * The request as a JSON object.
+   */
+  JSON("json"),
+
+  /**
+   * The request as a CBOR object, compressed with zlib and encoded with base64 so that it is a
+   * valid SQS message body.
+   */
+  COMPACT_V1("compact-v1");
+
+  private final String text;
+
+  MessageEnvelope(String text) {
+    this.text = text;
+  }
+
+  /**
+   * Returns the envelope with the given name.
+   *
+   * @param text name of the envelope, as given by the message attribute
+   * @return the matching envelope
+   * @throws IllegalArgumentException if no envelope has the given name
+   */
+  public static MessageEnvelope fromString(String text) {
+    for (MessageEnvelope envelope : values()) {
+      if (envelope.text.equals(text)) {
+        return envelope;
+      }
+    }
+    throw new IllegalArgumentException("Message envelope not recognised: " + text);
+  }
+
+  @Override
+  public String toString() {
+    return this.text;
+  }
+}
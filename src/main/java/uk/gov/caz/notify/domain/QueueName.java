@@ -13,6 +13,22 @@ public enum QueueName {
     this.text = text;
   }
 
+  /**
+   * Returns the queue with the given generic name.
+   *
+   * @param text generic name of the queue
+   * @return the matching queue
+   * @throws IllegalArgumentException if no queue has the given name
+   */
+  public static QueueName fromString(String text) {
+    for (QueueName queueName : values()) {
+      if (queueName.text.equals(text)) {
+        return queueName;
+      }
+    }
+    throw new IllegalArgumentException("Queue name not recognised.");
+  }
+
   @Override
   public String toString() {
     return this.text;
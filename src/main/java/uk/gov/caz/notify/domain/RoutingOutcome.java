@@ -0,0 +1,70 @@
+package uk.gov.caz.notify.domain;
+
+/**
+ * What happened to an email request taken from a queue.
+ */
+public enum RoutingOutcome {
+  SENT("sent"),
+  SENT_AFTER_RETRY("sent-after-retry"),
+  DUPLICATE("duplicate"),
+  IN_PROGRESS("in-progress"),
+  DEFERRED("deferred"),
+  REQUEST_LIMIT("request-limit"),
+  SERVICE_ERROR("service-error"),
+  SERVICE_DOWN("service-down"),
+  DLQ("dlq");
+
+  private final String text;
+
+  RoutingOutcome(String text) {
+    this.text = text;
+  }
+
+  /**
+   * Returns the outcome of re-queueing a request.
+   *
+   * @param queueName the queue the request was published to
+   * @return the matching outcome
+   */
+  public static RoutingOutcome requeuedTo(QueueName queueName) {
+    switch (queueName) {
+      case REQUEST_LIMIT:
+        return REQUEST_LIMIT;
+      case SERVICE_ERROR:
+        return SERVICE_ERROR;
+      case SERVICE_DOWN:
+        return SERVICE_DOWN;
+      default:
+        return DLQ;
+    }
+  }
+
+  public boolean isSent() {
+    return this == SENT || this == SENT_AFTER_RETRY;
+  }
+
+  /**
+   * Whether nothing is left to do for the request, as its email was sent now or by an earlier
+   * request.
+   *
+   * @return true if the request is completed
+   */
+  public boolean isCompleted() {
+    return isSent() || this == DUPLICATE;
+  }
+
+  /**
+   * Whether the request was published to another queue. A re-queued request has left its
+   * message group, so the later requests of the group are sent once it has been published.
+   *
+   * @return true if the request was re-queued
+   */
+  public boolean isRequeued() {
+    return this == REQUEST_LIMIT || this == SERVICE_ERROR || this == SERVICE_DOWN || this == DLQ;
+  }
+
+  @Override
+  public String toString() {
+    return this.text;
+  }
+}
@@ -0,0 +1,55 @@
+package uk.gov.caz.notify.domain;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+import lombok.Value;
+
+/**
+ * What an email template expects of the requests sent with it. Gov.UK Notify matches
+ * personalisation to the placeholders of a template regardless of their case, so the names of
+ * the required placeholders are kept in lower case.
+ */
+@Value
+public class TemplateSchema {
+
+  public static final TemplateSchema NOT_FOUND =
+      new TemplateSchema(false, Collections.emptySet());
+
+  private final boolean found;
+  private final Set<String> requiredPersonalisation;
+
+  /**
+   * Creates the schema of an existing template.
+   *
+   * @param requiredPersonalisation names of the placeholders the template requires
+   * @return the schema
+   */
+  public static TemplateSchema of(Set<String> requiredPersonalisation) {
+    return new TemplateSchema(true, Collections.unmodifiableSet(
+        requiredPersonalisation.stream().map(TemplateSchema::normalise)
+            .collect(Collectors.toSet())));
+  }
+
+  /**
+   * Returns the names of the required placeholders missing from the given personalisation.
+   *
+   * @param personalisation the personalisation of a request, may be null
+   * @return the missing placeholders
+   */
+  public Set<String> missingPersonalisation(Set<String> personalisation) {
+    if (requiredPersonalisation.isEmpty()) {
+      return Collections.emptySet();
+    }
+    Set<String> given = personalisation == null
+        ? Collections.emptySet()
+        : personalisation.stream().map(TemplateSchema::normalise).collect(Collectors.toSet());
+    return requiredPersonalisation.stream().filter(key -> !given.contains(key))
+        .collect(Collectors.toSet());
+  }
+
+  private static String normalise(String placeholder) {
+    return placeholder.toLowerCase(Locale.ROOT);
+  }
+}
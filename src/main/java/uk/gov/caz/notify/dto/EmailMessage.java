@@ -0,0 +1,45 @@
+package uk.gov.caz.notify.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.util.Map;
+import lombok.Builder;
+import lombok.Value;
+import uk.gov.caz.notify.domain.MessageEnvelope;
+
+/**
+ * An email request read from a queue, with its personalisation already parsed. The body and the
+ * ID of the message the request was read from are kept, together with the envelope the body is
+ * written in, so that it can be re-queued without being written again, and so is its message
+ * group, so that it is re-queued in the same group. The number of times the request has been
+ * re-queued is carried over in a message attribute. The receipt handle of the message, or another
+ * key of a request not received from a queue, is kept so that a failure to re-queue the request
+ * can be traced back to it, and the message is not deleted.
+ */
+@Value
+@Builder(toBuilder = true)
+public class EmailMessage {
+
+  private final String templateId;
+  private final String emailAddress;
+  private final Map<String, Object> personalisation;
+  private final String reference;
+
+  @JsonIgnore
+  private final String rawBody;
+
+  @JsonIgnore
+  private final MessageEnvelope envelope;
+
+  @JsonIgnore
+  private final String messageId;
+
+  @JsonIgnore
+  private final String messageGroupId;
+
+  @JsonIgnore
+  private final String receiptHandle;
+
+  @JsonIgnore
+  private final int requeueAttempt;
+
+}
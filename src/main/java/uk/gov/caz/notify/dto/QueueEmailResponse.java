@@ -0,0 +1,32 @@
+package uk.gov.caz.notify.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import java.util.List;
+import lombok.Value;
+
+/**
+ * Response to email requests being queued: the IDs of the queued messages, in the order of the
+ * requests, or the problems which stopped the requests from being queued. When only some of the
+ * requests were queued, the ID of each other request is null and the problems name them.
+ */
+@Value
+@JsonInclude(Include.NON_NULL)
+public class QueueEmailResponse {
+
+  List<String> messageIds;
+
+  List<String> errors;
+
+  public static QueueEmailResponse queued(List<String> messageIds) {
+    return new QueueEmailResponse(messageIds, null);
+  }
+
+  public static QueueEmailResponse rejected(List<String> errors) {
+    return new QueueEmailResponse(null, errors);
+  }
+
+  public static QueueEmailResponse partiallyQueued(List<String> messageIds, List<String> errors) {
+    return new QueueEmailResponse(messageIds, errors);
+  }
+}
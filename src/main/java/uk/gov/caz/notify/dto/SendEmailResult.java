@@ -0,0 +1,31 @@
+package uk.gov.caz.notify.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import java.util.UUID;
+import lombok.Value;
+
+/**
+ * Result of one email request of a bulk send. The status is the routing outcome of the request,
+ * such as {@code sent} or the name of the queue it was re-queued to, or {@code invalid} or
+ * {@code failed} if it was not sent or re-queued.
+ */
+@Value
+@JsonInclude(Include.NON_NULL)
+public class SendEmailResult {
+
+  public static final String INVALID = "invalid";
+
+  public static final String FAILED = "failed";
+
+  int index;
+
+  String reference;
+
+  String status;
+
+  UUID notificationId;
+
+  String error;
+
+}
@@ -0,0 +1,21 @@
+package uk.gov.caz.notify.dto;
+
+import java.util.List;
+import lombok.Value;
+
+/**
+ * Response of a Lambda function invoked by an SQS event source mapping which reports batch item
+ * failures. Only the records listed are made visible on the queue again.
+ */
+@Value
+public class SqsBatchResponse {
+
+  List<BatchItemFailure> batchItemFailures;
+
+  @Value
+  public static class BatchItemFailure {
+
+    String itemIdentifier;
+
+  }
+}
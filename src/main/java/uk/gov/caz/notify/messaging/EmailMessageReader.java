@@ -0,0 +1,213 @@
+package uk.gov.caz.notify.messaging;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.MessageSystemAttributeName;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.domain.MessageEnvelope;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.dto.EmailMessage.EmailMessageBuilder;
+
+/**
+ * Reads queued email requests in a single streaming pass. The personalisation may be given either
+ * as a JSON object or, as written by earlier versions of the gateway, as a string containing a
+ * JSON object. A received message may also be in the compact envelope written by the
+ * {@link EmailMessageWriter}, as named by its message attributes.
+ */
+@Component
+public class EmailMessageReader {
+
+  private static final String MESSAGE_GROUP_ID =
+      MessageSystemAttributeName.MessageGroupId.toString();
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private static final JsonFactory JSON_FACTORY = OBJECT_MAPPER.getFactory();
+
+  private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+
+  private static final ObjectReader PERSONALISATION_READER =
+      OBJECT_MAPPER.readerFor(new TypeReference<Map<String, Object>>() {});
+
+  /**
+   * Reads an email request from a received message.
+   *
+   * @param message a message received from a queue
+   * @return the email request, holding the body, ID, message group and receipt handle of the
+   *     message and the number of times it has been re-queued
+   * @throws IOException if the body is not a well formed email request in the envelope named by
+   *     the message attributes
+   */
+  public EmailMessage read(Message message) throws IOException {
+    EmailMessageBuilder builder = EmailMessage.builder()
+        .messageId(message.getMessageId())
+        .messageGroupId(message.getAttributes().get(MESSAGE_GROUP_ID))
+        .receiptHandle(message.getReceiptHandle())
+        .requeueAttempt(readRequeueAttempt(message));
+    if (readEnvelope(message) == MessageEnvelope.COMPACT_V1) {
+      return readCompact(message.getBody(), builder);
+    }
+    return read(message.getBody(), builder);
+  }
+
+  /**
+   * Reads an email request from a message body.
+   *
+   * @param body the body of a queued message
+   * @return the email request, holding the given body as its raw body
+   * @throws IOException if the body or its personalisation is not a well formed email request
+   */
+  public EmailMessage read(String body) throws IOException {
+    return read(body, EmailMessage.builder());
+  }
+
+  private EmailMessage read(String body, EmailMessageBuilder builder) throws IOException {
+    try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw JsonMappingException.from(parser, "Expected an email request object");
+      }
+      return readObject(parser, builder.rawBody(body).envelope(MessageEnvelope.JSON));
+    }
+  }
+
+  private EmailMessage readCompact(String body, EmailMessageBuilder builder) throws IOException {
+    byte[] compressed;
+    try {
+      compressed = Base64.getDecoder().decode(body);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Compact message body is not valid base64", e);
+    }
+    try (InputStream cbor = new InflaterInputStream(new ByteArrayInputStream(compressed));
+        JsonParser parser = CBOR_FACTORY.createParser(cbor)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw JsonMappingException.from(parser, "Expected an email request object");
+      }
+      return readObject(parser, builder.rawBody(body).envelope(MessageEnvelope.COMPACT_V1));
+    }
+  }
+
+  private static MessageEnvelope readEnvelope(Message message) throws IOException {
+    MessageAttributeValue envelope =
+        message.getMessageAttributes().get(MessagingClient.ENVELOPE_ATTRIBUTE);
+    if (envelope == null) {
+      return MessageEnvelope.JSON;
+    }
+    try {
+      return MessageEnvelope.fromString(envelope.getStringValue());
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  private static int readRequeueAttempt(Message message) {
+    MessageAttributeValue attempt =
+        message.getMessageAttributes().get(MessagingClient.REQUEUE_ATTEMPT_ATTRIBUTE);
+    if (attempt == null || attempt.getStringValue() == null) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(attempt.getStringValue());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Reads an email request which is an element of a JSON array, such as a request of a bulk send.
+   * The parser is left at the end of the element even if it is not a well formed email request,
+   * so that the next element can be read.
+   *
+   * @param parser a parser positioned at the start of the element
+   * @return the email request, without a raw body
+   * @throws IOException a {@code JsonMappingException} if the element is not a well formed email
+   *     request, or another error if the array cannot be parsed
+   */
+  public EmailMessage readElement(JsonParser parser) throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      throw JsonMappingException.from(parser, "Expected an email request object");
+    }
+
+    JsonStreamContext arrayContext = parser.getParsingContext().getParent();
+    try {
+      return readObject(parser, EmailMessage.builder());
+    } catch (JsonMappingException e) {
+      while (parser.getParsingContext() != arrayContext
+          || parser.currentToken() != JsonToken.END_OBJECT) {
+        if (parser.nextToken() == null) {
+          throw e;
+        }
+      }
+      throw e;
+    }
+  }
+
+  private EmailMessage readObject(JsonParser parser, EmailMessageBuilder builder)
+      throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      readField(parser, field, builder);
+    }
+    return builder.build();
+  }
+
+  private void readField(JsonParser parser, String field, EmailMessageBuilder builder)
+      throws IOException {
+    switch (field) {
+      case "templateId":
+        builder.templateId(readText(parser, field));
+        break;
+      case "emailAddress":
+        builder.emailAddress(readText(parser, field));
+        break;
+      case "reference":
+        builder.reference(readText(parser, field));
+        break;
+      case "personalisation":
+        builder.personalisation(readPersonalisation(parser));
+        break;
+      default:
+        throw JsonMappingException.from(parser, "Unrecognized field: " + field);
+    }
+  }
+
+  private String readText(JsonParser parser, String field) throws IOException {
+    JsonToken token = parser.currentToken();
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (!token.isScalarValue()) {
+      throw JsonMappingException.from(parser, "Expected a text value for field: " + field);
+    }
+    return parser.getValueAsString();
+  }
+
+  private Map<String, Object> readPersonalisation(JsonParser parser) throws IOException {
+    switch (parser.currentToken()) {
+      case START_OBJECT:
+        return PERSONALISATION_READER.readValue(parser);
+      case VALUE_STRING:
+        return PERSONALISATION_READER.readValue(parser.getText());
+      case VALUE_NULL:
+        return null;
+      default:
+        throw JsonMappingException.from(parser, "Expected personalisation object or string");
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package uk.gov.caz.notify.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.domain.TemplateSchema;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.repository.TemplateSchemaCache;
+
+/**
+ * Checks email requests before they are sent, so that a request Gov.UK Notify would reject is
+ * not sent at all and does not use up a permit of the rate limiter. The address and the template
+ * ID are checked locally; the personalisation is checked against the schema of the template held
+ * by the {@link TemplateSchemaCache}, and is not checked if the schema cannot be fetched.
+ */
+@Component
+public class EmailMessageValidator {
+
+  // a label of the domain, which may be internationalised as Gov.UK Notify converts the domain
+  // to punycode before checking it
+  private static final String DOMAIN_LABEL =
+      "[\\p{L}\\p{N}](?:[\\p{L}\\p{M}\\p{N}\\-]{0,61}[\\p{L}\\p{M}\\p{N}])?";
+
+  // the checks made by Gov.UK Notify, without those of the top level domain
+  private static final Pattern EMAIL_ADDRESS = Pattern.compile(
+      "^[a-zA-Z0-9.!#$%&'*+/=?^_`{|}~\\-]+@(?:" + DOMAIN_LABEL + "\\.)+" + DOMAIN_LABEL + "$");
+
+  private static final int MAX_EMAIL_ADDRESS_LENGTH = 320;
+
+  private static final Pattern TEMPLATE_ID = Pattern.compile(
+      "^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}$");
+
+  private final boolean enabled;
+
+  private final TemplateSchemaCache templateSchemaCache;
+
+  /**
+   * Creates the validator.
+   *
+   * @param enabled whether email requests are checked
+   * @param templateSchemaCache the cache of the schemas of the email templates
+   */
+  public EmailMessageValidator(@Value("${application.validation.enabled}") boolean enabled,
+      TemplateSchemaCache templateSchemaCache) {
+    this.enabled = enabled;
+    this.templateSchemaCache = templateSchemaCache;
+  }
+
+  /**
+   * Checks an email request.
+   *
+   * @param emailMessage the email request
+   * @throws InvalidEmailMessageException listing every problem found with the request
+   */
+  public void validate(EmailMessage emailMessage) throws InvalidEmailMessageException {
+    if (!enabled) {
+      return;
+    }
+
+    List<String> problems = new ArrayList<>();
+    if (!isValidEmailAddress(emailMessage.getEmailAddress())) {
+      problems.add("email address is not valid");
+    }
+    String templateId = emailMessage.getTemplateId();
+    if (templateId == null || !TEMPLATE_ID.matcher(templateId).matches()) {
+      problems.add("template ID is not a UUID");
+    } else {
+      checkPersonalisation(emailMessage, problems);
+    }
+
+    if (!problems.isEmpty()) {
+      throw new InvalidEmailMessageException(problems);
+    }
+  }
+
+  private void checkPersonalisation(EmailMessage emailMessage, List<String> problems) {
+    Optional<TemplateSchema> schema = templateSchemaCache.getSchema(emailMessage.getTemplateId());
+    if (!schema.isPresent()) {
+      return;
+    }
+    if (!schema.get().isFound()) {
+      problems.add("template " + emailMessage.getTemplateId() + " does not exist");
+      return;
+    }
+    Set<String> missing = schema.get().missingPersonalisation(
+        emailMessage.getPersonalisation() == null
+            ? null
+            : emailMessage.getPersonalisation().keySet());
+    if (!missing.isEmpty()) {
+      problems.add("missing personalisation: " + String.join(", ", missing));
+    }
+  }
+
+  private static boolean isValidEmailAddress(String emailAddress) {
+    return emailAddress != null
+        && emailAddress.length() <= MAX_EMAIL_ADDRESS_LENGTH
+        && !emailAddress.contains("..")
+        && EMAIL_ADDRESS.matcher(emailAddress.trim()).matches();
+  }
+}
@@ -0,0 +1,94 @@
+package uk.gov.caz.notify.messaging;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.domain.MessageEnvelope;
+import uk.gov.caz.notify.dto.EmailMessage;
+
+/**
+ * Writes email requests to be queued. Requests whose JSON body is at least the configured length
+ * are written in the {@link MessageEnvelope#COMPACT_V1} envelope, which is about half the size
+ * of the JSON for such requests. Shorter requests are written as JSON, as the base64 encoding
+ * outweighs the saving. The body a request was read from is reused if it is in an envelope the
+ * writer would use, so that it is not written again.
+ */
+@Component
+public class EmailMessageWriter {
+
+  private static final ObjectMapper CBOR_MAPPER = new ObjectMapper(new CBORFactory());
+
+  private final ObjectMapper objectMapper;
+
+  private final boolean compactEnabled;
+
+  private final int compactMinLength;
+
+  /**
+   * Creates the writer.
+   *
+   * @param objectMapper library class for serializing JSON
+   * @param compactEnabled whether long requests are written in the compact envelope
+   * @param compactMinLength the length of the JSON body from which a request is written in the
+   *     compact envelope
+   */
+  public EmailMessageWriter(ObjectMapper objectMapper,
+      @Value("${application.compact-envelope.enabled}") boolean compactEnabled,
+      @Value("${application.compact-envelope.min-length}") int compactMinLength) {
+    this.objectMapper = objectMapper;
+    this.compactEnabled = compactEnabled;
+    this.compactMinLength = compactMinLength;
+  }
+
+  /**
+   * Writes an email request as the body of a message.
+   *
+   * @param emailMessage the email request
+   * @return the body and the envelope it is written in
+   * @throws JsonProcessingException thrown if the request cannot be written
+   */
+  public EncodedMessage write(EmailMessage emailMessage) throws JsonProcessingException {
+    String rawBody = emailMessage.getRawBody();
+    if (rawBody != null && emailMessage.getEnvelope() == MessageEnvelope.COMPACT_V1) {
+      return new EncodedMessage(rawBody, MessageEnvelope.COMPACT_V1);
+    }
+    String json = rawBody != null ? rawBody : objectMapper.writeValueAsString(emailMessage);
+    if (!compactEnabled || json.length() < compactMinLength) {
+      return new EncodedMessage(json, MessageEnvelope.JSON);
+    }
+    return new EncodedMessage(writeCompact(emailMessage), MessageEnvelope.COMPACT_V1);
+  }
+
+  private static String writeCompact(EmailMessage emailMessage) throws JsonProcessingException {
+    byte[] cbor = CBOR_MAPPER.writeValueAsBytes(emailMessage);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(cbor);
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(cbor.length);
+      byte[] buffer = new byte[1024];
+      while (!deflater.finished()) {
+        compressed.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return Base64.getEncoder().encodeToString(compressed.toByteArray());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * The body of a message and the envelope it is written in.
+   */
+  @lombok.Value
+  public static class EncodedMessage {
+
+    private final String body;
+
+    private final MessageEnvelope envelope;
+  }
+}
@@ -0,0 +1,110 @@
+package uk.gov.caz.notify.messaging;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.QueueName;
+
+/**
+ * Retries failed calls with exponential backoff and full jitter. Bad request and authorisation
+ * errors are not retried, and retrying stops once the maximum elapsed time or the deadline would
+ * be exceeded.
+ */
+@Component
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+  private final int maxRetries;
+
+  private final long baseDelayMillis;
+
+  private final long maxDelayMillis;
+
+  private final long maxElapsedMillis;
+
+  private final int maxRequeueAttempts;
+
+  private final long requeueBaseDelayMillis;
+
+  private final long requeueMaxDelayMillis;
+
+  /**
+   * Creates the policy.
+   *
+   * @param maxRetries maximum number of retries of a message
+   * @param baseDelayMillis upper bound of the delay before the first retry
+   * @param maxDelayMillis upper bound of the delay before any retry
+   * @param maxElapsedMillis maximum time spent retrying a message
+   * @param maxRequeueAttempts maximum number of times a message is re-queued
+   * @param requeueBaseDelayMillis delay before a message re-queued for the first time is sent
+   * @param requeueMaxDelayMillis upper bound of the delay before a re-queued message is sent
+   */
+  public ExponentialBackoffRetryPolicy(
+      @Value("${application.retry.max-retries}") int maxRetries,
+      @Value("${application.retry.base-delay-millis}") long baseDelayMillis,
+      @Value("${application.retry.max-delay-millis}") long maxDelayMillis,
+      @Value("${application.retry.max-elapsed-millis}") long maxElapsedMillis,
+      @Value("${application.retry.max-requeue-attempts}") int maxRequeueAttempts,
+      @Value("${application.retry.requeue-base-delay-millis}") long requeueBaseDelayMillis,
+      @Value("${application.retry.requeue-max-delay-millis}") long requeueMaxDelayMillis) {
+    this.maxRetries = maxRetries;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.maxElapsedMillis = maxElapsedMillis;
+    this.maxRequeueAttempts = maxRequeueAttempts;
+    this.requeueBaseDelayMillis = requeueBaseDelayMillis;
+    this.requeueMaxDelayMillis = requeueMaxDelayMillis;
+  }
+
+  @Override
+  public QueueName fallbackQueue(int status) {
+    switch (status) {
+      case 429:
+        return QueueName.REQUEST_LIMIT;
+      case 500:
+        return QueueName.SERVICE_ERROR;
+      case 503:
+        return QueueName.SERVICE_DOWN;
+      default:
+        return QueueName.DLQ;
+    }
+  }
+
+  @Override
+  public long delayBeforeRetryMillis(int status, int retry, long elapsedMillis,
+      long retryAfterMillis, Deadline deadline) {
+    if (!isRetryable(status) || retry > maxRetries) {
+      return -1;
+    }
+
+    long delay = Math.max(jitteredDelay(retry), retryAfterMillis);
+    if (elapsedMillis + delay > maxElapsedMillis || delay >= deadline.remainingMillis()) {
+      return -1;
+    }
+    return delay;
+  }
+
+  @Override
+  public long requeueDelayMillis(int attempt, long retryAfterMillis) {
+    if (attempt > maxRequeueAttempts) {
+      return -1;
+    }
+    // half of the delay is random, so that messages re-queued together are spread out
+    long delay = Math.min(requeueMaxDelayMillis,
+        requeueBaseDelayMillis << Math.min(attempt - 1, 30));
+    long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    return Math.max(jittered, retryAfterMillis);
+  }
+
+  private boolean isRetryable(int status) {
+    return status != 400 && status != 403;
+  }
+
+  private long jitteredDelay(int retry) {
+    long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(retry - 1, 30));
+    if (ceiling <= 0) {
+      return 0;
+    }
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+}
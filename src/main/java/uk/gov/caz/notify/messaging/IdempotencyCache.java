@@ -0,0 +1,179 @@
+package uk.gov.caz.notify.messaging;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.dto.EmailMessage;
+
+/**
+ * Remembers the emails which have been sent, so that an email received again, for example
+ * because its message was redelivered after the invocation handling it timed out, is not sent
+ * twice. Emails are identified by a hash of their whole content: template, recipient,
+ * personalisation and reference, so that a legitimate re-send of a template and reference to
+ * another recipient, or with other personalisation, is not mistaken for a duplicate. Only
+ * emails known to have been sent are skipped and counted as hits; an email which is still being
+ * sent is reported separately, as that send can still fail. Sent emails are kept in a bounded
+ * in-memory cache and, if one is defined, in a shared {@link IdempotencyStore}.
+ */
+@Slf4j
+@Component
+public class IdempotencyCache {
+
+  private static final HashFunction KEY_HASH = Hashing.murmur3_128();
+
+  private final boolean enabled;
+
+  private final long ttlSeconds;
+
+  // true for an email which has been sent, false for one which is being sent
+  private final Cache<String, Boolean> emails;
+
+  private final IdempotencyStore store;
+
+  private final Counter hits;
+
+  private final Counter misses;
+
+  private final Counter inProgress;
+
+  /**
+   * Creates the cache.
+   *
+   * @param enabled whether emails which have already been sent are skipped
+   * @param maximumSize maximum number of emails kept in memory
+   * @param ttlSeconds how long a sent email is remembered
+   * @param store the shared store of sent emails, if one is defined
+   * @param meterRegistry registry the hit and miss counters are registered with
+   */
+  @Autowired
+  public IdempotencyCache(@Value("${application.idempotency.enabled}") boolean enabled,
+      @Value("${application.idempotency.maximum-size}") long maximumSize,
+      @Value("${application.idempotency.ttl-seconds}") long ttlSeconds,
+      ObjectProvider<IdempotencyStore> store, MeterRegistry meterRegistry) {
+    this(store.getIfAvailable(), enabled, maximumSize, ttlSeconds, meterRegistry);
+  }
+
+  IdempotencyCache(IdempotencyStore store, boolean enabled, long maximumSize, long ttlSeconds,
+      MeterRegistry meterRegistry) {
+    this.enabled = enabled;
+    this.ttlSeconds = ttlSeconds;
+    this.emails = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .build();
+    this.store = store;
+    this.hits = Counter.builder("notify.idempotency.lookups").tag("result", "hit")
+        .description("Emails skipped as they have already been sent").register(meterRegistry);
+    this.misses = Counter.builder("notify.idempotency.lookups").tag("result", "miss")
+        .description("Emails which have not been sent before").register(meterRegistry);
+    this.inProgress = Counter.builder("notify.idempotency.lookups").tag("result", "in-progress")
+        .description("Emails received again while they were still being sent")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Claims the sending of an email. An email cannot be claimed if it has been sent or is being
+   * sent by another thread.
+   *
+   * @param emailMessage the email to be sent
+   * @return {@link Claim#CLAIMED} if the email should be sent, {@link Claim#SENT} if it is a
+   *     duplicate, or {@link Claim#IN_PROGRESS} if another thread is still sending it
+   */
+  public Claim tryClaim(EmailMessage emailMessage) {
+    if (!enabled) {
+      return Claim.CLAIMED;
+    }
+    String key = key(emailMessage);
+    Boolean previous = emails.asMap().putIfAbsent(key, Boolean.FALSE);
+    if (Boolean.FALSE.equals(previous)) {
+      inProgress.increment();
+      return Claim.IN_PROGRESS;
+    }
+    if (previous != null || isStored(key)) {
+      hits.increment();
+      return Claim.SENT;
+    }
+    misses.increment();
+    return Claim.CLAIMED;
+  }
+
+  /**
+   * Completes the claim of an email. An email which has been sent is remembered, the claim of
+   * one which has not is released so that it can be sent when it is received again.
+   *
+   * @param emailMessage the email which was claimed
+   * @param sent whether the email has been sent
+   */
+  public void complete(EmailMessage emailMessage, boolean sent) {
+    if (!enabled) {
+      return;
+    }
+    String key = key(emailMessage);
+    if (!sent) {
+      emails.asMap().remove(key, Boolean.FALSE);
+      return;
+    }
+    emails.put(key, Boolean.TRUE);
+    if (store != null) {
+      try {
+        store.put(key, ttlSeconds);
+      } catch (RuntimeException e) {
+        log.warn("Failed to record sent email in the idempotency store: {}", e.getMessage());
+      }
+    }
+  }
+
+  public long getHitCount() {
+    return (long) hits.count();
+  }
+
+  public long getMissCount() {
+    return (long) misses.count();
+  }
+
+  private boolean isStored(String key) {
+    if (store == null) {
+      return false;
+    }
+    try {
+      if (store.contains(key)) {
+        emails.put(key, Boolean.TRUE);
+        return true;
+      }
+    } catch (RuntimeException e) {
+      log.warn("Failed to look up email in the idempotency store: {}", e.getMessage());
+    }
+    return false;
+  }
+
+  private static String key(EmailMessage emailMessage) {
+    // sorted, so that the key does not depend on the order the personalisation was written in
+    Map<String, Object> personalisation = emailMessage.getPersonalisation() == null
+        ? null
+        : new TreeMap<>(emailMessage.getPersonalisation());
+    String identity = emailMessage.getTemplateId() + "|" + emailMessage.getEmailAddress() + "|"
+        + personalisation + "|" + emailMessage.getReference();
+    return KEY_HASH.hashString(identity, StandardCharsets.UTF_8).toString();
+  }
+
+  /**
+   * The result of claiming the sending of an email.
+   */
+  public enum Claim {
+    CLAIMED,
+    SENT,
+    IN_PROGRESS
+  }
+}
@@ -0,0 +1,25 @@
+package uk.gov.caz.notify.messaging;
+
+/**
+ * A store of the emails which have been sent, shared between instances of the gateway, such as a
+ * DynamoDB table or a Redis cache. The {@link IdempotencyCache} uses it if a bean implementing it
+ * is defined.
+ */
+public interface IdempotencyStore {
+
+  /**
+   * Checks whether an email has been sent.
+   *
+   * @param key the idempotency key of the email
+   * @return true if the email has been sent and its key has not expired
+   */
+  boolean contains(String key);
+
+  /**
+   * Records that an email has been sent.
+   *
+   * @param key the idempotency key of the email
+   * @param ttlSeconds how long the key has to be kept for
+   */
+  void put(String key, long ttlSeconds);
+}
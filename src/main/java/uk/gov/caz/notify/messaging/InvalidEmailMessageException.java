@@ -0,0 +1,26 @@
+package uk.gov.caz.notify.messaging;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown for a well formed email request which Gov.UK Notify would reject, such as one with an
+ * invalid email address or missing personalisation.
+ */
+public class InvalidEmailMessageException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final ArrayList<String> problems;
+
+  public InvalidEmailMessageException(List<String> problems) {
+    super("Invalid email request: " + String.join("; ", problems));
+    this.problems = new ArrayList<>(problems);
+  }
+
+  public List<String> getProblems() {
+    return Collections.unmodifiableList(problems);
+  }
+}
@@ -1,18 +1,35 @@
 package uk.gov.caz.notify.messaging;
 
-import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.IOException;
-import java.util.UUID;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.DispatchResult;
+import uk.gov.caz.notify.domain.MessageEnvelope;
 import uk.gov.caz.notify.domain.QueueName;
-import uk.gov.caz.notify.dto.SendEmailRequest;
+import uk.gov.caz.notify.domain.RoutingOutcome;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.repository.CircuitBreakerOpenException;
 import uk.gov.caz.notify.repository.GovUkNotifyWrapper;
+import uk.gov.caz.notify.repository.NotifyResponseException;
+import uk.gov.caz.notify.repository.RateLimitExceededException;
 import uk.gov.service.notify.NotificationClientException;
+import uk.gov.service.notify.SendEmailResponse;
 
 /**
  * A client to interface with remote queue service.
@@ -21,199 +38,512 @@ import uk.gov.service.notify.NotificationClientException;
 @Slf4j
 public class MessagingClient {
 
-  private static final String MESSAGE_SUCCESSFULLY_SENT = "Message successfully sent";
-  private static final String PUBLISHING_MESSAGE_TO_THE_DOWN_LETTER_QUEUE =
-      "Publishing message to the service down queue";
-  private static final String PUBLISHING_MESSAGE_TO_THE_DEAD_LETTER_QUEUE =
-      "Publishing message to the dead letter queue";
-  private static final String PUBLISHING_MESSAGE_TO_THE_ERROR_QUEUE =
-      "Publishing message to the service error queue";
-  private static final String PUBLISHING_MESSAGE_TO_THE_REQUEST_LIMIT_QUEUE =
-      "Publishing message to the request limit queue";
-
-  private final AmazonSQS client;
-  private final GovUkNotifyWrapper govUkNotifyWrapper;
-  private final ObjectMapper objectMapper;
+  /**
+   * The message attribute holding the number of times a request has been re-queued.
+   */
+  public static final String REQUEUE_ATTEMPT_ATTRIBUTE = "requeueAttempt";
 
-  @Value("${job.notify-gateway.new-queue-url}")
-  String newQueue;
+  /**
+   * The message attribute holding the epoch millisecond before which a re-queued request is not
+   * sent again.
+   */
+  public static final String NOT_BEFORE_ATTRIBUTE = "notBefore";
+
+  /**
+   * The message attribute naming the {@link MessageEnvelope} of a request which is not plain
+   * JSON.
+   */
+  public static final String ENVELOPE_ATTRIBUTE = "envelope";
 
-  @Value("${job.notify-gateway.dlq-url}")
-  String deadLetterQueue;
+  private static final String MESSAGE_SUCCESSFULLY_SENT = "Message successfully sent";
+  private static final String PUBLISHING_MESSAGE_TO_THE_QUEUE =
+      "Publishing message to the {} queue";
+  private static final HashFunction MESSAGE_ID_HASH = Hashing.murmur3_128();
 
-  @Value("${job.notify-gateway.request-limit-queue-url}")
-  String requestLimitQueue;
+  private final SqsBatchBuffer sqsBatchBuffer;
+  private final QueueUrlRegistry queueUrlRegistry;
+  private final GovUkNotifyWrapper govUkNotifyWrapper;
+  private final RetryPolicy retryPolicy;
+  private final IdempotencyCache idempotencyCache;
+  private final EmailMessageWriter emailMessageWriter;
+  private final String defaultMessageGroupId;
 
-  @Value("${job.notify-gateway.service-down-queue-url}")
-  String serviceDownQueue;
+  // only times the retries, which run on the workers so that a retry blocking on the rate limiter
+  // or on the blocking client does not hold up the others
+  private final ScheduledExecutorService retryScheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("notify-retry-%d").setDaemon(true).build());
 
-  @Value("${job.notify-gateway.service-error-queue-url}")
-  String serviceErrorQueue;
+  private final ExecutorService retryExecutor;
 
   /**
    * Constructor for the external queuing provider client.
    *
-   * @param client a synchronous client for interfacing with Amazon SQS
+   * @param sqsBatchBuffer a buffer sending outbound messages in batches
+   * @param queueUrlRegistry a cache of the URLs of the gateway queues
    * @param govUkNotifyWrapper a wrapper for the Gov.UK Notify service
-   * @param objectMapper library class for serializing and deserializing JSON
+   * @param retryPolicy the policy for retrying failed calls to Gov.UK Notify
+   * @param idempotencyCache a cache of the emails which have already been sent
+   * @param emailMessageWriter a writer of the bodies of re-queued requests
+   * @param defaultMessageGroupId the message group of re-queued requests which have neither a
+   *     message group nor a reference
+   * @param retryConcurrency maximum number of asynchronous retries started at the same time,
+   *     further retries which are due wait for a worker
    */
-  public MessagingClient(AmazonSQS client, GovUkNotifyWrapper govUkNotifyWrapper,
-      ObjectMapper objectMapper) {
-    this.client = client;
+  public MessagingClient(SqsBatchBuffer sqsBatchBuffer, QueueUrlRegistry queueUrlRegistry,
+      GovUkNotifyWrapper govUkNotifyWrapper, RetryPolicy retryPolicy,
+      IdempotencyCache idempotencyCache, EmailMessageWriter emailMessageWriter,
+      @Value("${application.message-group-id-payments}") String defaultMessageGroupId,
+      @Value("${application.dispatch-concurrency}") int retryConcurrency) {
+    this.sqsBatchBuffer = sqsBatchBuffer;
+    this.queueUrlRegistry = queueUrlRegistry;
     this.govUkNotifyWrapper = govUkNotifyWrapper;
-    this.objectMapper = objectMapper;
+    this.retryPolicy = retryPolicy;
+    this.idempotencyCache = idempotencyCache;
+    this.emailMessageWriter = emailMessageWriter;
+    this.defaultMessageGroupId = defaultMessageGroupId;
+    this.retryExecutor = Executors.newFixedThreadPool(Math.max(1, retryConcurrency),
+        new ThreadFactoryBuilder().setNameFormat("notify-retry-worker-%d").setDaemon(true)
+            .build());
+  }
+
+  /**
+   * A method to publish a message to a queue. The message is buffered and sent
+   * with the next {@link SqsBatchBuffer#flush()}.
+   *
+   * @param queueName the queue which the message should be sent to
+   * @param message the message object
+   */
+  public void publishMessage(QueueName queueName, SendMessageRequest message) {
+    publishMessage(queueName, message, null);
   }
 
   /**
-   * A method to publish a message to a queue.
+   * A method to publish a message replacing a received message to a queue. The message is
+   * buffered and sent with the next {@link SqsBatchBuffer#flush()}, and the received message is
+   * not deleted if it cannot be sent.
    *
    * @param queueName the queue which the message should be sent to
    * @param message the message object
+   * @param receiptHandle the receipt handle of the received message, or null if there is none
    */
-  public void publishMessage(String queueName, SendMessageRequest message) {
-    message.setQueueUrl(client.getQueueUrl(queueName).getQueueUrl());
+  public void publishMessage(QueueName queueName, SendMessageRequest message,
+      String receiptHandle) {
+    message.setQueueUrl(queueUrlRegistry.getQueueUrl(queueName));
 
     log.info("Sending email message object to SQS queue {} with de-duplication ID: {}", queueName,
         message.getMessageDeduplicationId());
-    client.sendMessage(message);
+    sqsBatchBuffer.send(message, receiptHandle);
   }
 
   /**
-   * Helper method to retry sending the message.
+   * Helper method to retry sending the message, waiting between attempts as the
+   * {@link RetryPolicy} decides.
    *
-   * @param sendEmailRequest the key parameters of the email to be sent
-   * @param i the number of attempts to try
-   * @return true if message successfully sent, false otherwise
+   * @param emailMessage the key parameters of the email to be sent
+   * @param failure the error the first attempt failed with
+   * @param deadline the point in time by which the message has to be handled
+   * @return the response of Gov.UK Notify to the successful attempt
+   * @throws NotificationClientException the error of the last attempt, if none succeeded
    * @throws InstantiationException thrown if the API key for Notify is not set
    */
-  private boolean retryMessage(SendEmailRequest sendEmailRequest, int i)
-      throws InstantiationException {
-    while (i > 0) {
-      log.info("Retrying to send message. Attempts left: {}", i);
+  private SendEmailResponse retryMessage(EmailMessage emailMessage,
+      NotificationClientException failure, Deadline deadline)
+      throws NotificationClientException, InstantiationException {
+    long start = System.nanoTime();
+    NotificationClientException lastFailure = failure;
+
+    for (int retry = 1; ; retry++) {
+      if (lastFailure instanceof CircuitBreakerOpenException) {
+        throw lastFailure;
+      }
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      long delay = retryPolicy.delayBeforeRetryMillis(lastFailure.getHttpResult(), retry,
+          elapsedMillis, retryAfterMillis(lastFailure), deadline);
+      if (delay < 0) {
+        throw lastFailure;
+      }
+
+      log.info("Retrying to send message in {} ms. Retry: {}", delay, retry);
+      if (!sleep(delay)) {
+        throw lastFailure;
+      }
       try {
-        govUkNotifyWrapper
-            .sendEmail(sendEmailRequest.getTemplateId(), sendEmailRequest.getEmailAddress(),
-                sendEmailRequest.getPersonalisation(), sendEmailRequest.getReference());
-        return true;
-      } catch (NotificationClientException | IOException e) {
-        i = i - 1;
+        return sendEmail(emailMessage);
+      } catch (NotificationClientException e) {
+        lastFailure = e;
       }
     }
+  }
 
-    return false;
+  /**
+   * Handles the sending of the email and manages any errors thrown as a result of this process.
+   * The message to re-queue is only created once sending has failed.
+   *
+   * @param emailMessage the email request to be sent
+   * @return what happened to the request
+   * @throws JsonProcessingException thrown if the request cannot be written to a string
+   * @throws InstantiationException thrown if the API key for Notify is not set
+   */
+  public RoutingOutcome handleMessage(EmailMessage emailMessage)
+      throws JsonProcessingException, InstantiationException {
+    return handleMessage(emailMessage, Deadline.none());
   }
 
   /**
    * Handles the sending of the email and manages any errors thrown as a result of this process.
+   * Failed calls are retried according to the {@link RetryPolicy}, and the message is published
+   * to the queue the policy chooses for the last error if it could not be sent. While the circuit
+   * breaker for Gov.UK Notify is open the message goes straight to the service down queue. An
+   * email which the {@link IdempotencyCache} knows to have been sent already is skipped, and one
+   * which is still being sent by another thread is left for the caller to retry later.
    *
-   * @param sendEmailRequest the body of the email request to be sent
+   * @param emailMessage the email request to be sent
+   * @param deadline the point in time by which the message has to be handled
+   * @return what happened to the request
    * @throws JsonProcessingException thrown if the request cannot be written to a string
    * @throws InstantiationException thrown if the API key for Notify is not set
    */
-  public void handleMessage(SendEmailRequest sendEmailRequest)
+  public RoutingOutcome handleMessage(EmailMessage emailMessage, Deadline deadline)
+      throws JsonProcessingException, InstantiationException {
+    return sendMessage(emailMessage, deadline).getOutcome();
+  }
+
+  /**
+   * Handles the sending of the email like {@link #handleMessage(EmailMessage, Deadline)},
+   * returning the ID Gov.UK Notify gave the email together with the outcome.
+   *
+   * @param emailMessage the email request to be sent
+   * @param deadline the point in time by which the message has to be handled
+   * @return what happened to the request
+   * @throws JsonProcessingException thrown if the request cannot be written to a string
+   * @throws InstantiationException thrown if the API key for Notify is not set
+   */
+  public DispatchResult sendMessage(EmailMessage emailMessage, Deadline deadline)
+      throws JsonProcessingException, InstantiationException {
+    IdempotencyCache.Claim claim = idempotencyCache.tryClaim(emailMessage);
+    if (claim != IdempotencyCache.Claim.CLAIMED) {
+      return DispatchResult.of(notClaimed(emailMessage, claim));
+    }
+    boolean sent = false;
+    try {
+      DispatchResult result = sendOrRequeue(emailMessage, deadline);
+      sent = result.getOutcome().isSent();
+      return result;
+    } finally {
+      idempotencyCache.complete(emailMessage, sent);
+    }
+  }
+
+  private DispatchResult sendOrRequeue(EmailMessage emailMessage, Deadline deadline)
       throws JsonProcessingException, InstantiationException {
-    String msgBody = objectMapper.writeValueAsString(sendEmailRequest);
-    SendMessageRequest message = createSendMessageRequest(msgBody);
-    
     try {
       log.info("Sending email initiated");
-      govUkNotifyWrapper
-          .sendEmail(sendEmailRequest.getTemplateId(), sendEmailRequest.getEmailAddress(),
-              sendEmailRequest.getPersonalisation(), sendEmailRequest.getReference());
+      SendEmailResponse response = sendEmail(emailMessage);
       log.info(MESSAGE_SUCCESSFULLY_SENT);
+      return sent(RoutingOutcome.SENT, response);
+    } catch (RateLimitExceededException e) {
+      log.info(e.getMessage());
+      return DispatchResult.of(
+          requeue(QueueName.REQUEST_LIMIT, emailMessage, retryAfterMillis(e)));
+    } catch (CircuitBreakerOpenException e) {
+      log.info(e.getMessage());
+      return DispatchResult.of(
+          requeue(QueueName.SERVICE_DOWN, emailMessage, retryAfterMillis(e)));
     } catch (NotificationClientException e) {
-      int status = e.getHttpResult();
       log.error(e.getMessage());
-      log.info("Got status from Notify Gateway");
-
-      boolean success;
-
-      switch (status) {
-        case 400:
-        case 403:
-          log.info(PUBLISHING_MESSAGE_TO_THE_DEAD_LETTER_QUEUE);
-          publishMessage(deadLetterQueue, message);
-          break;
-        case 429:
-          success = retryMessage(sendEmailRequest, 3);
-          if (success) {
-            log.info(MESSAGE_SUCCESSFULLY_SENT);
-          } else {
-            log.info(PUBLISHING_MESSAGE_TO_THE_REQUEST_LIMIT_QUEUE);
-            publishMessage(requestLimitQueue, message);
-          }
-          break;
-        case 500:
-          success = retryMessage(sendEmailRequest, 3);
-          if (success) {
-            log.info(MESSAGE_SUCCESSFULLY_SENT);
-          } else {
-            log.info(PUBLISHING_MESSAGE_TO_THE_ERROR_QUEUE);
-            publishMessage(serviceErrorQueue, message);
-          }
-          break;
-        case 503:
-          success = retryMessage(sendEmailRequest, 3);
-          if (success) {
-            log.info(MESSAGE_SUCCESSFULLY_SENT);
-          } else {
-            log.info(PUBLISHING_MESSAGE_TO_THE_DOWN_LETTER_QUEUE);
-            publishMessage(serviceDownQueue, message);
-          }
-          break;
-        default:
-          success = retryMessage(sendEmailRequest, 3);
-          if (success) {
-            log.info(MESSAGE_SUCCESSFULLY_SENT);
-          } else {
-            log.info(PUBLISHING_MESSAGE_TO_THE_DEAD_LETTER_QUEUE);
-            publishMessage(deadLetterQueue, message);
+      log.info("Got status from Notify Gateway: {}", e.getHttpResult());
+
+      try {
+        SendEmailResponse response = retryMessage(emailMessage, e, deadline);
+        log.info(MESSAGE_SUCCESSFULLY_SENT);
+        return sent(RoutingOutcome.SENT_AFTER_RETRY, response);
+      } catch (NotificationClientException lastFailure) {
+        return DispatchResult.of(requeue(retryPolicy.fallbackQueue(lastFailure.getHttpResult()),
+            emailMessage, retryAfterMillis(lastFailure)));
+      }
+    }
+  }
+
+  private static DispatchResult sent(RoutingOutcome outcome, SendEmailResponse response) {
+    return new DispatchResult(outcome, response == null ? null : response.getNotificationId());
+  }
+
+  /**
+   * Handles the sending of the email like {@link #handleMessage(EmailMessage, Deadline)}, without
+   * blocking a thread while the request is in flight or waiting to be retried.
+   *
+   * @param emailMessage the email request to be sent
+   * @param deadline the point in time by which the message has to be handled
+   * @return what happened to the request, failing with a {@link JsonProcessingException} if the
+   *     request cannot be re-queued or an {@link InstantiationException} if the API key for
+   *     Notify is not set
+   */
+  public CompletableFuture<RoutingOutcome> handleMessageAsync(EmailMessage emailMessage,
+      Deadline deadline) {
+    return sendMessageAsync(emailMessage, deadline).thenApply(DispatchResult::getOutcome);
+  }
+
+  /**
+   * Handles the sending of the email like {@link #handleMessageAsync(EmailMessage, Deadline)},
+   * returning the ID Gov.UK Notify gave the email together with the outcome.
+   *
+   * @param emailMessage the email request to be sent
+   * @param deadline the point in time by which the message has to be handled
+   * @return what happened to the request, failing with the same errors as
+   *     {@link #handleMessageAsync(EmailMessage, Deadline)}
+   */
+  public CompletableFuture<DispatchResult> sendMessageAsync(EmailMessage emailMessage,
+      Deadline deadline) {
+    IdempotencyCache.Claim claim = idempotencyCache.tryClaim(emailMessage);
+    if (claim != IdempotencyCache.Claim.CLAIMED) {
+      return CompletableFuture.completedFuture(
+          DispatchResult.of(notClaimed(emailMessage, claim)));
+    }
+    log.info("Sending email initiated");
+    CompletableFuture<DispatchResult> outcome = new CompletableFuture<>();
+    sendAsync(emailMessage, deadline, 0, System.nanoTime(), outcome);
+    return outcome.whenComplete((result, error) -> idempotencyCache.complete(emailMessage,
+        result != null && result.getOutcome().isSent()));
+  }
+
+  private static RoutingOutcome notClaimed(EmailMessage emailMessage,
+      IdempotencyCache.Claim claim) {
+    if (claim == IdempotencyCache.Claim.IN_PROGRESS) {
+      log.info("Not sending email with reference {} which is still being sent",
+          emailMessage.getReference());
+      return RoutingOutcome.IN_PROGRESS;
+    }
+    log.info("Skipping email with reference {} which has already been sent",
+        emailMessage.getReference());
+    return RoutingOutcome.DUPLICATE;
+  }
+
+  private void sendAsync(EmailMessage emailMessage, Deadline deadline, int retry, long start,
+      CompletableFuture<DispatchResult> outcome) {
+    govUkNotifyWrapper.sendEmailAsync(emailMessage.getTemplateId(),
+        emailMessage.getEmailAddress(), emailMessage.getPersonalisation(),
+        emailMessage.getReference())
+        .whenComplete((response, error) -> {
+          try {
+            if (error == null) {
+              log.info(MESSAGE_SUCCESSFULLY_SENT);
+              outcome.complete(sent(
+                  retry == 0 ? RoutingOutcome.SENT : RoutingOutcome.SENT_AFTER_RETRY, response));
+            } else {
+              onAsyncFailure(emailMessage, deadline, retry, start,
+                  error instanceof CompletionException ? error.getCause() : error, outcome);
+            }
+          } catch (JsonProcessingException | RuntimeException e) {
+            outcome.completeExceptionally(e);
           }
-          break;
+        });
+  }
+
+  /**
+   * Routes a failed attempt the same way as the blocking {@link #handleMessage(EmailMessage,
+   * Deadline)}, scheduling the next attempt instead of sleeping until it is due.
+   */
+  private void onAsyncFailure(EmailMessage emailMessage, Deadline deadline, int retry,
+      long start, Throwable error, CompletableFuture<DispatchResult> outcome)
+      throws JsonProcessingException {
+    if (!(error instanceof NotificationClientException)) {
+      outcome.completeExceptionally(error);
+      return;
+    }
+    NotificationClientException failure = (NotificationClientException) error;
+    if (retry == 0 && failure instanceof RateLimitExceededException) {
+      log.info(failure.getMessage());
+      outcome.complete(DispatchResult.of(
+          requeue(QueueName.REQUEST_LIMIT, emailMessage, retryAfterMillis(failure))));
+      return;
+    }
+    if (retry == 0 && failure instanceof CircuitBreakerOpenException) {
+      log.info(failure.getMessage());
+      outcome.complete(DispatchResult.of(
+          requeue(QueueName.SERVICE_DOWN, emailMessage, retryAfterMillis(failure))));
+      return;
+    }
+    if (retry == 0) {
+      log.error(failure.getMessage());
+      log.info("Got status from Notify Gateway: {}", failure.getHttpResult());
+    }
+
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    long delay = failure instanceof CircuitBreakerOpenException
+        ? -1
+        : retryPolicy.delayBeforeRetryMillis(failure.getHttpResult(), retry + 1, elapsedMillis,
+            retryAfterMillis(failure), deadline);
+    if (delay < 0) {
+      outcome.complete(DispatchResult.of(requeue(
+          retryPolicy.fallbackQueue(failure.getHttpResult()), emailMessage,
+          retryAfterMillis(failure))));
+      return;
+    }
+
+    log.info("Retrying to send message in {} ms. Retry: {}", delay, retry + 1);
+    retryScheduler.schedule(() -> {
+      try {
+        retryExecutor.execute(() -> retryAsync(emailMessage, deadline, retry + 1, start, outcome));
+      } catch (RejectedExecutionException e) {
+        outcome.completeExceptionally(e);
       }
-    } catch (IOException e) {
-      log.error(e.getMessage());
-      publishMessage(deadLetterQueue, message);
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Makes a scheduled attempt, failing the outcome if the attempt throws rather than returning a
+   * failed future, so that the outcome is always completed.
+   */
+  private void retryAsync(EmailMessage emailMessage, Deadline deadline, int retry, long start,
+      CompletableFuture<DispatchResult> outcome) {
+    try {
+      sendAsync(emailMessage, deadline, retry, start, outcome);
+    } catch (RuntimeException e) {
+      outcome.completeExceptionally(e);
     }
   }
 
   /**
-   * Helper method to return a full queue name (with consideration for environment) from the generic
-   * name of a queue.
+   * Publishes a request which could not be sent to a queue. The request carries the number of
+   * times it has been re-queued and the point in time before which it should not be sent again,
+   * so that it is not received and failed again straight away, and goes to the dead letter queue
+   * once the {@link RetryPolicy} gives up on it. The queues are FIFO queues, which do not support
+   * a delay per message, so the request is deferred by the receiver instead.
+   */
+  private RoutingOutcome requeue(QueueName queueName, EmailMessage emailMessage,
+      long retryAfterMillis) throws JsonProcessingException {
+    if (queueName == QueueName.DLQ) {
+      return publishToQueue(queueName, emailMessage);
+    }
+    int attempt = emailMessage.getRequeueAttempt() + 1;
+    long delay = retryPolicy.requeueDelayMillis(attempt, retryAfterMillis);
+    if (delay < 0) {
+      log.info("Message has been re-queued {} times, giving up on it",
+          emailMessage.getRequeueAttempt());
+      return publishToQueue(QueueName.DLQ, emailMessage);
+    }
+
+    SendMessageRequest message = createSendMessageRequest(queueName, emailMessage)
+        .addMessageAttributesEntry(REQUEUE_ATTEMPT_ATTRIBUTE, numberAttribute(attempt))
+        .addMessageAttributesEntry(NOT_BEFORE_ATTRIBUTE,
+            numberAttribute(System.currentTimeMillis() + delay));
+    log.info(PUBLISHING_MESSAGE_TO_THE_QUEUE, queueName);
+    publishMessage(queueName, message, emailMessage.getReceiptHandle());
+    return RoutingOutcome.requeuedTo(queueName);
+  }
+
+  private RoutingOutcome publishToQueue(QueueName queueName, EmailMessage emailMessage)
+      throws JsonProcessingException {
+    log.info(PUBLISHING_MESSAGE_TO_THE_QUEUE, queueName);
+    publishMessage(queueName, createSendMessageRequest(queueName, emailMessage),
+        emailMessage.getReceiptHandle());
+    return RoutingOutcome.requeuedTo(queueName);
+  }
+
+  private static MessageAttributeValue numberAttribute(long value) {
+    return new MessageAttributeValue().withDataType("Number")
+        .withStringValue(String.valueOf(value));
+  }
+
+  /**
+   * Returns the delay Gov.UK Notify requested in the Retry-After header of a failed call. Only
+   * the asynchronous client reads the header; the exceptions of the blocking Notify client do not
+   * carry the response headers, so on the blocking path the delay is left to the
+   * {@link RetryPolicy}.
+   */
+  private static long retryAfterMillis(NotificationClientException e) {
+    return e instanceof NotifyResponseException
+        ? ((NotifyResponseException) e).getRetryAfterMillis()
+        : 0;
+  }
+
+  private static boolean sleep(long millis) {
+    try {
+      TimeUnit.MILLISECONDS.sleep(millis);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private SendEmailResponse sendEmail(EmailMessage emailMessage)
+      throws NotificationClientException, InstantiationException {
+    return govUkNotifyWrapper.sendEmail(emailMessage.getTemplateId(),
+        emailMessage.getEmailAddress(), emailMessage.getPersonalisation(),
+        emailMessage.getReference());
+  }
+
+  /**
+   * Creates an instance of {@link SendMessageRequest} from a message body String. The
+   * de-duplication and group IDs are derived from the body.
    *
-   * @param queueName generic name of the queue
-   * @return full name of queue target
-   */
-  public String getEnvQueueName(String queueName) {
-    if (queueName.equals(QueueName.NEW.toString())) {
-      return this.newQueue;
-    } else if (queueName.equals(QueueName.REQUEST_LIMIT.toString())) {
-      return this.requestLimitQueue;
-    } else if (queueName.equals(QueueName.SERVICE_ERROR.toString())) {
-      return this.serviceErrorQueue;
-    } else if (queueName.equals(QueueName.SERVICE_DOWN.toString())) {
-      return this.serviceDownQueue;
-    } else if (queueName.equals(QueueName.DLQ.toString())) {
-      return this.deadLetterQueue;
-    } else {
-      throw new IllegalArgumentException("Queue name not recognised.");
-    }
-  }
-  
-  /**
-   * Creates an instance of {@link SendMessageRequest} from a message body String.
    * @param messageBody A String containing the body of the message
    * @return an instance of {@link SendMessageRequest}
    */
   public SendMessageRequest createSendMessageRequest(String messageBody) {
+    String bodyHash = hash(messageBody);
+    return createSendMessageRequest(messageBody, bodyHash, bodyHash);
+  }
+
+  /**
+   * Creates an instance of {@link SendMessageRequest} re-queueing an email request to a queue.
+   * The de-duplication ID is derived from the target queue and the ID of the message the request
+   * was received in (or its body), so that a redelivered message is not re-queued twice. The
+   * request keeps the message group it was received in, so that it stays ordered with the other
+   * messages of the group. A request which was not received from a queue is grouped by its
+   * reference, or put in the default group if it has none. The body is written by the
+   * {@link EmailMessageWriter}, and an envelope other than plain JSON is named by the
+   * {@link #ENVELOPE_ATTRIBUTE} message attribute.
+   *
+   * @param queueName the queue the request is sent to
+   * @param emailMessage the email request
+   * @return an instance of {@link SendMessageRequest}
+   * @throws JsonProcessingException thrown if the request cannot be written to a string
+   */
+  public SendMessageRequest createSendMessageRequest(QueueName queueName,
+      EmailMessage emailMessage) throws JsonProcessingException {
+    EmailMessageWriter.EncodedMessage encoded = emailMessageWriter.write(emailMessage);
+    String messageBody = encoded.getBody();
+    String source = emailMessage.getMessageId() != null
+        ? emailMessage.getMessageId()
+        : messageBody;
+    String messageDeduplicationId = hash(queueName + "|" + source);
+    String messageGroupId = emailMessage.getMessageGroupId();
+    if (messageGroupId == null) {
+      messageGroupId = emailMessage.getReference() != null
+          ? hash(emailMessage.getReference())
+          : defaultMessageGroupId;
+    }
+    SendMessageRequest sendMessageRequest =
+        createSendMessageRequest(messageBody, messageDeduplicationId, messageGroupId);
+    if (encoded.getEnvelope() != MessageEnvelope.JSON) {
+      sendMessageRequest.addMessageAttributesEntry(ENVELOPE_ATTRIBUTE,
+          new MessageAttributeValue().withDataType("String")
+              .withStringValue(encoded.getEnvelope().toString()));
+    }
+    return sendMessageRequest;
+  }
+
+  private SendMessageRequest createSendMessageRequest(String messageBody,
+      String messageDeduplicationId, String messageGroupId) {
     SendMessageRequest sendMessageRequest = new SendMessageRequest();
-    UUID messageDeduplicationId = UUID.randomUUID();
 
-    sendMessageRequest.setMessageGroupId(UUID.randomUUID().toString());
-    sendMessageRequest.setMessageDeduplicationId(messageDeduplicationId.toString());
-    sendMessageRequest.putCustomRequestHeader("contentType", "application/json");
+    sendMessageRequest.setMessageGroupId(messageGroupId);
+    sendMessageRequest.setMessageDeduplicationId(messageDeduplicationId);
     sendMessageRequest.setMessageBody(messageBody);
     
     return sendMessageRequest;
   }
+
+  private static String hash(String value) {
+    return MESSAGE_ID_HASH.hashString(value, StandardCharsets.UTF_8).toString();
+  }
+
+  @PreDestroy
+  void shutdown() {
+    retryScheduler.shutdown();
+    retryExecutor.shutdown();
+  }
 }
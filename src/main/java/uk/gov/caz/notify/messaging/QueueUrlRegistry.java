@@ -0,0 +1,136 @@
+package uk.gov.caz.notify.messaging;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.domain.QueueName;
+
+/**
+ * Resolves and caches the URLs of the gateway queues, so that SQS is not asked for a queue URL
+ * on every publish and poll.
+ */
+@Slf4j
+@Component
+public class QueueUrlRegistry {
+
+  private final AmazonSQS client;
+
+  private final Map<QueueName, String> envQueueNames = new EnumMap<>(QueueName.class);
+
+  private final long ttlNanos;
+
+  private final ConcurrentMap<QueueName, ResolvedQueueUrl> queueUrls = new ConcurrentHashMap<>();
+
+  private final Counter hits;
+
+  private final Counter misses;
+
+  /**
+   * Creates the registry.
+   *
+   * @param client a synchronous client for interfacing with Amazon SQS
+   * @param meterRegistry registry the cache hit and miss counters are registered with
+   * @param ttlSeconds how long a resolved queue URL is cached for
+   * @param newQueue name of the new queue in the current environment
+   * @param requestLimitQueue name of the request limit queue in the current environment
+   * @param serviceErrorQueue name of the service error queue in the current environment
+   * @param serviceDownQueue name of the service down queue in the current environment
+   * @param deadLetterQueue name of the dead letter queue in the current environment
+   */
+  public QueueUrlRegistry(AmazonSQS client, MeterRegistry meterRegistry,
+      @Value("${application.queue-url-cache-ttl-seconds}") long ttlSeconds,
+      @Value("${job.notify-gateway.new-queue-url}") String newQueue,
+      @Value("${job.notify-gateway.request-limit-queue-url}") String requestLimitQueue,
+      @Value("${job.notify-gateway.service-error-queue-url}") String serviceErrorQueue,
+      @Value("${job.notify-gateway.service-down-queue-url}") String serviceDownQueue,
+      @Value("${job.notify-gateway.dlq-url}") String deadLetterQueue) {
+    this.client = client;
+    this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    this.envQueueNames.put(QueueName.NEW, newQueue);
+    this.envQueueNames.put(QueueName.REQUEST_LIMIT, requestLimitQueue);
+    this.envQueueNames.put(QueueName.SERVICE_ERROR, serviceErrorQueue);
+    this.envQueueNames.put(QueueName.SERVICE_DOWN, serviceDownQueue);
+    this.envQueueNames.put(QueueName.DLQ, deadLetterQueue);
+    this.hits = Counter.builder("notify.queue.url.lookups").tag("result", "hit")
+        .description("Queue URL lookups served from the cache").register(meterRegistry);
+    this.misses = Counter.builder("notify.queue.url.lookups").tag("result", "miss")
+        .description("Queue URL lookups resolved with SQS").register(meterRegistry);
+  }
+
+  /**
+   * Helper method to return a full queue name (with consideration for environment) of a queue.
+   *
+   * @param queueName generic name of the queue
+   * @return full name of queue target
+   */
+  public String getEnvQueueName(QueueName queueName) {
+    return envQueueNames.get(queueName);
+  }
+
+  /**
+   * Returns the queue with the given full name.
+   *
+   * @param envQueueName full name of the queue in the current environment
+   * @return the queue, or null if no gateway queue has the given name
+   */
+  public QueueName getQueueName(String envQueueName) {
+    for (Map.Entry<QueueName, String> entry : envQueueNames.entrySet()) {
+      if (entry.getValue().equals(envQueueName)) {
+        return entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the URL of a queue, resolving it with SQS if it is not cached or has expired.
+   *
+   * @param queueName generic name of the queue
+   * @return the URL of the queue
+   */
+  public String getQueueUrl(QueueName queueName) {
+    ResolvedQueueUrl cached = queueUrls.get(queueName);
+    if (cached != null && !cached.isExpired()) {
+      hits.increment();
+      return cached.url;
+    }
+
+    misses.increment();
+    String envQueueName = getEnvQueueName(queueName);
+    log.info("Resolving URL of queue: {}", envQueueName);
+    String url = client.getQueueUrl(envQueueName).getQueueUrl();
+    queueUrls.put(queueName, new ResolvedQueueUrl(url, System.nanoTime() + ttlNanos));
+    return url;
+  }
+
+  public long getHitCount() {
+    return (long) hits.count();
+  }
+
+  public long getMissCount() {
+    return (long) misses.count();
+  }
+
+  private static final class ResolvedQueueUrl {
+
+    private final String url;
+    private final long expiresAtNanos;
+
+    private ResolvedQueueUrl(String url, long expiresAtNanos) {
+      this.url = url;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+
+    private boolean isExpired() {
+      return expiresAtNanos - System.nanoTime() <= 0;
+    }
+  }
+}
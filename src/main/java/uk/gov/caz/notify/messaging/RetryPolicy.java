@@ -0,0 +1,43 @@
+package uk.gov.caz.notify.messaging;
+
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.QueueName;
+
+/**
+ * Decides how a failed call to Gov.UK Notify is handled, per HTTP status returned.
+ */
+public interface RetryPolicy {
+
+  /**
+   * Returns the queue a message is routed to once it can no longer be retried.
+   *
+   * @param status the HTTP status of the last failed attempt
+   * @return the queue the message is published to
+   */
+  QueueName fallbackQueue(int status);
+
+  /**
+   * Returns how long to wait before retrying a failed call.
+   *
+   * @param status the HTTP status of the last failed attempt
+   * @param retry the number of the retry about to be made, starting with 1
+   * @param elapsedMillis time spent retrying the message so far
+   * @param retryAfterMillis the delay requested by Gov.UK Notify, or 0 if none was requested or
+   *     it is not known, as on the blocking path
+   * @param deadline the point in time by which the message has to be handled
+   * @return the delay in milliseconds, or a negative value if the call should not be retried
+   */
+  long delayBeforeRetryMillis(int status, int retry, long elapsedMillis, long retryAfterMillis,
+      Deadline deadline);
+
+  /**
+   * Returns how long a re-queued message waits before it is sent again.
+   *
+   * @param attempt the number of times the message has been re-queued, including this time
+   * @param retryAfterMillis the delay requested by Gov.UK Notify, or 0 if none was requested or
+   *     it is not known, as on the blocking path
+   * @return the delay in milliseconds, or a negative value if the message should go to the dead
+   *     letter queue instead
+   */
+  long requeueDelayMillis(int attempt, long retryAfterMillis);
+}
@@ -0,0 +1,360 @@
+package uk.gov.caz.notify.messaging;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.google.common.base.Throwables;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collects message deletions and outbound messages per queue and sends them to SQS with
+ * DeleteMessageBatch and SendMessageBatch calls of up to 10 entries. A batch is sent
+ * asynchronously as soon as it is full, so that the calls overlap with the processing of the
+ * remaining messages, and {@link #flush()} waits for all of them. An outbound message can carry
+ * the receipt handle of the received message it replaces. A batch of deletions is only sent once
+ * every outbound message replacing one of its messages has been sent, starting the batches of
+ * those which are still buffered, so that a message is not deleted before it has been re-queued.
+ * A received message is not deleted if its replacement cannot be sent, so that it becomes visible
+ * on its queue again rather than being lost.
+ */
+@Slf4j
+@Component
+public class SqsBatchBuffer {
+
+  static final int MAX_BATCH_SIZE = 10;
+
+  private final AmazonSQSAsync client;
+
+  private final int maxRetries;
+
+  private final Map<String, List<String>> pendingDeletes = new HashMap<>();
+
+  private final Map<String, List<PendingSend>> pendingSends = new HashMap<>();
+
+  private final Set<String> failedSends = ConcurrentHashMap.newKeySet();
+
+  private List<CompletableFuture<List<String>>> inFlight = new ArrayList<>();
+
+  private Map<String, CompletableFuture<List<String>>> sendsByReceiptHandle = new HashMap<>();
+
+  /**
+   * Creates the buffer.
+   *
+   * @param client an asynchronous client for interfacing with Amazon SQS
+   * @param maxRetries number of times a failed batch entry is retried
+   */
+  public SqsBatchBuffer(AmazonSQSAsync client,
+      @Value("${application.sqs-batch-max-retries}") int maxRetries) {
+    this.client = client;
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * Schedules the deletion of a received message.
+   *
+   * @param queueUrl the URL of the queue the message was received from
+   * @param receiptHandle the receipt handle of the message
+   */
+  public synchronized void delete(String queueUrl, String receiptHandle) {
+    List<String> batch = pendingDeletes.computeIfAbsent(queueUrl, url -> new ArrayList<>());
+    batch.add(receiptHandle);
+    if (batch.size() == MAX_BATCH_SIZE) {
+      pendingDeletes.remove(queueUrl);
+      startDeletes(queueUrl, batch);
+    }
+  }
+
+  /**
+   * Schedules a message to be sent to the queue set on the request.
+   *
+   * @param message the message, with its queue URL set
+   */
+  public void send(SendMessageRequest message) {
+    send(message, null);
+  }
+
+  /**
+   * Schedules a message replacing a received message to be sent to the queue set on the request.
+   * The received message is not deleted if the message cannot be sent.
+   *
+   * @param message the message, with its queue URL set
+   * @param receiptHandle the receipt handle of the received message, or null if there is none
+   */
+  public synchronized void send(SendMessageRequest message, String receiptHandle) {
+    List<PendingSend> batch =
+        pendingSends.computeIfAbsent(message.getQueueUrl(), url -> new ArrayList<>());
+    batch.add(new PendingSend(message, receiptHandle));
+    if (batch.size() == MAX_BATCH_SIZE) {
+      pendingSends.remove(message.getQueueUrl());
+      startSends(message.getQueueUrl(), batch);
+    }
+  }
+
+  /**
+   * Sends the buffered batch holding the replacement of a received message, if it has not been
+   * sent yet, so that the caller does not have to wait for the next {@link #flush()} to learn
+   * whether the message was re-queued.
+   *
+   * @param receiptHandle the receipt handle of the received message
+   * @return a future completed with whether the replacement was sent, or with true if no
+   *     replacement has been scheduled since the previous flush
+   */
+  public synchronized CompletableFuture<Boolean> sendReplacement(String receiptHandle) {
+    pendingSends.entrySet().stream()
+        .filter(entry -> entry.getValue().stream()
+            .anyMatch(send -> receiptHandle.equals(send.receiptHandle)))
+        .map(Map.Entry::getKey)
+        .findFirst()
+        .ifPresent(url -> startSends(url, pendingSends.remove(url)));
+    CompletableFuture<List<String>> batch = sendsByReceiptHandle.get(receiptHandle);
+    if (batch == null) {
+      return CompletableFuture.completedFuture(Boolean.TRUE);
+    }
+    return batch.handle((failed, error) -> error == null && !failed.contains(receiptHandle));
+  }
+
+  /**
+   * Sends all buffered messages and deletions to SQS and waits for every batch sent since the
+   * previous flush. Entries failing for a reason other than a sender fault are retried. A
+   * received message whose replacement could not be sent is not deleted. Failed entries which
+   * do not belong to a received message are only logged.
+   *
+   * @return the receipt handles of the received messages which could not be re-queued or deleted
+   */
+  public Set<String> flush() {
+    List<CompletableFuture<List<String>>> batches;
+    synchronized (this) {
+      pendingSends.forEach(this::startSends);
+      pendingSends.clear();
+      pendingDeletes.forEach(this::startDeletes);
+      pendingDeletes.clear();
+      batches = inFlight;
+      inFlight = new ArrayList<>();
+      sendsByReceiptHandle = new HashMap<>();
+    }
+
+    Set<String> failed = new HashSet<>();
+    try {
+      for (CompletableFuture<List<String>> batch : batches) {
+        try {
+          failed.addAll(batch.join());
+        } catch (CompletionException e) {
+          Throwables.throwIfUnchecked(e.getCause());
+          throw e;
+        }
+      }
+    } finally {
+      failedSends.clear();
+    }
+    return failed;
+  }
+
+  private void startSends(String queueUrl, List<PendingSend> sends) {
+    CompletableFuture<List<String>> batch =
+        executeWithRetries(queueUrl, sends, 0, this::sendBatch)
+            .thenApply(failed -> failed.stream()
+                .map(send -> send.receiptHandle)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList()))
+            .whenComplete((failed, error) -> {
+              if (error == null) {
+                failedSends.addAll(failed);
+              } else {
+                sends.stream().map(send -> send.receiptHandle).filter(Objects::nonNull)
+                    .forEach(failedSends::add);
+              }
+            });
+    inFlight.add(batch);
+    for (PendingSend send : sends) {
+      if (send.receiptHandle != null) {
+        sendsByReceiptHandle.put(send.receiptHandle, batch);
+      }
+    }
+  }
+
+  private void startDeletes(String queueUrl, List<String> receiptHandles) {
+    // the buffered replacements of the messages are sent first rather than at the flush
+    List<String> buffered = new ArrayList<>();
+    pendingSends.forEach((url, sends) -> {
+      if (sends.stream().anyMatch(send -> receiptHandles.contains(send.receiptHandle))) {
+        buffered.add(url);
+      }
+    });
+    buffered.forEach(url -> startSends(url, pendingSends.remove(url)));
+
+    CompletableFuture<?>[] replacements = receiptHandles.stream()
+        .map(sendsByReceiptHandle::get)
+        .filter(Objects::nonNull)
+        .distinct()
+        .toArray(CompletableFuture<?>[]::new);
+    // a failed send only stops the deletion of the message it replaces
+    inFlight.add(CompletableFuture.allOf(replacements).handle((result, error) -> null)
+        .thenCompose(ignored -> {
+          List<String> deletable = new ArrayList<>(receiptHandles);
+          deletable.removeAll(failedSends);
+          List<String> kept = new ArrayList<>(receiptHandles);
+          kept.retainAll(failedSends);
+          if (!kept.isEmpty()) {
+            log.error("Not deleting {} messages from SQS queue {} as they were not re-queued",
+                kept.size(), queueUrl);
+          }
+          if (deletable.isEmpty()) {
+            return CompletableFuture.completedFuture(kept);
+          }
+          return executeWithRetries(queueUrl, deletable, 0, this::deleteBatch)
+              .thenApply(failed -> {
+                kept.addAll(failed);
+                return kept;
+              });
+        }));
+  }
+
+  /**
+   * Sends a batch, retrying the entries which failed for a reason other than a sender fault.
+   *
+   * @return the entries which could not be processed
+   */
+  private <T> CompletableFuture<List<T>> executeWithRetries(String queueUrl, List<T> batch,
+      int attempt,
+      BiFunction<String, List<T>, CompletableFuture<List<BatchResultErrorEntry>>> batchCall) {
+    return execute(queueUrl, batch, batchCall).thenCompose(errors -> {
+      List<T> failed = new ArrayList<>();
+      List<T> retryable = new ArrayList<>();
+      for (BatchResultErrorEntry error : errors) {
+        log.error("Batch entry for queue {} failed with code {}: {}", queueUrl,
+            error.getCode(), error.getMessage());
+        T entry = batch.get(Integer.parseInt(error.getId()));
+        if (Boolean.TRUE.equals(error.getSenderFault()) || attempt >= maxRetries) {
+          failed.add(entry);
+        } else {
+          retryable.add(entry);
+        }
+      }
+      if (retryable.isEmpty()) {
+        return CompletableFuture.completedFuture(failed);
+      }
+      return executeWithRetries(queueUrl, retryable, attempt + 1, batchCall)
+          .thenApply(failedOnRetry -> {
+            failed.addAll(failedOnRetry);
+            return failed;
+          });
+    });
+  }
+
+  private <T> CompletableFuture<List<BatchResultErrorEntry>> execute(String queueUrl,
+      List<T> batch,
+      BiFunction<String, List<T>, CompletableFuture<List<BatchResultErrorEntry>>> batchCall) {
+    CompletableFuture<List<BatchResultErrorEntry>> result;
+    try {
+      result = batchCall.apply(queueUrl, batch);
+    } catch (AmazonClientException e) {
+      result = new CompletableFuture<>();
+      result.completeExceptionally(e);
+    }
+    return result.exceptionally(e -> {
+      Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+      if (!(cause instanceof AmazonClientException)) {
+        Throwables.throwIfUnchecked(cause);
+        throw new CompletionException(cause);
+      }
+      List<BatchResultErrorEntry> errors = new ArrayList<>(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        errors.add(new BatchResultErrorEntry().withId(String.valueOf(i))
+            .withCode(cause.getClass().getSimpleName()).withMessage(cause.getMessage())
+            .withSenderFault(false));
+      }
+      return errors;
+    });
+  }
+
+  private CompletableFuture<List<BatchResultErrorEntry>> sendBatch(String queueUrl,
+      List<PendingSend> sends) {
+    List<SendMessageBatchRequestEntry> entries = new ArrayList<>(sends.size());
+    for (int i = 0; i < sends.size(); i++) {
+      entries.add(toBatchEntry(String.valueOf(i), sends.get(i).message));
+    }
+    log.info("Sending {} messages to SQS queue {}", entries.size(), queueUrl);
+    CompletableFuture<List<BatchResultErrorEntry>> result = new CompletableFuture<>();
+    client.sendMessageBatchAsync(new SendMessageBatchRequest(queueUrl, entries),
+        completing(result, batchResult -> batchResult.getFailed()));
+    return result;
+  }
+
+  /**
+   * Creates the entry of a SendMessageBatch request sending the given message, with the message
+   * attributes set on it. The encoding of a body which is not plain JSON is named by its
+   * {@link MessagingClient#ENVELOPE_ATTRIBUTE} attribute.
+   */
+  static SendMessageBatchRequestEntry toBatchEntry(String id, SendMessageRequest message) {
+    return new SendMessageBatchRequestEntry(id, message.getMessageBody())
+        .withMessageGroupId(message.getMessageGroupId())
+        .withMessageDeduplicationId(message.getMessageDeduplicationId())
+        .withMessageAttributes(message.getMessageAttributes())
+        .withDelaySeconds(message.getDelaySeconds());
+  }
+
+  private CompletableFuture<List<BatchResultErrorEntry>> deleteBatch(String queueUrl,
+      List<String> receiptHandles) {
+    List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(receiptHandles.size());
+    for (int i = 0; i < receiptHandles.size(); i++) {
+      entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), receiptHandles.get(i)));
+    }
+    log.info("Deleting {} messages from SQS queue {}", entries.size(), queueUrl);
+    CompletableFuture<List<BatchResultErrorEntry>> result = new CompletableFuture<>();
+    client.deleteMessageBatchAsync(new DeleteMessageBatchRequest(queueUrl, entries),
+        completing(result, batchResult -> batchResult.getFailed()));
+    return result;
+  }
+
+  private static <R extends AmazonWebServiceRequest, S> AsyncHandler<R, S> completing(
+      CompletableFuture<List<BatchResultErrorEntry>> result,
+      Function<S, List<BatchResultErrorEntry>> failedEntries) {
+    return new AsyncHandler<R, S>() {
+      @Override
+      public void onError(Exception exception) {
+        result.completeExceptionally(exception);
+      }
+
+      @Override
+      public void onSuccess(R request, S batchResult) {
+        result.complete(failedEntries.apply(batchResult));
+      }
+    };
+  }
+
+  /**
+   * A buffered message, together with the receipt handle of the received message it replaces.
+   */
+  private static final class PendingSend {
+
+    private final SendMessageRequest message;
+    private final String receiptHandle;
+
+    private PendingSend(SendMessageRequest message, String receiptHandle) {
+      this.message = message;
+      this.receiptHandle = receiptHandle;
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package uk.gov.caz.notify.messaging;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Sends messages published by concurrent callers to SQS together. Messages for the same queue
+ * are grouped into a SendMessageBatch call, which is made as soon as the batch is full or, if
+ * it does not fill up, once the first message has waited for the linger time. Unlike the
+ * {@link SqsBatchBuffer}, which is flushed at the end of each dispatch, the batcher is shared by
+ * all callers and tells each of them the ID SQS gave their message.
+ */
+@Slf4j
+@Component
+public class SqsMicroBatcher {
+
+  private final AmazonSQSAsync client;
+
+  private final long lingerMillis;
+
+  private final int maxRetries;
+
+  private final Map<String, PendingBatch> pendingBatches = new HashMap<>();
+
+  private final ScheduledExecutorService lingerScheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("sqs-linger-%d").setDaemon(true).build());
+
+  /**
+   * Creates the batcher.
+   *
+   * @param client an asynchronous client for interfacing with Amazon SQS
+   * @param lingerMillis how long a message waits for others to be sent with it
+   * @param maxRetries number of times a failed batch entry is retried
+   */
+  public SqsMicroBatcher(AmazonSQSAsync client,
+      @Value("${application.enqueue.linger-millis}") long lingerMillis,
+      @Value("${application.sqs-batch-max-retries}") int maxRetries) {
+    this.client = client;
+    this.lingerMillis = lingerMillis;
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * Sends a message with the next batch for its queue.
+   *
+   * @param message the message, with its queue URL set
+   * @return the ID SQS gave the message, failing with an {@link AmazonSQSException} or another
+   *     client error if the message could not be sent
+   */
+  public CompletableFuture<String> send(SendMessageRequest message) {
+    CompletableFuture<String> messageId = new CompletableFuture<>();
+    PendingBatch full = null;
+    synchronized (this) {
+      PendingBatch batch = pendingBatches.computeIfAbsent(message.getQueueUrl(),
+          PendingBatch::new);
+      batch.messages.add(message);
+      batch.messageIds.add(messageId);
+      if (batch.messages.size() == SqsBatchBuffer.MAX_BATCH_SIZE) {
+        pendingBatches.remove(message.getQueueUrl());
+        if (batch.linger != null) {
+          batch.linger.cancel(false);
+        }
+        full = batch;
+      } else if (batch.linger == null) {
+        batch.linger = lingerScheduler.schedule(() -> lingerExpired(batch), lingerMillis,
+            TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      sendBatch(full.queueUrl, full.messages, full.messageIds, 0);
+    }
+    return messageId;
+  }
+
+  private void lingerExpired(PendingBatch batch) {
+    synchronized (this) {
+      if (!pendingBatches.remove(batch.queueUrl, batch)) {
+        return;
+      }
+    }
+    sendBatch(batch.queueUrl, batch.messages, batch.messageIds, 0);
+  }
+
+  private void sendBatch(String queueUrl, List<SendMessageRequest> messages,
+      List<CompletableFuture<String>> messageIds, int attempt) {
+    List<SendMessageBatchRequestEntry> entries = new ArrayList<>(messages.size());
+    for (int i = 0; i < messages.size(); i++) {
+      entries.add(SqsBatchBuffer.toBatchEntry(String.valueOf(i), messages.get(i)));
+    }
+    log.info("Sending {} messages to SQS queue {}", entries.size(), queueUrl);
+    try {
+      client.sendMessageBatchAsync(new SendMessageBatchRequest(queueUrl, entries),
+          new AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult>() {
+            @Override
+            public void onError(Exception exception) {
+              onBatchError(queueUrl, messages, messageIds, attempt, exception);
+            }
+
+            @Override
+            public void onSuccess(SendMessageBatchRequest request,
+                SendMessageBatchResult result) {
+              onBatchResult(queueUrl, messages, messageIds, attempt, result);
+            }
+          });
+    } catch (RuntimeException e) {
+      onBatchError(queueUrl, messages, messageIds, attempt, e);
+    }
+  }
+
+  private void onBatchResult(String queueUrl, List<SendMessageRequest> messages,
+      List<CompletableFuture<String>> messageIds, int attempt, SendMessageBatchResult result) {
+    for (SendMessageBatchResultEntry entry : result.getSuccessful()) {
+      messageIds.get(Integer.parseInt(entry.getId())).complete(entry.getMessageId());
+    }
+
+    List<SendMessageRequest> retryMessages = new ArrayList<>();
+    List<CompletableFuture<String>> retryMessageIds = new ArrayList<>();
+    for (BatchResultErrorEntry error : result.getFailed()) {
+      log.error("Batch entry for queue {} failed with code {}: {}", queueUrl,
+          error.getCode(), error.getMessage());
+      int index = Integer.parseInt(error.getId());
+      if (Boolean.TRUE.equals(error.getSenderFault()) || attempt >= maxRetries) {
+        AmazonSQSException exception = new AmazonSQSException(error.getMessage());
+        exception.setErrorCode(error.getCode());
+        messageIds.get(index).completeExceptionally(exception);
+      } else {
+        retryMessages.add(messages.get(index));
+        retryMessageIds.add(messageIds.get(index));
+      }
+    }
+    if (!retryMessages.isEmpty()) {
+      sendBatch(queueUrl, retryMessages, retryMessageIds, attempt + 1);
+    }
+  }
+
+  private void onBatchError(String queueUrl, List<SendMessageRequest> messages,
+      List<CompletableFuture<String>> messageIds, int attempt, Exception error) {
+    log.error("Batch for queue {} failed: {}", queueUrl, error.getMessage());
+    if (attempt < maxRetries) {
+      sendBatch(queueUrl, messages, messageIds, attempt + 1);
+    } else {
+      messageIds.forEach(messageId -> messageId.completeExceptionally(error));
+    }
+  }
+
+  /**
+   * Sends the batches which are still lingering and stops the linger timer.
+   */
+  @PreDestroy
+  void shutdown() {
+    List<PendingBatch> batches;
+    synchronized (this) {
+      batches = new ArrayList<>(pendingBatches.values());
+      pendingBatches.clear();
+    }
+    lingerScheduler.shutdownNow();
+    batches.forEach(batch -> sendBatch(batch.queueUrl, batch.messages, batch.messageIds, 0));
+  }
+
+  private static final class PendingBatch {
+
+    private final String queueUrl;
+    private final List<SendMessageRequest> messages = new ArrayList<>();
+    private final List<CompletableFuture<String>> messageIds = new ArrayList<>();
+    private ScheduledFuture<?> linger;
+
+    private PendingBatch(String queueUrl) {
+      this.queueUrl = queueUrl;
+    }
+  }
+}
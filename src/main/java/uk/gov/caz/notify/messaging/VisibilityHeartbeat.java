@@ -0,0 +1,282 @@
+package uk.gov.caz.notify.messaging;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps received messages invisible on their queue while they are being processed, so that a
+ * batch which takes longer than the visibility timeout of the queue is not redelivered to a
+ * concurrent invocation and sent twice. The visibility of every tracked message is extended
+ * periodically with ChangeMessageVisibilityBatch calls, and messages which will not be processed
+ * can be released to be received again straight away, or postponed until they are due. The
+ * visibility changes of a batch are made one after another, so that an extension which is still
+ * in flight cannot overwrite a later release or postponement of the same messages.
+ */
+@Slf4j
+@Component
+public class VisibilityHeartbeat {
+
+  // the longest visibility timeout SQS accepts for a message
+  private static final long MAX_VISIBILITY_TIMEOUT_SECONDS = 43_200;
+
+  private final AmazonSQSAsync client;
+
+  private final int extensionSeconds;
+
+  private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+
+  private final ScheduledExecutorService heartbeatScheduler;
+
+  /**
+   * Creates the heartbeat and starts extending the visibility of tracked messages.
+   *
+   * @param client an asynchronous client for interfacing with Amazon SQS
+   * @param intervalSeconds how often the visibility of tracked messages is extended, a value of
+   *     0 or less disables the extension
+   * @param extensionSeconds the visibility timeout tracked messages are given on each extension
+   */
+  public VisibilityHeartbeat(AmazonSQSAsync client,
+      @Value("${application.visibility-heartbeat.interval-seconds}") int intervalSeconds,
+      @Value("${application.visibility-heartbeat.extension-seconds}") int extensionSeconds) {
+    this.client = client;
+    this.extensionSeconds = extensionSeconds;
+    if (intervalSeconds > 0) {
+      this.heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("sqs-heartbeat-%d").setDaemon(true).build());
+      this.heartbeatScheduler.scheduleAtFixedRate(this::extendVisibility, intervalSeconds,
+          intervalSeconds, TimeUnit.SECONDS);
+    } else {
+      this.heartbeatScheduler = null;
+    }
+  }
+
+  /**
+   * Starts tracking a batch of received messages.
+   *
+   * @param queueUrl the URL of the queue the messages were received from
+   * @param messages the received messages
+   * @return the lease of the messages, to be closed once the batch has been processed
+   */
+  public Lease track(String queueUrl, Collection<Message> messages) {
+    Lease lease = new Lease(queueUrl);
+    messages.forEach(message -> lease.receiptHandles.add(message.getReceiptHandle()));
+    leases.add(lease);
+    return lease;
+  }
+
+  /**
+   * Makes messages visible on their queue again straight away, so that they can be received by
+   * another invocation without waiting for their visibility timeout.
+   *
+   * @param queueUrl the URL of the queue the messages were received from
+   * @param receiptHandles the receipt handles of the messages
+   * @return a future completed once the messages have been released, or could not be
+   */
+  public CompletableFuture<Void> release(String queueUrl, Collection<String> receiptHandles) {
+    if (receiptHandles.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    log.info("Releasing {} unprocessed messages to SQS queue {}", receiptHandles.size(),
+        queueUrl);
+    return changeVisibility(queueUrl, receiptHandles, 0);
+  }
+
+  /**
+   * Keeps a message invisible on its queue until it is due to be processed, so that it is not
+   * received again before then. A delay longer than SQS allows is capped, and the message is
+   * then postponed again when it is next received.
+   *
+   * @param queueUrl the URL of the queue the message was received from
+   * @param message the message
+   * @param delayMillis how long the message should stay invisible
+   * @return a future completed once the message has been postponed, or could not be
+   */
+  public CompletableFuture<Void> postpone(String queueUrl, Message message, long delayMillis) {
+    long seconds = Math.min(MAX_VISIBILITY_TIMEOUT_SECONDS,
+        (delayMillis + TimeUnit.SECONDS.toMillis(1) - 1) / TimeUnit.SECONDS.toMillis(1));
+    log.info("Postponing message with ID {} on SQS queue {} for {} s", message.getMessageId(),
+        queueUrl, seconds);
+    return changeVisibility(queueUrl, Collections.singletonList(message.getReceiptHandle()),
+        (int) seconds);
+  }
+
+  /**
+   * Extends the visibility of every tracked message.
+   */
+  void extendVisibility() {
+    for (Lease lease : leases) {
+      lease.extend();
+    }
+  }
+
+  /**
+   * Changes the visibility of messages.
+   *
+   * @return a future completed once every call has finished, whether or not it succeeded, as a
+   *     message which could not be changed becomes visible once its current timeout expires
+   */
+  private CompletableFuture<Void> changeVisibility(String queueUrl,
+      Collection<String> receiptHandles, int visibilityTimeout) {
+    List<CompletableFuture<Void>> calls = new ArrayList<>();
+    for (List<String> batch : Iterables.partition(receiptHandles,
+        SqsBatchBuffer.MAX_BATCH_SIZE)) {
+      List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        entries.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(i), batch.get(i))
+            .withVisibilityTimeout(visibilityTimeout));
+      }
+      CompletableFuture<Void> call = new CompletableFuture<>();
+      calls.add(call);
+      try {
+        client.changeMessageVisibilityBatchAsync(
+            new ChangeMessageVisibilityBatchRequest(queueUrl, entries), loggingHandler(call));
+      } catch (RuntimeException e) {
+        log.error("Failed to change visibility of messages on SQS queue {}: {}", queueUrl,
+            e.getMessage());
+        call.complete(null);
+      }
+    }
+    return CompletableFuture.allOf(calls.toArray(new CompletableFuture[0]));
+  }
+
+  private static AsyncHandler<ChangeMessageVisibilityBatchRequest,
+      ChangeMessageVisibilityBatchResult> loggingHandler(CompletableFuture<Void> call) {
+    return new AsyncHandler<ChangeMessageVisibilityBatchRequest,
+        ChangeMessageVisibilityBatchResult>() {
+      @Override
+      public void onError(Exception exception) {
+        log.error("Failed to change visibility of messages: {}", exception.getMessage());
+        call.complete(null);
+      }
+
+      @Override
+      public void onSuccess(ChangeMessageVisibilityBatchRequest request,
+          ChangeMessageVisibilityBatchResult result) {
+        for (BatchResultErrorEntry error : result.getFailed()) {
+          log.warn("Visibility change for queue {} failed with code {}: {}",
+              request.getQueueUrl(), error.getCode(), error.getMessage());
+        }
+        call.complete(null);
+      }
+    };
+  }
+
+  @PreDestroy
+  void shutdown() {
+    if (heartbeatScheduler != null) {
+      heartbeatScheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * The messages of a received batch which are still being processed.
+   */
+  public final class Lease {
+
+    private final String queueUrl;
+
+    private final Set<String> receiptHandles = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> started = ConcurrentHashMap.newKeySet();
+
+    // the last visibility change of the batch, which the next one waits for
+    private CompletableFuture<Void> changes = CompletableFuture.completedFuture(null);
+
+    private Lease(String queueUrl) {
+      this.queueUrl = queueUrl;
+    }
+
+    /**
+     * Records that the processing of a message has started, so that it is not released.
+     *
+     * @param message the message being processed
+     */
+    public void start(Message message) {
+      started.add(message.getReceiptHandle());
+    }
+
+    /**
+     * Stops extending the visibility of a message which has been processed.
+     *
+     * @param message the processed message
+     */
+    public void complete(Message message) {
+      receiptHandles.remove(message.getReceiptHandle());
+    }
+
+    /**
+     * Stops extending the visibility of a message which is not due to be processed yet, and keeps
+     * it invisible until it is.
+     *
+     * @param message the message
+     * @param delayMillis how long the message should stay invisible
+     */
+    public synchronized void postpone(Message message, long delayMillis) {
+      receiptHandles.remove(message.getReceiptHandle());
+      changes = changes.thenCompose(
+          previous -> VisibilityHeartbeat.this.postpone(queueUrl, message, delayMillis));
+    }
+
+    /**
+     * Makes the messages whose processing has not started visible on their queue again straight
+     * away, such as when the invocation deadline is reached before they were started. Messages
+     * which are still being processed are not released, so that they are not sent twice.
+     *
+     * @return a future completed once every visibility change of the batch made so far, the
+     *     release included, has finished
+     */
+    public synchronized CompletableFuture<Void> releaseUnstarted() {
+      List<String> unstarted = new ArrayList<>(receiptHandles);
+      unstarted.removeAll(started);
+      receiptHandles.removeAll(unstarted);
+      if (!unstarted.isEmpty()) {
+        changes = changes.thenCompose(previous -> release(queueUrl, unstarted));
+      }
+      return changes;
+    }
+
+    /**
+     * Extends the visibility of the messages of the batch which are still being processed.
+     */
+    private synchronized void extend() {
+      List<String> tracked = new ArrayList<>(receiptHandles);
+      if (!tracked.isEmpty()) {
+        log.info("Extending visibility of {} messages on SQS queue {}", tracked.size(),
+            queueUrl);
+        changes = changes.thenCompose(
+            previous -> changeVisibility(queueUrl, tracked, extensionSeconds));
+      }
+    }
+
+    /**
+     * Stops extending the visibility of the messages of the batch.
+     *
+     * @return a future completed once every visibility change of the batch has finished
+     */
+    public synchronized CompletableFuture<Void> close() {
+      leases.remove(this);
+      return changes;
+    }
+  }
+}
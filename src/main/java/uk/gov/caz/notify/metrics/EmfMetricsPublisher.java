@@ -0,0 +1,185 @@
+package uk.gov.caz.notify.metrics;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Statistic;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Writes the meters of the registry to standard output in the CloudWatch embedded metric format,
+ * which CloudWatch extracts metrics from when the output of a Lambda function is logged. Only the
+ * meters of the gateway, named with the {@code notify.} prefix, are written, so that the JVM and
+ * framework meters of the registry do not become custom metrics. Meters with the same tags are
+ * written as one document, with the tags as its dimensions. Counts and totals are written as the
+ * change since the previous publication.
+ */
+@Slf4j
+@Component
+public class EmfMetricsPublisher {
+
+  private static final String METER_PREFIX = "notify.";
+
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final MeterRegistry meterRegistry;
+
+  private final ObjectMapper objectMapper;
+
+  private final String namespace;
+
+  private final PrintStream output;
+
+  private final Map<String, Double> published = new HashMap<>();
+
+  /**
+   * Creates the publisher writing to standard output.
+   *
+   * @param meterRegistry the registry the meters are taken from
+   * @param objectMapper library class for serializing JSON
+   * @param namespace the CloudWatch namespace of the metrics
+   */
+  @Autowired
+  public EmfMetricsPublisher(MeterRegistry meterRegistry, ObjectMapper objectMapper,
+      @Value("${application.metrics.namespace}") String namespace) {
+    this(meterRegistry, objectMapper, namespace, System.out);
+  }
+
+  EmfMetricsPublisher(MeterRegistry meterRegistry, ObjectMapper objectMapper, String namespace,
+      PrintStream output) {
+    this.meterRegistry = meterRegistry;
+    this.objectMapper = objectMapper;
+    this.namespace = namespace;
+    this.output = output;
+  }
+
+  /**
+   * Writes every meter of the gateway which changed since the previous publication.
+   */
+  public synchronized void publish() {
+    Map<List<Tag>, Map<String, Object>> valuesByTags = new LinkedHashMap<>();
+    Map<List<Tag>, List<Map<String, String>>> definitionsByTags = new HashMap<>();
+
+    for (Meter meter : meterRegistry.getMeters()) {
+      if (!meter.getId().getName().startsWith(METER_PREFIX)) {
+        continue;
+      }
+      List<Tag> tags = meter.getId().getTags();
+      for (Measurement measurement : meter.measure()) {
+        Statistic statistic = measurement.getStatistic();
+        String name = meter.getId().getName() + "." + statistic.getTagValueRepresentation();
+        Double value = valueToPublish(meter, statistic, measurement.getValue());
+        if (value != null) {
+          valuesByTags.computeIfAbsent(tags, key -> new LinkedHashMap<>()).put(name, value);
+          definitionsByTags.computeIfAbsent(tags, key -> new ArrayList<>())
+              .add(metricDefinition(name, unit(meter, statistic)));
+        }
+      }
+    }
+
+    long timestamp = System.currentTimeMillis();
+    for (Map.Entry<List<Tag>, Map<String, Object>> entry : valuesByTags.entrySet()) {
+      write(document(timestamp, entry.getKey(), entry.getValue(),
+          definitionsByTags.get(entry.getKey())));
+    }
+  }
+
+  /**
+   * Returns the value a measurement is published with, or null if it is not published.
+   */
+  private Double valueToPublish(Meter meter, Statistic statistic, double measured) {
+    if (Double.isNaN(measured) || Double.isInfinite(measured)) {
+      return null;
+    }
+    double value = isTime(meter, statistic)
+        ? measured * baseTimeUnit(meter).toNanos(1) / NANOS_PER_MILLI
+        : measured;
+    if (statistic != Statistic.COUNT && statistic != Statistic.TOTAL
+        && statistic != Statistic.TOTAL_TIME) {
+      return value;
+    }
+
+    String key = meter.getId().getName() + meter.getId().getTags() + statistic;
+    Double previous = published.put(key, value);
+    double delta = previous == null ? value : value - previous;
+    return delta == 0 ? null : delta;
+  }
+
+  private static boolean isTime(Meter meter, Statistic statistic) {
+    return statistic == Statistic.TOTAL_TIME || statistic == Statistic.DURATION
+        || statistic == Statistic.MAX && baseTimeUnit(meter) != null;
+  }
+
+  private static TimeUnit baseTimeUnit(Meter meter) {
+    if (meter instanceof Timer) {
+      return ((Timer) meter).baseTimeUnit();
+    }
+    if (meter instanceof LongTaskTimer) {
+      return TimeUnit.SECONDS;
+    }
+    return null;
+  }
+
+  private static String unit(Meter meter, Statistic statistic) {
+    if (statistic == Statistic.COUNT) {
+      return "Count";
+    }
+    return isTime(meter, statistic) ? "Milliseconds" : "None";
+  }
+
+  private static Map<String, String> metricDefinition(String name, String unit) {
+    Map<String, String> definition = new LinkedHashMap<>();
+    definition.put("Name", name);
+    definition.put("Unit", unit);
+    return definition;
+  }
+
+  private Map<String, Object> document(long timestamp, List<Tag> tags,
+      Map<String, Object> values, List<Map<String, String>> definitions) {
+    List<String> dimensions = new ArrayList<>(tags.size());
+    Map<String, Object> document = new LinkedHashMap<>();
+    for (Tag tag : tags) {
+      dimensions.add(tag.getKey());
+      document.put(tag.getKey(), tag.getValue());
+    }
+
+    Map<String, Object> directive = new LinkedHashMap<>();
+    directive.put("Namespace", namespace);
+    directive.put("Dimensions", Collections.singletonList(dimensions));
+    directive.put("Metrics", definitions);
+
+    Map<String, Object> metadata = new LinkedHashMap<>();
+    metadata.put("Timestamp", timestamp);
+    metadata.put("CloudWatchMetrics", Collections.singletonList(directive));
+
+    Map<String, Object> root = new LinkedHashMap<>();
+    root.put("_aws", metadata);
+    root.putAll(document);
+    root.putAll(values);
+    return root;
+  }
+
+  private void write(Map<String, Object> document) {
+    try {
+      output.println(objectMapper.writeValueAsString(document));
+    } catch (JsonProcessingException e) {
+      log.error("Failed to write metrics: {}", e.getMessage());
+    }
+  }
+}
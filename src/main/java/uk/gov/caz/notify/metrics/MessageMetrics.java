@@ -0,0 +1,62 @@
+package uk.gov.caz.notify.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.TimeUnit;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.domain.RoutingOutcome;
+
+/**
+ * Records what happens to the messages taken from the gateway queues.
+ */
+@Component
+public class MessageMetrics {
+
+  static final String UNKNOWN_QUEUE = "unknown";
+
+  private final MeterRegistry meterRegistry;
+
+  public MessageMetrics(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * Counts a message by the queue it was taken from and what happened to it.
+   *
+   * @param source the queue the message was taken from, or null if it is not known
+   * @param outcome what happened to the message
+   */
+  public void recordOutcome(QueueName source, RoutingOutcome outcome) {
+    meterRegistry.counter("notify.messages.routed", "queue", queueTag(source),
+        "outcome", outcome.toString()).increment();
+  }
+
+  /**
+   * Records the size of a batch of messages and the time it took to dispatch it.
+   *
+   * @param source the queue the batch was taken from, or null if it is not known
+   * @param size the number of messages in the batch
+   * @param durationNanos the time taken to dispatch the batch
+   */
+  public void recordBatch(QueueName source, int size, long durationNanos) {
+    String queue = queueTag(source);
+    DistributionSummary.builder("notify.batch.size")
+        .tag("queue", queue)
+        .description("Number of messages in a dispatched batch")
+        .publishPercentileHistogram()
+        .register(meterRegistry)
+        .record(size);
+    Timer.builder("notify.drain.iteration")
+        .tag("queue", queue)
+        .description("Time taken to dispatch a batch of messages")
+        .publishPercentileHistogram()
+        .register(meterRegistry)
+        .record(durationNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private static String queueTag(QueueName source) {
+    return source == null ? UNKNOWN_QUEUE : source.toString();
+  }
+}
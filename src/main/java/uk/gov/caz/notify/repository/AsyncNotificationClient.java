@@ -0,0 +1,247 @@
+package uk.gov.caz.notify.repository;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.BaseEncoding;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import uk.gov.service.notify.NotificationClientException;
+import uk.gov.service.notify.SendEmailResponse;
+
+/**
+ * Non-blocking client sending emails with Gov.UK Notify. Requests are authenticated and written
+ * the same way as by the official {@code NotificationClient}, but are sent over a pool of
+ * persistent connections without holding a thread while they are in flight.
+ */
+@Slf4j
+public class AsyncNotificationClient implements Closeable {
+
+  public static final String BASE_URL = "https://api.notifications.service.gov.uk";
+
+  private static final String SEND_EMAIL_PATH = "/v2/notifications/email";
+
+  // identifies requests of the gateway rather than of the official client to Gov.UK Notify
+  private static final String USER_AGENT = "notify-gateway/1.0";
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+  private static final int SOCKET_TIMEOUT_MILLIS = 30000;
+
+  private static final int CREATED = 201;
+
+  // Gov.UK Notify rejects tokens issued more than 30 seconds ago
+  private static final long TOKEN_REUSE_SECONDS = 10;
+
+  private static final String JWT_HEADER = base64Url("{\"typ\":\"JWT\",\"alg\":\"HS256\"}");
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final CloseableHttpAsyncClient httpClient;
+
+  private final String sendEmailUrl;
+
+  private final String serviceId;
+
+  private final SecretKeySpec secretKey;
+
+  private volatile Token token;
+
+  /**
+   * Creates the client and starts its connection pool.
+   *
+   * @param apiKey the API key for Gov.UK Notify
+   * @param baseUrl the URL of the Gov.UK Notify API
+   * @param maxConnections maximum number of connections kept open to Gov.UK Notify
+   */
+  public AsyncNotificationClient(String apiKey, String baseUrl, int maxConnections) {
+    this(HttpAsyncClients.custom()
+        .setMaxConnTotal(maxConnections)
+        .setMaxConnPerRoute(maxConnections)
+        .setUserAgent(USER_AGENT)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+            .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+            .build())
+        .build(), apiKey, baseUrl);
+    httpClient.start();
+  }
+
+  AsyncNotificationClient(CloseableHttpAsyncClient httpClient, String apiKey, String baseUrl) {
+    this.httpClient = httpClient;
+    this.sendEmailUrl = baseUrl + SEND_EMAIL_PATH;
+    // the API key ends with the service ID and the secret key, both of them UUIDs
+    this.serviceId = apiKey.substring(Math.max(0, apiKey.length() - 73),
+        Math.max(0, apiKey.length() - 37));
+    this.secretKey = new SecretKeySpec(
+        apiKey.substring(Math.max(0, apiKey.length() - 36)).getBytes(StandardCharsets.UTF_8),
+        "HmacSHA256");
+  }
+
+  /**
+   * Sends an email. The returned future fails with a {@link NotifyResponseException} if Gov.UK
+   * Notify rejects the request, or with a {@link NotificationClientException} caused by an
+   * {@link IOException} if it cannot be reached.
+   *
+   * @param templateId the identifier of the email template
+   * @param emailAddress the recipient
+   * @param personalisation parameters needed for the email
+   * @param reference an unique identifier
+   * @return the response returned from Gov.UK Notify, once it has been received
+   */
+  public CompletableFuture<SendEmailResponse> sendEmail(String templateId, String emailAddress,
+      Map<String, ?> personalisation, String reference) {
+    CompletableFuture<SendEmailResponse> result = new CompletableFuture<>();
+    HttpPost request;
+    try {
+      request = createRequest(templateId, emailAddress, personalisation, reference);
+    } catch (JsonProcessingException | GeneralSecurityException e) {
+      result.completeExceptionally(new NotificationClientException(e));
+      return result;
+    }
+
+    httpClient.execute(request, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse response) {
+        try {
+          result.complete(toSendEmailResponse(response));
+        } catch (IOException e) {
+          result.completeExceptionally(new NotificationClientException(e));
+        } catch (NotificationClientException | RuntimeException e) {
+          result.completeExceptionally(e);
+        }
+      }
+
+      @Override
+      public void failed(Exception e) {
+        result.completeExceptionally(new NotificationClientException(e));
+      }
+
+      @Override
+      public void cancelled() {
+        result.completeExceptionally(new NotificationClientException(
+            new IOException("Request to Gov.UK Notify was cancelled")));
+      }
+    });
+    return result;
+  }
+
+  private HttpPost createRequest(String templateId, String emailAddress,
+      Map<String, ?> personalisation, String reference)
+      throws JsonProcessingException, GeneralSecurityException {
+    Map<String, Object> body = new LinkedHashMap<>();
+    body.put("template_id", templateId);
+    body.put("email_address", emailAddress);
+    if (personalisation != null && !personalisation.isEmpty()) {
+      body.put("personalisation", personalisation);
+    }
+    if (reference != null && !reference.isEmpty()) {
+      body.put("reference", reference);
+    }
+
+    HttpPost request = new HttpPost(sendEmailUrl);
+    request.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + getToken());
+    request.setEntity(new StringEntity(OBJECT_MAPPER.writeValueAsString(body),
+        ContentType.APPLICATION_JSON));
+    return request;
+  }
+
+  private static SendEmailResponse toSendEmailResponse(HttpResponse response)
+      throws IOException, NotificationClientException {
+    int status = response.getStatusLine().getStatusCode();
+    String body = response.getEntity() == null
+        ? ""
+        : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+    if (status != CREATED) {
+      throw new NotifyResponseException(status, body, retryAfterMillis(response));
+    }
+    return new SendEmailResponse(body);
+  }
+
+  /**
+   * Returns the delay requested by the Retry-After header of a response, which RFC 7231 allows
+   * to be either a number of seconds or an HTTP date.
+   */
+  private static long retryAfterMillis(HttpResponse response) {
+    Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+    if (retryAfter == null) {
+      return 0;
+    }
+    String value = retryAfter.getValue().trim();
+    try {
+      return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value);
+      if (date == null) {
+        log.warn("Ignoring Retry-After header which is neither a number of seconds nor a date: "
+            + "{}", value);
+        return 0;
+      }
+      return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Returns a JSON web token signed with the secret key, reusing a recently issued one.
+   */
+  String getToken() throws GeneralSecurityException {
+    long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    Token current = token;
+    if (current == null || now - current.issuedAt >= TOKEN_REUSE_SECONDS) {
+      current = new Token(createToken(now), now);
+      token = current;
+    }
+    return current.value;
+  }
+
+  private String createToken(long issuedAt) throws GeneralSecurityException {
+    String claims = JWT_HEADER + "." + base64Url(
+        "{\"iss\":\"" + serviceId + "\",\"iat\":" + issuedAt + "}");
+    Mac mac = Mac.getInstance(secretKey.getAlgorithm());
+    mac.init(secretKey);
+    byte[] signature = mac.doFinal(claims.getBytes(StandardCharsets.UTF_8));
+    return claims + "." + BaseEncoding.base64Url().omitPadding().encode(signature);
+  }
+
+  private static String base64Url(String value) {
+    return BaseEncoding.base64Url().omitPadding()
+        .encode(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+
+  private static final class Token {
+
+    private final String value;
+    private final long issuedAt;
+
+    private Token(String value, long issuedAt) {
+      this.value = value;
+      this.issuedAt = issuedAt;
+    }
+  }
+}
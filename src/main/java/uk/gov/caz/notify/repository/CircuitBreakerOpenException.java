@@ -0,0 +1,14 @@
+package uk.gov.caz.notify.repository;
+
+/**
+ * Thrown instead of calling Gov.UK Notify while the {@link NotifyCircuitBreaker} is open.
+ * Reports the same status as Gov.UK Notify being unavailable.
+ */
+public class CircuitBreakerOpenException extends NotifyResponseException {
+
+  private static final long serialVersionUID = 1L;
+
+  public CircuitBreakerOpenException() {
+    super(503, "Circuit breaker for Gov.UK Notify is open", 0);
+  }
+}
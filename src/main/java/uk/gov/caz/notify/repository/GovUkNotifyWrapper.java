@@ -1,25 +1,90 @@
 package uk.gov.caz.notify.repository;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import uk.gov.service.notify.NotificationClient;
 import uk.gov.service.notify.NotificationClientException;
 import uk.gov.service.notify.SendEmailResponse;
+import uk.gov.service.notify.Template;
 
+/**
+ * Thread-safe wrapper around the Gov.UK Notify client. The client is created once, when the
+ * wrapper is initialised, together with an {@link AsyncNotificationClient} if non-blocking sends
+ * are enabled. Every call to Gov.UK Notify has to be permitted by the
+ * {@link NotifyCircuitBreaker} and takes a permit from the {@link NotifyRateLimiter} first.
+ */
 @Component
 public class GovUkNotifyWrapper {
 
-  private NotificationClient client;
+  private static final ObjectReader PERSONALISATION_READER =
+      new ObjectMapper().readerFor(new TypeReference<Map<String, Object>>() {});
 
-  @Value("${notify-api-key}")
-  String notifyApiKey;
+  // Gov.UK Notify responds with 201 Created to an email which was accepted
+  private static final String SENT_STATUS = "201";
+
+  private static final String IO_ERROR_STATUS = "io-error";
+
+  private final NotificationClient client;
+
+  private final AsyncNotificationClient asyncClient;
+
+  private final NotifyRateLimiter rateLimiter;
+
+  private final NotifyCircuitBreaker circuitBreaker;
+
+  private final MeterRegistry meterRegistry;
+
+  /**
+   * Creates the wrapper with a Gov.UK Notify client for the given API key.
+   *
+   * @param notifyApiKey the API key for Gov.UK Notify, no client is created if it is not set
+   * @param asyncEnabled whether emails sent asynchronously use a non-blocking client
+   * @param maxConnections maximum number of connections of the non-blocking client
+   * @param rateLimiter the limiter of calls made with the API key
+   * @param circuitBreaker the breaker stopping calls while Gov.UK Notify is unavailable
+   * @param meterRegistry registry the call latency timers are registered with
+   */
+  @Autowired
+  public GovUkNotifyWrapper(@Value("${notify-api-key}") String notifyApiKey,
+      @Value("${application.async-notify.enabled}") boolean asyncEnabled,
+      @Value("${application.async-notify.max-connections}") int maxConnections,
+      NotifyRateLimiter rateLimiter, NotifyCircuitBreaker circuitBreaker,
+      MeterRegistry meterRegistry) {
+    this(notifyApiKey != null && !notifyApiKey.isEmpty()
+        ? new NotificationClient(notifyApiKey)
+        : null,
+        asyncEnabled && notifyApiKey != null && !notifyApiKey.isEmpty()
+            ? new AsyncNotificationClient(notifyApiKey, AsyncNotificationClient.BASE_URL,
+                maxConnections)
+            : null,
+        rateLimiter, circuitBreaker, meterRegistry);
+  }
+
+  GovUkNotifyWrapper(NotificationClient client, AsyncNotificationClient asyncClient,
+      NotifyRateLimiter rateLimiter, NotifyCircuitBreaker circuitBreaker,
+      MeterRegistry meterRegistry) {
+    this.client = client;
+    this.asyncClient = asyncClient;
+    this.rateLimiter = rateLimiter;
+    this.circuitBreaker = circuitBreaker;
+    this.meterRegistry = meterRegistry;
+  }
 
   /**
    * Uses the Gov.UK Notify API to send an email.
-   * 
+   *
    * @param  templateId                  the identifier of the email template
    * @param  emailAddress                the recipient
    * @param  personalisation             parameters needed for the email
@@ -34,19 +99,184 @@ public class GovUkNotifyWrapper {
   public SendEmailResponse sendEmail(String templateId, String emailAddress,
       String personalisation, String reference)
       throws NotificationClientException, IOException, InstantiationException {
+    Map<String, Object> personalisationMap =
+        PERSONALISATION_READER.readValue(personalisation);
+    return sendEmail(templateId, emailAddress, personalisationMap, reference);
+  }
+
+  /**
+   * Uses the Gov.UK Notify API to send an email with already parsed personalisation.
+   *
+   * @param  templateId                  the identifier of the email template
+   * @param  emailAddress                the recipient
+   * @param  personalisation             parameters needed for the email
+   * @param  reference                   an unique identifier
+   * @return                             the response returned from Gov.UK
+   *                                     Notify
+   * @throws NotificationClientException any error thrown by Gov.UK Notify,
+   *                                       {@link CircuitBreakerOpenException} if
+   *                                       the circuit breaker is open, or
+   *                                       {@link RateLimitExceededException} if
+   *                                       no permit to call it was available
+   * @throws InstantiationException      if the API key is not set
+   */
+  public SendEmailResponse sendEmail(String templateId, String emailAddress,
+      Map<String, ?> personalisation, String reference)
+      throws NotificationClientException, InstantiationException {
     if (client == null) {
-      if (notifyApiKey != null && !(notifyApiKey.isEmpty())) {
-        this.client = new NotificationClient(notifyApiKey);
-      } else {
-        throw new InstantiationException(
-            "the API key for Notify has not been set");
+      throw new InstantiationException(
+          "the API key for Notify has not been set");
+    }
+    acquirePermission();
+
+    long start = System.nanoTime();
+    try {
+      SendEmailResponse response = client.sendEmail(templateId, emailAddress,
+          personalisation, reference);
+      onSuccess(start);
+      return response;
+    } catch (NotificationClientException e) {
+      onFailure(e, start);
+      throw e;
+    } catch (RuntimeException e) {
+      circuitBreaker.onFailure();
+      throw e;
+    }
+  }
+
+  /**
+   * Uses the Gov.UK Notify API to send an email without blocking while the request is in flight.
+   * The circuit breaker and rate limiter are consulted in the calling thread, which may wait a
+   * bounded time for a permit. If the non-blocking client is not enabled the email is sent in the
+   * calling thread.
+   *
+   * @param  templateId      the identifier of the email template
+   * @param  emailAddress    the recipient
+   * @param  personalisation parameters needed for the email
+   * @param  reference       an unique identifier
+   * @return                 the response returned from Gov.UK Notify, failing with the same
+   *                         errors as {@link #sendEmail(String, String, Map, String)}
+   */
+  public CompletableFuture<SendEmailResponse> sendEmailAsync(String templateId,
+      String emailAddress, Map<String, ?> personalisation, String reference) {
+    CompletableFuture<SendEmailResponse> failed = new CompletableFuture<>();
+    if (asyncClient == null) {
+      try {
+        return CompletableFuture.completedFuture(
+            sendEmail(templateId, emailAddress, personalisation, reference));
+      } catch (NotificationClientException | InstantiationException e) {
+        failed.completeExceptionally(e);
+        return failed;
       }
     }
+    try {
+      acquirePermission();
+    } catch (NotificationClientException e) {
+      failed.completeExceptionally(e);
+      return failed;
+    }
 
-    HashMap<String, Object> personalisationMap =
-        new ObjectMapper().readValue(personalisation, HashMap.class);
-    return client.sendEmail(templateId, emailAddress, personalisationMap,
-        reference);
+    long start = System.nanoTime();
+    return asyncClient.sendEmail(templateId, emailAddress, personalisation, reference)
+        .whenComplete((response, error) -> {
+          Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+          if (cause == null) {
+            onSuccess(start);
+          } else if (cause instanceof NotificationClientException) {
+            onFailure((NotificationClientException) cause, start);
+          } else {
+            circuitBreaker.onFailure();
+          }
+        });
+  }
+
+  /**
+   * Uses the Gov.UK Notify API to fetch the latest version of an email template.
+   *
+   * @param  templateId                  the identifier of the email template
+   * @return                             the template, including the placeholders of its
+   *                                     personalisation
+   * @throws NotificationClientException any error thrown by Gov.UK Notify, or the same
+   *                                       exceptions as {@link #sendEmail(String, String, Map,
+   *                                       String)} if no permit to call it was available
+   * @throws InstantiationException      if the API key is not set
+   */
+  public Template getTemplateById(String templateId)
+      throws NotificationClientException, InstantiationException {
+    if (client == null) {
+      throw new InstantiationException(
+          "the API key for Notify has not been set");
+    }
+    acquirePermission();
+
+    try {
+      Template template = client.getTemplateById(templateId);
+      circuitBreaker.onSuccess();
+      return template;
+    } catch (NotificationClientException e) {
+      recordOutcome(e);
+      throw e;
+    } catch (RuntimeException e) {
+      circuitBreaker.onFailure();
+      throw e;
+    }
+  }
+
+  public boolean isAsyncEnabled() {
+    return asyncClient != null;
+  }
+
+  private void acquirePermission() throws NotificationClientException {
+    if (!circuitBreaker.tryAcquirePermission()) {
+      throw new CircuitBreakerOpenException();
+    }
+    if (!rateLimiter.tryAcquire()) {
+      circuitBreaker.releasePermission();
+      throw new RateLimitExceededException();
+    }
+  }
+
+  private void onSuccess(long start) {
+    circuitBreaker.onSuccess();
+    recordLatency(SENT_STATUS, start);
+  }
+
+  private void onFailure(NotificationClientException e, long start) {
+    recordOutcome(e);
+    recordLatency(e.getCause() instanceof IOException
+        ? IO_ERROR_STATUS
+        : String.valueOf(e.getHttpResult()), start);
+  }
+
+  private void recordOutcome(NotificationClientException e) {
+    if (isServiceFailure(e)) {
+      circuitBreaker.onFailure();
+    } else {
+      circuitBreaker.onSuccess();
+    }
+  }
+
+  private void recordLatency(String status, long start) {
+    Timer.builder("notify.api.requests")
+        .tag("status", status)
+        .description("Latency of the calls made to Gov.UK Notify")
+        .register(meterRegistry)
+        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Checks whether an error means that Gov.UK Notify is unavailable, as opposed to it having
+   * rejected the request.
+   */
+  private static boolean isServiceFailure(NotificationClientException e) {
+    return e.getHttpResult() >= 500 || e.getCause() instanceof IOException;
+  }
+
+  @PreDestroy
+  void shutdown() throws IOException {
+    if (asyncClient != null) {
+      asyncClient.close();
+    }
   }
 
 }
@@ -0,0 +1,205 @@
+package uk.gov.caz.notify.repository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Circuit breaker guarding the calls made to Gov.UK Notify. The outcomes of the most recent calls
+ * are kept in a sliding window and the breaker opens once the ratio of failed calls reaches the
+ * threshold. While it is open no calls are permitted; once the open duration has passed a limited
+ * number of probe calls is let through, and the breaker closes again if all of them succeed.
+ */
+@Slf4j
+@Component
+public class NotifyCircuitBreaker {
+
+  /**
+   * The states of the circuit breaker.
+   */
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final double failureRateThreshold;
+
+  private final int minimumNumberOfCalls;
+
+  private final long openDurationNanos;
+
+  private final int halfOpenPermittedCalls;
+
+  private final boolean[] window;
+
+  private int windowIndex;
+
+  private int windowCalls;
+
+  private int windowFailures;
+
+  private State state = State.CLOSED;
+
+  private long openedAtNanos;
+
+  private int halfOpenCallsInFlight;
+
+  private int halfOpenSuccesses;
+
+  private final Map<State, Counter> transitions = new EnumMap<>(State.class);
+
+  private final Counter rejected;
+
+  /**
+   * Creates a closed circuit breaker.
+   *
+   * @param failureRateThreshold ratio of failed calls in the window opening the breaker
+   * @param slidingWindowSize number of most recent calls the failure ratio is computed over
+   * @param minimumNumberOfCalls number of calls needed in the window before the breaker can open
+   * @param openDurationMillis time the breaker stays open before probe calls are permitted
+   * @param halfOpenPermittedCalls number of probe calls which have to succeed to close the breaker
+   * @param meterRegistry registry the state gauge and transition counters are registered with
+   */
+  public NotifyCircuitBreaker(
+      @Value("${application.notify-circuit-breaker.failure-rate-threshold}")
+          double failureRateThreshold,
+      @Value("${application.notify-circuit-breaker.sliding-window-size}") int slidingWindowSize,
+      @Value("${application.notify-circuit-breaker.minimum-number-of-calls}")
+          int minimumNumberOfCalls,
+      @Value("${application.notify-circuit-breaker.open-duration-millis}")
+          long openDurationMillis,
+      @Value("${application.notify-circuit-breaker.half-open-permitted-calls}")
+          int halfOpenPermittedCalls,
+      MeterRegistry meterRegistry) {
+    this.failureRateThreshold = failureRateThreshold;
+    this.window = new boolean[Math.max(1, slidingWindowSize)];
+    this.minimumNumberOfCalls = Math.max(1, Math.min(minimumNumberOfCalls, window.length));
+    this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+    this.halfOpenPermittedCalls = Math.max(1, halfOpenPermittedCalls);
+
+    Gauge.builder("notify.circuit.breaker.state", this, breaker -> breaker.getState().ordinal())
+        .description("State of the Gov.UK Notify circuit breaker: 0 closed, 1 open, 2 half open")
+        .register(meterRegistry);
+    for (State target : State.values()) {
+      transitions.put(target, Counter.builder("notify.circuit.breaker.transitions")
+          .tag("state", target.name().toLowerCase())
+          .description("Transitions of the Gov.UK Notify circuit breaker")
+          .register(meterRegistry));
+    }
+    this.rejected = Counter.builder("notify.circuit.breaker.rejected")
+        .description("Calls to Gov.UK Notify rejected by the open circuit breaker")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Asks for a permission to call Gov.UK Notify. Every permitted call has to be followed by
+   * {@link #onSuccess()}, {@link #onFailure()} or {@link #releasePermission()}.
+   *
+   * @return true if the call is permitted, false if the breaker is open
+   */
+  public synchronized boolean tryAcquirePermission() {
+    if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openDurationNanos) {
+      transitionTo(State.HALF_OPEN);
+    }
+    if (state == State.CLOSED) {
+      return true;
+    }
+    if (state == State.HALF_OPEN && halfOpenCallsInFlight < halfOpenPermittedCalls) {
+      halfOpenCallsInFlight++;
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  /**
+   * Gives back a permission which was not used to call Gov.UK Notify.
+   */
+  public synchronized void releasePermission() {
+    if (state == State.HALF_OPEN && halfOpenCallsInFlight > 0) {
+      halfOpenCallsInFlight--;
+    }
+  }
+
+  /**
+   * Records a call which Gov.UK Notify handled, including calls rejected as invalid.
+   */
+  public synchronized void onSuccess() {
+    if (state == State.HALF_OPEN) {
+      halfOpenSuccesses++;
+      if (halfOpenSuccesses >= halfOpenPermittedCalls) {
+        transitionTo(State.CLOSED);
+      }
+    } else if (state == State.CLOSED) {
+      record(false);
+    }
+  }
+
+  /**
+   * Records a call which failed because Gov.UK Notify was unavailable.
+   */
+  public synchronized void onFailure() {
+    if (state == State.HALF_OPEN) {
+      transitionTo(State.OPEN);
+    } else if (state == State.CLOSED) {
+      record(true);
+      if (windowCalls >= minimumNumberOfCalls
+          && (double) windowFailures / windowCalls >= failureRateThreshold) {
+        transitionTo(State.OPEN);
+      }
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Returns the number of transitions the breaker made into a state.
+   *
+   * @param target the state transitioned into
+   * @return the number of transitions
+   */
+  public long getTransitionCount(State target) {
+    return (long) transitions.get(target).count();
+  }
+
+  public long getRejectedCount() {
+    return (long) rejected.count();
+  }
+
+  private void record(boolean failure) {
+    if (windowCalls == window.length) {
+      if (window[windowIndex]) {
+        windowFailures--;
+      }
+    } else {
+      windowCalls++;
+    }
+    window[windowIndex] = failure;
+    if (failure) {
+      windowFailures++;
+    }
+    windowIndex = (windowIndex + 1) % window.length;
+  }
+
+  private void transitionTo(State target) {
+    log.warn("Gov.UK Notify circuit breaker changed state from {} to {}", state, target);
+    state = target;
+    halfOpenCallsInFlight = 0;
+    halfOpenSuccesses = 0;
+    if (target == State.OPEN) {
+      openedAtNanos = System.nanoTime();
+    } else if (target == State.CLOSED) {
+      windowIndex = 0;
+      windowCalls = 0;
+      windowFailures = 0;
+    }
+    transitions.get(target).increment();
+  }
+}
@@ -0,0 +1,33 @@
+package uk.gov.caz.notify.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.repository.NotifyCircuitBreaker.State;
+
+/**
+ * Reports the state of the {@link NotifyCircuitBreaker} in the actuator health endpoint.
+ */
+@Component
+@RequiredArgsConstructor
+public class NotifyCircuitBreakerHealthIndicator implements HealthIndicator {
+
+  private final NotifyCircuitBreaker circuitBreaker;
+
+  @Override
+  public Health health() {
+    State state = circuitBreaker.getState();
+    Health.Builder builder;
+    if (state == State.OPEN) {
+      builder = Health.down();
+    } else if (state == State.HALF_OPEN) {
+      builder = Health.unknown();
+    } else {
+      builder = Health.up();
+    }
+    return builder.withDetail("state", state)
+        .withDetail("rejectedCalls", circuitBreaker.getRejectedCount())
+        .build();
+  }
+}
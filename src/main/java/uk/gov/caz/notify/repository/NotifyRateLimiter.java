@@ -0,0 +1,145 @@
+package uk.gov.caz.notify.repository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Client-side token bucket limiting the rate of calls made to Gov.UK Notify with our API key.
+ * Callers wait for a permit for a bounded amount of time and are rejected if none becomes
+ * available in time.
+ */
+@Slf4j
+@Component
+public class NotifyRateLimiter {
+
+  private final double permitsPerNano;
+
+  private final double burst;
+
+  private final long maxWaitNanos;
+
+  private double availablePermits;
+
+  private long lastRefillNanos;
+
+  private final Counter granted;
+
+  private final Counter waited;
+
+  private final Counter rejected;
+
+  /**
+   * Creates the rate limiter with a full bucket.
+   *
+   * @param permitsPerSecond sustained rate of permits, a value of 0 or less disables limiting
+   * @param burst maximum number of permits that can be accumulated
+   * @param maxWaitMillis maximum time a caller waits for a permit
+   * @param meterRegistry registry the permit counters are registered with
+   */
+  public NotifyRateLimiter(
+      @Value("${application.notify-rate-limit.permits-per-second}") double permitsPerSecond,
+      @Value("${application.notify-rate-limit.burst}") int burst,
+      @Value("${application.notify-rate-limit.max-wait-millis}") long maxWaitMillis,
+      MeterRegistry meterRegistry) {
+    this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.burst = Math.max(1, burst);
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    this.availablePermits = this.burst;
+    this.lastRefillNanos = System.nanoTime();
+    this.granted = permitCounter(meterRegistry, "granted");
+    this.waited = permitCounter(meterRegistry, "waited");
+    this.rejected = permitCounter(meterRegistry, "rejected");
+  }
+
+  /**
+   * Takes a permit, waiting for it if the bucket is empty.
+   *
+   * @return true if a permit was taken, false if none became available within the maximum wait
+   */
+  public boolean tryAcquire() {
+    if (permitsPerNano <= 0) {
+      granted.increment();
+      return true;
+    }
+
+    long waitNanos = reserve();
+    if (waitNanos < 0) {
+      rejected.increment();
+      return false;
+    }
+    if (waitNanos > 0) {
+      waited.increment();
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    granted.increment();
+    return true;
+  }
+
+  /**
+   * Reserves a permit, letting the bucket go into debt for callers that are willing to wait.
+   *
+   * @return nanoseconds until the reserved permit is available, or -1 if it is not reserved
+   */
+  private synchronized long reserve() {
+    refill();
+
+    if (availablePermits >= 1) {
+      availablePermits -= 1;
+      return 0;
+    }
+
+    long waitNanos = (long) Math.ceil((1 - availablePermits) / permitsPerNano);
+    if (waitNanos > maxWaitNanos) {
+      return -1;
+    }
+    availablePermits -= 1;
+    return waitNanos;
+  }
+
+  /**
+   * Returns the number of permits which can be taken without waiting.
+   *
+   * @return the permits in the bucket, or {@link Double#POSITIVE_INFINITY} if limiting is
+   *     disabled
+   */
+  public synchronized double getAvailablePermits() {
+    if (permitsPerNano <= 0) {
+      return Double.POSITIVE_INFINITY;
+    }
+    refill();
+    return Math.max(0, availablePermits);
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    availablePermits = Math.min(burst,
+        availablePermits + (now - lastRefillNanos) * permitsPerNano);
+    lastRefillNanos = now;
+  }
+
+  public long getGrantedCount() {
+    return (long) granted.count();
+  }
+
+  public long getWaitedCount() {
+    return (long) waited.count();
+  }
+
+  public long getRejectedCount() {
+    return (long) rejected.count();
+  }
+
+  private static Counter permitCounter(MeterRegistry meterRegistry, String result) {
+    return Counter.builder("notify.rate.limiter.permits").tag("result", result)
+        .description("Permits requested from the Gov.UK Notify rate limiter")
+        .register(meterRegistry);
+  }
+}
@@ -0,0 +1,37 @@
+package uk.gov.caz.notify.repository;
+
+import uk.gov.service.notify.NotificationClientException;
+
+/**
+ * An error response from Gov.UK Notify, carrying the delay requested in its Retry-After header.
+ */
+public class NotifyResponseException extends NotificationClientException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int httpResult;
+
+  private final long retryAfterMillis;
+
+  /**
+   * Creates the exception.
+   *
+   * @param httpResult the HTTP status of the response
+   * @param message the body of the response
+   * @param retryAfterMillis the requested delay before retrying, or 0 if none was requested
+   */
+  public NotifyResponseException(int httpResult, String message, long retryAfterMillis) {
+    super("Status code: " + httpResult + " " + message);
+    this.httpResult = httpResult;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  @Override
+  public int getHttpResult() {
+    return httpResult;
+  }
+
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
@@ -0,0 +1,14 @@
+package uk.gov.caz.notify.repository;
+
+/**
+ * Thrown instead of calling Gov.UK Notify when the client-side rate limit has been exhausted.
+ * Reports the same status as a rate limit error returned by Gov.UK Notify.
+ */
+public class RateLimitExceededException extends NotifyResponseException {
+
+  private static final long serialVersionUID = 1L;
+
+  public RateLimitExceededException() {
+    super(429, "Client-side rate limit exceeded", 0);
+  }
+}
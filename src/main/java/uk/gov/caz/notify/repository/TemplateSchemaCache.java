@@ -0,0 +1,136 @@
+package uk.gov.caz.notify.repository;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.domain.TemplateSchema;
+import uk.gov.service.notify.NotificationClientException;
+import uk.gov.service.notify.Template;
+
+/**
+ * Keeps the schemas of the email templates in memory, so that Gov.UK Notify is asked for a
+ * template once per refresh period rather than for every email. A schema is refreshed the first
+ * time it is needed after the refresh period; if Gov.UK Notify cannot be reached the schema
+ * already held keeps being used. A template which does not exist is only remembered for a short
+ * while, so that one created after it was first asked for is soon found.
+ */
+@Slf4j
+@Component
+public class TemplateSchemaCache {
+
+  private static final int NOT_FOUND = 404;
+
+  private final GovUkNotifyWrapper govUkNotifyWrapper;
+
+  private final LoadingCache<String, TemplateSchema> schemas;
+
+  // the templates which do not exist, kept apart as they are remembered for a shorter time
+  private final Cache<String, TemplateSchema> notFound;
+
+  /**
+   * Creates the cache.
+   *
+   * @param govUkNotifyWrapper the wrapper used to fetch templates from Gov.UK Notify
+   * @param maximumSize maximum number of templates kept in memory
+   * @param refreshSeconds how long a template is used for before it is fetched again
+   * @param notFoundSeconds how long a template which does not exist is remembered
+   */
+  public TemplateSchemaCache(GovUkNotifyWrapper govUkNotifyWrapper,
+      @Value("${application.validation.template-cache-size}") long maximumSize,
+      @Value("${application.validation.template-refresh-seconds}") long refreshSeconds,
+      @Value("${application.validation.template-not-found-seconds}") long notFoundSeconds) {
+    this.govUkNotifyWrapper = govUkNotifyWrapper;
+    this.schemas = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .refreshAfterWrite(refreshSeconds, TimeUnit.SECONDS)
+        .build(CacheLoader.from(this::fetchSchema));
+    this.notFound = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(notFoundSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * Returns the schema of a template, fetching it from Gov.UK Notify if it is not held.
+   *
+   * @param templateId the identifier of the email template
+   * @return the schema, or an empty optional if the template could not be fetched
+   */
+  public Optional<TemplateSchema> getSchema(String templateId) {
+    TemplateSchema missing = notFound.getIfPresent(templateId);
+    if (missing != null) {
+      return Optional.of(missing);
+    }
+    try {
+      return Optional.of(schemas.get(templateId));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof TemplateNotFoundException) {
+        notFound.put(templateId, TemplateSchema.NOT_FOUND);
+        return Optional.of(TemplateSchema.NOT_FOUND);
+      }
+      log.warn("Could not fetch template {} from Gov.UK Notify: {}", templateId,
+          e.getCause().getMessage());
+      return Optional.empty();
+    }
+  }
+
+  private TemplateSchema fetchSchema(String templateId) {
+    log.info("Fetching template from Gov.UK Notify: {}", templateId);
+    try {
+      return TemplateSchema.of(requiredPersonalisation(
+          govUkNotifyWrapper.getTemplateById(templateId)));
+    } catch (NotificationClientException e) {
+      if (e.getHttpResult() == NOT_FOUND) {
+        throw new TemplateNotFoundException(e);
+      }
+      throw new IllegalStateException(e.getMessage(), e);
+    } catch (InstantiationException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Returns the placeholders of a template which have to be given a value. Gov.UK Notify
+   * describes each placeholder as an object with a {@code required} flag.
+   */
+  private static Set<String> requiredPersonalisation(Template template) {
+    return template.getPersonalisation()
+        .map(personalisation -> personalisation.entrySet().stream()
+            .filter(TemplateSchemaCache::isRequired)
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toSet()))
+        .orElseGet(Collections::emptySet);
+  }
+
+  private static boolean isRequired(Map.Entry<String, Object> placeholder) {
+    if (placeholder.getValue() instanceof Map) {
+      return !Boolean.FALSE.equals(((Map<?, ?>) placeholder.getValue()).get("required"));
+    }
+    return true;
+  }
+
+  /**
+   * Thrown while loading a template which does not exist, so that it is not kept with the
+   * templates which do.
+   */
+  private static class TemplateNotFoundException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    TemplateNotFoundException(NotificationClientException cause) {
+      super(cause.getMessage(), cause);
+    }
+  }
+}
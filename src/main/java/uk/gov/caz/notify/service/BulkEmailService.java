@@ -0,0 +1,274 @@
+package uk.gov.caz.notify.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.DispatchResult;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.dto.SendEmailResult;
+import uk.gov.caz.notify.messaging.EmailMessageReader;
+import uk.gov.caz.notify.messaging.EmailMessageValidator;
+import uk.gov.caz.notify.messaging.InvalidEmailMessageException;
+import uk.gov.caz.notify.messaging.MessagingClient;
+import uk.gov.caz.notify.messaging.SqsBatchBuffer;
+import uk.gov.caz.notify.metrics.MessageMetrics;
+
+/**
+ * Sends the email requests of a bulk send. The requests are read from a JSON array in chunks,
+ * each chunk is sent with the {@link MessageDispatcher} like a batch received from a queue, and
+ * the results of a chunk are written out before the next chunk is read, so that neither the
+ * requests nor the results are held in memory all at once. The result of a request is only
+ * written once the re-queued requests of its chunk have been flushed, so that a request which
+ * could not be re-queued is reported as failed. Requests not started by the deadline of the bulk
+ * send are reported as failed too.
+ */
+@Slf4j
+@Service
+public class BulkEmailService {
+
+  private static final String BULK_KEY_PREFIX = "bulk-";
+
+  private final MessagingClient messagingClient;
+
+  private final MessageDispatcher messageDispatcher;
+
+  private final SqsBatchBuffer sqsBatchBuffer;
+
+  private final EmailMessageReader emailMessageReader;
+
+  private final EmailMessageValidator emailMessageValidator;
+
+  private final MessageMetrics messageMetrics;
+
+  private final ObjectMapper objectMapper;
+
+  private final int chunkSize;
+
+  private final boolean asyncNotify;
+
+  private final long timeLimitMillis;
+
+  /**
+   * Creates the service.
+   *
+   * @param messagingClient the client sending and re-queueing email requests
+   * @param messageDispatcher the dispatcher running the sending of a chunk
+   * @param sqsBatchBuffer the buffer of re-queued messages, flushed after every chunk
+   * @param emailMessageReader the reader of email requests
+   * @param emailMessageValidator the validator of email requests
+   * @param messageMetrics the recorder of routing outcomes
+   * @param objectMapper library class for serializing and deserializing JSON
+   * @param chunkSize number of requests read and sent at a time
+   * @param asyncNotify whether emails are sent without blocking a thread
+   * @param timeLimitMillis time a bulk send may spend sending, counted from its start
+   */
+  public BulkEmailService(MessagingClient messagingClient, MessageDispatcher messageDispatcher,
+      SqsBatchBuffer sqsBatchBuffer, EmailMessageReader emailMessageReader,
+      EmailMessageValidator emailMessageValidator, MessageMetrics messageMetrics,
+      ObjectMapper objectMapper,
+      @Value("${application.bulk-send.chunk-size}") int chunkSize,
+      @Value("${application.async-notify.enabled}") boolean asyncNotify,
+      @Value("${application.bulk-send.time-limit-millis}") long timeLimitMillis) {
+    this.messagingClient = messagingClient;
+    this.messageDispatcher = messageDispatcher;
+    this.sqsBatchBuffer = sqsBatchBuffer;
+    this.emailMessageReader = emailMessageReader;
+    this.emailMessageValidator = emailMessageValidator;
+    this.messageMetrics = messageMetrics;
+    this.objectMapper = objectMapper;
+    this.chunkSize = Math.max(1, chunkSize);
+    this.asyncNotify = asyncNotify;
+    this.timeLimitMillis = timeLimitMillis;
+  }
+
+  /**
+   * Sends the email requests of a JSON array, writing a JSON array of their results. The result
+   * of each request is written at the same position as the request. No request is started after
+   * the earlier of the configured time limit and the given deadline.
+   *
+   * @param requests the JSON array of email requests
+   * @param results the stream the JSON array of results is written to
+   * @param deadline the point in time by which the bulk send has to be finished, e.g. the end of
+   *     the Lambda invocation
+   * @return the number of requests read
+   * @throws IOException a {@code JsonProcessingException} if the requests do not start a JSON
+   *     array, in which case nothing has been written, or another error if the results cannot
+   *     be written
+   */
+  public int sendEmails(InputStream requests, OutputStream results, Deadline deadline)
+      throws IOException {
+    Deadline sendDeadline = Deadline.in(timeLimitMillis).earliest(deadline);
+    JsonParser parser = objectMapper.getFactory().createParser(requests);
+    if (parser.nextToken() != JsonToken.START_ARRAY) {
+      throw JsonMappingException.from(parser, "Expected an array of email requests");
+    }
+
+    JsonGenerator generator = objectMapper.getFactory().createGenerator(results);
+    generator.writeStartArray();
+    List<BulkItem> chunk = new ArrayList<>(chunkSize);
+    int read = 0;
+    String malformed = null;
+    BulkItem item;
+    do {
+      try {
+        item = readItem(parser, read);
+      } catch (JsonProcessingException e) {
+        log.error("Stopped reading malformed email requests: {}", e.getOriginalMessage());
+        malformed = "Malformed array of email requests: " + e.getOriginalMessage();
+        item = null;
+      }
+      if (item != null) {
+        chunk.add(item);
+        read++;
+      }
+      if (chunk.size() == chunkSize || item == null && !chunk.isEmpty()) {
+        sendChunk(chunk, sendDeadline);
+        for (BulkItem sent : chunk) {
+          generator.writeObject(sent.toResult());
+        }
+        generator.flush();
+        chunk.clear();
+      }
+    } while (item != null);
+    if (malformed != null) {
+      generator.writeObject(
+          new SendEmailResult(read, null, SendEmailResult.INVALID, null, malformed));
+    }
+    generator.writeEndArray();
+    generator.flush();
+    log.info("Processed {} email requests of a bulk send", read);
+    return read;
+  }
+
+  /**
+   * Reads the next request of the array.
+   *
+   * @return the request, or null at the end of the array
+   */
+  private BulkItem readItem(JsonParser parser, int index) throws IOException {
+    JsonToken token = parser.nextToken();
+    if (token == JsonToken.END_ARRAY || token == null) {
+      return null;
+    }
+    BulkItem item = new BulkItem(index);
+    try {
+      item.emailMessage = emailMessageReader.readElement(parser).toBuilder()
+          .receiptHandle(BULK_KEY_PREFIX + index)
+          .build();
+      emailMessageValidator.validate(item.emailMessage);
+    } catch (JsonMappingException e) {
+      item.fail(SendEmailResult.INVALID, e.getOriginalMessage());
+    } catch (InvalidEmailMessageException e) {
+      item.fail(SendEmailResult.INVALID, e.getMessage());
+    }
+    return item;
+  }
+
+  private void sendChunk(List<BulkItem> chunk, Deadline deadline) {
+    List<BulkItem> valid = new ArrayList<>(chunk.size());
+    chunk.stream().filter(item -> item.status == null).forEach(valid::add);
+    try {
+      if (asyncNotify) {
+        messageDispatcher.dispatchAsync(valid, item -> sendAsync(item, deadline), deadline);
+      } else {
+        messageDispatcher.dispatch(valid, item -> send(item, deadline), deadline);
+      }
+    } finally {
+      Set<String> requeueFailed = sqsBatchBuffer.flush();
+      if (!requeueFailed.isEmpty()) {
+        log.error("{} email requests of a bulk send could not be re-queued",
+            requeueFailed.size());
+      }
+      for (BulkItem item : valid) {
+        item.finish(requeueFailed, deadline);
+      }
+    }
+  }
+
+  private boolean send(BulkItem item, Deadline deadline) {
+    try {
+      DispatchResult result = messagingClient.sendMessage(item.emailMessage, deadline);
+      item.complete(result);
+      return result.getOutcome().isCompleted();
+    } catch (IOException | InstantiationException e) {
+      item.fail(SendEmailResult.FAILED, e.getMessage());
+      return false;
+    }
+  }
+
+  private CompletableFuture<Boolean> sendAsync(BulkItem item, Deadline deadline) {
+    return messagingClient.sendMessageAsync(item.emailMessage, deadline)
+        .handle((result, error) -> {
+          if (error == null) {
+            item.complete(result);
+            return result.getOutcome().isCompleted();
+          }
+          Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+          item.fail(SendEmailResult.FAILED, cause.getMessage());
+          return false;
+        });
+  }
+
+  private final class BulkItem {
+
+    private final int index;
+    private EmailMessage emailMessage;
+    private volatile String status;
+    private volatile DispatchResult result;
+    private volatile String error;
+
+    private BulkItem(int index) {
+      this.index = index;
+    }
+
+    private void complete(DispatchResult result) {
+      this.result = result;
+      messageMetrics.recordOutcome(null, result.getOutcome());
+    }
+
+    private void fail(String status, String error) {
+      this.status = status;
+      this.error = error;
+    }
+
+    /**
+     * Sets the status of a request once the re-queued requests of its chunk have been flushed.
+     */
+    private void finish(Set<String> requeueFailed, Deadline deadline) {
+      if (status != null) {
+        return;
+      }
+      if (result == null) {
+        fail(SendEmailResult.FAILED, deadline.isExpired()
+            ? "Not sent before the deadline of the bulk send" : "Not sent");
+      } else if (requeueFailed.contains(emailMessage.getReceiptHandle())) {
+        fail(SendEmailResult.FAILED, "Could not be re-queued");
+      } else {
+        status = result.getOutcome().toString();
+      }
+    }
+
+    private SendEmailResult toResult() {
+      return new SendEmailResult(index,
+          emailMessage == null ? null : emailMessage.getReference(),
+          status == null ? SendEmailResult.FAILED : status,
+          result == null ? null : result.getNotificationId(),
+          error);
+    }
+  }
+}
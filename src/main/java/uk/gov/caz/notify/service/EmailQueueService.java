@@ -0,0 +1,134 @@
+package uk.gov.caz.notify.service;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.dto.SendEmailRequest;
+import uk.gov.caz.notify.messaging.EmailMessageReader;
+import uk.gov.caz.notify.messaging.EmailMessageValidator;
+import uk.gov.caz.notify.messaging.InvalidEmailMessageException;
+import uk.gov.caz.notify.messaging.MessagingClient;
+import uk.gov.caz.notify.messaging.QueueUrlRegistry;
+import uk.gov.caz.notify.messaging.SqsMicroBatcher;
+
+/**
+ * Puts email requests on the new queue to be sent later, so that the caller neither waits for
+ * Gov.UK Notify nor fails while it is unavailable. Requests are validated first, and are written
+ * to the queue in batches shared with concurrent callers by the {@link SqsMicroBatcher}.
+ */
+@Slf4j
+@Service
+public class EmailQueueService {
+
+  private final EmailMessageReader emailMessageReader;
+
+  private final EmailMessageValidator emailMessageValidator;
+
+  private final MessagingClient messagingClient;
+
+  private final QueueUrlRegistry queueUrlRegistry;
+
+  private final SqsMicroBatcher sqsMicroBatcher;
+
+  private final ObjectMapper objectMapper;
+
+  /**
+   * Creates the service.
+   *
+   * @param emailMessageReader the reader of email requests
+   * @param emailMessageValidator the validator of email requests
+   * @param messagingClient the client creating the queued messages
+   * @param queueUrlRegistry a cache of the URLs of the gateway queues
+   * @param sqsMicroBatcher the batcher writing the messages to the queue
+   * @param objectMapper library class for serializing and deserializing JSON
+   */
+  public EmailQueueService(EmailMessageReader emailMessageReader,
+      EmailMessageValidator emailMessageValidator, MessagingClient messagingClient,
+      QueueUrlRegistry queueUrlRegistry, SqsMicroBatcher sqsMicroBatcher,
+      ObjectMapper objectMapper) {
+    this.emailMessageReader = emailMessageReader;
+    this.emailMessageValidator = emailMessageValidator;
+    this.messagingClient = messagingClient;
+    this.queueUrlRegistry = queueUrlRegistry;
+    this.sqsMicroBatcher = sqsMicroBatcher;
+    this.objectMapper = objectMapper;
+  }
+
+  /**
+   * Validates email requests and puts them on the new queue. No request is queued unless all of
+   * them are valid.
+   *
+   * @param requests the email requests
+   * @return the IDs of the queued messages in the order of the requests, with null in place of
+   *     each request which could not be written to the queue, so that only those are retried;
+   *     failing only if the queue cannot be resolved
+   * @throws InvalidEmailMessageException listing the problems of every invalid request
+   */
+  public CompletableFuture<List<String>> queueEmails(List<SendEmailRequest> requests)
+      throws InvalidEmailMessageException {
+    List<SendMessageRequest> messages = new ArrayList<>(requests.size());
+    List<String> problems = new ArrayList<>();
+    for (int i = 0; i < requests.size(); i++) {
+      try {
+        messages.add(toMessage(requests.get(i)));
+      } catch (InvalidEmailMessageException e) {
+        for (String problem : e.getProblems()) {
+          problems.add(problemOf(requests.size(), i, problem));
+        }
+      } catch (JsonMappingException e) {
+        problems.add(problemOf(requests.size(), i, e.getOriginalMessage()));
+      } catch (IOException e) {
+        problems.add(problemOf(requests.size(), i, e.getMessage()));
+      }
+    }
+    if (!problems.isEmpty()) {
+      throw new InvalidEmailMessageException(problems);
+    }
+
+    String queueUrl;
+    try {
+      queueUrl = queueUrlRegistry.getQueueUrl(QueueName.NEW);
+    } catch (AmazonClientException e) {
+      CompletableFuture<List<String>> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    List<CompletableFuture<String>> messageIds = messages.stream()
+        .map(message -> sqsMicroBatcher.send(message.withQueueUrl(queueUrl)))
+        .collect(Collectors.toList());
+    log.info("Queueing {} email requests", messageIds.size());
+    List<CompletableFuture<String>> results = messageIds.stream()
+        .map(messageId -> messageId.exceptionally(EmailQueueService::logFailure))
+        .collect(Collectors.toList());
+    return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+        .thenApply(ignored -> results.stream().map(CompletableFuture::join)
+            .collect(Collectors.toList()));
+  }
+
+  private static String logFailure(Throwable error) {
+    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+    log.error("Failed to queue email request: {}", cause.getMessage());
+    return null;
+  }
+
+  private SendMessageRequest toMessage(SendEmailRequest request) throws IOException {
+    EmailMessage emailMessage = emailMessageReader.read(objectMapper.writeValueAsString(request));
+    emailMessageValidator.validate(emailMessage);
+    return messagingClient.createSendMessageRequest(QueueName.NEW, emailMessage);
+  }
+
+  private static String problemOf(int requestCount, int index, String problem) {
+    return requestCount == 1 ? problem : "request " + index + ": " + problem;
+  }
+}
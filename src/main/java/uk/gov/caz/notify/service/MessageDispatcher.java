@@ -0,0 +1,300 @@
+package uk.gov.caz.notify.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.domain.Deadline;
+
+/**
+ * Runs the processing of a batch of received messages, either in the calling thread, on a
+ * bounded pool of workers, or as non-blocking tasks which are all in flight at the same time.
+ * A batch can be partitioned into groups, such as the message groups of a FIFO queue, which are
+ * processed concurrently while the items of each group are processed in order. Each task tells
+ * the dispatcher whether its item was completed, and a group is stopped at the first item which
+ * was not.
+ */
+@Slf4j
+@Component
+public class MessageDispatcher {
+
+  private final int concurrency;
+
+  private final long startedTaskWaitMillis;
+
+  private final ExecutorService executor;
+
+  /**
+   * Creates the dispatcher.
+   *
+   * @param concurrency maximum number of messages processed at the same time, a value of 1
+   *     processes messages one after another in the calling thread
+   * @param startedTaskWaitMillis how long the items which were started before the deadline
+   *     expired are waited for after it
+   */
+  public MessageDispatcher(@Value("${application.dispatch-concurrency}") int concurrency,
+      @Value("${application.started-task-wait-millis}") long startedTaskWaitMillis) {
+    this.concurrency = Math.max(1, concurrency);
+    this.startedTaskWaitMillis = startedTaskWaitMillis;
+    // also starts the next item of a group dispatched asynchronously, which would otherwise run
+    // on the thread completing the previous item, such as an I/O thread of the HTTP client
+    this.executor = Executors.newFixedThreadPool(this.concurrency,
+        new ThreadFactoryBuilder().setNameFormat("notify-dispatch-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Processes every item of a batch. Items which have not been started by the time the deadline
+   * expires are skipped, so that they become visible on their queue again. Items which were
+   * started before then are waited for, for at most the configured time after the deadline, so
+   * that the caller does not release, delete or re-queue messages while they are still being
+   * processed.
+   *
+   * @param items the batch to process
+   * @param task the processing of a single item, returning whether the item was completed
+   * @param deadline the point in time by which the batch has to be finished
+   * @return the number of items which were completed
+   */
+  public <T> int dispatch(List<T> items, Predicate<T> task, Deadline deadline) {
+    if (concurrency == 1 || items.size() < 2) {
+      return dispatchSerially(items, task, deadline);
+    }
+
+    List<Future<Boolean>> futures = new ArrayList<>(items.size());
+    for (T item : items) {
+      futures.add(executor.submit(() -> runTask(item, task, deadline)));
+    }
+    return awaitAll(futures, deadline);
+  }
+
+  /**
+   * Processes every item of a batch, running the groups of items concurrently and the items of
+   * each group one after another in the order of the batch. Once an item of a group fails or is
+   * not completed, or the deadline expires, the remaining items of the group are skipped, so that
+   * they are not processed ahead of that item.
+   *
+   * @param items the batch to process
+   * @param groupKey the group of an item, items with a null group are each in a group of their
+   *     own
+   * @param task the processing of a single item, returning whether the item was completed
+   * @param deadline the point in time by which the batch has to be finished
+   * @return the number of items which were completed
+   */
+  public <T> int dispatch(List<T> items, Function<T, String> groupKey, Predicate<T> task,
+      Deadline deadline) {
+    AtomicInteger processed = new AtomicInteger();
+    dispatch(partition(items, groupKey),
+        group -> {
+          processed.addAndGet(dispatchInOrder(group, task, deadline));
+          return true;
+        }, deadline);
+    return processed.get();
+  }
+
+  /**
+   * Starts the processing of every item of a batch in the calling thread and waits for all of
+   * them to complete. Items which have not been started by the time the deadline expires are
+   * skipped, and items which were started before then are waited for like those of
+   * {@link #dispatch(List, Predicate, Deadline)}.
+   *
+   * @param items the batch to process
+   * @param task the non-blocking processing of a single item, completing with whether the item
+   *     was completed
+   * @param deadline the point in time by which the batch has to be finished
+   * @return the number of items which were completed by the time the wait ended
+   */
+  public <T> int dispatchAsync(List<T> items, Function<T, CompletableFuture<Boolean>> task,
+      Deadline deadline) {
+    List<CompletableFuture<Boolean>> futures = new ArrayList<>(items.size());
+    for (T item : items) {
+      if (deadline.isExpired()) {
+        break;
+      }
+      futures.add(startTask(item, task));
+    }
+    return awaitAll(futures, deadline);
+  }
+
+  /**
+   * Starts the processing of every item of a batch, keeping one item of each group in flight at
+   * a time. The next item of a group is started on a worker once the previous one has been
+   * completed, rather than on the thread which completed it, and the remaining items of a group
+   * are skipped once an item fails or is not completed, or the deadline expires.
+   *
+   * @param items the batch to process
+   * @param groupKey the group of an item, items with a null group are each in a group of their
+   *     own
+   * @param task the non-blocking processing of a single item, completing with whether the item
+   *     was completed
+   * @param deadline the point in time by which the batch has to be finished
+   * @return the number of items which were completed by the time the wait ended
+   */
+  public <T> int dispatchAsync(List<T> items, Function<T, String> groupKey,
+      Function<T, CompletableFuture<Boolean>> task, Deadline deadline) {
+    AtomicInteger completed = new AtomicInteger();
+    dispatchAsync(partition(items, groupKey),
+        group -> dispatchInOrderAsync(group.iterator(), task, deadline, completed), deadline);
+    return completed.get();
+  }
+
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  private <T> int dispatchSerially(List<T> items, Predicate<T> task, Deadline deadline) {
+    int processed = 0;
+    for (T item : items) {
+      if (runTask(item, task, deadline)) {
+        processed++;
+      }
+    }
+    return processed;
+  }
+
+  private <T> int dispatchInOrder(List<T> group, Predicate<T> task, Deadline deadline) {
+    int processed = 0;
+    for (T item : group) {
+      if (!runTask(item, task, deadline)) {
+        if (processed + 1 < group.size() && !deadline.isExpired()) {
+          log.info("Skipping the remaining {} messages of the group",
+              group.size() - processed - 1);
+        }
+        break;
+      }
+      processed++;
+    }
+    return processed;
+  }
+
+  private <T> CompletableFuture<Boolean> dispatchInOrderAsync(Iterator<T> group,
+      Function<T, CompletableFuture<Boolean>> task, Deadline deadline, AtomicInteger completed) {
+    if (!group.hasNext() || deadline.isExpired()) {
+      return CompletableFuture.completedFuture(Boolean.TRUE);
+    }
+    return startTask(group.next(), task).thenComposeAsync(done -> {
+      if (!done) {
+        return CompletableFuture.completedFuture(Boolean.FALSE);
+      }
+      completed.incrementAndGet();
+      return dispatchInOrderAsync(group, task, deadline, completed);
+    }, executor);
+  }
+
+  private static <T> CompletableFuture<Boolean> startTask(T item,
+      Function<T, CompletableFuture<Boolean>> task) {
+    try {
+      return task.apply(item).handle((done, e) -> {
+        if (e != null) {
+          log.error("Failed to process message: {}", e.getMessage());
+        }
+        return e == null && Boolean.TRUE.equals(done);
+      });
+    } catch (RuntimeException e) {
+      log.error("Failed to process message: {}", e.getMessage());
+      return CompletableFuture.completedFuture(Boolean.FALSE);
+    }
+  }
+
+  private static <T> List<List<T>> partition(List<T> items, Function<T, String> groupKey) {
+    Map<Object, List<T>> groups = new LinkedHashMap<>();
+    for (T item : items) {
+      String key = groupKey.apply(item);
+      groups.computeIfAbsent(key == null ? new Object() : key, ignored -> new ArrayList<>())
+          .add(item);
+    }
+    return new ArrayList<>(groups.values());
+  }
+
+  private <T> boolean runTask(T item, Predicate<T> task, Deadline deadline) {
+    if (deadline.isExpired()) {
+      return false;
+    }
+    try {
+      return task.test(item);
+    } catch (RuntimeException e) {
+      log.error("Failed to process message: {}", e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Waits for every task until the deadline expires, and then for the tasks which are still
+   * running for at most the configured time. A task which has not started by then skips its item,
+   * as it checks the deadline first, so only the items which were started are waited for.
+   *
+   * @return the number of tasks which completed their item by the time the wait ended
+   */
+  private int awaitAll(List<? extends Future<Boolean>> futures, Deadline deadline) {
+    Deadline wait = deadline;
+    boolean expired = false;
+    for (Future<Boolean> future : futures) {
+      if (!await(future, wait) && !expired) {
+        log.warn("Invocation deadline reached before the batch was fully dispatched, waiting up "
+            + "to {} ms for the messages being processed", startedTaskWaitMillis);
+        expired = true;
+        wait = Deadline.in(startedTaskWaitMillis);
+        await(future, wait);
+      }
+      if (!future.isDone()) {
+        log.error("Messages were still being processed {} ms after the invocation deadline",
+            startedTaskWaitMillis);
+        break;
+      }
+    }
+    return (int) futures.stream().filter(MessageDispatcher::isCompleted).count();
+  }
+
+  /**
+   * Waits for a task until the given point in time.
+   *
+   * @return whether the task has finished
+   */
+  private static boolean await(Future<Boolean> future, Deadline until) {
+    try {
+      future.get(until.remainingMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      return false;
+    } catch (CancellationException | ExecutionException e) {
+      log.error("Message dispatch failed: {}", e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean isCompleted(Future<Boolean> future) {
+    if (!future.isDone()) {
+      return false;
+    }
+    try {
+      return Boolean.TRUE.equals(future.get());
+    } catch (CancellationException | ExecutionException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  @PreDestroy
+  void shutdown() {
+    executor.shutdown();
+  }
+}
@@ -1,29 +1,88 @@
 package uk.gov.caz.notify.service;
 
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.GetQueueUrlResult;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.MessageSystemAttributeName;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import javax.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import uk.gov.caz.notify.dto.SendEmailRequest;
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.domain.RoutingOutcome;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.messaging.EmailMessageReader;
+import uk.gov.caz.notify.messaging.EmailMessageValidator;
 import uk.gov.caz.notify.messaging.MessagingClient;
+import uk.gov.caz.notify.messaging.QueueUrlRegistry;
+import uk.gov.caz.notify.messaging.SqsBatchBuffer;
+import uk.gov.caz.notify.messaging.VisibilityHeartbeat;
+import uk.gov.caz.notify.metrics.MessageMetrics;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class MessageHandlingService {
 
+  /**
+   * Name given instead of a queue name to drain all queues with the {@link QueueScheduler}.
+   */
+  public static final String ALL_QUEUES = "all";
+
+  private static final String APPROXIMATE_NUMBER_OF_MESSAGES = "ApproximateNumberOfMessages";
+
+  private static final String MESSAGE_GROUP_ID =
+      MessageSystemAttributeName.MessageGroupId.toString();
+
+  private static final String APPROXIMATE_RECEIVE_COUNT =
+      MessageSystemAttributeName.ApproximateReceiveCount.toString();
+
   private final AmazonSQS amazonSqs;
 
   private final MessagingClient messagingClient;
 
+  private final MessageDispatcher messageDispatcher;
+
+  private final SqsBatchBuffer sqsBatchBuffer;
+
+  private final QueueUrlRegistry queueUrlRegistry;
+
+  private final EmailMessageReader emailMessageReader;
+
+  private final EmailMessageValidator emailMessageValidator;
+
+  private final MessageMetrics messageMetrics;
+
+  private final QueueScheduler queueScheduler;
+
+  private final VisibilityHeartbeat visibilityHeartbeat;
+
+  private final ExecutorService receiveExecutor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("notify-receive-%d").setDaemon(true).build());
+
   @Value("${application.polling-iterations}")
   private int pollingIterations;
 
@@ -33,64 +92,501 @@ public class MessageHandlingService {
   @Value("${application.sqs-request-wait-time}")
   private int sqsRequestWaitTime;
 
-  @Value("${job.notify-gateway.dlq-url}")
-  private String dlqName;
+  @Value("${application.invocation-time-margin-millis}")
+  private long invocationTimeMarginMillis;
 
-  private String queueUrl;
+  @Value("${application.max-postponed-receives}")
+  private int maxPostponedReceives;
+
+  @Value("${application.adaptive-drain}")
+  private boolean adaptiveDrain;
+
+  @Value("${application.async-notify.enabled}")
+  private boolean asyncNotify;
+
+  @Value("${application.idempotency.in-progress-delay-millis}")
+  private long inProgressDelayMillis;
+
+  @Value("${application.visibility-heartbeat.change-wait-millis}")
+  private long visibilityChangeWaitMillis;
 
   /**
    * Fetch messages from a queue and process each message. Send the message to
-   * the DLQ if the message body can't be deserialized or if the MessageGroupId
-   * header is missing.
+   * the DLQ if the message body can't be deserialized, if the MessageGroupId
+   * header is missing or if the email request would be rejected by Gov.UK
+   * Notify.
    * 
    * @param queueName the name of the queue to receive messages from
    */
   public void sendQueuedMessages(String queueName) {
+    sendQueuedMessages(queueName, Deadline.none());
+  }
+
+  /**
+   * Fetch messages from a queue and process each received batch with the
+   * {@link MessageDispatcher}. Messages which have not been started before the
+   * deadline (less a safety margin) are left on the queue. The message groups
+   * of a batch are processed concurrently and the messages of each group in
+   * order, so that a group which fails is not overtaken by its later messages.
+   * When non-blocking sends are enabled one message of every group is in flight
+   * at the same time.
+   *
+   * <p>In adaptive drain mode the queue is received from for as long as it
+   * returns messages and the deadline allows, rather than a fixed number of
+   * times. Without a deadline the number of receives is still bounded by the
+   * configured polling iterations.
+   *
+   * <p>Given {@link #ALL_QUEUES} instead of a queue name, all queues are drained
+   * in the order chosen by the {@link QueueScheduler}. A queue which is consumed
+   * through its SQS event source is not polled.
+   *
+   * @param queueName the name of the queue to receive messages from
+   * @param deadline the point in time by which the invocation has to finish
+   */
+  public void sendQueuedMessages(String queueName, Deadline deadline) {
+
+    Deadline dispatchDeadline = deadline.minus(invocationTimeMarginMillis);
+    if (ALL_QUEUES.equals(queueName)) {
+      drainAllQueues(dispatchDeadline);
+      return;
+    }
+    QueueName queue = QueueName.fromString(queueName);
+    if (queueScheduler.isConsumedByEventSource(queue)) {
+      log.info("Not polling the {} queue, which is consumed through its SQS event source", queue);
+      return;
+    }
+
+    if (adaptiveDrain) {
+      drainQueue(queue, dispatchDeadline);
+      return;
+    }
+
+    for (int i = 0; i < pollingIterations && !dispatchDeadline.isExpired(); i++) {
+      String queueUrl = queueUrlRegistry.getQueueUrl(queue);
+      List<Message> messageList = this.getQueueMessageByQueueUrl(queueUrl);
+      dispatchBatch(queue, messageList, queueUrl, dispatchDeadline, i);
+    }
+  }
+
+  /**
+   * Receives and dispatches batches until a receive returns no messages or the
+   * deadline expires. The next batch is received while the current one is being
+   * dispatched. On a FIFO queue this does not break ordering, as SQS does not
+   * return messages of a group which still has messages in flight.
+   */
+  private void drainQueue(QueueName queue, Deadline dispatchDeadline) {
+    String queueUrl = queueUrlRegistry.getQueueUrl(queue);
+    int maxReceives = dispatchDeadline.isBounded() ? Integer.MAX_VALUE : pollingIterations;
+
+    List<Message> messageList = dispatchDeadline.isExpired()
+        ? Collections.emptyList()
+        : getQueueMessageByQueueUrl(queueUrl);
+    for (int i = 0; !messageList.isEmpty(); i++) {
+      Future<List<Message>> prefetched = i + 1 < maxReceives
+          ? receiveExecutor.submit(() -> getQueueMessageByQueueUrl(queueUrl))
+          : null;
+
+      dispatchBatch(queue, messageList, queueUrl, dispatchDeadline, i);
+
+      if (prefetched == null) {
+        break;
+      }
+      messageList = awaitPrefetched(prefetched);
+      if (dispatchDeadline.isExpired()) {
+        log.info("Invocation deadline reached, leaving {} prefetched messages on the queue",
+            messageList.size());
+        visibilityHeartbeat.release(queueUrl, messageList.stream()
+            .map(Message::getReceiptHandle).collect(Collectors.toList()));
+        break;
+      }
+    }
+    log.info("Finished draining queue: {}", queue);
+  }
+
+  /**
+   * Receives and dispatches batches from all queues until none of them is known
+   * to have messages or the deadline expires. The backlog of each queue is
+   * sampled once, and is then kept up to date with the number of messages each
+   * receive returns.
+   */
+  private void drainAllQueues(Deadline dispatchDeadline) {
+    Map<QueueName, Long> backlog = new EnumMap<>(QueueName.class);
+    for (QueueName queue : queueScheduler.getScheduledQueues()) {
+      backlog.put(queue, getApproximateBacklog(queueUrlRegistry.getQueueUrl(queue)));
+    }
+    log.info("Draining all queues with backlog: {}", backlog);
+    QueueScheduler.Schedule schedule = queueScheduler.schedule(backlog);
+    int maxReceives = dispatchDeadline.isBounded()
+        ? Integer.MAX_VALUE
+        : pollingIterations * queueScheduler.getScheduledQueues().size();
+
+    for (int i = 0; i < maxReceives && !dispatchDeadline.isExpired(); i++) {
+      QueueName queue = schedule.next();
+      if (queue == null) {
+        break;
+      }
+      String queueUrl = queueUrlRegistry.getQueueUrl(queue);
+      List<Message> messageList = getQueueMessageByQueueUrl(queueUrl);
+      schedule.received(queue, messageList.size());
+      if (!messageList.isEmpty()) {
+        dispatchBatch(queue, messageList, queueUrl, dispatchDeadline, i);
+      }
+    }
+    log.info("Finished draining all queues");
+  }
+
+  private long getApproximateBacklog(String queueUrl) {
+    String count = amazonSqs.getQueueAttributes(queueUrl,
+        Collections.singletonList(APPROXIMATE_NUMBER_OF_MESSAGES))
+        .getAttributes().get(APPROXIMATE_NUMBER_OF_MESSAGES);
+    return count == null ? 0 : Long.parseLong(count);
+  }
 
-    ObjectMapper objectMapper = new ObjectMapper();
+  private void dispatchBatch(QueueName queue, List<Message> messageList, String queueUrl,
+      Deadline dispatchDeadline, int iteration) {
+    // Note the addition of 1 is to account for human readable logs (rather
+    // than being 0 indexed)
+    log.info(String.format("Beginning message dispatch iteration: %d", iteration + 1));
+
+    long start = System.nanoTime();
+    int processed;
+    VisibilityHeartbeat.Lease lease = visibilityHeartbeat.track(queueUrl, messageList);
+    try {
+      processed = asyncNotify
+          ? messageDispatcher.dispatchAsync(messageList, MessageHandlingService::messageGroupId,
+              message -> processMessageAsync(queue, message, queueUrl, dispatchDeadline, lease),
+              dispatchDeadline)
+          : messageDispatcher.dispatch(messageList, MessageHandlingService::messageGroupId,
+              message -> processMessage(queue, message, queueUrl, dispatchDeadline, lease),
+              dispatchDeadline);
+    } finally {
+      // messages left unstarted at the deadline can be received again straight away
+      lease.releaseUnstarted();
+      awaitVisibilityChanges(queueUrl, lease.close());
+      Set<String> failed = sqsBatchBuffer.flush();
+      if (!failed.isEmpty()) {
+        log.error("{} messages could not be re-queued or deleted", failed.size());
+      }
+      messageMetrics.recordBatch(queue, messageList.size(), System.nanoTime() - start);
+    }
+
+    log.info(String.format("Finished message dispatch iteration: %d", iteration + 1));
+    log.info("Processed {} of {} received messages", processed, messageList.size());
+  }
+
+  /**
+   * Waits a bounded time for the visibility changes of a batch, so that the release of its
+   * unstarted messages is not cut short by the end of the invocation.
+   */
+  private void awaitVisibilityChanges(String queueUrl, CompletableFuture<Void> changes) {
+    try {
+      changes.get(visibilityChangeWaitMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      log.warn("Visibility changes of messages on SQS queue {} did not finish in time", queueUrl);
+    } catch (ExecutionException e) {
+      log.warn("Visibility changes of messages on SQS queue {} failed: {}", queueUrl,
+          e.getCause().getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
 
-    for (int i = 0; i < pollingIterations; i++) {
+  private List<Message> awaitPrefetched(Future<List<Message>> prefetched) {
+    try {
+      return prefetched.get();
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Collections.emptyList();
+    }
+  }
 
-      // Note the addition of 1 is to account for human readable logs (rather
-      // than being 0 indexed)
-      log.info(String.format("Beginning message dispatch iteration: %d", i + 1));
+  /**
+   * Process messages which were received by the caller, such as the records of
+   * an SQS event. The messages are not deleted from their queue; the caller is
+   * told which messages were not processed instead. A re-queued message which
+   * is not due to be sent yet is kept invisible until it is, and reported as
+   * not processed, so that it is not deleted, together with the rest of its
+   * group. So is a message which could not be re-queued, and on a FIFO queue
+   * every message following an unprocessed message of the same group, so that
+   * it is not deleted ahead of it. A message which was re-queued does not hold
+   * up the rest of its group. A message whose email is still being sent by
+   * another thread is kept invisible for a while and reported as not
+   * processed, so that it is received again once that send has finished.
+   *
+   * @param source the queue the messages were received from, or null if it is
+   *     not known
+   * @param messages the received messages
+   * @param deadline the point in time by which the invocation has to finish
+   * @return the IDs of the messages which were not processed
+   */
+  public Set<String> processMessages(QueueName source, List<Message> messages,
+      Deadline deadline) {
+    Deadline dispatchDeadline = deadline.minus(invocationTimeMarginMillis);
+    Set<String> unprocessed = ConcurrentHashMap.newKeySet();
+    messages.forEach(message -> unprocessed.add(message.getMessageId()));
 
-      List<Message> messageList = this.getQueueMessageByQueueUrl(queueName);
+    long start = System.nanoTime();
+    try {
+      if (asyncNotify) {
+        messageDispatcher.dispatchAsync(messages, MessageHandlingService::messageGroupId,
+            message -> postponeIfNotDue(source, message)
+                ? CompletableFuture.completedFuture(Boolean.FALSE)
+                : handleReceivedMessageAsync(source, message, dispatchDeadline)
+                    .thenCompose(outcome -> {
+                      if (postponeIfInProgress(source, message, outcome)) {
+                        return CompletableFuture.completedFuture(Boolean.FALSE);
+                      }
+                      unprocessed.remove(message.getMessageId());
+                      return mayContinueGroup(message, outcome);
+                    }),
+            dispatchDeadline);
+      } else {
+        messageDispatcher.dispatch(messages, MessageHandlingService::messageGroupId, message -> {
+          if (postponeIfNotDue(source, message)) {
+            return false;
+          }
+          RoutingOutcome outcome = handleReceivedMessage(source, message, dispatchDeadline);
+          if (postponeIfInProgress(source, message, outcome)) {
+            return false;
+          }
+          unprocessed.remove(message.getMessageId());
+          return mayContinueGroup(message, outcome).join();
+        }, dispatchDeadline);
+      }
+    } finally {
+      Set<String> failed = sqsBatchBuffer.flush();
+      if (!failed.isEmpty()) {
+        log.error("{} messages could not be re-queued", failed.size());
+        messages.stream().filter(message -> failed.contains(message.getReceiptHandle()))
+            .forEach(message -> unprocessed.add(message.getMessageId()));
+      }
+      messageMetrics.recordBatch(source, messages.size(), System.nanoTime() - start);
+    }
+    // a message still being processed once the wait for it has ended stays unprocessed
+    Set<String> notProcessed = new HashSet<>(unprocessed);
+    addRestOfGroups(messages, notProcessed);
 
-      for (Message message : messageList) {
-        log.info("Processing message with ID: {}", message.getMessageId());
+    log.info("Processed {} of {} received messages", messages.size() - notProcessed.size(),
+        messages.size());
+    return notProcessed;
+  }
 
-        try {
-          SendEmailRequest request =
-              objectMapper.readValue(message.getBody(), SendEmailRequest.class);
-          messagingClient.handleMessage(request);
-        } catch (IOException | InstantiationException e) {
-          log.error("Failed to process message with id: {}",
-              message.getMessageId());
-          SendMessageRequest request =
-              messagingClient.createSendMessageRequest(message.getBody());
-          messagingClient.publishMessage(dlqName, request);
-        }
-        amazonSqs.deleteMessage(this.queueUrl, message.getReceiptHandle());
+  /**
+   * Adds every message which follows an unprocessed message of its group.
+   */
+  private static void addRestOfGroups(List<Message> messages, Set<String> unprocessed) {
+    Set<String> stoppedGroups = new HashSet<>();
+    for (Message message : messages) {
+      String group = messageGroupId(message);
+      if (group == null) {
+        continue;
+      }
+      if (stoppedGroups.contains(group)) {
+        unprocessed.add(message.getMessageId());
+      } else if (unprocessed.contains(message.getMessageId())) {
+        stoppedGroups.add(group);
       }
+    }
+  }
+
+  /**
+   * Processes a message and deletes it from its queue, unless its email is still being sent by
+   * another thread, in which case it is postponed rather than deleted.
+   *
+   * @return whether the next message of its group can be processed; it cannot once a message is
+   *     postponed or could not be re-queued, as the rest of its group has to wait for it
+   */
+  private boolean processMessage(QueueName source, Message message, String queueUrl,
+      Deadline deadline, VisibilityHeartbeat.Lease lease) {
+    if (postponeIfNotDue(source, message, lease)) {
+      return false;
+    }
+    lease.start(message);
+    RoutingOutcome outcome = handleReceivedMessage(source, message, deadline);
+    if (outcome == RoutingOutcome.IN_PROGRESS) {
+      lease.postpone(message, inProgressDelayMillis);
+      return false;
+    }
+    sqsBatchBuffer.delete(queueUrl, message.getReceiptHandle());
+    lease.complete(message);
+    return mayContinueGroup(message, outcome).join();
+  }
+
+  private CompletableFuture<Boolean> processMessageAsync(QueueName source, Message message,
+      String queueUrl, Deadline deadline, VisibilityHeartbeat.Lease lease) {
+    if (postponeIfNotDue(source, message, lease)) {
+      return CompletableFuture.completedFuture(Boolean.FALSE);
+    }
+    lease.start(message);
+    return handleReceivedMessageAsync(source, message, deadline)
+        .thenCompose(outcome -> {
+          if (outcome == RoutingOutcome.IN_PROGRESS) {
+            lease.postpone(message, inProgressDelayMillis);
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+          }
+          sqsBatchBuffer.delete(queueUrl, message.getReceiptHandle());
+          lease.complete(message);
+          return mayContinueGroup(message, outcome);
+        });
+  }
+
+  /**
+   * Whether the next message of the group of a handled message can be processed. A re-queued
+   * message has left the group once its replacement has been published, so its replacement is
+   * sent straight away rather than with the next flush, and the group is only stopped if it could
+   * not be sent, as the message then becomes visible on its queue again.
+   */
+  private CompletableFuture<Boolean> mayContinueGroup(Message message, RoutingOutcome outcome) {
+    if (outcome.isRequeued()) {
+      return sqsBatchBuffer.sendReplacement(message.getReceiptHandle());
+    }
+    return CompletableFuture.completedFuture(outcome.isCompleted());
+  }
 
-      log.info(String.format("Finished message dispatch iteration: %d", i + 1));
+  /**
+   * Keeps a re-queued message which is not due to be sent yet invisible on the
+   * queue until it is, rather than calling Gov.UK Notify while it is still
+   * likely to fail. Each postponement uses up a receive of the message
+   * towards the maxReceiveCount of the redrive policy of its queue, so a
+   * message is only postponed on its first few receives, and is processed
+   * early after that rather than being moved to the dead letter queue.
+   */
+  private boolean postponeIfNotDue(QueueName source, Message message,
+      VisibilityHeartbeat.Lease lease) {
+    long delay = remainingDelayMillis(message);
+    if (delay <= 0 || !mayPostpone(message)) {
+      return false;
+    }
+    lease.postpone(message, delay);
+    messageMetrics.recordOutcome(source, RoutingOutcome.DEFERRED);
+    return true;
+  }
+
+  private boolean postponeIfNotDue(QueueName source, Message message) {
+    long delay = remainingDelayMillis(message);
+    if (delay <= 0 || source == null || !mayPostpone(message)) {
+      return false;
+    }
+    visibilityHeartbeat.postpone(queueUrlRegistry.getQueueUrl(source), message, delay);
+    messageMetrics.recordOutcome(source, RoutingOutcome.DEFERRED);
+    return true;
+  }
+
+  /**
+   * Keeps a message whose email is still being sent by another thread invisible for a while, as
+   * that send can still fail and the message must not be lost with it. A message received from
+   * an unknown queue is left to become visible once its visibility timeout expires.
+   */
+  private boolean postponeIfInProgress(QueueName source, Message message,
+      RoutingOutcome outcome) {
+    if (outcome != RoutingOutcome.IN_PROGRESS) {
+      return false;
+    }
+    if (source != null) {
+      visibilityHeartbeat.postpone(queueUrlRegistry.getQueueUrl(source), message,
+          inProgressDelayMillis);
+    }
+    return true;
+  }
+
+  private boolean mayPostpone(Message message) {
+    String receiveCount = message.getAttributes().get(APPROXIMATE_RECEIVE_COUNT);
+    try {
+      return receiveCount == null || Integer.parseInt(receiveCount) <= maxPostponedReceives;
+    } catch (NumberFormatException e) {
+      return true;
+    }
+  }
+
+  private static long remainingDelayMillis(Message message) {
+    MessageAttributeValue notBefore =
+        message.getMessageAttributes().get(MessagingClient.NOT_BEFORE_ATTRIBUTE);
+    if (notBefore == null || notBefore.getStringValue() == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(notBefore.getStringValue()) - System.currentTimeMillis();
+    } catch (NumberFormatException e) {
+      return 0;
     }
   }
 
-  private List<Message> getQueueMessageByQueueUrl(String queueName) {
+  private RoutingOutcome handleReceivedMessage(QueueName source, Message message,
+      Deadline deadline) {
+    log.info("Processing message with ID: {}", message.getMessageId());
+
+    RoutingOutcome outcome;
+    try {
+      EmailMessage emailMessage = emailMessageReader.read(message);
+      emailMessageValidator.validate(emailMessage);
+      outcome = messagingClient.handleMessage(emailMessage, deadline);
+    } catch (IOException | InstantiationException e) {
+      outcome = sendToDeadLetterQueue(message, e);
+    }
+    messageMetrics.recordOutcome(source, outcome);
+    return outcome;
+  }
 
-    String envQueueName = messagingClient.getEnvQueueName(queueName);
-    log.info("Getting messages from queue url: {}", envQueueName);
+  private CompletableFuture<RoutingOutcome> handleReceivedMessageAsync(QueueName source,
+      Message message, Deadline deadline) {
+    log.info("Processing message with ID: {}", message.getMessageId());
 
-    GetQueueUrlResult getQueueUrlResult = amazonSqs.getQueueUrl(envQueueName);
-    this.queueUrl = getQueueUrlResult.getQueueUrl();
+    EmailMessage emailMessage;
+    try {
+      emailMessage = emailMessageReader.read(message);
+      emailMessageValidator.validate(emailMessage);
+    } catch (IOException e) {
+      RoutingOutcome outcome = sendToDeadLetterQueue(message, e);
+      messageMetrics.recordOutcome(source, outcome);
+      return CompletableFuture.completedFuture(outcome);
+    }
+    return messagingClient.handleMessageAsync(emailMessage, deadline)
+        .handle((outcome, error) -> {
+          Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+          RoutingOutcome routed = outcome;
+          if (cause instanceof IOException || cause instanceof InstantiationException) {
+            routed = sendToDeadLetterQueue(message, cause);
+          } else if (cause != null) {
+            Throwables.throwIfUnchecked(cause);
+            throw new CompletionException(cause);
+          }
+          messageMetrics.recordOutcome(source, routed);
+          return routed;
+        });
+  }
+
+  private RoutingOutcome sendToDeadLetterQueue(Message message, Throwable cause) {
+    log.error("Failed to process message with id: {}: {}",
+        message.getMessageId(), cause.getMessage());
+    SendMessageRequest request =
+        messagingClient.createSendMessageRequest(message.getBody());
+    MessageAttributeValue envelope =
+        message.getMessageAttributes().get(MessagingClient.ENVELOPE_ATTRIBUTE);
+    if (envelope != null) {
+      // the body stays readable once the message is moved back from the DLQ
+      request.addMessageAttributesEntry(MessagingClient.ENVELOPE_ATTRIBUTE, envelope);
+    }
+    messagingClient.publishMessage(QueueName.DLQ, request, message.getReceiptHandle());
+    return RoutingOutcome.DLQ;
+  }
+
+  private static String messageGroupId(Message message) {
+    return message.getAttributes().get(MESSAGE_GROUP_ID);
+  }
+
+  private List<Message> getQueueMessageByQueueUrl(String queueUrl) {
+    log.info("Getting messages from queue url: {}", queueUrl);
 
     ReceiveMessageRequest messageRequest =
-        new ReceiveMessageRequest(this.queueUrl)
+        new ReceiveMessageRequest(queueUrl)
             .withWaitTimeSeconds(sqsRequestWaitTime)
             .withMaxNumberOfMessages(messageBatchRate)
-            .withAttributeNames("MessageGroupId");
+            .withAttributeNames(MESSAGE_GROUP_ID, APPROXIMATE_RECEIVE_COUNT)
+            .withMessageAttributeNames(MessagingClient.REQUEUE_ATTEMPT_ATTRIBUTE,
+                MessagingClient.NOT_BEFORE_ATTRIBUTE, MessagingClient.ENVELOPE_ATTRIBUTE);
 
     List<Message> messages =
         amazonSqs.receiveMessage(messageRequest).getMessages();
@@ -100,4 +596,8 @@ public class MessageHandlingService {
     return messages;
   }
 
+  @PreDestroy
+  void shutdown() {
+    receiveExecutor.shutdown();
+  }
 }
@@ -0,0 +1,181 @@
+package uk.gov.caz.notify.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.repository.NotifyRateLimiter;
+
+/**
+ * Decides which queue is received from next when all queues are drained in one invocation, so
+ * that the queues share the Gov.UK Notify rate limit rather than competing for it blindly. The
+ * new queue is received from whenever it has messages, and the queues holding retries only use
+ * the rate budget it leaves spare. Queues are then picked with smooth weighted round robin,
+ * with the configured weight of each queue scaled by the logarithm of its sampled backlog, so
+ * that a large backlog gets more turns without starving the other queues.
+ */
+@Component
+public class QueueScheduler {
+
+  /**
+   * The queues which can be drained by the scheduler, in order of priority.
+   */
+  public static final List<QueueName> SCHEDULED_QUEUES = Collections.unmodifiableList(
+      Arrays.asList(QueueName.NEW, QueueName.REQUEST_LIMIT, QueueName.SERVICE_ERROR,
+          QueueName.SERVICE_DOWN));
+
+  private final NotifyRateLimiter rateLimiter;
+
+  private final int batchSize;
+
+  private final Map<QueueName, Integer> weights = new EnumMap<>(QueueName.class);
+
+  private final boolean newQueueEventSource;
+
+  private final List<QueueName> scheduledQueues;
+
+  /**
+   * Creates the scheduler.
+   *
+   * @param rateLimiter the rate limiter the spare budget is read from
+   * @param batchSize the maximum number of messages received from a queue at a time
+   * @param newWeight relative share of the receives of the new queue
+   * @param requestLimitWeight relative share of the receives of the request limit queue
+   * @param serviceErrorWeight relative share of the receives of the service error queue
+   * @param serviceDownWeight relative share of the receives of the service down queue
+   * @param newQueueEventSource whether the new queue is consumed through its SQS event source
+   *     rather than polled
+   */
+  public QueueScheduler(NotifyRateLimiter rateLimiter,
+      @Value("${application.message-batch-rate}") int batchSize,
+      @Value("${application.queue-scheduler.weights.new}") int newWeight,
+      @Value("${application.queue-scheduler.weights.request-limit}") int requestLimitWeight,
+      @Value("${application.queue-scheduler.weights.service-error}") int serviceErrorWeight,
+      @Value("${application.queue-scheduler.weights.service-down}") int serviceDownWeight,
+      @Value("${application.queue-scheduler.new-queue-event-source}")
+          boolean newQueueEventSource) {
+    this.rateLimiter = rateLimiter;
+    this.batchSize = Math.max(1, batchSize);
+    this.weights.put(QueueName.NEW, Math.max(1, newWeight));
+    this.weights.put(QueueName.REQUEST_LIMIT, Math.max(1, requestLimitWeight));
+    this.weights.put(QueueName.SERVICE_ERROR, Math.max(1, serviceErrorWeight));
+    this.weights.put(QueueName.SERVICE_DOWN, Math.max(1, serviceDownWeight));
+    this.newQueueEventSource = newQueueEventSource;
+    List<QueueName> queues = new ArrayList<>(SCHEDULED_QUEUES);
+    if (newQueueEventSource) {
+      queues.remove(QueueName.NEW);
+    }
+    this.scheduledQueues = Collections.unmodifiableList(queues);
+  }
+
+  /**
+   * Returns the queues drained by the scheduler, in order of priority. The new queue is left out
+   * when it is consumed through its SQS event source, so that two consumers do not compete for
+   * its message groups.
+   *
+   * @return the scheduled queues
+   */
+  public List<QueueName> getScheduledQueues() {
+    return scheduledQueues;
+  }
+
+  /**
+   * Whether a queue is consumed through its SQS event source, and must not be polled.
+   *
+   * @param queue the queue
+   * @return true if the queue is consumed through its event source
+   */
+  public boolean isConsumedByEventSource(QueueName queue) {
+    return newQueueEventSource && queue == QueueName.NEW;
+  }
+
+  /**
+   * Starts a schedule for draining the queues.
+   *
+   * @param backlog the approximate number of messages on each scheduled queue
+   * @return the schedule, to be used by a single invocation
+   */
+  public Schedule schedule(Map<QueueName, Long> backlog) {
+    return new Schedule(backlog);
+  }
+
+  /**
+   * The order in which the queues are received from during one invocation.
+   */
+  public final class Schedule {
+
+    private final Map<QueueName, Long> backlog = new EnumMap<>(QueueName.class);
+
+    private final Map<QueueName, Long> currentWeights = new EnumMap<>(QueueName.class);
+
+    private Schedule(Map<QueueName, Long> sampledBacklog) {
+      for (QueueName queue : scheduledQueues) {
+        backlog.put(queue, Math.max(0, sampledBacklog.getOrDefault(queue, 0L)));
+        currentWeights.put(queue, 0L);
+      }
+    }
+
+    /**
+     * Returns the queue to receive from next.
+     *
+     * @return the queue, or null if no queue is known to have messages
+     */
+    public QueueName next() {
+      if (backlog.getOrDefault(QueueName.NEW, 0L) > 0 && !hasSpareBudget()) {
+        return QueueName.NEW;
+      }
+
+      QueueName selected = null;
+      long totalWeight = 0;
+      for (QueueName queue : scheduledQueues) {
+        long weight = effectiveWeight(queue);
+        if (weight == 0) {
+          continue;
+        }
+        totalWeight += weight;
+        long current = currentWeights.get(queue) + weight;
+        currentWeights.put(queue, current);
+        if (selected == null || current > currentWeights.get(selected)) {
+          selected = queue;
+        }
+      }
+      if (selected != null) {
+        currentWeights.put(selected, currentWeights.get(selected) - totalWeight);
+      }
+      return selected;
+    }
+
+    /**
+     * Updates the backlog of a queue with the result of a receive. A queue which returned no
+     * messages is not received from again, while one which returned a full batch is assumed to
+     * have more messages even if its sampled backlog has been used up.
+     *
+     * @param queue the queue which was received from
+     * @param received the number of messages received
+     */
+    public void received(QueueName queue, int received) {
+      long remaining = Math.max(0, backlog.get(queue) - received);
+      if (received >= batchSize) {
+        remaining = Math.max(1, remaining);
+      } else if (received == 0) {
+        remaining = 0;
+      }
+      backlog.put(queue, remaining);
+    }
+
+    private boolean hasSpareBudget() {
+      // the bucket holds more than the batch the new queue is about to use
+      return rateLimiter.getAvailablePermits() >= 2 * batchSize;
+    }
+
+    private long effectiveWeight(QueueName queue) {
+      long batches = (backlog.get(queue) + batchSize - 1) / batchSize;
+      return weights.get(queue) * (Long.SIZE - Long.numberOfLeadingZeros(batches));
+    }
+  }
+}
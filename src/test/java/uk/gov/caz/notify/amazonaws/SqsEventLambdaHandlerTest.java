@@ -0,0 +1,128 @@
+package uk.gov.caz.notify.amazonaws;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.times;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.MessageAttribute;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+import com.amazonaws.services.sqs.model.Message;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.dto.SqsBatchResponse;
+import uk.gov.caz.notify.dto.SqsBatchResponse.BatchItemFailure;
+import uk.gov.caz.notify.messaging.MessagingClient;
+import uk.gov.caz.notify.messaging.QueueUrlRegistry;
+import uk.gov.caz.notify.metrics.EmfMetricsPublisher;
+import uk.gov.caz.notify.service.MessageHandlingService;
+
+@ExtendWith(MockitoExtension.class)
+public class SqsEventLambdaHandlerTest {
+
+  @Mock
+  MessageHandlingService messageHandlingService;
+
+  @Mock
+  QueueUrlRegistry queueUrlRegistry;
+
+  @Mock
+  EmfMetricsPublisher metricsPublisher;
+
+  @Mock
+  Context context;
+
+  SqsEventLambdaHandler handler;
+
+  @BeforeEach
+  void init() {
+    handler = new SqsEventLambdaHandler(messageHandlingService, queueUrlRegistry,
+        metricsPublisher);
+    Mockito.when(context.getRemainingTimeInMillis()).thenReturn(60000);
+    Mockito.when(queueUrlRegistry.getQueueName("testQueue.fifo"))
+        .thenReturn(QueueName.REQUEST_LIMIT);
+  }
+
+  @Test
+  void shouldReportOnlyMessagesWhichWereNotProcessed() {
+    Mockito.when(messageHandlingService.processMessages(Mockito.eq(QueueName.REQUEST_LIMIT),
+        Mockito.anyList(), Mockito.any(Deadline.class)))
+        .thenReturn(new HashSet<>(Arrays.asList("id2", "id3")));
+
+    SqsBatchResponse response =
+        handler.handleRequest(event(record("id1"), record("id2"), record("id3")), context);
+
+    assertThat(response.getBatchItemFailures()).extracting(BatchItemFailure::getItemIdentifier)
+        .containsExactlyInAnyOrder("id2", "id3");
+    Mockito.verify(metricsPublisher, times(1)).publish();
+  }
+
+  @Test
+  void shouldPassRecordsOnAsReceivedMessages() {
+    SQSMessage record = record("id1");
+    record.setMessageAttributes(Collections.singletonMap(MessagingClient.NOT_BEFORE_ATTRIBUTE,
+        numberAttribute("1000")));
+    Mockito.when(messageHandlingService.processMessages(Mockito.eq(QueueName.REQUEST_LIMIT),
+        Mockito.anyList(), Mockito.any(Deadline.class))).thenReturn(Collections.emptySet());
+
+    SqsBatchResponse response = handler.handleRequest(event(record), context);
+
+    ArgumentCaptor<List<Message>> captor = ArgumentCaptor.forClass(List.class);
+    Mockito.verify(messageHandlingService, times(1)).processMessages(
+        Mockito.eq(QueueName.REQUEST_LIMIT), captor.capture(), Mockito.any(Deadline.class));
+    Message message = captor.getValue().get(0);
+    assertThat(message.getMessageId()).isEqualTo("id1");
+    assertThat(message.getReceiptHandle()).isEqualTo("handle-id1");
+    assertThat(message.getAttributes()).containsEntry("MessageGroupId", "testGroup");
+    assertThat(message.getMessageAttributes().get(MessagingClient.NOT_BEFORE_ATTRIBUTE)
+        .getStringValue()).isEqualTo("1000");
+    assertThat(response.getBatchItemFailures()).isEmpty();
+  }
+
+  @Test
+  void shouldPublishMetricsWhenProcessingFails() {
+    Mockito.when(messageHandlingService.processMessages(Mockito.eq(QueueName.REQUEST_LIMIT),
+        Mockito.anyList(), Mockito.any(Deadline.class)))
+        .thenThrow(new IllegalStateException("Error thrown successfully."));
+
+    assertThatThrownBy(() -> handler.handleRequest(event(record("id1")), context))
+        .isInstanceOf(IllegalStateException.class);
+
+    Mockito.verify(metricsPublisher, times(1)).publish();
+  }
+
+  private static SQSEvent event(SQSMessage... records) {
+    SQSEvent event = new SQSEvent();
+    event.setRecords(Arrays.asList(records));
+    return event;
+  }
+
+  private static SQSMessage record(String messageId) {
+    SQSMessage record = new SQSMessage();
+    record.setMessageId(messageId);
+    record.setReceiptHandle("handle-" + messageId);
+    record.setBody("testBody");
+    record.setEventSourceArn("arn:aws:sqs:eu-west-2:000000000000:testQueue.fifo");
+    record.setAttributes(Collections.singletonMap("MessageGroupId", "testGroup"));
+    return record;
+  }
+
+  private static MessageAttribute numberAttribute(String value) {
+    MessageAttribute attribute = new MessageAttribute();
+    attribute.setDataType("Number");
+    attribute.setStringValue(value);
+    return attribute;
+  }
+}
@@ -0,0 +1,51 @@
+package uk.gov.caz.notify.configuration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import uk.gov.caz.notify.messaging.QueueUrlRegistry;
+import uk.gov.caz.notify.messaging.SqsMicroBatcher;
+import uk.gov.caz.notify.metrics.EmfMetricsPublisher;
+import uk.gov.caz.notify.repository.NotifyCircuitBreakerHealthIndicator;
+import uk.gov.caz.notify.service.BulkEmailService;
+import uk.gov.caz.notify.service.EmailQueueService;
+import uk.gov.caz.notify.service.MessageHandlingService;
+
+public class QueueConsumerConfigurationTest {
+
+  ConfigurableApplicationContext context;
+
+  @BeforeEach
+  void init() {
+    context = new SpringApplicationBuilder(QueueConsumerConfiguration.class)
+        .web(WebApplicationType.NONE)
+        .profiles(QueueConsumerConfiguration.PROFILE)
+        .logStartupInfo(false)
+        .run("--aws.secretsmanager.enabled=false");
+  }
+
+  @AfterEach
+  void close() {
+    context.close();
+  }
+
+  @Test
+  void shouldCreateBeansOfQueueConsumers() {
+    assertThat(context.getBean(MessageHandlingService.class)).isNotNull();
+    assertThat(context.getBean(QueueUrlRegistry.class)).isNotNull();
+    assertThat(context.getBean(EmfMetricsPublisher.class)).isNotNull();
+  }
+
+  @Test
+  void shouldNotCreateBeansOnlyUsedByTheApi() {
+    assertThat(context.getBeanNamesForType(BulkEmailService.class)).isEmpty();
+    assertThat(context.getBeanNamesForType(EmailQueueService.class)).isEmpty();
+    assertThat(context.getBeanNamesForType(SqsMicroBatcher.class)).isEmpty();
+    assertThat(context.getBeanNamesForType(NotifyCircuitBreakerHealthIndicator.class)).isEmpty();
+  }
+}
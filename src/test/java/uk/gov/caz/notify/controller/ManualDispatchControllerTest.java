@@ -4,20 +4,39 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.anyString;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.serverless.proxy.RequestReader;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.fasterxml.jackson.core.JsonParseException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import uk.gov.caz.notify.domain.Deadline;
 import uk.gov.caz.notify.dto.MessageConsumerRequest;
+import uk.gov.caz.notify.dto.QueueEmailResponse;
 import uk.gov.caz.notify.dto.SendEmailRequest;
+import uk.gov.caz.notify.messaging.InvalidEmailMessageException;
 import uk.gov.caz.notify.repository.GovUkNotifyWrapper;
+import uk.gov.caz.notify.service.BulkEmailService;
+import uk.gov.caz.notify.service.EmailQueueService;
 import uk.gov.caz.notify.service.MessageHandlingService;
 import uk.gov.service.notify.NotificationClientException;
 import uk.gov.service.notify.SendEmailResponse;
@@ -34,6 +53,12 @@ class ManualDispatchControllerTest {
   @Mock
   MessageHandlingService messageHandlingService;
 
+  @Mock
+  BulkEmailService bulkEmailService;
+
+  @Mock
+  EmailQueueService emailQueueService;
+
   SendEmailRequest sendEmailRequest;
   SendEmailResponse sendEmailResponse;
 
@@ -100,4 +125,114 @@ class ManualDispatchControllerTest {
 
     assertThat(response.getStatusCodeValue()).isEqualTo(200);
   }
-}
\ No newline at end of file
+
+  @Test
+  void canSendEmailsInBulk() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.setContent("[]".getBytes());
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    Mockito.when(bulkEmailService.sendEmails(Mockito.any(InputStream.class),
+        Mockito.any(OutputStream.class), Mockito.any(Deadline.class))).thenAnswer(invocation -> {
+          OutputStream output = invocation.getArgument(1);
+          output.write("[]".getBytes());
+          return 0;
+        });
+
+    manualDispatchController.sendEmails(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getContentType()).isEqualTo(MediaType.APPLICATION_JSON_UTF8_VALUE);
+    assertThat(response.getContentAsString()).isEqualTo("[]");
+  }
+
+  @Test
+  void canBoundBulkSendByRemainingTimeOfLambdaInvocation() throws IOException {
+    Context context = Mockito.mock(Context.class);
+    Mockito.when(context.getRemainingTimeInMillis()).thenReturn(10000);
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.setAttribute(RequestReader.LAMBDA_CONTEXT_PROPERTY, context);
+
+    manualDispatchController.sendEmails(request, new MockHttpServletResponse());
+
+    ArgumentCaptor<Deadline> captor = ArgumentCaptor.forClass(Deadline.class);
+    Mockito.verify(bulkEmailService).sendEmails(Mockito.any(InputStream.class),
+        Mockito.any(OutputStream.class), captor.capture());
+    assertThat(captor.getValue().isBounded()).isTrue();
+    assertThat(captor.getValue().remainingMillis()).isBetween(1L, 10000L);
+  }
+
+  @Test
+  void canGetBadRequestErrorForMalformedBulkSend() throws IOException {
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    Mockito.when(bulkEmailService.sendEmails(Mockito.any(InputStream.class),
+        Mockito.any(OutputStream.class), Mockito.any(Deadline.class)))
+        .thenThrow(new JsonParseException(null, "Error thrown successfully."));
+
+    manualDispatchController.sendEmails(new MockHttpServletRequest(), response);
+
+    assertThat(response.getStatus()).isEqualTo(400);
+  }
+
+  @Test
+  void canQueueEmail() throws IOException {
+    Mockito.when(emailQueueService.queueEmails(Collections.singletonList(sendEmailRequest)))
+        .thenReturn(CompletableFuture.completedFuture(Collections.singletonList("id")));
+
+    ResponseEntity<QueueEmailResponse> response =
+        manualDispatchController.queueEmail(sendEmailRequest).join();
+
+    assertThat(response.getStatusCodeValue()).isEqualTo(202);
+    assertThat(response.getBody().getMessageIds()).containsExactly("id");
+  }
+
+  @Test
+  void canGetBadRequestErrorForInvalidQueuedEmails() throws IOException {
+    Mockito.when(emailQueueService.queueEmails(Mockito.anyList()))
+        .thenThrow(new InvalidEmailMessageException(
+            Collections.singletonList("request 1: email address is not valid")));
+
+    ResponseEntity<QueueEmailResponse> response = manualDispatchController
+        .queueEmails(Arrays.asList(sendEmailRequest, new SendEmailRequest())).join();
+
+    assertThat(response.getStatusCodeValue()).isEqualTo(400);
+    assertThat(response.getBody().getErrors())
+        .containsExactly("request 1: email address is not valid");
+  }
+
+  @Test
+  void canGetIdsOfQueuedEmailsWhenOthersCouldNotBeQueued() throws IOException {
+    Mockito.when(emailQueueService.queueEmails(Mockito.anyList()))
+        .thenReturn(CompletableFuture.completedFuture(Arrays.asList("id", null)));
+
+    ResponseEntity<QueueEmailResponse> response = manualDispatchController
+        .queueEmails(Arrays.asList(sendEmailRequest, sendEmailRequest)).join();
+
+    assertThat(response.getStatusCodeValue()).isEqualTo(207);
+    assertThat(response.getBody().getMessageIds()).containsExactly("id", null);
+    assertThat(response.getBody().getErrors()).containsExactly("request 1: could not be queued");
+  }
+
+  @Test
+  void canGetServiceUnavailableErrorWhenNoEmailCouldBeQueued() throws IOException {
+    Mockito.when(emailQueueService.queueEmails(Mockito.anyList()))
+        .thenReturn(CompletableFuture.completedFuture(Collections.singletonList(null)));
+
+    ResponseEntity<QueueEmailResponse> response =
+        manualDispatchController.queueEmail(sendEmailRequest).join();
+
+    assertThat(response.getStatusCodeValue()).isEqualTo(503);
+    assertThat(response.getBody().getErrors()).containsExactly("could not be queued");
+  }
+
+  @Test
+  void canGetServiceUnavailableErrorWhenQueueFails() throws IOException {
+    CompletableFuture<List<String>> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new AmazonServiceException("Error thrown successfully."));
+    Mockito.when(emailQueueService.queueEmails(Mockito.anyList())).thenReturn(failed);
+
+    ResponseEntity<QueueEmailResponse> response =
+        manualDispatchController.queueEmail(sendEmailRequest).join();
+
+    assertThat(response.getStatusCodeValue()).isEqualTo(503);
+  }
+}
@@ -0,0 +1,45 @@
+package uk.gov.caz.notify.domain;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+public class DeadlineTest {
+
+  @Test
+  void unboundedDeadlineNeverExpires() {
+    Deadline deadline = Deadline.none().minus(1000);
+
+    assertThat(deadline.isBounded()).isFalse();
+    assertThat(deadline.isExpired()).isFalse();
+    assertThat(deadline.remainingMillis()).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test
+  void boundedDeadlineReportsRemainingTime() {
+    Deadline deadline = Deadline.in(60000);
+
+    assertThat(deadline.isBounded()).isTrue();
+    assertThat(deadline.isExpired()).isFalse();
+    assertThat(deadline.remainingMillis()).isBetween(50000L, 60000L);
+  }
+
+  @Test
+  void deadlineWithMarginLargerThanRemainingTimeIsExpired() {
+    Deadline deadline = Deadline.in(1000).minus(2000);
+
+    assertThat(deadline.isExpired()).isTrue();
+    assertThat(deadline.remainingMillis()).isZero();
+  }
+
+  @Test
+  void earliestDeadlineIsTheOneExpiringFirst() {
+    Deadline early = Deadline.in(1000);
+    Deadline late = Deadline.in(60000);
+
+    assertThat(early.earliest(late)).isSameAs(early);
+    assertThat(late.earliest(early)).isSameAs(early);
+    assertThat(Deadline.none().earliest(late)).isSameAs(late);
+    assertThat(late.earliest(Deadline.none())).isSameAs(late);
+  }
+}
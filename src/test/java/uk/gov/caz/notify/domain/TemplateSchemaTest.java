@@ -0,0 +1,32 @@
+package uk.gov.caz.notify.domain;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.jupiter.api.Test;
+
+public class TemplateSchemaTest {
+
+  TemplateSchema schema = TemplateSchema.of(new HashSet<>(Arrays.asList("name", "Amount")));
+
+  @Test
+  void matchesPersonalisationRegardlessOfCase() {
+    assertThat(schema.missingPersonalisation(new HashSet<>(Arrays.asList("NAME", "amount"))))
+        .isEmpty();
+  }
+
+  @Test
+  void reportsMissingPersonalisation() {
+    assertThat(schema.missingPersonalisation(Collections.singleton("name")))
+        .containsExactly("amount");
+    assertThat(schema.missingPersonalisation(null)).containsOnly("name", "amount");
+  }
+
+  @Test
+  void requiresNothingOfTemplatesWithoutPlaceholders() {
+    assertThat(TemplateSchema.of(Collections.emptySet()).missingPersonalisation(null))
+        .isEmpty();
+  }
+}
@@ -0,0 +1,171 @@
+package uk.gov.caz.notify.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import uk.gov.caz.notify.domain.MessageEnvelope;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.dto.SendEmailRequest;
+
+public class EmailMessageReaderTest {
+
+  EmailMessageReader emailMessageReader = new EmailMessageReader();
+
+  @Test
+  void canReadPersonalisationGivenAsString() throws IOException {
+    String body = new ObjectMapper().writeValueAsString(new SendEmailRequest("testTemplate",
+        "test@test.com", "{\"amount\": \"10.00\", \"count\": 2}", "testReference"));
+
+    EmailMessage emailMessage = emailMessageReader.read(body);
+
+    assertThat(emailMessage.getTemplateId()).isEqualTo("testTemplate");
+    assertThat(emailMessage.getEmailAddress()).isEqualTo("test@test.com");
+    assertThat(emailMessage.getReference()).isEqualTo("testReference");
+    assertThat(emailMessage.getPersonalisation()).containsEntry("amount", "10.00")
+        .containsEntry("count", 2);
+    assertThat(emailMessage.getRawBody()).isEqualTo(body);
+  }
+
+  @Test
+  void canReadPersonalisationGivenAsObject() throws IOException {
+    String body = "{\"templateId\": \"testTemplate\", \"emailAddress\": \"test@test.com\","
+        + " \"personalisation\": {\"amount\": \"10.00\"}, \"reference\": null}";
+
+    EmailMessage emailMessage = emailMessageReader.read(body);
+
+    assertThat(emailMessage.getPersonalisation()).containsEntry("amount", "10.00");
+    assertThat(emailMessage.getReference()).isNull();
+  }
+
+  @Test
+  void canReadIdAndMessageGroupOfReceivedMessage() throws IOException {
+    Message message = new Message().withMessageId("testMessageId")
+        .withBody("{\"templateId\": \"testTemplate\"}")
+        .addAttributesEntry("MessageGroupId", "testGroupId");
+
+    EmailMessage emailMessage = emailMessageReader.read(message);
+
+    assertThat(emailMessage.getMessageId()).isEqualTo("testMessageId");
+    assertThat(emailMessage.getMessageGroupId()).isEqualTo("testGroupId");
+    assertThat(emailMessage.getRawBody()).isEqualTo(message.getBody());
+  }
+
+  @Test
+  void canReadRequeueAttemptOfReceivedMessage() throws IOException {
+    Message message = new Message().withBody("{\"templateId\": \"testTemplate\"}")
+        .addMessageAttributesEntry(MessagingClient.REQUEUE_ATTEMPT_ATTRIBUTE,
+            new MessageAttributeValue().withDataType("Number").withStringValue("3"));
+
+    assertThat(emailMessageReader.read(message).getRequeueAttempt()).isEqualTo(3);
+    assertThat(emailMessageReader.read(new Message().withBody(message.getBody()))
+        .getRequeueAttempt()).isZero();
+  }
+
+  @Test
+  void canReadMessageInCompactEnvelope() throws IOException {
+    EmailMessage emailMessage = EmailMessage.builder().templateId("testTemplate")
+        .emailAddress("test@test.com").reference("testReference")
+        .personalisation(Collections.singletonMap("items", Arrays.asList("one", "two")))
+        .build();
+    String body = new EmailMessageWriter(new ObjectMapper(), true, 0).write(emailMessage)
+        .getBody();
+
+    EmailMessage read = emailMessageReader.read(new Message().withBody(body)
+        .addMessageAttributesEntry(MessagingClient.ENVELOPE_ATTRIBUTE, envelope("compact-v1")));
+
+    assertThat(read.getTemplateId()).isEqualTo("testTemplate");
+    assertThat(read.getEmailAddress()).isEqualTo("test@test.com");
+    assertThat(read.getReference()).isEqualTo("testReference");
+    assertThat(read.getPersonalisation()).isEqualTo(emailMessage.getPersonalisation());
+    assertThat(read.getRawBody()).isEqualTo(body);
+    assertThat(read.getEnvelope()).isEqualTo(MessageEnvelope.COMPACT_V1);
+  }
+
+  @Test
+  void shouldFailOnUnknownEnvelope() {
+    Message message = new Message().withBody("{\"templateId\": \"testTemplate\"}")
+        .addMessageAttributesEntry(MessagingClient.ENVELOPE_ATTRIBUTE, envelope("compact-v9"));
+
+    assertThrows(IOException.class, () -> emailMessageReader.read(message));
+  }
+
+  @Test
+  void shouldFailOnBadlyFormedCompactBody() {
+    Message notBase64 = new Message().withBody("{\"templateId\": \"testTemplate\"}")
+        .addMessageAttributesEntry(MessagingClient.ENVELOPE_ATTRIBUTE, envelope("compact-v1"));
+    Message notCompressed = new Message().withBody("dGVzdA==")
+        .addMessageAttributesEntry(MessagingClient.ENVELOPE_ATTRIBUTE, envelope("compact-v1"));
+
+    assertThrows(IOException.class, () -> emailMessageReader.read(notBase64));
+    assertThrows(IOException.class, () -> emailMessageReader.read(notCompressed));
+  }
+
+  @Test
+  void canReadWrittenEmailMessage() throws IOException {
+    EmailMessage emailMessage = emailMessageReader.read("{\"templateId\": \"testTemplate\","
+        + " \"personalisation\": \"{\\\"amount\\\": \\\"10.00\\\"}\"}");
+
+    String written = new ObjectMapper().writeValueAsString(emailMessage);
+
+    assertThat(written).doesNotContain("rawBody");
+    assertThat(emailMessageReader.read(written).getPersonalisation())
+        .isEqualTo(emailMessage.getPersonalisation());
+  }
+
+  @Test
+  void shouldFailOnBadlyFormedPersonalisation() {
+    String body = "{\"templateId\": \"testTemplate\", \"personalisation\": \"{\"}";
+
+    assertThrows(IOException.class, () -> emailMessageReader.read(body));
+  }
+
+  @Test
+  void shouldFailOnUnrecognisedField() {
+    String body = "{\"templateId\": \"testTemplate\", \"unknown\": \"value\"}";
+
+    assertThrows(IOException.class, () -> emailMessageReader.read(body));
+  }
+
+  @Test
+  void shouldFailOnNonObjectBody() {
+    assertThrows(IOException.class, () -> emailMessageReader.read(""));
+    assertThrows(IOException.class, () -> emailMessageReader.read("[]"));
+    assertThrows(IOException.class,
+        () -> emailMessageReader.read("{\"templateId\": {\"nested\": true}}"));
+  }
+
+  @Test
+  void canReadElementsOfArrayAfterBadlyFormedOnes() throws IOException {
+    String requests = "[{\"templateId\": \"first\", \"unknown\": {\"a\": [1]},"
+        + " \"reference\": \"skipped\"}, 2, {\"templateId\": \"last\","
+        + " \"personalisation\": {\"amount\": \"10.00\"}}]";
+    JsonParser parser = new ObjectMapper().getFactory().createParser(requests);
+    parser.nextToken();
+
+    parser.nextToken();
+    assertThrows(JsonMappingException.class, () -> emailMessageReader.readElement(parser));
+    parser.nextToken();
+    assertThrows(JsonMappingException.class, () -> emailMessageReader.readElement(parser));
+    parser.nextToken();
+    EmailMessage emailMessage = emailMessageReader.readElement(parser);
+
+    assertThat(emailMessage.getTemplateId()).isEqualTo("last");
+    assertThat(emailMessage.getPersonalisation()).containsEntry("amount", "10.00");
+    assertThat(emailMessage.getRawBody()).isNull();
+    assertThat(parser.nextToken()).isEqualTo(JsonToken.END_ARRAY);
+  }
+
+  private static MessageAttributeValue envelope(String name) {
+    return new MessageAttributeValue().withDataType("String").withStringValue(name);
+  }
+}
@@ -0,0 +1,117 @@
+package uk.gov.caz.notify.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.gov.caz.notify.domain.TemplateSchema;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.repository.TemplateSchemaCache;
+
+@ExtendWith(MockitoExtension.class)
+public class EmailMessageValidatorTest {
+
+  @Mock
+  TemplateSchemaCache templateSchemaCache;
+
+  String templateId = UUID.randomUUID().toString();
+
+  @Test
+  void acceptsRequestWithRequiredPersonalisation() throws InvalidEmailMessageException {
+    Mockito.when(templateSchemaCache.getSchema(templateId))
+        .thenReturn(Optional.of(TemplateSchema.of(Collections.singleton("name"))));
+
+    validator().validate(message("test@notify.com", templateId,
+        Collections.<String, Object>singletonMap("Name", "test")));
+  }
+
+  @Test
+  void acceptsEmailAddressWithInternationalisedDomain() throws InvalidEmailMessageException {
+    Mockito.when(templateSchemaCache.getSchema(templateId))
+        .thenReturn(Optional.of(TemplateSchema.of(Collections.emptySet())));
+
+    for (String emailAddress : new String[] {"test@b\u00fccher.example",
+        "test@\u4f8b\u3048.\u30c6\u30b9\u30c8", "test@xn--bcher-kva.example"}) {
+      validator().validate(message(emailAddress, templateId, null));
+    }
+  }
+
+  @Test
+  void rejectsInvalidEmailAddress() {
+    Mockito.when(templateSchemaCache.getSchema(templateId))
+        .thenReturn(Optional.of(TemplateSchema.of(Collections.emptySet())));
+
+    for (String emailAddress : new String[] {null, "testEmail", "test@notify",
+        "test..user@notify.com", "test user@notify.com", "test@-notify.com"}) {
+      InvalidEmailMessageException e = assertThrows(InvalidEmailMessageException.class,
+          () -> validator().validate(message(emailAddress, templateId, null)));
+      assertThat(e.getMessage()).contains("email address is not valid");
+    }
+  }
+
+  @Test
+  void rejectsTemplateIdWhichIsNotAUuidWithoutFetchingTemplate() {
+    InvalidEmailMessageException e = assertThrows(InvalidEmailMessageException.class,
+        () -> validator().validate(message("test@notify.com", "testTemplate", null)));
+
+    assertThat(e.getMessage()).contains("template ID is not a UUID");
+    Mockito.verifyZeroInteractions(templateSchemaCache);
+  }
+
+  @Test
+  void rejectsTemplateWhichDoesNotExist() {
+    Mockito.when(templateSchemaCache.getSchema(templateId))
+        .thenReturn(Optional.of(TemplateSchema.NOT_FOUND));
+
+    InvalidEmailMessageException e = assertThrows(InvalidEmailMessageException.class,
+        () -> validator().validate(message("test@notify.com", templateId, null)));
+
+    assertThat(e.getMessage()).contains("does not exist");
+  }
+
+  @Test
+  void rejectsMissingPersonalisation() {
+    Mockito.when(templateSchemaCache.getSchema(templateId))
+        .thenReturn(Optional.of(TemplateSchema.of(Collections.singleton("name"))));
+
+    InvalidEmailMessageException e = assertThrows(InvalidEmailMessageException.class,
+        () -> validator().validate(message("test@notify.com", templateId,
+            Collections.<String, Object>singletonMap("amount", "1"))));
+
+    assertThat(e.getMessage()).contains("missing personalisation: name");
+  }
+
+  @Test
+  void skipsPersonalisationCheckWhenTemplateCannotBeFetched()
+      throws InvalidEmailMessageException {
+    Mockito.when(templateSchemaCache.getSchema(templateId)).thenReturn(Optional.empty());
+
+    validator().validate(message("test@notify.com", templateId, null));
+  }
+
+  @Test
+  void acceptsAnyRequestWhenDisabled() throws InvalidEmailMessageException {
+    new EmailMessageValidator(false, templateSchemaCache)
+        .validate(message("testEmail", "testTemplate", null));
+
+    Mockito.verifyZeroInteractions(templateSchemaCache);
+  }
+
+  private EmailMessageValidator validator() {
+    return new EmailMessageValidator(true, templateSchemaCache);
+  }
+
+  private static EmailMessage message(String emailAddress, String templateId,
+      Map<String, Object> personalisation) {
+    return EmailMessage.builder().emailAddress(emailAddress).templateId(templateId)
+        .personalisation(personalisation).build();
+  }
+}
@@ -0,0 +1,68 @@
+package uk.gov.caz.notify.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import uk.gov.caz.notify.domain.MessageEnvelope;
+import uk.gov.caz.notify.dto.EmailMessage;
+
+public class EmailMessageWriterTest {
+
+  EmailMessageWriter emailMessageWriter = new EmailMessageWriter(new ObjectMapper(), true, 200);
+
+  EmailMessage emailMessage = EmailMessage.builder()
+      .templateId("testTemplate")
+      .emailAddress("test@test.com")
+      .personalisation(Collections.singletonMap("amount", "10.00"))
+      .reference("testReference")
+      .build();
+
+  @Test
+  void shouldWriteShortRequestAsJson() throws JsonProcessingException {
+    EmailMessageWriter.EncodedMessage encoded = emailMessageWriter.write(emailMessage);
+
+    assertThat(encoded.getEnvelope()).isEqualTo(MessageEnvelope.JSON);
+    assertThat(encoded.getBody()).startsWith("{").contains("\"personalisation\":{");
+  }
+
+  @Test
+  void shouldWriteLongRequestInSmallerCompactEnvelope() throws JsonProcessingException {
+    EmailMessage longMessage = emailMessage.toBuilder()
+        .personalisation(Collections.singletonMap("body", Strings.repeat("Clean Air Zone ", 50)))
+        .build();
+    String json = new ObjectMapper().writeValueAsString(longMessage);
+
+    EmailMessageWriter.EncodedMessage encoded = emailMessageWriter.write(longMessage);
+
+    assertThat(encoded.getEnvelope()).isEqualTo(MessageEnvelope.COMPACT_V1);
+    assertThat(encoded.getBody()).matches("[A-Za-z0-9+/=]+");
+    assertThat(encoded.getBody().length()).isLessThan(json.length() / 2);
+  }
+
+  @Test
+  void shouldReuseRawBodyInCompactEnvelope() throws JsonProcessingException {
+    EmailMessage received = emailMessage.toBuilder().rawBody("testCompactBody")
+        .envelope(MessageEnvelope.COMPACT_V1).build();
+
+    EmailMessageWriter.EncodedMessage encoded =
+        new EmailMessageWriter(new ObjectMapper(), false, 0).write(received);
+
+    assertThat(encoded.getBody()).isEqualTo("testCompactBody");
+    assertThat(encoded.getEnvelope()).isEqualTo(MessageEnvelope.COMPACT_V1);
+  }
+
+  @Test
+  void shouldWriteJsonWhenCompactEnvelopeIsDisabled() throws JsonProcessingException {
+    EmailMessage received = emailMessage.toBuilder().rawBody(Strings.repeat(" ", 300)).build();
+
+    EmailMessageWriter.EncodedMessage encoded =
+        new EmailMessageWriter(new ObjectMapper(), false, 0).write(received);
+
+    assertThat(encoded.getBody()).isEqualTo(received.getRawBody());
+    assertThat(encoded.getEnvelope()).isEqualTo(MessageEnvelope.JSON);
+  }
+}
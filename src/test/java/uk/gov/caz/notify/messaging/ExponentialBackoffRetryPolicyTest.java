@@ -0,0 +1,83 @@
+package uk.gov.caz.notify.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.QueueName;
+
+public class ExponentialBackoffRetryPolicyTest {
+
+  ExponentialBackoffRetryPolicy retryPolicy =
+      new ExponentialBackoffRetryPolicy(3, 100, 250, 1000, 3, 1000, 3000);
+
+  @ParameterizedTest
+  @CsvSource({"400, DLQ", "403, DLQ", "429, REQUEST_LIMIT", "500, SERVICE_ERROR",
+      "503, SERVICE_DOWN", "418, DLQ", "0, DLQ"})
+  void shouldRouteStatusToFallbackQueue(int status, QueueName queueName) {
+    assertThat(retryPolicy.fallbackQueue(status)).isEqualTo(queueName);
+  }
+
+  @ParameterizedTest
+  @CsvSource({"400", "403"})
+  void shouldNotRetryClientErrors(int status) {
+    assertThat(retryPolicy.delayBeforeRetryMillis(status, 1, 0, 0, Deadline.none()))
+        .isNegative();
+  }
+
+  @Test
+  void shouldBackOffExponentiallyWithJitter() {
+    for (int i = 0; i < 100; i++) {
+      assertThat(retryPolicy.delayBeforeRetryMillis(503, 1, 0, 0, Deadline.none()))
+          .isBetween(0L, 100L);
+      assertThat(retryPolicy.delayBeforeRetryMillis(503, 2, 0, 0, Deadline.none()))
+          .isBetween(0L, 200L);
+      assertThat(retryPolicy.delayBeforeRetryMillis(503, 3, 0, 0, Deadline.none()))
+          .isBetween(0L, 250L);
+    }
+  }
+
+  @Test
+  void shouldStopAfterMaximumRetries() {
+    assertThat(retryPolicy.delayBeforeRetryMillis(500, 4, 0, 0, Deadline.none())).isNegative();
+  }
+
+  @Test
+  void shouldHonourRetryAfter() {
+    assertThat(retryPolicy.delayBeforeRetryMillis(429, 1, 0, 500, Deadline.none()))
+        .isEqualTo(500);
+  }
+
+  @Test
+  void shouldStopWhenMaximumElapsedTimeWouldBeExceeded() {
+    assertThat(retryPolicy.delayBeforeRetryMillis(429, 1, 600, 500, Deadline.none()))
+        .isNegative();
+  }
+
+  @Test
+  void shouldStopWhenDeadlineWouldBeExceeded() {
+    assertThat(retryPolicy.delayBeforeRetryMillis(429, 1, 0, 500, Deadline.in(100)))
+        .isNegative();
+  }
+
+  @Test
+  void shouldDelayRequeuedMessagesExponentiallyWithJitter() {
+    for (int i = 0; i < 100; i++) {
+      assertThat(retryPolicy.requeueDelayMillis(1, 0)).isBetween(500L, 1000L);
+      assertThat(retryPolicy.requeueDelayMillis(2, 0)).isBetween(1000L, 2000L);
+      assertThat(retryPolicy.requeueDelayMillis(3, 0)).isBetween(1500L, 3000L);
+    }
+  }
+
+  @Test
+  void shouldDelayRequeuedMessagesAtLeastUntilRetryAfter() {
+    assertThat(retryPolicy.requeueDelayMillis(1, 5000)).isEqualTo(5000);
+  }
+
+  @Test
+  void shouldSendMessageToDlqAfterMaximumRequeueAttempts() {
+    assertThat(retryPolicy.requeueDelayMillis(4, 0)).isNegative();
+  }
+}
@@ -0,0 +1,144 @@
+package uk.gov.caz.notify.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.messaging.IdempotencyCache.Claim;
+
+@ExtendWith(MockitoExtension.class)
+public class IdempotencyCacheTest {
+
+  @Mock
+  IdempotencyStore store;
+
+  SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  EmailMessage emailMessage = EmailMessage.builder().templateId("testTemplate")
+      .emailAddress("test@test.com").reference("testReference").build();
+
+  @Test
+  void shouldSkipEmailWhichHasBeenSent() {
+    IdempotencyCache cache = new IdempotencyCache(null, true, 100, 60, meterRegistry);
+
+    assertThat(cache.tryClaim(emailMessage)).isEqualTo(Claim.CLAIMED);
+    cache.complete(emailMessage, true);
+
+    assertThat(cache.tryClaim(emailMessage.toBuilder().messageId("redelivered").build()))
+        .isEqualTo(Claim.SENT);
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldReportEmailWhichIsBeingSentWithoutCountingHit() {
+    IdempotencyCache cache = new IdempotencyCache(null, true, 100, 60, meterRegistry);
+
+    assertThat(cache.tryClaim(emailMessage)).isEqualTo(Claim.CLAIMED);
+
+    assertThat(cache.tryClaim(emailMessage)).isEqualTo(Claim.IN_PROGRESS);
+    assertThat(cache.getHitCount()).isZero();
+  }
+
+  @Test
+  void shouldReleaseEmailWhichWasNotSent() {
+    IdempotencyCache cache = new IdempotencyCache(null, true, 100, 60, meterRegistry);
+
+    assertThat(cache.tryClaim(emailMessage)).isEqualTo(Claim.CLAIMED);
+    cache.complete(emailMessage, false);
+
+    assertThat(cache.tryClaim(emailMessage)).isEqualTo(Claim.CLAIMED);
+  }
+
+  @Test
+  void shouldIdentifyEmailsWithoutReferenceByContent() {
+    IdempotencyCache cache = new IdempotencyCache(null, true, 100, 60, meterRegistry);
+    EmailMessage withoutReference = emailMessage.toBuilder().reference(null)
+        .personalisation(Collections.singletonMap("amount", "10")).build();
+
+    cache.tryClaim(withoutReference);
+    cache.complete(withoutReference, true);
+
+    assertThat(cache.tryClaim(withoutReference)).isEqualTo(Claim.SENT);
+    assertThat(cache.tryClaim(withoutReference.toBuilder()
+        .personalisation(Collections.singletonMap("amount", "20")).build()))
+        .isEqualTo(Claim.CLAIMED);
+  }
+
+  @Test
+  void shouldSendSameReferenceToOtherRecipientOrWithOtherPersonalisation() {
+    IdempotencyCache cache = new IdempotencyCache(null, true, 100, 60, meterRegistry);
+    Map<String, Object> personalisation = new LinkedHashMap<>();
+    personalisation.put("amount", "10");
+    personalisation.put("name", "test");
+    EmailMessage sent = emailMessage.toBuilder().personalisation(personalisation).build();
+    Map<String, Object> reordered = new LinkedHashMap<>();
+    reordered.put("name", "test");
+    reordered.put("amount", "10");
+
+    cache.tryClaim(sent);
+    cache.complete(sent, true);
+
+    assertThat(cache.tryClaim(sent.toBuilder().personalisation(reordered).build()))
+        .isEqualTo(Claim.SENT);
+    assertThat(cache.tryClaim(sent.toBuilder().emailAddress("other@test.com").build()))
+        .isEqualTo(Claim.CLAIMED);
+    assertThat(cache.tryClaim(sent.toBuilder()
+        .personalisation(Collections.singletonMap("amount", "20")).build()))
+        .isEqualTo(Claim.CLAIMED);
+  }
+
+  @Test
+  void shouldSendEveryEmailWhenDisabled() {
+    IdempotencyCache cache = new IdempotencyCache(store, false, 100, 60, meterRegistry);
+
+    cache.tryClaim(emailMessage);
+    cache.complete(emailMessage, true);
+
+    assertThat(cache.tryClaim(emailMessage)).isEqualTo(Claim.CLAIMED);
+    Mockito.verifyZeroInteractions(store);
+  }
+
+  @Test
+  void shouldSkipEmailsSentByOtherInstances() {
+    IdempotencyCache cache = new IdempotencyCache(store, true, 100, 60, meterRegistry);
+    Mockito.when(store.contains(Mockito.anyString())).thenReturn(true);
+
+    assertThat(cache.tryClaim(emailMessage)).isEqualTo(Claim.SENT);
+    assertThat(cache.tryClaim(emailMessage)).isEqualTo(Claim.SENT);
+
+    Mockito.verify(store, Mockito.times(1)).contains(Mockito.anyString());
+  }
+
+  @Test
+  void shouldRecordSentEmailsInStore() {
+    IdempotencyCache cache = new IdempotencyCache(store, true, 100, 60, meterRegistry);
+
+    cache.tryClaim(emailMessage);
+    cache.complete(emailMessage, true);
+
+    Mockito.verify(store).put(Mockito.anyString(), Mockito.eq(60L));
+  }
+
+  @Test
+  void shouldSendEmailsWhenStoreIsUnavailable() {
+    IdempotencyCache cache = new IdempotencyCache(store, true, 100, 60, meterRegistry);
+    Mockito.when(store.contains(Mockito.anyString()))
+        .thenThrow(new IllegalStateException("Error thrown successfully."));
+    Mockito.doThrow(new IllegalStateException("Error thrown successfully."))
+        .when(store).put(Mockito.anyString(), Mockito.anyLong());
+
+    assertThat(cache.tryClaim(emailMessage)).isEqualTo(Claim.CLAIMED);
+    cache.complete(emailMessage, true);
+
+    assertThat(cache.tryClaim(emailMessage)).isEqualTo(Claim.SENT);
+  }
+}
@@ -2,29 +2,39 @@ package uk.gov.caz.notify.messaging;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.mockito.Mockito.mock;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.times;
 
-import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
 import java.util.UUID;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.junit.jupiter.params.ParameterizedTest;
-import org.junit.jupiter.params.provider.Arguments;
-import org.junit.jupiter.params.provider.MethodSource;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.test.util.ReflectionTestUtils;
-import uk.gov.caz.notify.dto.SendEmailRequest;
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.DispatchResult;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.domain.RoutingOutcome;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.repository.CircuitBreakerOpenException;
 import uk.gov.caz.notify.repository.GovUkNotifyWrapper;
+import uk.gov.caz.notify.repository.NotifyResponseException;
+import uk.gov.caz.notify.repository.RateLimitExceededException;
 import uk.gov.service.notify.NotificationClientException;
+import uk.gov.service.notify.SendEmailResponse;
 
 @ExtendWith(MockitoExtension.class)
 public class MessagingClientTest {
@@ -32,7 +42,10 @@ public class MessagingClientTest {
   MessagingClient messagingClient;
 
   @Mock
-  AmazonSQS client;
+  SqsBatchBuffer sqsBatchBuffer;
+
+  @Mock
+  QueueUrlRegistry queueUrlRegistry;
 
   @Mock
   GovUkNotifyWrapper govUkNotifyWrapper;
@@ -40,46 +53,48 @@ public class MessagingClientTest {
   @Mock
   NotificationClientException err;
 
+  IdempotencyCache idempotencyCache;
+
   String messageGroupId;
-  SendEmailRequest sendEmailRequest;
+  EmailMessage emailMessage;
   String emailAddress;
   String templateId;
-  String personalisation;
+  Map<String, Object> personalisation;
   String reference;
 
   @BeforeEach
   void init() {
-    messagingClient = new MessagingClient(client, govUkNotifyWrapper, new ObjectMapper());
+    idempotencyCache = new IdempotencyCache(null, true, 100, 60, new SimpleMeterRegistry());
+    messagingClient = new MessagingClient(sqsBatchBuffer, queueUrlRegistry,
+        govUkNotifyWrapper, new ExponentialBackoffRetryPolicy(3, 0, 0, 60000, 2, 60000, 900000),
+        idempotencyCache, new EmailMessageWriter(new ObjectMapper(), false, 0), "testGroup", 1);
 
-    sendEmailRequest = new SendEmailRequest();
     templateId = UUID.randomUUID().toString();
     reference = UUID.randomUUID().toString();
     emailAddress = "test@test.com";
-    personalisation = "{}";
+    personalisation = Collections.emptyMap();
 
-    sendEmailRequest.setEmailAddress(emailAddress);
-    sendEmailRequest.setTemplateId(templateId);
-    sendEmailRequest.setPersonalisation(personalisation);
-    sendEmailRequest.setReference(reference);
+    emailMessage = EmailMessage.builder()
+        .emailAddress(emailAddress)
+        .templateId(templateId)
+        .personalisation(personalisation)
+        .reference(reference)
+        .rawBody("{\"templateId\": \"" + templateId + "\"}")
+        .build();
 
     messageGroupId = "testMsgGroupId";
-
-    ReflectionTestUtils.setField(messagingClient, "deadLetterQueue", "dlq");
-    ReflectionTestUtils.setField(messagingClient, "requestLimitQueue", "requestLimit");
-    ReflectionTestUtils.setField(messagingClient, "serviceDownQueue", "serviceDown");
-    ReflectionTestUtils.setField(messagingClient, "serviceErrorQueue", "serviceError");
   }
 
   @Test
   void canSuccessfullyPublishMessage() {
-    String queue = "dlq";
     SendMessageRequest request = new SendMessageRequest();
     mockQueueUrl();
     
-    messagingClient.publishMessage(queue, request);
+    messagingClient.publishMessage(QueueName.DLQ, request);
     
     // assertions
-    Mockito.verify(client, times(1)).sendMessage(request);
+    Mockito.verify(sqsBatchBuffer, times(1)).send(request, null);
+    assertEquals("testurl", request.getQueueUrl());
   }
   
   @Test
@@ -93,11 +108,14 @@ public class MessagingClientTest {
     Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
         .thenThrow(err);
 
-    messagingClient.handleMessage(sendEmailRequest);
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.DLQ, outcome);
 
     Mockito.verify(govUkNotifyWrapper, times(1)).sendEmail(templateId, emailAddress,
         personalisation, reference);
-    Mockito.verify(client, times(1)).sendMessage(Mockito.any(SendMessageRequest.class));
+    Mockito.verify(sqsBatchBuffer, times(1)).send(Mockito.any(SendMessageRequest.class),
+        Mockito.any());
   }
 
   @Test
@@ -111,11 +129,14 @@ public class MessagingClientTest {
     Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
         .thenThrow(err);
 
-    messagingClient.handleMessage(sendEmailRequest);
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.DLQ, outcome);
 
     Mockito.verify(govUkNotifyWrapper, times(1)).sendEmail(templateId, emailAddress,
         personalisation, reference);
-    Mockito.verify(client, times(1)).sendMessage(Mockito.any(SendMessageRequest.class));
+    Mockito.verify(sqsBatchBuffer, times(1)).send(Mockito.any(SendMessageRequest.class),
+        Mockito.any());
   }
 
   @Test
@@ -129,11 +150,116 @@ public class MessagingClientTest {
     Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
         .thenThrow(err);
 
-    messagingClient.handleMessage(sendEmailRequest);
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.REQUEST_LIMIT, outcome);
 
     Mockito.verify(govUkNotifyWrapper, times(4)).sendEmail(templateId, emailAddress,
         personalisation, reference);
-    Mockito.verify(client, times(1)).sendMessage(Mockito.any(SendMessageRequest.class));
+    Mockito.verify(sqsBatchBuffer, times(1)).send(Mockito.any(SendMessageRequest.class),
+        Mockito.any());
+  }
+
+  @Test
+  void canSendRateLimitedMessageToRequestLimitQueueWithoutRetrying()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    mockQueueUrl();
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(new RateLimitExceededException());
+
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.REQUEST_LIMIT, outcome);
+
+    Mockito.verify(govUkNotifyWrapper, times(1)).sendEmail(templateId, emailAddress,
+        personalisation, reference);
+    Mockito.verify(queueUrlRegistry, times(1)).getQueueUrl(QueueName.REQUEST_LIMIT);
+    Mockito.verify(sqsBatchBuffer, times(1)).send(Mockito.any(SendMessageRequest.class),
+        Mockito.any());
+  }
+
+  @Test
+  void canRouteMessageByStatusOfLastAttempt()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    mockQueueUrl();
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(new NotifyResponseException(500, "Error thrown successfully.", 0))
+        .thenThrow(new NotifyResponseException(503, "Error thrown successfully.", 0));
+
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.SERVICE_DOWN, outcome);
+
+    Mockito.verify(govUkNotifyWrapper, times(4)).sendEmail(templateId, emailAddress,
+        personalisation, reference);
+    Mockito.verify(queueUrlRegistry, times(1)).getQueueUrl(QueueName.SERVICE_DOWN);
+  }
+
+  @Test
+  void canStopRetryingWhenRetryAfterExceedsDeadline()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    mockQueueUrl();
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(new NotifyResponseException(429, "Error thrown successfully.", 60000));
+
+    messagingClient.handleMessage(emailMessage, Deadline.in(30000));
+
+    Mockito.verify(govUkNotifyWrapper, times(1)).sendEmail(templateId, emailAddress,
+        personalisation, reference);
+    Mockito.verify(queueUrlRegistry, times(1)).getQueueUrl(QueueName.REQUEST_LIMIT);
+  }
+
+  @Test
+  void canSendMessageToServiceDownQueueWhileCircuitIsOpen()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    mockQueueUrl();
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(new CircuitBreakerOpenException());
+
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.SERVICE_DOWN, outcome);
+
+    Mockito.verify(govUkNotifyWrapper, times(1)).sendEmail(templateId, emailAddress,
+        personalisation, reference);
+    Mockito.verify(queueUrlRegistry, times(1)).getQueueUrl(QueueName.SERVICE_DOWN);
+  }
+
+  @Test
+  void canStopRetryingOnceCircuitOpens()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    mockQueueUrl();
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(new NotifyResponseException(500, "Error thrown successfully.", 0))
+        .thenThrow(new CircuitBreakerOpenException());
+
+    messagingClient.handleMessage(emailMessage);
+
+    Mockito.verify(govUkNotifyWrapper, times(2)).sendEmail(templateId, emailAddress,
+        personalisation, reference);
+    Mockito.verify(queueUrlRegistry, times(1)).getQueueUrl(QueueName.SERVICE_DOWN);
+  }
+
+  @Test
+  void canSendMessageOnRetry()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(new NotifyResponseException(503, "Error thrown successfully.", 0))
+        .thenReturn(null);
+
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.SENT_AFTER_RETRY, outcome);
+
+    Mockito.verify(govUkNotifyWrapper, times(2)).sendEmail(templateId, emailAddress,
+        personalisation, reference);
+    Mockito.verifyZeroInteractions(sqsBatchBuffer, queueUrlRegistry);
   }
 
   @Test
@@ -147,11 +273,14 @@ public class MessagingClientTest {
     Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
         .thenThrow(err);
 
-    messagingClient.handleMessage(sendEmailRequest);
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.SERVICE_ERROR, outcome);
 
     Mockito.verify(govUkNotifyWrapper, times(4)).sendEmail(templateId, emailAddress,
         personalisation, reference);
-    Mockito.verify(client, times(1)).sendMessage(Mockito.any(SendMessageRequest.class));
+    Mockito.verify(sqsBatchBuffer, times(1)).send(Mockito.any(SendMessageRequest.class),
+        Mockito.any());
   }
 
   @Test
@@ -165,11 +294,14 @@ public class MessagingClientTest {
     Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
         .thenThrow(err);
 
-    messagingClient.handleMessage(sendEmailRequest);
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.SERVICE_DOWN, outcome);
 
     Mockito.verify(govUkNotifyWrapper, times(4)).sendEmail(templateId, emailAddress,
         personalisation, reference);
-    Mockito.verify(client, times(1)).sendMessage(Mockito.any(SendMessageRequest.class));
+    Mockito.verify(sqsBatchBuffer, times(1)).send(Mockito.any(SendMessageRequest.class),
+        Mockito.any());
   }
 
   @Test
@@ -183,62 +315,384 @@ public class MessagingClientTest {
         .thenThrow(err);
     Mockito.when(err.getMessage()).thenReturn("Error thrown successfully.");
 
-    messagingClient.handleMessage(sendEmailRequest);
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.DLQ, outcome);
 
     Mockito.verify(govUkNotifyWrapper, times(4)).sendEmail(templateId, emailAddress,
         personalisation, reference);
-    Mockito.verify(client, times(1)).sendMessage(Mockito.any(SendMessageRequest.class));
+    Mockito.verify(sqsBatchBuffer, times(1)).send(Mockito.any(SendMessageRequest.class),
+        Mockito.any());
   }
 
   @Test
-  void canSendBadlyFormedParametersToDlq()
+  void canRequeueMessageWithoutRawBody()
       throws NotificationClientException, IOException, InstantiationException {
 
-    this.sendEmailRequest.setPersonalisation("{");
     mockQueueUrl();
-    IOException err = mock(IOException.class);
+    Mockito.when(err.getHttpResult()).thenReturn(400);
     Mockito.when(err.getMessage()).thenReturn("Error thrown successfully.");
 
-    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, "{", reference))
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
         .thenThrow(err);
 
-    messagingClient.handleMessage(sendEmailRequest);
+    messagingClient.handleMessage(emailMessage.toBuilder().rawBody(null).build());
 
-    Mockito.verify(govUkNotifyWrapper, times(1)).sendEmail(templateId, emailAddress, "{",
-        reference);
-    Mockito.verify(client, times(1)).sendMessage(Mockito.any(SendMessageRequest.class));
+    ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+    Mockito.verify(sqsBatchBuffer, times(1)).send(captor.capture(), Mockito.any());
+    assertThat(captor.getValue().getMessageBody()).contains(templateId)
+        .contains("\"personalisation\":{}");
   }
-  
-  @ParameterizedTest
-  @MethodSource("queuesAndFields")
-  void shouldReturnNameOfTheQueue(String queueName, String fieldName, String fieldValue) {
-    ReflectionTestUtils.setField(messagingClient, fieldName, fieldValue);
 
-    String envQueueName = messagingClient.getEnvQueueName(queueName);
+  @Test
+  void canRequeueMessageWithItsRawBody()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    mockQueueUrl();
+    Mockito.when(err.getHttpResult()).thenReturn(403);
+    Mockito.when(err.getMessage()).thenReturn("Error thrown successfully.");
+
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(err);
+
+    messagingClient.handleMessage(emailMessage.toBuilder().receiptHandle("testHandle").build());
 
-    assertThat(envQueueName).isEqualTo(fieldValue);
+    ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+    Mockito.verify(sqsBatchBuffer, times(1)).send(captor.capture(), Mockito.eq("testHandle"));
+    assertEquals(emailMessage.getRawBody(), captor.getValue().getMessageBody());
   }
-  
+
+  @Test
+  void canRequeueMessageWithAttemptAndEarliestRetryTime()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    mockQueueUrl();
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(new RateLimitExceededException());
+    long start = System.currentTimeMillis();
+
+    messagingClient.handleMessage(emailMessage.toBuilder().requeueAttempt(1).build());
+
+    ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+    Mockito.verify(sqsBatchBuffer, times(1)).send(captor.capture(), Mockito.any());
+    SendMessageRequest request = captor.getValue();
+    assertEquals("2", request.getMessageAttributes()
+        .get(MessagingClient.REQUEUE_ATTEMPT_ATTRIBUTE).getStringValue());
+    assertThat(Long.parseLong(request.getMessageAttributes()
+        .get(MessagingClient.NOT_BEFORE_ATTRIBUTE).getStringValue()))
+        .isBetween(start + 60000, System.currentTimeMillis() + 120000);
+    assertThat(request.getDelaySeconds()).isNull();
+  }
+
+  @Test
+  void shouldNotDelayMessagesRequeuedToFifoQueue()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.SERVICE_DOWN))
+        .thenReturn("testurl.fifo");
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(new CircuitBreakerOpenException());
+
+    messagingClient.handleMessage(emailMessage);
+
+    ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+    Mockito.verify(sqsBatchBuffer, times(1)).send(captor.capture(), Mockito.any());
+    assertThat(captor.getValue().getDelaySeconds()).isNull();
+    assertThat(captor.getValue().getMessageAttributes())
+        .containsKey(MessagingClient.NOT_BEFORE_ATTRIBUTE);
+  }
+
+  @Test
+  void canSendMessageToDlqOnceMaximumRequeueAttemptsAreUsedUp()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    mockQueueUrl();
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(new RateLimitExceededException());
+
+    RoutingOutcome outcome =
+        messagingClient.handleMessage(emailMessage.toBuilder().requeueAttempt(2).build());
+
+    assertEquals(RoutingOutcome.DLQ, outcome);
+    Mockito.verify(queueUrlRegistry, times(1)).getQueueUrl(QueueName.DLQ);
+    ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+    Mockito.verify(sqsBatchBuffer, times(1)).send(captor.capture(), Mockito.any());
+    assertThat(captor.getValue().getMessageAttributes()).isEmpty();
+  }
+
+  @Test
+  void canRequeueMessageInCompactEnvelope() throws IOException {
+    MessagingClient compactClient = new MessagingClient(sqsBatchBuffer, queueUrlRegistry,
+        govUkNotifyWrapper, new ExponentialBackoffRetryPolicy(3, 0, 0, 60000, 2, 60000, 900000),
+        idempotencyCache, new EmailMessageWriter(new ObjectMapper(), true, 0), "testGroup", 1);
+
+    SendMessageRequest request = compactClient.createSendMessageRequest(QueueName.SERVICE_DOWN,
+        emailMessage.toBuilder().rawBody(null).build());
+
+    assertEquals("compact-v1", request.getMessageAttributes()
+        .get(MessagingClient.ENVELOPE_ATTRIBUTE).getStringValue());
+    EmailMessage requeued = new EmailMessageReader().read(new Message()
+        .withBody(request.getMessageBody())
+        .withMessageAttributes(request.getMessageAttributes()));
+    assertEquals(templateId, requeued.getTemplateId());
+    assertEquals(reference, requeued.getReference());
+  }
+
+  @Test
+  void shouldNotCreateRequeueMessageWhenEmailIsSent()
+      throws NotificationClientException, IOException, InstantiationException {
+
+    RoutingOutcome outcome = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.SENT, outcome);
+
+    Mockito.verify(govUkNotifyWrapper, times(1)).sendEmail(templateId, emailAddress,
+        personalisation, reference);
+    Mockito.verifyZeroInteractions(sqsBatchBuffer, queueUrlRegistry);
+  }
+
+  @Test
+  void shouldDeriveDeduplicationIdFromSourceMessageAndQueue() throws IOException {
+    EmailMessage received = emailMessage.toBuilder().messageId("testMessageId").build();
+
+    SendMessageRequest first = messagingClient
+        .createSendMessageRequest(QueueName.REQUEST_LIMIT, received);
+    SendMessageRequest redelivered = messagingClient
+        .createSendMessageRequest(QueueName.REQUEST_LIMIT, received);
+    SendMessageRequest otherQueue = messagingClient
+        .createSendMessageRequest(QueueName.DLQ, received);
+    SendMessageRequest otherMessage = messagingClient.createSendMessageRequest(
+        QueueName.REQUEST_LIMIT, received.toBuilder().messageId("otherMessageId").build());
+
+    assertEquals(first.getMessageDeduplicationId(), redelivered.getMessageDeduplicationId());
+    assertThat(otherQueue.getMessageDeduplicationId())
+        .isNotEqualTo(first.getMessageDeduplicationId());
+    assertThat(otherMessage.getMessageDeduplicationId())
+        .isNotEqualTo(first.getMessageDeduplicationId());
+    assertEquals(first.getMessageGroupId(), otherMessage.getMessageGroupId());
+    assertEquals(emailMessage.getRawBody(), first.getMessageBody());
+  }
+
+  @Test
+  void shouldKeepMessageGroupOfReceivedRequest() throws IOException {
+    SendMessageRequest received = messagingClient.createSendMessageRequest(
+        QueueName.SERVICE_ERROR, emailMessage.toBuilder().messageGroupId("testGroupId").build());
+    SendMessageRequest withoutReference = messagingClient.createSendMessageRequest(
+        QueueName.SERVICE_ERROR, emailMessage.toBuilder().reference(null).build());
+
+    assertEquals("testGroupId", received.getMessageGroupId());
+    assertEquals("testGroup", withoutReference.getMessageGroupId());
+  }
+
   @Test
   void shouldCreateSendEmailRequest() {
     String message = "\"test\": \"123\"";
     SendMessageRequest sendMessageRequest = messagingClient.createSendMessageRequest(message);
     assertEquals(message, sendMessageRequest.getMessageBody());
+    assertEquals(sendMessageRequest.getMessageDeduplicationId(),
+        messagingClient.createSendMessageRequest(message).getMessageDeduplicationId());
+  }
+
+  @Test
+  void canReturnIdOfSentEmail() throws Exception {
+    SendEmailResponse response = sendEmailResponse();
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation,
+        reference)).thenReturn(response);
+
+    DispatchResult result = messagingClient.sendMessage(emailMessage, Deadline.none());
+
+    assertEquals(RoutingOutcome.SENT, result.getOutcome());
+    assertEquals(response.getNotificationId(), result.getNotificationId());
+  }
+
+  @Test
+  void canReturnIdOfEmailSentAsynchronouslyAfterRetry() {
+    SendEmailResponse response = sendEmailResponse();
+    Mockito.when(govUkNotifyWrapper.sendEmailAsync(templateId, emailAddress, personalisation,
+        reference))
+        .thenReturn(failedFuture(new NotifyResponseException(500, "Error thrown successfully.",
+            0)))
+        .thenReturn(CompletableFuture.completedFuture(response));
+
+    DispatchResult result = messagingClient.sendMessageAsync(emailMessage, Deadline.none())
+        .join();
+
+    assertEquals(RoutingOutcome.SENT_AFTER_RETRY, result.getOutcome());
+    assertEquals(response.getNotificationId(), result.getNotificationId());
+  }
+
+  @Test
+  void canSendMessageAsynchronously() {
+    Mockito.when(govUkNotifyWrapper.sendEmailAsync(templateId, emailAddress, personalisation,
+        reference)).thenReturn(CompletableFuture.completedFuture(null));
+
+    RoutingOutcome outcome = messagingClient.handleMessageAsync(emailMessage, Deadline.none())
+        .join();
+
+    assertEquals(RoutingOutcome.SENT, outcome);
+    Mockito.verifyZeroInteractions(sqsBatchBuffer, queueUrlRegistry);
+  }
+
+  @Test
+  void canRouteAsyncMessagesLikeBlockingOnes() {
+    mockQueueUrl();
+    Mockito.when(govUkNotifyWrapper.sendEmailAsync(templateId, emailAddress, personalisation,
+        reference))
+        .thenReturn(failedFuture(new RateLimitExceededException()))
+        .thenReturn(failedFuture(new CircuitBreakerOpenException()))
+        .thenReturn(failedFuture(new NotifyResponseException(400, "Error thrown successfully.",
+            0)));
+
+    assertEquals(RoutingOutcome.REQUEST_LIMIT,
+        messagingClient.handleMessageAsync(emailMessage, Deadline.none()).join());
+    assertEquals(RoutingOutcome.SERVICE_DOWN,
+        messagingClient.handleMessageAsync(emailMessage, Deadline.none()).join());
+    assertEquals(RoutingOutcome.DLQ,
+        messagingClient.handleMessageAsync(emailMessage, Deadline.none()).join());
+
+    Mockito.verify(sqsBatchBuffer, times(3)).send(Mockito.any(SendMessageRequest.class),
+        Mockito.any());
+  }
+
+  @Test
+  void canRetryAsyncMessagesUntilSent() {
+    Mockito.when(govUkNotifyWrapper.sendEmailAsync(templateId, emailAddress, personalisation,
+        reference))
+        .thenReturn(failedFuture(new NotifyResponseException(500, "Error thrown successfully.",
+            0)))
+        .thenReturn(failedFuture(new RateLimitExceededException()))
+        .thenReturn(CompletableFuture.completedFuture(null));
+
+    RoutingOutcome outcome = messagingClient.handleMessageAsync(emailMessage, Deadline.none())
+        .join();
+
+    assertEquals(RoutingOutcome.SENT_AFTER_RETRY, outcome);
+    Mockito.verify(govUkNotifyWrapper, times(3)).sendEmailAsync(templateId, emailAddress,
+        personalisation, reference);
+    Mockito.verifyZeroInteractions(sqsBatchBuffer);
+  }
+
+  @Test
+  void canRouteAsyncMessageByStatusOfLastAttempt() {
+    mockQueueUrl();
+    Mockito.when(govUkNotifyWrapper.sendEmailAsync(templateId, emailAddress, personalisation,
+        reference))
+        .thenReturn(failedFuture(new NotifyResponseException(503, "Error thrown successfully.",
+            0)))
+        .thenReturn(failedFuture(new CircuitBreakerOpenException()));
+
+    RoutingOutcome outcome = messagingClient.handleMessageAsync(emailMessage, Deadline.none())
+        .join();
+
+    assertEquals(RoutingOutcome.SERVICE_DOWN, outcome);
+    Mockito.verify(govUkNotifyWrapper, times(2)).sendEmailAsync(templateId, emailAddress,
+        personalisation, reference);
+  }
+
+  @Test
+  void shouldFailAsyncMessageWhichCannotBeSent() {
+    Mockito.when(govUkNotifyWrapper.sendEmailAsync(templateId, emailAddress, personalisation,
+        reference))
+        .thenReturn(failedFuture(new InstantiationException("no API key")));
+
+    CompletableFuture<RoutingOutcome> outcome =
+        messagingClient.handleMessageAsync(emailMessage, Deadline.none());
+
+    ExecutionException e = assertThrows(ExecutionException.class, outcome::get);
+    assertThat(e.getCause()).isInstanceOf(InstantiationException.class);
+  }
+
+  @Test
+  void shouldFailAsyncMessageWhenRetryThrows() {
+    Mockito.when(govUkNotifyWrapper.sendEmailAsync(templateId, emailAddress, personalisation,
+        reference))
+        .thenReturn(failedFuture(new NotifyResponseException(500, "Error thrown successfully.",
+            0)))
+        .thenThrow(new IllegalStateException("Error thrown successfully."));
+
+    CompletableFuture<RoutingOutcome> outcome =
+        messagingClient.handleMessageAsync(emailMessage, Deadline.none());
+
+    ExecutionException e = assertThrows(ExecutionException.class,
+        () -> outcome.get(5, TimeUnit.SECONDS));
+    assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  void shouldSkipEmailWhichHasAlreadyBeenSent()
+      throws NotificationClientException, IOException, InstantiationException {
+    RoutingOutcome first = messagingClient.handleMessage(emailMessage);
+    RoutingOutcome redelivered = messagingClient.handleMessage(
+        emailMessage.toBuilder().messageId("redelivered").build());
+
+    assertEquals(RoutingOutcome.SENT, first);
+    assertEquals(RoutingOutcome.DUPLICATE, redelivered);
+    Mockito.verify(govUkNotifyWrapper, times(1)).sendEmail(templateId, emailAddress,
+        personalisation, reference);
+    assertEquals(1, idempotencyCache.getHitCount());
+  }
+
+  @Test
+  void shouldSendEmailAgainWhenItWasRequeued()
+      throws NotificationClientException, IOException, InstantiationException {
+    mockQueueUrl();
+    Mockito.when(govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference))
+        .thenThrow(new RateLimitExceededException())
+        .thenReturn(null);
+
+    RoutingOutcome first = messagingClient.handleMessage(emailMessage);
+    RoutingOutcome second = messagingClient.handleMessage(emailMessage);
+
+    assertEquals(RoutingOutcome.REQUEST_LIMIT, first);
+    assertEquals(RoutingOutcome.SENT, second);
+  }
+
+  @Test
+  void shouldSkipAsyncEmailWhichHasAlreadyBeenSent() {
+    Mockito.when(govUkNotifyWrapper.sendEmailAsync(templateId, emailAddress, personalisation,
+        reference)).thenReturn(CompletableFuture.completedFuture(null));
+
+    messagingClient.handleMessageAsync(emailMessage, Deadline.none()).join();
+    RoutingOutcome redelivered = messagingClient.handleMessageAsync(emailMessage,
+        Deadline.none()).join();
+
+    assertEquals(RoutingOutcome.DUPLICATE, redelivered);
+    Mockito.verify(govUkNotifyWrapper, times(1)).sendEmailAsync(templateId, emailAddress,
+        personalisation, reference);
+  }
+
+  @Test
+  void shouldReportEmailWhichIsStillBeingSentWithoutSkippingIt() {
+    CompletableFuture<SendEmailResponse> inFlight = new CompletableFuture<>();
+    Mockito.when(govUkNotifyWrapper.sendEmailAsync(templateId, emailAddress, personalisation,
+        reference)).thenReturn(inFlight);
+
+    CompletableFuture<RoutingOutcome> first =
+        messagingClient.handleMessageAsync(emailMessage, Deadline.none());
+    RoutingOutcome redelivered = messagingClient.handleMessageAsync(emailMessage,
+        Deadline.none()).join();
+    inFlight.complete(null);
+
+    assertEquals(RoutingOutcome.IN_PROGRESS, redelivered);
+    assertEquals(RoutingOutcome.SENT, first.join());
+    assertEquals(0, idempotencyCache.getHitCount());
+  }
+
+  private static <T> CompletableFuture<T> failedFuture(Throwable error) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(error);
+    return future;
   }
 
-  private static Stream<Arguments> queuesAndFields() {
-    return Stream.of(
-        Arguments.of("new", "newQueue", "newQueueName"),
-        Arguments.of("request-limit", "requestLimitQueue", "requestLimitQueueName"),
-        Arguments.of("service-down", "serviceDownQueue", "serviceDownQueueName"),
-        Arguments.of("service-error", "serviceErrorQueue", "serviceErrorQueueName"),
-        Arguments.of("dlq", "deadLetterQueue", "deadLetterQueueName")
-    );
+  private SendEmailResponse sendEmailResponse() {
+    return new SendEmailResponse(new JSONObject().put("id", UUID.randomUUID().toString())
+        .put("reference", reference)
+        .put("template", new JSONObject().put("id", templateId))
+        .toString());
   }
 
   private void mockQueueUrl() {
-    GetQueueUrlResult getQueueUrlResult = new GetQueueUrlResult();
-    getQueueUrlResult.setQueueUrl("testurl");
-    Mockito.when(client.getQueueUrl(Mockito.anyString())).thenReturn(getQueueUrlResult);
+    Mockito.when(queueUrlRegistry.getQueueUrl(Mockito.any(QueueName.class)))
+        .thenReturn("testurl");
   }
 }
@@ -0,0 +1,93 @@
+package uk.gov.caz.notify.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.times;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.gov.caz.notify.domain.QueueName;
+
+@ExtendWith(MockitoExtension.class)
+public class QueueUrlRegistryTest {
+
+  @Mock
+  AmazonSQS client;
+
+  @ParameterizedTest
+  @MethodSource("queuesAndNames")
+  void shouldReturnNameOfTheQueue(String queueName, String envQueueName) {
+    QueueUrlRegistry queueUrlRegistry = createRegistry(3600);
+
+    assertThat(queueUrlRegistry.getEnvQueueName(QueueName.fromString(queueName)))
+        .isEqualTo(envQueueName);
+  }
+
+  @Test
+  void shouldReturnQueueWithFullName() {
+    QueueUrlRegistry queueUrlRegistry = createRegistry(3600);
+
+    assertThat(queueUrlRegistry.getQueueName("serviceDownQueueName"))
+        .isEqualTo(QueueName.SERVICE_DOWN);
+    assertThat(queueUrlRegistry.getQueueName("unknownQueueName")).isNull();
+  }
+
+  @Test
+  void shouldResolveQueueUrlOnlyOnce() {
+    QueueUrlRegistry queueUrlRegistry = createRegistry(3600);
+    mockQueueUrl("requestLimitQueueName", "requestLimitUrl");
+
+    String first = queueUrlRegistry.getQueueUrl(QueueName.REQUEST_LIMIT);
+    String second = queueUrlRegistry.getQueueUrl(QueueName.REQUEST_LIMIT);
+
+    assertThat(first).isEqualTo("requestLimitUrl");
+    assertThat(second).isEqualTo("requestLimitUrl");
+    Mockito.verify(client, times(1)).getQueueUrl("requestLimitQueueName");
+    assertThat(queueUrlRegistry.getMissCount()).isEqualTo(1);
+    assertThat(queueUrlRegistry.getHitCount()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldResolveQueueUrlAgainOnceExpired() {
+    QueueUrlRegistry queueUrlRegistry = createRegistry(0);
+    mockQueueUrl("deadLetterQueueName", "dlqUrl");
+
+    queueUrlRegistry.getQueueUrl(QueueName.DLQ);
+    queueUrlRegistry.getQueueUrl(QueueName.DLQ);
+
+    Mockito.verify(client, times(2)).getQueueUrl("deadLetterQueueName");
+    assertThat(queueUrlRegistry.getMissCount()).isEqualTo(2);
+    assertThat(queueUrlRegistry.getHitCount()).isZero();
+  }
+
+  private static Stream<Arguments> queuesAndNames() {
+    return Stream.of(
+        Arguments.of("new", "newQueueName"),
+        Arguments.of("request-limit", "requestLimitQueueName"),
+        Arguments.of("service-down", "serviceDownQueueName"),
+        Arguments.of("service-error", "serviceErrorQueueName"),
+        Arguments.of("dlq", "deadLetterQueueName")
+    );
+  }
+
+  private QueueUrlRegistry createRegistry(long ttlSeconds) {
+    return new QueueUrlRegistry(client, new SimpleMeterRegistry(), ttlSeconds, "newQueueName",
+        "requestLimitQueueName", "serviceErrorQueueName", "serviceDownQueueName",
+        "deadLetterQueueName");
+  }
+
+  private void mockQueueUrl(String queueName, String queueUrl) {
+    GetQueueUrlResult getQueueUrlResult = new GetQueueUrlResult();
+    getQueueUrlResult.setQueueUrl(queueUrl);
+    Mockito.when(client.getQueueUrl(queueName)).thenReturn(getQueueUrlResult);
+  }
+}
@@ -0,0 +1,334 @@
+package uk.gov.caz.notify.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.stubbing.Answer;
+
+@ExtendWith(MockitoExtension.class)
+public class SqsBatchBufferTest {
+
+  SqsBatchBuffer sqsBatchBuffer;
+
+  @Mock
+  AmazonSQSAsync client;
+
+  @BeforeEach
+  void init() {
+    sqsBatchBuffer = new SqsBatchBuffer(client, 2);
+  }
+
+  @Test
+  void shouldDeleteMessagesInBatchesOfTen() {
+    Mockito.when(client.deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new DeleteMessageBatchResult()));
+    for (int i = 0; i < 12; i++) {
+      sqsBatchBuffer.delete("testUrl", "testHandle" + i);
+    }
+
+    Set<String> failed = sqsBatchBuffer.flush();
+
+    ArgumentCaptor<DeleteMessageBatchRequest> captor =
+        ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+    Mockito.verify(client, times(2)).deleteMessageBatchAsync(captor.capture(), Mockito.any());
+    List<DeleteMessageBatchRequest> requests = captor.getAllValues();
+    assertThat(failed).isEmpty();
+    assertThat(requests.get(0).getEntries()).hasSize(10);
+    assertThat(requests.get(1).getEntries()).hasSize(2);
+    assertThat(requests.get(1).getEntries().get(1).getReceiptHandle()).isEqualTo("testHandle11");
+  }
+
+  @Test
+  void shouldSendMessagesPerQueue() {
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new SendMessageBatchResult()));
+    sqsBatchBuffer.send(message("dlqUrl", "body1"));
+    sqsBatchBuffer.send(message("requestLimitUrl", "body2"));
+    sqsBatchBuffer.send(message("dlqUrl", "body3"));
+
+    Set<String> failed = sqsBatchBuffer.flush();
+
+    ArgumentCaptor<SendMessageBatchRequest> captor =
+        ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+    Mockito.verify(client, times(2)).sendMessageBatchAsync(captor.capture(), Mockito.any());
+    assertThat(failed).isEmpty();
+    assertThat(captor.getAllValues())
+        .anySatisfy(request -> {
+          assertThat(request.getQueueUrl()).isEqualTo("dlqUrl");
+          assertThat(request.getEntries()).extracting("messageBody")
+              .containsExactly("body1", "body3");
+          assertThat(request.getEntries()).extracting("messageGroupId")
+              .containsOnly("testGroup");
+        });
+  }
+
+  @Test
+  void shouldRetryOnlyFailedEntries() {
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new SendMessageBatchResult().withFailed(
+            new BatchResultErrorEntry().withId("1").withCode("InternalError")
+                .withSenderFault(false))))
+        .thenAnswer(completeWith(new SendMessageBatchResult()));
+    sqsBatchBuffer.send(message("dlqUrl", "body1"));
+    sqsBatchBuffer.send(message("dlqUrl", "body2"));
+
+    Set<String> failed = sqsBatchBuffer.flush();
+
+    ArgumentCaptor<SendMessageBatchRequest> captor =
+        ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+    Mockito.verify(client, times(2)).sendMessageBatchAsync(captor.capture(), Mockito.any());
+    assertThat(failed).isEmpty();
+    assertThat(captor.getAllValues().get(1).getEntries()).extracting("messageBody")
+        .containsExactly("body2");
+  }
+
+  @Test
+  void shouldNotRetrySenderFaults() {
+    Mockito.when(client.deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new DeleteMessageBatchResult().withFailed(
+            new BatchResultErrorEntry().withId("0").withCode("ReceiptHandleIsInvalid")
+                .withSenderFault(true))));
+    sqsBatchBuffer.delete("testUrl", "testHandle");
+
+    Set<String> failed = sqsBatchBuffer.flush();
+
+    Mockito.verify(client, times(1))
+        .deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class), Mockito.any());
+    assertThat(failed).containsExactly("testHandle");
+  }
+
+  @Test
+  void shouldReportEntriesFailingAfterAllRetries() {
+    Mockito.when(client.deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(failWith(new AmazonServiceException("Error thrown successfully.")));
+    sqsBatchBuffer.delete("testUrl", "testHandle1");
+    sqsBatchBuffer.delete("testUrl", "testHandle2");
+
+    Set<String> failed = sqsBatchBuffer.flush();
+
+    Mockito.verify(client, times(3))
+        .deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class), Mockito.any());
+    assertThat(failed).containsExactlyInAnyOrder("testHandle1", "testHandle2");
+  }
+
+  @Test
+  void shouldNotCallSqsWhenNothingIsBuffered() {
+    sqsBatchBuffer.delete("testUrl", "testHandle");
+    Mockito.when(client.deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new DeleteMessageBatchResult()));
+    sqsBatchBuffer.flush();
+
+    sqsBatchBuffer.flush();
+
+    Mockito.verify(client, times(1))
+        .deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class), Mockito.any());
+    Mockito.verifyNoMoreInteractions(client);
+  }
+
+  @Test
+  void shouldSendFullBatchesWithoutWaitingForFlush() {
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new SendMessageBatchResult()));
+
+    for (int i = 0; i < 11; i++) {
+      sqsBatchBuffer.send(message("dlqUrl", "body" + i));
+    }
+
+    Mockito.verify(client, times(1))
+        .sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class), Mockito.any());
+    assertThat(sqsBatchBuffer.flush()).isEmpty();
+    Mockito.verify(client, times(2))
+        .sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class), Mockito.any());
+  }
+
+  @Test
+  void shouldDeleteMessagesOnlyOnceTheirReplacementsAreSent() {
+    List<AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult>> sends =
+        new ArrayList<>();
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(invocation -> {
+          sends.add(invocation.getArgument(1));
+          return null;
+        });
+    Mockito.when(client.deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new DeleteMessageBatchResult()));
+
+    for (int i = 0; i < 10; i++) {
+      sqsBatchBuffer.send(message("dlqUrl", "body" + i), "testHandle" + i);
+      sqsBatchBuffer.delete("testUrl", "testHandle" + i);
+    }
+
+    Mockito.verify(client, never())
+        .deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class), Mockito.any());
+    sends.get(0).onSuccess(null, new SendMessageBatchResult());
+    Mockito.verify(client, times(1))
+        .deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class), Mockito.any());
+    assertThat(sqsBatchBuffer.flush()).isEmpty();
+  }
+
+  @Test
+  void shouldStartBufferedReplacementsBeforeFullBatchOfDeletions() {
+    List<AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult>> sends =
+        new ArrayList<>();
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(invocation -> {
+          sends.add(invocation.getArgument(1));
+          return null;
+        });
+    Mockito.when(client.deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new DeleteMessageBatchResult()));
+
+    sqsBatchBuffer.send(message("dlqUrl", "body"), "testHandle0");
+    for (int i = 0; i < 10; i++) {
+      sqsBatchBuffer.delete("testUrl", "testHandle" + i);
+    }
+
+    assertThat(sends).hasSize(1);
+    Mockito.verify(client, never())
+        .deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class), Mockito.any());
+    sends.get(0).onSuccess(null, new SendMessageBatchResult());
+    Mockito.verify(client, times(1))
+        .deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class), Mockito.any());
+    assertThat(sqsBatchBuffer.flush()).isEmpty();
+  }
+
+  @Test
+  void shouldSendReplacementWithoutWaitingForFlush() {
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new SendMessageBatchResult()))
+        .thenAnswer(completeWith(new SendMessageBatchResult().withFailed(
+            new BatchResultErrorEntry().withId("0").withCode("InvalidParameterValue")
+                .withSenderFault(true))));
+    sqsBatchBuffer.send(message("requestLimitUrl", "body1"), "testHandle1");
+
+    CompletableFuture<Boolean> sent = sqsBatchBuffer.sendReplacement("testHandle1");
+    sqsBatchBuffer.send(message("requestLimitUrl", "body2"), "testHandle2");
+    CompletableFuture<Boolean> failed = sqsBatchBuffer.sendReplacement("testHandle2");
+
+    Mockito.verify(client, times(2))
+        .sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class), Mockito.any());
+    assertThat(sent.join()).isTrue();
+    assertThat(failed.join()).isFalse();
+    assertThat(sqsBatchBuffer.sendReplacement("otherHandle").join()).isTrue();
+    assertThat(sqsBatchBuffer.flush()).containsExactly("testHandle2");
+  }
+
+  @Test
+  void shouldSendOnlyMessageAttributesOfMessage() {
+    MessageAttributeValue envelope =
+        new MessageAttributeValue().withDataType("String").withStringValue("compact-v1");
+    SendMessageRequest message = message("dlqUrl", "body")
+        .addMessageAttributesEntry(MessagingClient.ENVELOPE_ATTRIBUTE, envelope);
+    message.putCustomRequestHeader("contentType", "application/json");
+
+    SendMessageBatchRequestEntry entry = SqsBatchBuffer.toBatchEntry("0", message);
+
+    assertThat(entry.getMessageAttributes())
+        .containsOnlyKeys(MessagingClient.ENVELOPE_ATTRIBUTE)
+        .containsEntry(MessagingClient.ENVELOPE_ATTRIBUTE, envelope);
+    assertThat(entry.getMessageGroupId()).isEqualTo("testGroup");
+    assertThat(entry.getMessageDeduplicationId()).isEqualTo("body");
+  }
+
+  @Test
+  void shouldNotDeleteMessagesWhoseReplacementFailed() {
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new SendMessageBatchResult().withFailed(
+            new BatchResultErrorEntry().withId("0").withCode("InvalidParameterValue")
+                .withSenderFault(true))));
+    Mockito.when(client.deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(completeWith(new DeleteMessageBatchResult()));
+    sqsBatchBuffer.send(message("dlqUrl", "body1"), "testHandle1");
+    sqsBatchBuffer.send(message("dlqUrl", "body2"), "testHandle2");
+    sqsBatchBuffer.delete("testUrl", "testHandle1");
+    sqsBatchBuffer.delete("testUrl", "testHandle2");
+
+    Set<String> failed = sqsBatchBuffer.flush();
+
+    ArgumentCaptor<DeleteMessageBatchRequest> captor =
+        ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+    Mockito.verify(client, times(1)).deleteMessageBatchAsync(captor.capture(), Mockito.any());
+    assertThat(captor.getValue().getEntries()).extracting("receiptHandle")
+        .containsExactly("testHandle2");
+    assertThat(failed).containsExactly("testHandle1");
+  }
+
+  @Test
+  void shouldNotDeleteMessagesWhenSendCallFails() {
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(failWith(new AmazonServiceException("Error thrown successfully.")));
+    sqsBatchBuffer.send(message("dlqUrl", "body1"), "testHandle1");
+    sqsBatchBuffer.delete("testUrl", "testHandle1");
+
+    Set<String> failed = sqsBatchBuffer.flush();
+
+    Mockito.verify(client, times(3))
+        .sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class), Mockito.any());
+    Mockito.verify(client, never())
+        .deleteMessageBatchAsync(Mockito.any(DeleteMessageBatchRequest.class), Mockito.any());
+    assertThat(failed).containsExactly("testHandle1");
+  }
+
+  private static <T> Answer<Future<T>> completeWith(T result) {
+    return invocation -> {
+      AsyncHandler<AmazonWebServiceRequest, T> handler = invocation.getArgument(1);
+      handler.onSuccess(invocation.getArgument(0), result);
+      return CompletableFuture.completedFuture(result);
+    };
+  }
+
+  private static <T> Answer<Future<T>> failWith(Exception error) {
+    return invocation -> {
+      AsyncHandler<AmazonWebServiceRequest, T> handler = invocation.getArgument(1);
+      handler.onError(error);
+      CompletableFuture<T> future = new CompletableFuture<>();
+      future.completeExceptionally(error);
+      return future;
+    };
+  }
+
+  private SendMessageRequest message(String queueUrl, String body) {
+    return new SendMessageRequest(queueUrl, body).withMessageGroupId("testGroup")
+        .withMessageDeduplicationId(body);
+  }
+}
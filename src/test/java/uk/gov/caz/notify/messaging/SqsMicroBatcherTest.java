@@ -0,0 +1,175 @@
+package uk.gov.caz.notify.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.stubbing.Answer;
+
+@ExtendWith(MockitoExtension.class)
+public class SqsMicroBatcherTest {
+
+  @Mock
+  AmazonSQSAsync client;
+
+  SqsMicroBatcher sqsMicroBatcher;
+
+  @AfterEach
+  void shutdown() {
+    sqsMicroBatcher.shutdown();
+  }
+
+  @Test
+  void shouldSendFullBatchWithoutLingering() throws Exception {
+    sqsMicroBatcher = new SqsMicroBatcher(client, 60000, 0);
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any())).thenAnswer(succeed());
+
+    List<CompletableFuture<String>> messageIds = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      messageIds.add(sqsMicroBatcher.send(message("testUrl", "body" + i)));
+    }
+
+    Mockito.verify(client, times(1))
+        .sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class), Mockito.any());
+    for (int i = 0; i < 10; i++) {
+      assertThat(messageIds.get(i).get(1, TimeUnit.SECONDS)).isEqualTo("id-body" + i);
+    }
+  }
+
+  @Test
+  void shouldSendPartialBatchPerQueueOnceLingerTimeHasPassed() throws Exception {
+    sqsMicroBatcher = new SqsMicroBatcher(client, 10, 0);
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any())).thenAnswer(succeed());
+
+    CompletableFuture<String> first = sqsMicroBatcher.send(message("testUrl", "body1"));
+    CompletableFuture<String> second = sqsMicroBatcher.send(message("testUrl", "body2"));
+    CompletableFuture<String> other = sqsMicroBatcher.send(message("otherUrl", "body3"));
+
+    assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("id-body1");
+    assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("id-body2");
+    assertThat(other.get(5, TimeUnit.SECONDS)).isEqualTo("id-body3");
+    ArgumentCaptor<SendMessageBatchRequest> captor =
+        ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+    Mockito.verify(client, times(2)).sendMessageBatchAsync(captor.capture(), Mockito.any());
+    assertThat(captor.getAllValues())
+        .anySatisfy(request -> assertThat(request.getEntries()).hasSize(2))
+        .anySatisfy(request -> assertThat(request.getEntries()).hasSize(1));
+  }
+
+  @Test
+  void shouldRetryFailedEntriesAndFailThoseCausedBySender() throws Exception {
+    sqsMicroBatcher = new SqsMicroBatcher(client, 60000, 1);
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(respond(new SendMessageBatchResult()
+            .withSuccessful(new SendMessageBatchResultEntry().withId("0").withMessageId("id0"))
+            .withFailed(
+                new BatchResultErrorEntry().withId("1").withCode("InternalError")
+                    .withSenderFault(false),
+                new BatchResultErrorEntry().withId("2").withCode("InvalidParameterValue")
+                    .withSenderFault(true))))
+        .thenAnswer(succeed());
+
+    List<CompletableFuture<String>> messageIds = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      messageIds.add(sqsMicroBatcher.send(message("testUrl", "body" + i)));
+    }
+
+    assertThat(messageIds.get(0).get()).isEqualTo("id0");
+    assertThat(messageIds.get(1).get()).isEqualTo("id-body1");
+    ExecutionException e = assertThrows(ExecutionException.class, messageIds.get(2)::get);
+    assertThat(((AmazonSQSException) e.getCause()).getErrorCode())
+        .isEqualTo("InvalidParameterValue");
+  }
+
+  @Test
+  void shouldFailBatchOnceRetriesAreExhausted() {
+    sqsMicroBatcher = new SqsMicroBatcher(client, 60000, 1);
+    AmazonServiceException error = new AmazonServiceException("Error thrown successfully.");
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any()))
+        .thenAnswer(invocation -> {
+          AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler =
+              invocation.getArgument(1);
+          handler.onError(error);
+          return null;
+        })
+        .thenThrow(error);
+
+    List<CompletableFuture<String>> messageIds = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      messageIds.add(sqsMicroBatcher.send(message("testUrl", "body" + i)));
+    }
+
+    Mockito.verify(client, times(2))
+        .sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class), Mockito.any());
+    assertThat(messageIds).allSatisfy(messageId ->
+        assertThat(messageId).isCompletedExceptionally());
+  }
+
+  @Test
+  void shouldSendLingeringBatchesOnShutdown() throws Exception {
+    sqsMicroBatcher = new SqsMicroBatcher(client, 60000, 0);
+    Mockito.when(client.sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class),
+        Mockito.any())).thenAnswer(succeed());
+
+    CompletableFuture<String> messageId = sqsMicroBatcher.send(message("testUrl", "body"));
+    Mockito.verify(client, never())
+        .sendMessageBatchAsync(Mockito.any(SendMessageBatchRequest.class), Mockito.any());
+    sqsMicroBatcher.shutdown();
+
+    assertThat(messageId.get()).isEqualTo("id-body");
+  }
+
+  private static Answer<Future<SendMessageBatchResult>> succeed() {
+    return invocation -> {
+      SendMessageBatchRequest request = invocation.getArgument(0);
+      SendMessageBatchResult result = new SendMessageBatchResult();
+      for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+        result.withSuccessful(new SendMessageBatchResultEntry().withId(entry.getId())
+            .withMessageId("id-" + entry.getMessageBody()));
+      }
+      return respond(result).answer(invocation);
+    };
+  }
+
+  private static Answer<Future<SendMessageBatchResult>> respond(SendMessageBatchResult result) {
+    return invocation -> {
+      AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler =
+          invocation.getArgument(1);
+      handler.onSuccess(invocation.getArgument(0), result);
+      return CompletableFuture.completedFuture(result);
+    };
+  }
+
+  private static SendMessageRequest message(String queueUrl, String body) {
+    return new SendMessageRequest(queueUrl, body).withMessageGroupId("testGroup")
+        .withMessageDeduplicationId(body);
+  }
+}
@@ -0,0 +1,195 @@
+package uk.gov.caz.notify.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.times;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class VisibilityHeartbeatTest {
+
+  VisibilityHeartbeat visibilityHeartbeat;
+
+  @Mock
+  AmazonSQSAsync client;
+
+  @BeforeEach
+  void init() {
+    visibilityHeartbeat = new VisibilityHeartbeat(client, 0, 60);
+    Mockito.lenient().when(client.changeMessageVisibilityBatchAsync(
+        Mockito.any(ChangeMessageVisibilityBatchRequest.class), Mockito.any()))
+        .thenAnswer(invocation -> {
+          AsyncHandler<ChangeMessageVisibilityBatchRequest, ChangeMessageVisibilityBatchResult>
+              handler = invocation.getArgument(1);
+          handler.onSuccess(invocation.getArgument(0), new ChangeMessageVisibilityBatchResult());
+          return null;
+        });
+  }
+
+  @AfterEach
+  void tearDown() {
+    visibilityHeartbeat.shutdown();
+  }
+
+  @Test
+  void shouldExtendVisibilityOfTrackedMessagesInBatchesOfTen() {
+    List<Message> messages = messages(12);
+    visibilityHeartbeat.track("testUrl", messages);
+
+    visibilityHeartbeat.extendVisibility();
+
+    List<ChangeMessageVisibilityBatchRequest> requests = capturedRequests(2);
+    assertThat(requests.get(0).getQueueUrl()).isEqualTo("testUrl");
+    assertThat(requests.get(0).getEntries()).hasSize(10)
+        .allSatisfy(entry -> assertThat(entry.getVisibilityTimeout()).isEqualTo(60));
+    assertThat(requests.get(1).getEntries()).hasSize(2);
+  }
+
+  @Test
+  void shouldStopExtendingVisibilityOfCompletedMessages() {
+    List<Message> messages = messages(2);
+    VisibilityHeartbeat.Lease lease = visibilityHeartbeat.track("testUrl", messages);
+    lease.complete(messages.get(0));
+
+    visibilityHeartbeat.extendVisibility();
+    lease.close();
+    visibilityHeartbeat.extendVisibility();
+
+    assertThat(receiptHandles(capturedRequests(1).get(0))).containsExactly("testHandle1");
+  }
+
+  @Test
+  void shouldReleaseOnlyMessagesWhichWereNotStarted() {
+    List<Message> messages = messages(3);
+    VisibilityHeartbeat.Lease lease = visibilityHeartbeat.track("testUrl", messages);
+    lease.start(messages.get(0));
+    lease.start(messages.get(1));
+    lease.complete(messages.get(0));
+
+    lease.releaseUnstarted();
+    visibilityHeartbeat.extendVisibility();
+
+    List<ChangeMessageVisibilityBatchRequest> requests = capturedRequests(2);
+    assertThat(receiptHandles(requests.get(0))).containsExactly("testHandle2");
+    assertThat(requests.get(0).getEntries().get(0).getVisibilityTimeout()).isZero();
+    assertThat(receiptHandles(requests.get(1))).containsExactly("testHandle1");
+  }
+
+  @Test
+  void shouldKeepPostponedMessageInvisibleUntilItIsDue() {
+    List<Message> messages = messages(2);
+    VisibilityHeartbeat.Lease lease = visibilityHeartbeat.track("testUrl", messages);
+
+    lease.postpone(messages.get(0), 90_500);
+    lease.releaseUnstarted();
+
+    List<ChangeMessageVisibilityBatchRequest> requests = capturedRequests(2);
+    assertThat(receiptHandles(requests.get(0))).containsExactly("testHandle0");
+    assertThat(requests.get(0).getEntries().get(0).getVisibilityTimeout()).isEqualTo(91);
+    assertThat(receiptHandles(requests.get(1))).containsExactly("testHandle1");
+  }
+
+  @Test
+  void shouldReleaseMessagesOnlyOnceExtensionInFlightHasFinished() {
+    List<AsyncHandler<ChangeMessageVisibilityBatchRequest, ChangeMessageVisibilityBatchResult>>
+        handlers = new ArrayList<>();
+    Mockito.when(client.changeMessageVisibilityBatchAsync(
+        Mockito.any(ChangeMessageVisibilityBatchRequest.class), Mockito.any()))
+        .thenAnswer(invocation -> {
+          handlers.add(invocation.getArgument(1));
+          return null;
+        });
+    List<Message> messages = messages(1);
+    VisibilityHeartbeat.Lease lease = visibilityHeartbeat.track("testUrl", messages);
+
+    visibilityHeartbeat.extendVisibility();
+    lease.releaseUnstarted();
+
+    capturedRequests(1);
+    handlers.get(0).onError(new IllegalStateException("Error thrown successfully."));
+    List<ChangeMessageVisibilityBatchRequest> requests = capturedRequests(2);
+    assertThat(requests.get(0).getEntries().get(0).getVisibilityTimeout()).isEqualTo(60);
+    assertThat(receiptHandles(requests.get(1))).containsExactly("testHandle0");
+    assertThat(requests.get(1).getEntries().get(0).getVisibilityTimeout()).isZero();
+  }
+
+  @Test
+  void shouldCompleteCloseOnlyOnceReleaseHasFinished() {
+    List<AsyncHandler<ChangeMessageVisibilityBatchRequest, ChangeMessageVisibilityBatchResult>>
+        handlers = new ArrayList<>();
+    Mockito.when(client.changeMessageVisibilityBatchAsync(
+        Mockito.any(ChangeMessageVisibilityBatchRequest.class), Mockito.any()))
+        .thenAnswer(invocation -> {
+          handlers.add(invocation.getArgument(1));
+          return null;
+        });
+    List<Message> messages = messages(1);
+    VisibilityHeartbeat.Lease lease = visibilityHeartbeat.track("testUrl", messages);
+
+    CompletableFuture<Void> released = lease.releaseUnstarted();
+    CompletableFuture<Void> closed = lease.close();
+
+    assertThat(released).isNotDone();
+    assertThat(closed).isNotDone();
+    handlers.get(0).onSuccess(capturedRequests(1).get(0),
+        new ChangeMessageVisibilityBatchResult());
+    assertThat(released).isDone();
+    assertThat(closed).isDone();
+  }
+
+  @Test
+  void shouldCapVisibilityOfPostponedMessage() {
+    visibilityHeartbeat.postpone("testUrl", messages(1).get(0), Long.MAX_VALUE / 2);
+
+    assertThat(capturedRequests(1).get(0).getEntries().get(0).getVisibilityTimeout())
+        .isEqualTo(43_200);
+  }
+
+  @Test
+  void shouldNotCallSqsWithoutMessages() {
+    visibilityHeartbeat.track("testUrl", new ArrayList<>()).releaseUnstarted();
+    visibilityHeartbeat.extendVisibility();
+
+    Mockito.verifyZeroInteractions(client);
+  }
+
+  private List<ChangeMessageVisibilityBatchRequest> capturedRequests(int count) {
+    ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+        ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+    Mockito.verify(client, times(count))
+        .changeMessageVisibilityBatchAsync(captor.capture(), Mockito.any());
+    return captor.getAllValues();
+  }
+
+  private static List<String> receiptHandles(ChangeMessageVisibilityBatchRequest request) {
+    return request.getEntries().stream()
+        .map(ChangeMessageVisibilityBatchRequestEntry::getReceiptHandle)
+        .collect(Collectors.toList());
+  }
+
+  private static List<Message> messages(int count) {
+    Message[] messages = new Message[count];
+    for (int i = 0; i < count; i++) {
+      messages[i] = new Message().withReceiptHandle("testHandle" + i);
+    }
+    return Arrays.asList(messages);
+  }
+}
@@ -0,0 +1,112 @@
+package uk.gov.caz.notify.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class EmfMetricsPublisherTest {
+
+  ObjectMapper objectMapper = new ObjectMapper();
+
+  SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  EmfMetricsPublisher publisher = new EmfMetricsPublisher(meterRegistry, objectMapper,
+      "TestNamespace", new PrintStream(output, true));
+
+  @Test
+  void shouldWriteMetersWithSameTagsAsOneDocument() throws IOException {
+    meterRegistry.counter("notify.routed", "queue", "new").increment(3);
+    Timer.builder("notify.latency").tag("queue", "new").register(meterRegistry)
+        .record(250, TimeUnit.MILLISECONDS);
+
+    publisher.publish();
+
+    List<JsonNode> documents = documents();
+    assertThat(documents).hasSize(1);
+    JsonNode document = documents.get(0);
+    JsonNode directive = document.get("_aws").get("CloudWatchMetrics").get(0);
+    assertThat(directive.get("Namespace").asText()).isEqualTo("TestNamespace");
+    assertThat(directive.get("Dimensions").get(0).get(0).asText()).isEqualTo("queue");
+    assertThat(directive.get("Metrics").findValuesAsText("Name"))
+        .contains("notify.routed.count", "notify.latency.count", "notify.latency.total",
+            "notify.latency.max");
+    assertThat(document.get("queue").asText()).isEqualTo("new");
+    assertThat(document.get("notify.routed.count").asDouble()).isEqualTo(3);
+    assertThat(document.get("notify.latency.total").asDouble()).isEqualTo(250);
+    assertThat(document.get("notify.latency.max").asDouble()).isEqualTo(250);
+  }
+
+  @Test
+  void shouldWriteChangeOfCountsSincePreviousPublication() throws IOException {
+    meterRegistry.counter("notify.routed").increment(3);
+    publisher.publish();
+    output.reset();
+
+    meterRegistry.counter("notify.routed").increment(2);
+    publisher.publish();
+
+    List<JsonNode> documents = documents();
+    assertThat(documents).hasSize(1);
+    assertThat(documents.get(0).get("notify.routed.count").asDouble()).isEqualTo(2);
+  }
+
+  @Test
+  void shouldNotWriteUnchangedCounts() {
+    meterRegistry.counter("notify.routed").increment();
+    publisher.publish();
+    output.reset();
+
+    publisher.publish();
+
+    assertThat(output.toString()).isEmpty();
+  }
+
+  @Test
+  void shouldWriteGaugeValues() throws IOException {
+    meterRegistry.gauge("notify.state", 1);
+    meterRegistry.gauge("notify.missing", Double.NaN);
+
+    publisher.publish();
+
+    List<JsonNode> documents = documents();
+    assertThat(documents).hasSize(1);
+    assertThat(documents.get(0).get("notify.state.value").asDouble()).isEqualTo(1);
+    assertThat(documents.get(0).has("notify.missing.value")).isFalse();
+  }
+
+  @Test
+  void shouldOnlyWriteMetersOfTheGateway() throws IOException {
+    meterRegistry.counter("notify.routed").increment();
+    meterRegistry.counter("jvm.gc.pause").increment();
+    meterRegistry.gauge("process.uptime", 1);
+
+    publisher.publish();
+
+    List<JsonNode> documents = documents();
+    assertThat(documents).hasSize(1);
+    assertThat(documents.get(0).get("_aws").get("CloudWatchMetrics").get(0).get("Metrics")
+        .findValuesAsText("Name")).containsExactly("notify.routed.count");
+  }
+
+  private List<JsonNode> documents() throws IOException {
+    List<JsonNode> documents = new ArrayList<>();
+    for (String line : output.toString().split("\\R")) {
+      if (!line.isEmpty()) {
+        documents.add(objectMapper.readTree(line));
+      }
+    }
+    return documents;
+  }
+}
@@ -0,0 +1,44 @@
+package uk.gov.caz.notify.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.domain.RoutingOutcome;
+
+public class MessageMetricsTest {
+
+  SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  MessageMetrics messageMetrics = new MessageMetrics(meterRegistry);
+
+  @Test
+  void shouldCountOutcomesBySourceQueue() {
+    messageMetrics.recordOutcome(QueueName.NEW, RoutingOutcome.SENT);
+    messageMetrics.recordOutcome(QueueName.NEW, RoutingOutcome.SENT);
+    messageMetrics.recordOutcome(QueueName.SERVICE_ERROR, RoutingOutcome.SERVICE_DOWN);
+    messageMetrics.recordOutcome(null, RoutingOutcome.DLQ);
+
+    assertThat(meterRegistry.get("notify.messages.routed").tags("queue", "new", "outcome", "sent")
+        .counter().count()).isEqualTo(2);
+    assertThat(meterRegistry.get("notify.messages.routed")
+        .tags("queue", "service-error", "outcome", "service-down").counter().count())
+        .isEqualTo(1);
+    assertThat(meterRegistry.get("notify.messages.routed")
+        .tags("queue", MessageMetrics.UNKNOWN_QUEUE, "outcome", "dlq").counter().count())
+        .isEqualTo(1);
+  }
+
+  @Test
+  void shouldRecordBatchSizeAndDrainTime() {
+    messageMetrics.recordBatch(QueueName.REQUEST_LIMIT, 10, TimeUnit.MILLISECONDS.toNanos(250));
+    messageMetrics.recordBatch(QueueName.REQUEST_LIMIT, 4, TimeUnit.MILLISECONDS.toNanos(50));
+
+    assertThat(meterRegistry.get("notify.batch.size").tag("queue", "request-limit")
+        .summary().totalAmount()).isEqualTo(14);
+    assertThat(meterRegistry.get("notify.drain.iteration").tag("queue", "request-limit")
+        .timer().totalTime(TimeUnit.MILLISECONDS)).isEqualTo(300);
+  }
+}
@@ -0,0 +1,227 @@
+package uk.gov.caz.notify.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.data.Offset.offset;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.BaseEncoding;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.gov.service.notify.NotificationClientException;
+import uk.gov.service.notify.SendEmailResponse;
+
+@ExtendWith(MockitoExtension.class)
+public class AsyncNotificationClientTest {
+
+  @Mock
+  CloseableHttpAsyncClient httpClient;
+
+  ObjectMapper objectMapper = new ObjectMapper();
+
+  String serviceId = UUID.randomUUID().toString();
+  String secretKey = UUID.randomUUID().toString();
+  String templateId = UUID.randomUUID().toString();
+
+  AsyncNotificationClient client;
+
+  @BeforeEach
+  void init() {
+    client = new AsyncNotificationClient(httpClient, "test_key-" + serviceId + "-" + secretKey,
+        "https://notify.test");
+  }
+
+  @Test
+  void shouldSendAuthenticatedEmailRequest() throws Exception {
+    respondWith(response(201, new JSONObject().put("id", UUID.randomUUID().toString())
+        .put("reference", "ref")
+        .put("template", new JSONObject().put("id", templateId))
+        .toString()));
+
+    SendEmailResponse response = client.sendEmail(templateId, "test@notify.com",
+        Collections.singletonMap("name", "value"), "ref").get();
+
+    assertThat(response.getTemplateId().toString()).isEqualTo(templateId);
+    ArgumentCaptor<HttpUriRequest> captor = ArgumentCaptor.forClass(HttpUriRequest.class);
+    Mockito.verify(httpClient).execute(captor.capture(), Mockito.any());
+    HttpPost request = (HttpPost) captor.getValue();
+    assertThat(request.getURI().toString())
+        .isEqualTo("https://notify.test/v2/notifications/email");
+    JsonNode body = objectMapper.readTree(EntityUtils.toString(request.getEntity()));
+    assertThat(body.get("template_id").asText()).isEqualTo(templateId);
+    assertThat(body.get("email_address").asText()).isEqualTo("test@notify.com");
+    assertThat(body.get("personalisation").get("name").asText()).isEqualTo("value");
+    assertThat(body.get("reference").asText()).isEqualTo("ref");
+    assertValidToken(request.getFirstHeader("Authorization").getValue().substring(7));
+  }
+
+  @Test
+  void shouldLeaveOutEmptyOptionalFields() throws Exception {
+    respondWith(response(400, "{\"errors\":[]}"));
+
+    client.sendEmail(templateId, "test@notify.com", null, null);
+
+    ArgumentCaptor<HttpUriRequest> captor = ArgumentCaptor.forClass(HttpUriRequest.class);
+    Mockito.verify(httpClient).execute(captor.capture(), Mockito.any());
+    JsonNode body = objectMapper.readTree(
+        EntityUtils.toString(((HttpPost) captor.getValue()).getEntity()));
+    assertThat(body.has("personalisation")).isFalse();
+    assertThat(body.has("reference")).isFalse();
+  }
+
+  @Test
+  void shouldFailWithStatusAndRetryAfterOfErrorResponse() {
+    HttpResponse tooManyRequests = response(429, "{\"errors\":[]}");
+    tooManyRequests.setHeader("Retry-After", "2");
+    respondWith(tooManyRequests);
+
+    ExecutionException e = assertThrows(ExecutionException.class,
+        () -> client.sendEmail(templateId, "test@notify.com", null, "ref").get());
+
+    assertThat(e.getCause()).isInstanceOf(NotifyResponseException.class);
+    NotifyResponseException cause = (NotifyResponseException) e.getCause();
+    assertThat(cause.getHttpResult()).isEqualTo(429);
+    assertThat(cause.getRetryAfterMillis()).isEqualTo(2000);
+  }
+
+  @Test
+  void shouldReadRetryAfterGivenAsHttpDate() {
+    HttpResponse serviceDown = response(503, "");
+    serviceDown.setHeader("Retry-After",
+        DateUtils.formatDate(new Date(System.currentTimeMillis() + 60000)));
+    respondWith(serviceDown);
+
+    ExecutionException e = assertThrows(ExecutionException.class,
+        () -> client.sendEmail(templateId, "test@notify.com", null, "ref").get());
+
+    assertThat(((NotifyResponseException) e.getCause()).getRetryAfterMillis())
+        .isBetween(55000L, 60000L);
+  }
+
+  @Test
+  void shouldIgnoreRetryAfterWhichIsNeitherNumberOfSecondsNorDate() {
+    HttpResponse serviceDown = response(503, "");
+    serviceDown.setHeader("Retry-After", "soon");
+    respondWith(serviceDown);
+
+    ExecutionException e = assertThrows(ExecutionException.class,
+        () -> client.sendEmail(templateId, "test@notify.com", null, "ref").get());
+
+    assertThat(((NotifyResponseException) e.getCause()).getRetryAfterMillis()).isZero();
+  }
+
+  @Test
+  void shouldIgnoreRetryAfterDateInThePast() {
+    HttpResponse serviceDown = response(503, "");
+    serviceDown.setHeader("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT");
+    respondWith(serviceDown);
+
+    ExecutionException e = assertThrows(ExecutionException.class,
+        () -> client.sendEmail(templateId, "test@notify.com", null, "ref").get());
+
+    assertThat(((NotifyResponseException) e.getCause()).getRetryAfterMillis()).isZero();
+  }
+
+  @Test
+  void shouldFailWithCauseOfConnectionErrors() {
+    Mockito.when(httpClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any()))
+        .thenAnswer(invocation -> {
+          FutureCallback<HttpResponse> callback = invocation.getArgument(1);
+          callback.failed(new SocketTimeoutException("timeout"));
+          return null;
+        });
+
+    ExecutionException e = assertThrows(ExecutionException.class,
+        () -> client.sendEmail(templateId, "test@notify.com", null, "ref").get());
+
+    assertThat(e.getCause()).isInstanceOf(NotificationClientException.class);
+    assertThat(e.getCause().getCause()).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  void shouldFailCancelledRequestsWithIoError() {
+    Mockito.when(httpClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any()))
+        .thenAnswer(invocation -> {
+          FutureCallback<HttpResponse> callback = invocation.getArgument(1);
+          callback.cancelled();
+          return null;
+        });
+
+    CompletableFuture<SendEmailResponse> result =
+        client.sendEmail(templateId, "test@notify.com", null, "ref");
+
+    ExecutionException e = assertThrows(ExecutionException.class, result::get);
+    assertThat(e.getCause().getCause()).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  void shouldReuseRecentlyIssuedToken() throws Exception {
+    assertThat(client.getToken()).isSameAs(client.getToken());
+  }
+
+  @Test
+  void shouldCloseHttpClient() throws IOException {
+    client.close();
+
+    Mockito.verify(httpClient).close();
+  }
+
+  private void assertValidToken(String token) throws Exception {
+    String[] parts = token.split("\\.");
+    assertThat(parts).hasSize(3);
+    JsonNode claims = objectMapper.readTree(
+        BaseEncoding.base64Url().omitPadding().decode(parts[1]));
+    assertThat(claims.get("iss").asText()).isEqualTo(serviceId);
+    assertThat(claims.get("iat").asLong())
+        .isCloseTo(System.currentTimeMillis() / 1000, offset(5L));
+
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+    byte[] signature = mac.doFinal((parts[0] + "." + parts[1])
+        .getBytes(StandardCharsets.UTF_8));
+    assertThat(BaseEncoding.base64Url().omitPadding().encode(signature)).isEqualTo(parts[2]);
+  }
+
+  private void respondWith(HttpResponse response) {
+    Mockito.when(httpClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any()))
+        .thenAnswer(invocation -> {
+          FutureCallback<HttpResponse> callback = invocation.getArgument(1);
+          callback.completed(response);
+          return null;
+        });
+  }
+
+  private static HttpResponse response(int status, String body) {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+    response.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+    return response;
+  }
+}
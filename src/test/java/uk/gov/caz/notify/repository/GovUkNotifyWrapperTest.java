@@ -2,20 +2,25 @@ package uk.gov.caz.notify.repository;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.test.util.ReflectionTestUtils;
 import uk.gov.service.notify.NotificationClient;
 import uk.gov.service.notify.NotificationClientException;
 import uk.gov.service.notify.SendEmailResponse;
+import uk.gov.service.notify.Template;
 
 @ExtendWith(MockitoExtension.class)
 public class GovUkNotifyWrapperTest {
@@ -25,6 +30,17 @@ public class GovUkNotifyWrapperTest {
   @Mock
   NotificationClient client;
 
+  @Mock
+  AsyncNotificationClient asyncClient;
+
+  @Mock
+  NotifyRateLimiter rateLimiter;
+
+  @Mock
+  NotifyCircuitBreaker circuitBreaker;
+
+  SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
   String apiKey = "testApiKey";
   String templateId;
   String emailAddress = "test@notify.com";
@@ -34,8 +50,10 @@ public class GovUkNotifyWrapperTest {
 
   @BeforeEach
   void init() {
-    govUkNotifyWrapper = new GovUkNotifyWrapper();
-    ReflectionTestUtils.setField(govUkNotifyWrapper, "client", client);
+    govUkNotifyWrapper = new GovUkNotifyWrapper(client, null, rateLimiter, circuitBreaker,
+        meterRegistry);
+    Mockito.lenient().when(rateLimiter.tryAcquire()).thenReturn(true);
+    Mockito.lenient().when(circuitBreaker.tryAcquirePermission()).thenReturn(true);
     reference = UUID.randomUUID().toString();
     templateId = UUID.randomUUID().toString();
     String response = new JSONObject().put("id", UUID.randomUUID().toString())
@@ -71,6 +89,181 @@ public class GovUkNotifyWrapperTest {
 
   }
 
+  @Test
+  public void throwsInstantiationErrorWhenApiKeyIsNotSet() {
+    GovUkNotifyWrapper wrapperWithoutKey = new GovUkNotifyWrapper("", true, 1, rateLimiter,
+        circuitBreaker, meterRegistry);
+
+    assertThrows(InstantiationException.class, () -> wrapperWithoutKey.sendEmail(templateId,
+        emailAddress, personalisation, reference));
+    assertThrows(InstantiationException.class,
+        () -> wrapperWithoutKey.getTemplateById(templateId));
+  }
+
+  @Test
+  public void throwsRateLimitExceededWithoutCallingNotify() throws NotificationClientException {
+    Mockito.when(rateLimiter.tryAcquire()).thenReturn(false);
+
+    RateLimitExceededException e = assertThrows(RateLimitExceededException.class,
+        () -> govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference));
+
+    assertEquals(429, e.getHttpResult());
+    Mockito.verify(client, Mockito.never()).sendEmail(Mockito.anyString(), Mockito.anyString(),
+        Mockito.anyMap(), Mockito.anyString());
+    Mockito.verify(circuitBreaker).releasePermission();
+  }
+
+  @Test
+  public void throwsCircuitBreakerOpenWithoutCallingNotify()
+      throws NotificationClientException {
+    Mockito.when(circuitBreaker.tryAcquirePermission()).thenReturn(false);
+
+    CircuitBreakerOpenException e = assertThrows(CircuitBreakerOpenException.class,
+        () -> govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference));
+
+    assertEquals(503, e.getHttpResult());
+    Mockito.verify(client, Mockito.never()).sendEmail(Mockito.anyString(), Mockito.anyString(),
+        Mockito.anyMap(), Mockito.anyString());
+    Mockito.verifyZeroInteractions(rateLimiter);
+  }
+
+  @Test
+  public void recordsServiceErrorsAsCircuitBreakerFailures()
+      throws NotificationClientException {
+    Mockito.when(client.sendEmail(Mockito.anyString(), Mockito.anyString(),
+        Mockito.anyMap(), Mockito.anyString()))
+        .thenThrow(new NotifyResponseException(503, "Error thrown successfully.", 0))
+        .thenThrow(new NotificationClientException(new IOException("timeout")))
+        .thenThrow(new NotifyResponseException(400, "Error thrown successfully.", 0))
+        .thenReturn(sendEmailResponse);
+
+    for (int i = 0; i < 4; i++) {
+      try {
+        govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference);
+      } catch (NotificationClientException | IOException | InstantiationException e) {
+        assertNotNull(e);
+      }
+    }
+
+    Mockito.verify(circuitBreaker, Mockito.times(2)).onFailure();
+    Mockito.verify(circuitBreaker, Mockito.times(2)).onSuccess();
+  }
+
+  @Test
+  public void recordsLatencyOfNotifyCallsByStatus()
+      throws NotificationClientException, IOException, InstantiationException {
+    Mockito.when(client.sendEmail(Mockito.anyString(), Mockito.anyString(),
+        Mockito.anyMap(), Mockito.anyString()))
+        .thenReturn(sendEmailResponse)
+        .thenThrow(new NotifyResponseException(500, "Error thrown successfully.", 0))
+        .thenThrow(new NotificationClientException(new IOException("timeout")));
+
+    govUkNotifyWrapper.sendEmail(templateId, emailAddress, personalisation, reference);
+    assertThrows(NotificationClientException.class, () -> govUkNotifyWrapper.sendEmail(templateId,
+        emailAddress, personalisation, reference));
+    assertThrows(NotificationClientException.class, () -> govUkNotifyWrapper.sendEmail(templateId,
+        emailAddress, personalisation, reference));
+
+    assertEquals(1, meterRegistry.get("notify.api.requests").tag("status", "201").timer().count());
+    assertEquals(1, meterRegistry.get("notify.api.requests").tag("status", "500").timer().count());
+    assertEquals(1,
+        meterRegistry.get("notify.api.requests").tag("status", "io-error").timer().count());
+  }
+
+  @Test
+  public void sendsEmailsWithTheNonBlockingClient() {
+    GovUkNotifyWrapper asyncWrapper = new GovUkNotifyWrapper(client, asyncClient, rateLimiter,
+        circuitBreaker, meterRegistry);
+    Mockito.when(asyncClient.sendEmail(templateId, emailAddress, Collections.emptyMap(),
+        reference)).thenReturn(CompletableFuture.completedFuture(sendEmailResponse));
+
+    SendEmailResponse testResponse = asyncWrapper.sendEmailAsync(templateId, emailAddress,
+        Collections.emptyMap(), reference).join();
+
+    assertEquals(sendEmailResponse, testResponse);
+    assertTrue(asyncWrapper.isAsyncEnabled());
+    Mockito.verify(circuitBreaker).onSuccess();
+    Mockito.verifyZeroInteractions(client);
+    assertEquals(1, meterRegistry.get("notify.api.requests").tag("status", "201").timer().count());
+  }
+
+  @Test
+  public void recordsFailuresOfTheNonBlockingClient() {
+    GovUkNotifyWrapper asyncWrapper = new GovUkNotifyWrapper(client, asyncClient, rateLimiter,
+        circuitBreaker, meterRegistry);
+    CompletableFuture<SendEmailResponse> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new NotifyResponseException(503, "Error thrown successfully.", 0));
+    Mockito.when(asyncClient.sendEmail(templateId, emailAddress, Collections.emptyMap(),
+        reference)).thenReturn(failed);
+
+    ExecutionException e = assertThrows(ExecutionException.class, () -> asyncWrapper
+        .sendEmailAsync(templateId, emailAddress, Collections.emptyMap(), reference).get());
+
+    assertTrue(e.getCause() instanceof NotifyResponseException);
+    Mockito.verify(circuitBreaker).onFailure();
+    assertEquals(1, meterRegistry.get("notify.api.requests").tag("status", "503").timer().count());
+  }
+
+  @Test
+  public void failsAsyncSendWithoutCallingNotifyWhenCircuitBreakerIsOpen() {
+    GovUkNotifyWrapper asyncWrapper = new GovUkNotifyWrapper(client, asyncClient, rateLimiter,
+        circuitBreaker, meterRegistry);
+    Mockito.when(circuitBreaker.tryAcquirePermission()).thenReturn(false);
+
+    ExecutionException e = assertThrows(ExecutionException.class, () -> asyncWrapper
+        .sendEmailAsync(templateId, emailAddress, Collections.emptyMap(), reference).get());
+
+    assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+    Mockito.verifyZeroInteractions(asyncClient);
+  }
+
+  @Test
+  public void sendsAsyncEmailsInCallingThreadWithoutNonBlockingClient()
+      throws NotificationClientException {
+    Mockito.when(client.sendEmail(templateId, emailAddress, Collections.emptyMap(), reference))
+        .thenReturn(sendEmailResponse)
+        .thenThrow(new NotifyResponseException(400, "Error thrown successfully.", 0));
+
+    CompletableFuture<SendEmailResponse> sent = govUkNotifyWrapper.sendEmailAsync(templateId,
+        emailAddress, Collections.emptyMap(), reference);
+    CompletableFuture<SendEmailResponse> rejected = govUkNotifyWrapper.sendEmailAsync(templateId,
+        emailAddress, Collections.emptyMap(), reference);
+
+    assertEquals(sendEmailResponse, sent.getNow(null));
+    assertTrue(rejected.isCompletedExceptionally());
+  }
+
+  @Test
+  public void canFetchATemplate() throws NotificationClientException, InstantiationException {
+    Template template = Mockito.mock(Template.class);
+    Mockito.when(client.getTemplateById(templateId)).thenReturn(template);
+
+    assertEquals(template, govUkNotifyWrapper.getTemplateById(templateId));
+    Mockito.verify(rateLimiter).tryAcquire();
+    Mockito.verify(circuitBreaker).onSuccess();
+  }
+
+  @Test
+  public void recordsTemplateServiceErrorsAsCircuitBreakerFailures()
+      throws NotificationClientException {
+    Mockito.when(client.getTemplateById(templateId))
+        .thenThrow(new NotifyResponseException(500, "Error thrown successfully.", 0));
+
+    assertThrows(NotificationClientException.class,
+        () -> govUkNotifyWrapper.getTemplateById(templateId));
+    Mockito.verify(circuitBreaker).onFailure();
+  }
+
+  @Test
+  public void throwsRateLimitExceededWithoutFetchingTemplate()
+      throws NotificationClientException {
+    Mockito.when(rateLimiter.tryAcquire()).thenReturn(false);
+
+    assertThrows(RateLimitExceededException.class,
+        () -> govUkNotifyWrapper.getTemplateById(templateId));
+    Mockito.verify(client, Mockito.never()).getTemplateById(Mockito.anyString());
+  }
+
   @Test
   public void ioErrorThrown()
       throws NotificationClientException, InstantiationException {
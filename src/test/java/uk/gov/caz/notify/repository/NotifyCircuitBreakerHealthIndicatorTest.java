@@ -0,0 +1,38 @@
+package uk.gov.caz.notify.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import uk.gov.caz.notify.repository.NotifyCircuitBreaker.State;
+
+@ExtendWith(MockitoExtension.class)
+public class NotifyCircuitBreakerHealthIndicatorTest {
+
+  @Mock
+  NotifyCircuitBreaker circuitBreaker;
+
+  @InjectMocks
+  NotifyCircuitBreakerHealthIndicator healthIndicator;
+
+  @Test
+  void shouldReportStateOfCircuitBreaker() {
+    Mockito.when(circuitBreaker.getState())
+        .thenReturn(State.CLOSED, State.OPEN, State.HALF_OPEN);
+
+    Health closed = healthIndicator.health();
+    Health open = healthIndicator.health();
+    Health halfOpen = healthIndicator.health();
+
+    assertThat(closed.getStatus()).isEqualTo(Status.UP);
+    assertThat(closed.getDetails()).containsEntry("state", State.CLOSED);
+    assertThat(open.getStatus()).isEqualTo(Status.DOWN);
+    assertThat(halfOpen.getStatus()).isEqualTo(Status.UNKNOWN);
+  }
+}
@@ -0,0 +1,100 @@
+package uk.gov.caz.notify.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import uk.gov.caz.notify.repository.NotifyCircuitBreaker.State;
+
+public class NotifyCircuitBreakerTest {
+
+  SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Test
+  void shouldStayClosedBelowMinimumNumberOfCalls() {
+    NotifyCircuitBreaker circuitBreaker = new NotifyCircuitBreaker(0.5, 10, 4, 60000, 1,
+        meterRegistry);
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+      circuitBreaker.onFailure();
+    }
+
+    assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  void shouldOpenAndRejectCallsOnceFailureRateIsReached() {
+    NotifyCircuitBreaker circuitBreaker = new NotifyCircuitBreaker(0.5, 4, 4, 60000, 1,
+        meterRegistry);
+
+    circuitBreaker.onSuccess();
+    circuitBreaker.onSuccess();
+    circuitBreaker.onFailure();
+    assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+    circuitBreaker.onFailure();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(State.OPEN);
+    assertThat(circuitBreaker.tryAcquirePermission()).isFalse();
+    assertThat(circuitBreaker.getRejectedCount()).isEqualTo(1);
+    assertThat(circuitBreaker.getTransitionCount(State.OPEN)).isEqualTo(1);
+    assertThat(meterRegistry.get("notify.circuit.breaker.state").gauge().value()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldComputeFailureRateOverSlidingWindow() {
+    NotifyCircuitBreaker circuitBreaker = new NotifyCircuitBreaker(0.5, 4, 4, 60000, 1,
+        meterRegistry);
+
+    circuitBreaker.onFailure();
+    for (int i = 0; i < 4; i++) {
+      circuitBreaker.onSuccess();
+    }
+    circuitBreaker.onFailure();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  void shouldCloseAfterSuccessfulProbes() {
+    NotifyCircuitBreaker circuitBreaker = new NotifyCircuitBreaker(0.5, 2, 1, 0, 2,
+        meterRegistry);
+    circuitBreaker.onFailure();
+
+    assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+    assertThat(circuitBreaker.getState()).isEqualTo(State.HALF_OPEN);
+    assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+    assertThat(circuitBreaker.tryAcquirePermission()).isFalse();
+    circuitBreaker.onSuccess();
+    circuitBreaker.onSuccess();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(State.CLOSED);
+    assertThat(circuitBreaker.getTransitionCount(State.HALF_OPEN)).isEqualTo(1);
+    assertThat(circuitBreaker.getTransitionCount(State.CLOSED)).isEqualTo(1);
+  }
+
+  @Test
+  void shouldReopenWhenProbeFails() {
+    NotifyCircuitBreaker circuitBreaker = new NotifyCircuitBreaker(0.5, 2, 1, 0, 1,
+        meterRegistry);
+    circuitBreaker.onFailure();
+
+    assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+    circuitBreaker.onFailure();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(State.OPEN);
+    assertThat(circuitBreaker.getTransitionCount(State.OPEN)).isEqualTo(2);
+  }
+
+  @Test
+  void shouldReleaseUnusedProbePermission() {
+    NotifyCircuitBreaker circuitBreaker = new NotifyCircuitBreaker(0.5, 2, 1, 0, 1,
+        meterRegistry);
+    circuitBreaker.onFailure();
+
+    assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+    circuitBreaker.releasePermission();
+
+    assertThat(circuitBreaker.tryAcquirePermission()).isTrue();
+  }
+}
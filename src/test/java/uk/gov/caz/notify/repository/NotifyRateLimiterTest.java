@@ -0,0 +1,70 @@
+package uk.gov.caz.notify.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.data.Offset.offset;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+public class NotifyRateLimiterTest {
+
+  @Test
+  void shouldGrantBurstImmediately() {
+    NotifyRateLimiter rateLimiter = new NotifyRateLimiter(1, 3, 0, new SimpleMeterRegistry());
+
+    assertThat(rateLimiter.tryAcquire()).isTrue();
+    assertThat(rateLimiter.tryAcquire()).isTrue();
+    assertThat(rateLimiter.tryAcquire()).isTrue();
+
+    assertThat(rateLimiter.getGrantedCount()).isEqualTo(3);
+    assertThat(rateLimiter.getWaitedCount()).isZero();
+  }
+
+  @Test
+  void shouldRejectOnceBurstIsUsedUpAndWaitIsTooLong() {
+    NotifyRateLimiter rateLimiter = new NotifyRateLimiter(1, 1, 100, new SimpleMeterRegistry());
+
+    assertThat(rateLimiter.tryAcquire()).isTrue();
+    assertThat(rateLimiter.tryAcquire()).isFalse();
+
+    assertThat(rateLimiter.getGrantedCount()).isEqualTo(1);
+    assertThat(rateLimiter.getRejectedCount()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldWaitForPermitWithinMaximumWait() {
+    NotifyRateLimiter rateLimiter = new NotifyRateLimiter(5, 1, 1000,
+        new SimpleMeterRegistry());
+
+    long start = System.nanoTime();
+    assertThat(rateLimiter.tryAcquire()).isTrue();
+    assertThat(rateLimiter.tryAcquire()).isTrue();
+    long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+    assertThat(rateLimiter.getWaitedCount()).isEqualTo(1);
+    assertThat(rateLimiter.getGrantedCount()).isEqualTo(2);
+    assertThat(elapsedMillis).isGreaterThanOrEqualTo(100);
+  }
+
+  @Test
+  void shouldNotLimitWhenRateIsNotSet() {
+    NotifyRateLimiter rateLimiter = new NotifyRateLimiter(0, 1, 0, new SimpleMeterRegistry());
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(rateLimiter.tryAcquire()).isTrue();
+    }
+    assertThat(rateLimiter.getRejectedCount()).isZero();
+  }
+
+  @Test
+  void shouldReportPermitsAvailableWithoutWaiting() {
+    NotifyRateLimiter rateLimiter = new NotifyRateLimiter(0.001, 3, 0,
+        new SimpleMeterRegistry());
+
+    rateLimiter.tryAcquire();
+
+    assertThat(rateLimiter.getAvailablePermits()).isCloseTo(2, offset(0.01));
+    assertThat(new NotifyRateLimiter(0, 1, 0, new SimpleMeterRegistry()).getAvailablePermits())
+        .isEqualTo(Double.POSITIVE_INFINITY);
+  }
+}
@@ -0,0 +1,106 @@
+package uk.gov.caz.notify.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Optional;
+import java.util.UUID;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.gov.caz.notify.domain.TemplateSchema;
+import uk.gov.service.notify.Template;
+
+@ExtendWith(MockitoExtension.class)
+public class TemplateSchemaCacheTest {
+
+  @Mock
+  GovUkNotifyWrapper govUkNotifyWrapper;
+
+  TemplateSchemaCache templateSchemaCache;
+
+  String templateId = UUID.randomUUID().toString();
+
+  @BeforeEach
+  void init() {
+    templateSchemaCache = new TemplateSchemaCache(govUkNotifyWrapper, 10, 3600, 60);
+  }
+
+  @Test
+  void canReadRequiredPersonalisationOfTemplate() throws Exception {
+    Mockito.when(govUkNotifyWrapper.getTemplateById(templateId)).thenReturn(template(
+        new JSONObject()
+            .put("Name", new JSONObject().put("required", true))
+            .put("amount", new JSONObject().put("required", false))));
+
+    Optional<TemplateSchema> schema = templateSchemaCache.getSchema(templateId);
+
+    assertThat(schema).isPresent();
+    assertThat(schema.get().isFound()).isTrue();
+    assertThat(schema.get().getRequiredPersonalisation()).containsExactly("name");
+  }
+
+  @Test
+  void fetchesTemplateOncePerRefreshPeriod() throws Exception {
+    Mockito.when(govUkNotifyWrapper.getTemplateById(templateId))
+        .thenReturn(template(new JSONObject()));
+
+    templateSchemaCache.getSchema(templateId);
+    templateSchemaCache.getSchema(templateId);
+
+    Mockito.verify(govUkNotifyWrapper, Mockito.times(1)).getTemplateById(templateId);
+  }
+
+  @Test
+  void remembersTemplatesWhichDoNotExist() throws Exception {
+    Mockito.when(govUkNotifyWrapper.getTemplateById(templateId))
+        .thenThrow(new NotifyResponseException(404, "Error thrown successfully.", 0));
+
+    assertThat(templateSchemaCache.getSchema(templateId)).contains(TemplateSchema.NOT_FOUND);
+    assertThat(templateSchemaCache.getSchema(templateId)).contains(TemplateSchema.NOT_FOUND);
+    Mockito.verify(govUkNotifyWrapper, Mockito.times(1)).getTemplateById(templateId);
+  }
+
+  @Test
+  void fetchesTemplateWhichDidNotExistAgainOnceNotFoundPeriodHasPassed() throws Exception {
+    templateSchemaCache = new TemplateSchemaCache(govUkNotifyWrapper, 10, 3600, 0);
+    Mockito.when(govUkNotifyWrapper.getTemplateById(templateId))
+        .thenThrow(new NotifyResponseException(404, "Error thrown successfully.", 0))
+        .thenReturn(template(new JSONObject()));
+
+    assertThat(templateSchemaCache.getSchema(templateId)).contains(TemplateSchema.NOT_FOUND);
+    assertThat(templateSchemaCache.getSchema(templateId).get().isFound()).isTrue();
+    Mockito.verify(govUkNotifyWrapper, Mockito.times(2)).getTemplateById(templateId);
+  }
+
+  @Test
+  void returnsNoSchemaWhileTemplateCannotBeFetched() throws Exception {
+    Mockito.when(govUkNotifyWrapper.getTemplateById(templateId))
+        .thenThrow(new RateLimitExceededException())
+        .thenThrow(new InstantiationException("Error thrown successfully."))
+        .thenReturn(template(null));
+
+    assertThat(templateSchemaCache.getSchema(templateId)).isEmpty();
+    assertThat(templateSchemaCache.getSchema(templateId)).isEmpty();
+    assertThat(templateSchemaCache.getSchema(templateId).get().getRequiredPersonalisation())
+        .isEmpty();
+  }
+
+  private Template template(JSONObject personalisation) {
+    return new Template(new JSONObject()
+        .put("id", templateId)
+        .put("name", "test")
+        .put("type", "email")
+        .put("created_at", "2019-06-01T12:00:00.000000Z")
+        .put("updated_at", JSONObject.NULL)
+        .put("created_by", "test@notify.com")
+        .put("version", 1)
+        .put("body", "Hello ((name))")
+        .put("subject", "test")
+        .put("personalisation", personalisation == null ? JSONObject.NULL : personalisation)
+        .toString());
+  }
+}
@@ -0,0 +1,191 @@
+package uk.gov.caz.notify.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.times;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.DispatchResult;
+import uk.gov.caz.notify.domain.RoutingOutcome;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.messaging.EmailMessageReader;
+import uk.gov.caz.notify.messaging.EmailMessageValidator;
+import uk.gov.caz.notify.messaging.InvalidEmailMessageException;
+import uk.gov.caz.notify.messaging.MessagingClient;
+import uk.gov.caz.notify.messaging.SqsBatchBuffer;
+import uk.gov.caz.notify.metrics.MessageMetrics;
+
+@ExtendWith(MockitoExtension.class)
+public class BulkEmailServiceTest {
+
+  @Mock
+  MessagingClient messagingClient;
+
+  @Mock
+  SqsBatchBuffer sqsBatchBuffer;
+
+  @Mock
+  EmailMessageValidator emailMessageValidator;
+
+  @Mock
+  MessageMetrics messageMetrics;
+
+  ObjectMapper objectMapper = new ObjectMapper();
+
+  UUID notificationId = UUID.randomUUID();
+
+  @Test
+  void canSendEmailsAndWriteResultsInOrder() throws Exception {
+    Mockito.when(messagingClient.sendMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class)))
+        .thenReturn(new DispatchResult(RoutingOutcome.SENT, notificationId))
+        .thenReturn(DispatchResult.of(RoutingOutcome.REQUEST_LIMIT))
+        .thenThrow(new InstantiationException("Error thrown successfully."));
+
+    JsonNode results = sendEmails(service(2, false),
+        "[" + request("first") + ", " + request("second") + ", " + request("third") + "]");
+
+    assertThat(results).hasSize(3);
+    assertThat(results.get(0).get("index").asInt()).isZero();
+    assertThat(results.get(0).get("reference").asText()).isEqualTo("first");
+    assertThat(results.get(0).get("status").asText()).isEqualTo("sent");
+    assertThat(results.get(0).get("notificationId").asText())
+        .isEqualTo(notificationId.toString());
+    assertThat(results.get(1).get("status").asText()).isEqualTo("request-limit");
+    assertThat(results.get(1).has("notificationId")).isFalse();
+    assertThat(results.get(2).get("status").asText()).isEqualTo("failed");
+    assertThat(results.get(2).get("error").asText()).isEqualTo("Error thrown successfully.");
+    Mockito.verify(sqsBatchBuffer, times(2)).flush();
+    Mockito.verify(messageMetrics).recordOutcome(null, RoutingOutcome.SENT);
+  }
+
+  @Test
+  void canReportInvalidRequestsWithoutSendingThem() throws Exception {
+    Mockito.doThrow(new InvalidEmailMessageException(
+        Collections.singletonList("email address is not valid")))
+        .doNothing()
+        .when(emailMessageValidator).validate(Mockito.any(EmailMessage.class));
+    Mockito.when(messagingClient.sendMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class)))
+        .thenReturn(new DispatchResult(RoutingOutcome.SENT, notificationId));
+
+    JsonNode results = sendEmails(service(10, false),
+        "[" + request("invalid") + ", {\"unknown\": true}, " + request("valid") + "]");
+
+    assertThat(results.get(0).get("status").asText()).isEqualTo("invalid");
+    assertThat(results.get(0).get("error").asText()).contains("email address is not valid");
+    assertThat(results.get(1).get("status").asText()).isEqualTo("invalid");
+    assertThat(results.get(1).get("error").asText()).contains("Unrecognized field");
+    assertThat(results.get(2).get("status").asText()).isEqualTo("sent");
+    Mockito.verify(messagingClient, times(1)).sendMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+  }
+
+  @Test
+  void canSendEmailsAsynchronously() throws Exception {
+    CompletableFuture<DispatchResult> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new InstantiationException("Error thrown successfully."));
+    Mockito.when(messagingClient.sendMessageAsync(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class)))
+        .thenReturn(CompletableFuture.completedFuture(
+            new DispatchResult(RoutingOutcome.SENT, notificationId)))
+        .thenReturn(failed);
+
+    JsonNode results = sendEmails(service(10, true),
+        "[" + request("first") + ", " + request("second") + "]");
+
+    assertThat(results.get(0).get("status").asText()).isEqualTo("sent");
+    assertThat(results.get(1).get("status").asText()).isEqualTo("failed");
+    Mockito.verify(sqsBatchBuffer, times(1)).flush();
+  }
+
+  @Test
+  void canFinishResultsWhenRequestsAreMalformed() throws Exception {
+    Mockito.when(messagingClient.sendMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class)))
+        .thenReturn(new DispatchResult(RoutingOutcome.SENT, notificationId));
+
+    JsonNode results = sendEmails(service(10, false), "[" + request("first") + ", {");
+
+    assertThat(results).hasSize(2);
+    assertThat(results.get(0).get("status").asText()).isEqualTo("sent");
+    assertThat(results.get(1).get("index").asInt()).isEqualTo(1);
+    assertThat(results.get(1).get("status").asText()).isEqualTo("invalid");
+  }
+
+  @Test
+  void canReportRequestsWhichCouldNotBeRequeuedAsFailed() throws Exception {
+    Mockito.when(messagingClient.sendMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class)))
+        .thenReturn(DispatchResult.of(RoutingOutcome.REQUEST_LIMIT));
+    Mockito.when(sqsBatchBuffer.flush()).thenReturn(Collections.singleton("bulk-1"));
+
+    JsonNode results = sendEmails(service(10, false),
+        "[" + request("first") + ", " + request("second") + "]");
+
+    assertThat(results.get(0).get("status").asText()).isEqualTo("request-limit");
+    assertThat(results.get(1).get("status").asText()).isEqualTo("failed");
+    assertThat(results.get(1).get("error").asText()).isEqualTo("Could not be re-queued");
+  }
+
+  @Test
+  void canReportRequestsNotStartedBeforeDeadlineAsFailed() throws Exception {
+    JsonNode results = sendEmails(service(10, false),
+        "[" + request("first") + ", " + request("second") + "]", Deadline.in(0));
+
+    assertThat(results).hasSize(2);
+    assertThat(results.get(0).get("status").asText()).isEqualTo("failed");
+    assertThat(results.get(1).get("error").asText())
+        .isEqualTo("Not sent before the deadline of the bulk send");
+    Mockito.verifyZeroInteractions(messagingClient);
+  }
+
+  @Test
+  void canRejectRequestsWhichAreNotAnArray() {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    assertThrows(JsonProcessingException.class, () -> service(10, false).sendEmails(
+        new ByteArrayInputStream(request("first").getBytes(StandardCharsets.UTF_8)), output,
+        Deadline.none()));
+    assertThat(output.size()).isZero();
+    Mockito.verifyZeroInteractions(messagingClient, sqsBatchBuffer);
+  }
+
+  private BulkEmailService service(int chunkSize, boolean asyncNotify) {
+    return new BulkEmailService(messagingClient, new MessageDispatcher(1, 0), sqsBatchBuffer,
+        new EmailMessageReader(), emailMessageValidator, messageMetrics, objectMapper,
+        chunkSize, asyncNotify, 60000);
+  }
+
+  private JsonNode sendEmails(BulkEmailService service, String requests) throws IOException {
+    return sendEmails(service, requests, Deadline.none());
+  }
+
+  private JsonNode sendEmails(BulkEmailService service, String requests, Deadline deadline)
+      throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    service.sendEmails(new ByteArrayInputStream(requests.getBytes(StandardCharsets.UTF_8)),
+        output, deadline);
+    return objectMapper.readTree(output.toByteArray());
+  }
+
+  private static String request(String reference) {
+    return "{\"templateId\": \"" + UUID.randomUUID() + "\", \"emailAddress\": \"test@test.com\","
+        + " \"personalisation\": {\"name\": \"test\"}, \"reference\": \"" + reference + "\"}";
+  }
+}
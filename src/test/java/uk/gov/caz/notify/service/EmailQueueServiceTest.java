@@ -0,0 +1,136 @@
+package uk.gov.caz.notify.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.dto.EmailMessage;
+import uk.gov.caz.notify.dto.SendEmailRequest;
+import uk.gov.caz.notify.messaging.EmailMessageReader;
+import uk.gov.caz.notify.messaging.EmailMessageValidator;
+import uk.gov.caz.notify.messaging.EmailMessageWriter;
+import uk.gov.caz.notify.messaging.ExponentialBackoffRetryPolicy;
+import uk.gov.caz.notify.messaging.IdempotencyCache;
+import uk.gov.caz.notify.messaging.InvalidEmailMessageException;
+import uk.gov.caz.notify.messaging.MessagingClient;
+import uk.gov.caz.notify.messaging.QueueUrlRegistry;
+import uk.gov.caz.notify.messaging.SqsBatchBuffer;
+import uk.gov.caz.notify.messaging.SqsMicroBatcher;
+import uk.gov.caz.notify.repository.GovUkNotifyWrapper;
+
+@ExtendWith(MockitoExtension.class)
+public class EmailQueueServiceTest {
+
+  @Mock
+  EmailMessageValidator emailMessageValidator;
+
+  @Mock
+  QueueUrlRegistry queueUrlRegistry;
+
+  @Mock
+  SqsMicroBatcher sqsMicroBatcher;
+
+  @Mock
+  IdempotencyCache idempotencyCache;
+
+  EmailQueueService emailQueueService;
+
+  ObjectMapper objectMapper = new ObjectMapper();
+
+  @BeforeEach
+  void init() {
+    MessagingClient messagingClient = new MessagingClient(Mockito.mock(SqsBatchBuffer.class),
+        queueUrlRegistry, Mockito.mock(GovUkNotifyWrapper.class),
+        new ExponentialBackoffRetryPolicy(0, 0, 0, 0, 0, 0, 0), idempotencyCache,
+        new EmailMessageWriter(objectMapper, false, 0), "testGroup", 1);
+    emailQueueService = new EmailQueueService(new EmailMessageReader(), emailMessageValidator,
+        messagingClient, queueUrlRegistry, sqsMicroBatcher, objectMapper);
+  }
+
+  @Test
+  void canQueueEmailRequestsOnNewQueue() throws Exception {
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("newUrl");
+    Mockito.when(sqsMicroBatcher.send(Mockito.any(SendMessageRequest.class)))
+        .thenReturn(CompletableFuture.completedFuture("id1"))
+        .thenReturn(CompletableFuture.completedFuture("id2"));
+    SendEmailRequest request = request("first");
+
+    List<String> messageIds = emailQueueService.queueEmails(
+        Arrays.asList(request, request("second"))).join();
+
+    assertThat(messageIds).containsExactly("id1", "id2");
+    ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+    Mockito.verify(sqsMicroBatcher, Mockito.times(2)).send(captor.capture());
+    SendMessageRequest message = captor.getAllValues().get(0);
+    assertThat(message.getQueueUrl()).isEqualTo("newUrl");
+    assertThat(message.getMessageGroupId()).isNotNull();
+    assertThat(message.getMessageDeduplicationId()).isNotNull();
+    assertThat(objectMapper.readValue(message.getMessageBody(), SendEmailRequest.class))
+        .isEqualTo(request);
+  }
+
+  @Test
+  void canReturnIdsOfRequestsQueuedWhenOthersFail() throws Exception {
+    CompletableFuture<String> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new AmazonServiceException("Error thrown successfully."));
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("newUrl");
+    Mockito.when(sqsMicroBatcher.send(Mockito.any(SendMessageRequest.class)))
+        .thenReturn(CompletableFuture.completedFuture("id1"))
+        .thenReturn(failed);
+
+    List<String> messageIds = emailQueueService.queueEmails(
+        Arrays.asList(request("first"), request("second"))).join();
+
+    assertThat(messageIds).containsExactly("id1", null);
+  }
+
+  @Test
+  void canRejectAllRequestsIfAnyIsInvalid() throws Exception {
+    Mockito.doNothing()
+        .doThrow(new InvalidEmailMessageException(
+            Collections.singletonList("email address is not valid")))
+        .when(emailMessageValidator).validate(Mockito.any(EmailMessage.class));
+    SendEmailRequest malformed = request("third");
+    malformed.setPersonalisation("{");
+
+    InvalidEmailMessageException e = assertThrows(InvalidEmailMessageException.class,
+        () -> emailQueueService.queueEmails(
+            Arrays.asList(request("first"), request("second"), malformed)));
+
+    assertThat(e.getProblems()).hasSize(2);
+    assertThat(e.getProblems().get(0)).isEqualTo("request 1: email address is not valid");
+    assertThat(e.getProblems().get(1)).startsWith("request 2: ");
+    Mockito.verifyZeroInteractions(sqsMicroBatcher);
+  }
+
+  @Test
+  void canFailWhenQueueCannotBeResolved() throws Exception {
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW))
+        .thenThrow(new AmazonServiceException("Error thrown successfully."));
+
+    CompletableFuture<List<String>> messageIds =
+        emailQueueService.queueEmails(Collections.singletonList(request("first")));
+
+    assertThat(messageIds).isCompletedExceptionally();
+  }
+
+  private static SendEmailRequest request(String reference) {
+    return new SendEmailRequest(UUID.randomUUID().toString(), "test@test.com",
+        "{\"name\": \"test\"}", reference);
+  }
+}
@@ -0,0 +1,302 @@
+package uk.gov.caz.notify.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import uk.gov.caz.notify.domain.Deadline;
+
+public class MessageDispatcherTest {
+
+  MessageDispatcher messageDispatcher;
+
+  @AfterEach
+  void tearDown() {
+    messageDispatcher.shutdown();
+  }
+
+  @Test
+  void shouldProcessMessagesSeriallyWhenConcurrencyIsOne() {
+    messageDispatcher = new MessageDispatcher(1, 0);
+    Set<String> threads = ConcurrentHashMap.newKeySet();
+
+    int processed = messageDispatcher.dispatch(Arrays.asList(1, 2, 3),
+        item -> {
+          threads.add(Thread.currentThread().getName());
+          return true;
+        }, Deadline.none());
+
+    assertThat(processed).isEqualTo(3);
+    assertThat(threads).containsExactly(Thread.currentThread().getName());
+  }
+
+  @Test
+  void shouldProcessMessagesConcurrently() {
+    messageDispatcher = new MessageDispatcher(3, 0);
+    CountDownLatch allStarted = new CountDownLatch(3);
+    AtomicInteger overlapping = new AtomicInteger();
+
+    int processed = messageDispatcher.dispatch(Arrays.asList(1, 2, 3), item -> {
+      allStarted.countDown();
+      try {
+        if (allStarted.await(5, TimeUnit.SECONDS)) {
+          overlapping.incrementAndGet();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return true;
+    }, Deadline.none());
+
+    assertThat(processed).isEqualTo(3);
+    assertThat(overlapping.get()).isEqualTo(3);
+  }
+
+  @Test
+  void shouldContinueWhenSingleMessageFails() {
+    messageDispatcher = new MessageDispatcher(2, 0);
+    AtomicInteger succeeded = new AtomicInteger();
+
+    int processed = messageDispatcher.dispatch(Arrays.asList(1, 2, 3, 4), item -> {
+      if (item == 2) {
+        throw new IllegalStateException("Error thrown successfully.");
+      }
+      succeeded.incrementAndGet();
+      return item != 3;
+    }, Deadline.none());
+
+    assertThat(processed).isEqualTo(2);
+    assertThat(succeeded.get()).isEqualTo(3);
+  }
+
+  @Test
+  void shouldSkipMessagesOnceDeadlineHasExpired() {
+    messageDispatcher = new MessageDispatcher(2, 0);
+    List<Integer> items = Arrays.asList(1, 2, 3, 4);
+    AtomicInteger started = new AtomicInteger();
+
+    int processed = messageDispatcher.dispatch(items, item -> started.incrementAndGet() > 0,
+        Deadline.in(0));
+
+    assertThat(processed).isZero();
+    assertThat(started.get()).isZero();
+  }
+
+  @Test
+  void shouldWaitForStartedMessagesWhichFinishAfterDeadline() {
+    messageDispatcher = new MessageDispatcher(2, 5000);
+    CountDownLatch started = new CountDownLatch(2);
+    List<Integer> finished = new CopyOnWriteArrayList<>();
+
+    int processed = messageDispatcher.dispatch(Arrays.asList(1, 2, 3), item -> {
+      started.countDown();
+      try {
+        started.await();
+        TimeUnit.MILLISECONDS.sleep(300);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return finished.add(item);
+    }, Deadline.in(100));
+
+    assertThat(processed).isEqualTo(2);
+    assertThat(finished).containsExactlyInAnyOrder(1, 2);
+  }
+
+  @Test
+  void shouldWaitForStartedAsyncMessagesWhichFinishAfterDeadline() {
+    messageDispatcher = new MessageDispatcher(1, 5000);
+
+    int processed = messageDispatcher.dispatchAsync(Arrays.asList(1, 2),
+        item -> CompletableFuture.supplyAsync(() -> {
+          try {
+            TimeUnit.MILLISECONDS.sleep(300);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return Boolean.TRUE;
+        }), Deadline.in(100));
+
+    assertThat(processed).isEqualTo(2);
+  }
+
+  @Test
+  void shouldKeepWholeBatchInFlightWhenDispatchingAsynchronously() {
+    messageDispatcher = new MessageDispatcher(1, 0);
+    List<CompletableFuture<Void>> inFlight = new CopyOnWriteArrayList<>();
+    List<Integer> completed = new CopyOnWriteArrayList<>();
+
+    CompletableFuture<Integer> processed = CompletableFuture.supplyAsync(
+        () -> messageDispatcher.dispatchAsync(Arrays.asList(1, 2, 3), item -> {
+          CompletableFuture<Void> future = new CompletableFuture<>();
+          inFlight.add(future);
+          return future.thenApply(ignored -> completed.add(item));
+        }, Deadline.none()));
+    await(() -> inFlight.size() == 3);
+    inFlight.forEach(future -> future.complete(null));
+
+    assertThat(processed.join()).isEqualTo(3);
+    assertThat(completed).containsExactlyInAnyOrder(1, 2, 3);
+  }
+
+  @Test
+  void shouldContinueWhenSingleAsyncMessageFails() {
+    messageDispatcher = new MessageDispatcher(1, 0);
+    CompletableFuture<Boolean> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IllegalStateException("Error thrown successfully."));
+
+    int processed = messageDispatcher.dispatchAsync(Arrays.asList(1, 2, 3, 4), item -> {
+      if (item == 1) {
+        throw new IllegalStateException("Error thrown successfully.");
+      }
+      return item == 2 ? failed : CompletableFuture.completedFuture(item == 3);
+    }, Deadline.none());
+
+    assertThat(processed).isEqualTo(1);
+  }
+
+  @Test
+  void shouldStopWaitingForAsyncMessagesAtDeadline() {
+    messageDispatcher = new MessageDispatcher(1, 0);
+
+    int processed = messageDispatcher.dispatchAsync(Arrays.asList(1, 2),
+        item -> new CompletableFuture<Boolean>(), Deadline.in(100));
+
+    assertThat(processed).isZero();
+  }
+
+  @Test
+  void shouldProcessGroupsConcurrentlyAndItemsOfGroupInOrder() {
+    messageDispatcher = new MessageDispatcher(2, 0);
+    CountDownLatch groupsStarted = new CountDownLatch(2);
+    List<String> processedItems = new CopyOnWriteArrayList<>();
+
+    int processed = messageDispatcher.dispatch(Arrays.asList("a1", "b1", "a2", "a3", "b2"),
+        item -> item.substring(0, 1), item -> {
+          groupsStarted.countDown();
+          try {
+            assertThat(groupsStarted.await(5, TimeUnit.SECONDS)).isTrue();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return processedItems.add(item);
+        }, Deadline.none());
+
+    assertThat(processed).isEqualTo(5);
+    assertThat(processedItems).filteredOn(item -> item.startsWith("a"))
+        .containsExactly("a1", "a2", "a3");
+    assertThat(processedItems).filteredOn(item -> item.startsWith("b"))
+        .containsExactly("b1", "b2");
+  }
+
+  @Test
+  void shouldSkipRestOfGroupOnceItemFails() {
+    messageDispatcher = new MessageDispatcher(1, 0);
+    List<String> processedItems = new CopyOnWriteArrayList<>();
+
+    int processed = messageDispatcher.dispatch(Arrays.asList("a1", "a2", "a3", "b1", "c1"),
+        item -> item.startsWith("c") ? null : item.substring(0, 1), item -> {
+          if ("a2".equals(item)) {
+            throw new IllegalStateException("Error thrown successfully.");
+          }
+          return processedItems.add(item);
+        }, Deadline.none());
+
+    assertThat(processed).isEqualTo(3);
+    assertThat(processedItems).containsExactly("a1", "b1", "c1");
+  }
+
+  @Test
+  void shouldSkipRestOfGroupOnceItemIsNotCompleted() {
+    messageDispatcher = new MessageDispatcher(1, 0);
+    List<String> processedItems = new CopyOnWriteArrayList<>();
+
+    int processed = messageDispatcher.dispatch(Arrays.asList("a1", "a2", "a3", "b1"),
+        item -> item.substring(0, 1), item -> processedItems.add(item) && !"a2".equals(item),
+        Deadline.none());
+
+    assertThat(processed).isEqualTo(2);
+    assertThat(processedItems).containsExactly("a1", "a2", "b1");
+  }
+
+  @Test
+  void shouldStartNextAsyncItemOfGroupOncePreviousHasCompleted() {
+    messageDispatcher = new MessageDispatcher(1, 0);
+    List<String> events = new CopyOnWriteArrayList<>();
+
+    int processed = messageDispatcher.dispatchAsync(Arrays.asList("a1", "a2", "b1"),
+        item -> item.substring(0, 1), item -> {
+          events.add("start " + item);
+          return CompletableFuture.supplyAsync(() -> {
+            try {
+              TimeUnit.MILLISECONDS.sleep(20);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return events.add("end " + item);
+          });
+        }, Deadline.none());
+
+    assertThat(processed).isEqualTo(3);
+    assertThat(events.indexOf("start b1")).isLessThan(events.indexOf("end a1"));
+    assertThat(events.indexOf("end a1")).isLessThan(events.indexOf("start a2"));
+  }
+
+  @Test
+  void shouldStartNextAsyncItemOfGroupOnWorkerRatherThanCompletingThread() {
+    messageDispatcher = new MessageDispatcher(1, 0);
+    List<String> threads = new CopyOnWriteArrayList<>();
+
+    int processed = messageDispatcher.dispatchAsync(Arrays.asList("a1", "a2"),
+        item -> item.substring(0, 1), item -> {
+          threads.add(Thread.currentThread().getName());
+          CompletableFuture<Boolean> result = new CompletableFuture<>();
+          if ("a1".equals(item)) {
+            new Thread(() -> result.complete(Boolean.TRUE), "completing-thread").start();
+          } else {
+            result.complete(Boolean.TRUE);
+          }
+          return result;
+        }, Deadline.none());
+
+    assertThat(processed).isEqualTo(2);
+    assertThat(threads).hasSize(2);
+    assertThat(threads.get(1)).startsWith("notify-dispatch-");
+  }
+
+  @Test
+  void shouldSkipRestOfAsyncGroupOnceItemFails() {
+    messageDispatcher = new MessageDispatcher(1, 0);
+    CompletableFuture<Boolean> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IllegalStateException("Error thrown successfully."));
+    Set<String> started = ConcurrentHashMap.newKeySet();
+
+    int processed = messageDispatcher.dispatchAsync(Arrays.asList("a1", "a2", "b1", "c1", "c2"),
+        item -> item.substring(0, 1), item -> {
+          started.add(item);
+          return "a1".equals(item) ? failed
+              : CompletableFuture.completedFuture(!"c1".equals(item));
+        }, Deadline.none());
+
+    assertThat(processed).isEqualTo(1);
+    assertThat(started).containsExactlyInAnyOrder("a1", "b1", "c1");
+  }
+
+  private static void await(BooleanSupplier condition) {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+      Thread.yield();
+    }
+    assertThat(condition.getAsBoolean()).isTrue();
+  }
+}
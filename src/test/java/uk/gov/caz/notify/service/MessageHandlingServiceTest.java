@@ -1,28 +1,52 @@
 package uk.gov.caz.notify.service;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.mockito.Mockito.times;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.cloud.aws.messaging.core.SqsMessageHeaders;
 import org.springframework.test.util.ReflectionTestUtils;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import uk.gov.caz.notify.domain.Deadline;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.domain.RoutingOutcome;
+import uk.gov.caz.notify.dto.EmailMessage;
 import uk.gov.caz.notify.dto.SendEmailRequest;
+import uk.gov.caz.notify.messaging.EmailMessageReader;
+import uk.gov.caz.notify.messaging.EmailMessageValidator;
+import uk.gov.caz.notify.messaging.InvalidEmailMessageException;
 import uk.gov.caz.notify.messaging.MessagingClient;
+import uk.gov.caz.notify.messaging.QueueUrlRegistry;
+import uk.gov.caz.notify.messaging.SqsBatchBuffer;
+import uk.gov.caz.notify.messaging.VisibilityHeartbeat;
+import uk.gov.caz.notify.metrics.MessageMetrics;
+import uk.gov.caz.notify.repository.NotifyRateLimiter;
 
 @ExtendWith(MockitoExtension.class)
 public class MessageHandlingServiceTest {
@@ -36,12 +60,47 @@ public class MessageHandlingServiceTest {
   @Mock
   MessagingClient messagingClient;
 
+  @Spy
+  MessageDispatcher messageDispatcher = new MessageDispatcher(1, 0);
+
+  @Mock
+  SqsBatchBuffer sqsBatchBuffer;
+
+  @Mock
+  QueueUrlRegistry queueUrlRegistry;
+
+  @Spy
+  EmailMessageReader emailMessageReader = new EmailMessageReader();
+
+  @Mock
+  EmailMessageValidator emailMessageValidator;
+
+  @Mock
+  MessageMetrics messageMetrics;
+
+  @Spy
+  VisibilityHeartbeat visibilityHeartbeat =
+      new VisibilityHeartbeat(Mockito.mock(AmazonSQSAsync.class), 0, 60);
+
+  @Spy
+  QueueScheduler queueScheduler = new QueueScheduler(
+      new NotifyRateLimiter(0, 1, 0, new SimpleMeterRegistry()), 10, 8, 4, 2, 1, false);
+
   private ObjectMapper objectMapper = new ObjectMapper();
 
+  @BeforeEach
+  void init() {
+    ReflectionTestUtils.setField(messageHandlingService, "maxPostponedReceives", 2);
+    Mockito.lenient().when(sqsBatchBuffer.sendReplacement(Mockito.any()))
+        .thenReturn(CompletableFuture.completedFuture(Boolean.TRUE));
+  }
+
   @Test
   void canInstantiateMessageHandlingService() {
     MessageHandlingService messageHandlingService =
-        new MessageHandlingService(amazonSqs, messagingClient);
+        new MessageHandlingService(amazonSqs, messagingClient, messageDispatcher,
+            sqsBatchBuffer, queueUrlRegistry, emailMessageReader, emailMessageValidator,
+            messageMetrics, queueScheduler, visibilityHeartbeat);
     assertNotNull(messageHandlingService);
   }
 
@@ -50,7 +109,7 @@ public class MessageHandlingServiceTest {
 
     // set up messages
     SendEmailRequest ser =
-        new SendEmailRequest("testTemplate", "testEmail", "testPersonalisation", "testReference");
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}", "testReference");
     String msgBody = objectMapper.writeValueAsString(ser);
 
     Map<String, String> headers = new HashMap<String, String>();
@@ -70,25 +129,27 @@ public class MessageHandlingServiceTest {
     msgList.add(msg1);
     msgList.add(msg2);
 
-    GetQueueUrlResult getQueueUrlResult = new GetQueueUrlResult();
-    getQueueUrlResult.setQueueUrl("testUrl");
-
     ReceiveMessageResult rmr = new ReceiveMessageResult();
     rmr.setMessages(msgList);
 
     Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
         .thenReturn(rmr);
-    Mockito.when(messagingClient.getEnvQueueName("test")).thenReturn("test");
-    Mockito.when(amazonSqs.getQueueUrl("test")).thenReturn(getQueueUrlResult);
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
 
     ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 1);
-    messageHandlingService.sendQueuedMessages("test");
+    messageHandlingService.sendQueuedMessages("new");
 
     // assertions
     Mockito.verify(amazonSqs, times(1)).receiveMessage(Mockito.any(ReceiveMessageRequest.class));
-    Mockito.verify(amazonSqs, times(2)).deleteMessage("testUrl", "testHandle");
-    Mockito.verify(messagingClient, times(1)).publishMessage(null, null);
-    Mockito.verify(messagingClient, times(1)).handleMessage(Mockito.any(SendEmailRequest.class));
+    Mockito.verify(sqsBatchBuffer, times(2)).delete("testUrl", "testHandle");
+    Mockito.verify(sqsBatchBuffer, times(1)).flush();
+    Mockito.verify(messagingClient, times(1)).publishMessage(Mockito.eq(QueueName.DLQ),
+        Mockito.isNull(), Mockito.any());
+    Mockito.verify(messagingClient, times(1)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+    Mockito.verify(messageMetrics, times(1)).recordOutcome(QueueName.NEW, RoutingOutcome.DLQ);
+    Mockito.verify(messageMetrics, times(1)).recordBatch(Mockito.eq(QueueName.NEW),
+        Mockito.eq(2), Mockito.anyLong());
 
   }
 
@@ -98,19 +159,19 @@ public class MessageHandlingServiceTest {
     // set up messages    
     String msgBody1 =
         objectMapper.writeValueAsString(new SendEmailRequest("testTemplate",
-            "testEmail1", "testPersonalisation", "testReference"));
+            "testEmail1", "{\"name\": \"test\"}", "testReference"));
     
     String msgBody2 =
         objectMapper.writeValueAsString(new SendEmailRequest("testTemplate",
-            "testEmail2", "testPersonalisation", "testReference"));
+            "testEmail2", "{\"name\": \"test\"}", "testReference"));
     
     String msgBody3 =
         objectMapper.writeValueAsString(new SendEmailRequest("testTemplate",
-            "testEmail3", "testPersonalisation", "testReference"));
+            "testEmail3", "{\"name\": \"test\"}", "testReference"));
     
     String msgBody4 =
         objectMapper.writeValueAsString(new SendEmailRequest("testTemplate",
-            "testEmail4", "testPersonalisation", "testReference"));
+            "testEmail4", "{\"name\": \"test\"}", "testReference"));
 
     Map<String, String> headers = new HashMap<String, String>();
     headers.put(SqsMessageHeaders.SQS_GROUP_ID_HEADER, "testId");
@@ -143,9 +204,6 @@ public class MessageHandlingServiceTest {
     msgList2.add(msg3);
     msgList2.add(msg4);
     
-    GetQueueUrlResult getQueueUrlResult = new GetQueueUrlResult();
-    getQueueUrlResult.setQueueUrl("testUrl");
-
     ReceiveMessageResult rmr = new ReceiveMessageResult();
     rmr.setMessages(msgList);
 
@@ -154,17 +212,652 @@ public class MessageHandlingServiceTest {
     
     Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
         .thenReturn(rmr).thenReturn(rmr2);
-    Mockito.when(messagingClient.getEnvQueueName("test")).thenReturn("test");
-    Mockito.when(amazonSqs.getQueueUrl("test")).thenReturn(getQueueUrlResult);
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
+
+    ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 2);
+    messageHandlingService.sendQueuedMessages("new");
+
+    // assertions
+    Mockito.verify(amazonSqs, times(2)).receiveMessage(Mockito.any(ReceiveMessageRequest.class));
+    Mockito.verify(sqsBatchBuffer, times(4)).delete("testUrl", "testHandle");
+    Mockito.verify(sqsBatchBuffer, times(2)).flush();
+    Mockito.verify(messagingClient, times(2)).publishMessage(Mockito.eq(QueueName.DLQ),
+        Mockito.isNull(), Mockito.any());
+    Mockito.verify(messagingClient, times(2)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+
+  }
+
+  @Test
+  void canSendBadlyFormedPersonalisationToDlq() throws JsonProcessingException,
+      InstantiationException {
+
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{", "testReference"));
+
+    Message msg = new Message();
+    msg.setBody(msgBody);
+    msg.setReceiptHandle("testHandle");
+
+    ReceiveMessageResult rmr = new ReceiveMessageResult();
+    rmr.setMessages(Collections.singletonList(msg));
+
+    Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+        .thenReturn(rmr);
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
+
+    ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 1);
+    messageHandlingService.sendQueuedMessages("new");
+
+    // assertions
+    Mockito.verify(messagingClient, times(0)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+    Mockito.verify(messagingClient, times(1)).createSendMessageRequest(msgBody);
+    Mockito.verify(messagingClient, times(1)).publishMessage(Mockito.eq(QueueName.DLQ),
+        Mockito.isNull(), Mockito.any());
+    Mockito.verify(sqsBatchBuffer, times(1)).delete("testUrl", "testHandle");
+  }
+
+  @Test
+  void shouldKeepEnvelopeOfUnreadableMessageSentToDlq() {
+    MessageAttributeValue envelope =
+        new MessageAttributeValue().withDataType("String").withStringValue("compact-v1");
+    Message message = new Message().withMessageId("testId").withBody("testBody")
+        .addMessageAttributesEntry(MessagingClient.ENVELOPE_ATTRIBUTE, envelope);
+    SendMessageRequest request = new SendMessageRequest();
+    Mockito.when(messagingClient.createSendMessageRequest("testBody")).thenReturn(request);
+
+    messageHandlingService.processMessages(QueueName.NEW, Collections.singletonList(message),
+        Deadline.in(60000));
+
+    // assertions
+    Mockito.verify(messagingClient, times(1)).publishMessage(Mockito.eq(QueueName.DLQ),
+        Mockito.eq(request), Mockito.any());
+    assertThat(request.getMessageAttributes())
+        .containsEntry(MessagingClient.ENVELOPE_ATTRIBUTE, envelope);
+  }
+
+  @Test
+  void canSendInvalidEmailRequestsToDlqWithoutSendingThem() throws Exception {
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{}", "testReference"));
+    Mockito.doThrow(new InvalidEmailMessageException(
+        Collections.singletonList("email address is not valid")))
+        .when(emailMessageValidator).validate(Mockito.any(EmailMessage.class));
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.NEW,
+        Collections.singletonList(new Message().withMessageId("testId").withBody(msgBody)),
+        Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).isEmpty();
+    Mockito.verify(messagingClient, times(1)).createSendMessageRequest(msgBody);
+    Mockito.verify(messagingClient, times(1)).publishMessage(Mockito.eq(QueueName.DLQ),
+        Mockito.isNull(), Mockito.any());
+    Mockito.verify(messagingClient, times(0)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+    Mockito.verify(messageMetrics, times(1)).recordOutcome(QueueName.NEW, RoutingOutcome.DLQ);
+  }
+
+  @Test
+  void canSendInvalidEmailRequestsToDlqWithoutSendingThemAsynchronously() throws Exception {
+    ReflectionTestUtils.setField(messageHandlingService, "asyncNotify", true);
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{}", "testReference"));
+    Mockito.doThrow(new InvalidEmailMessageException(
+        Collections.singletonList("template ID is not a UUID")))
+        .when(emailMessageValidator).validate(Mockito.any(EmailMessage.class));
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.NEW,
+        Collections.singletonList(new Message().withMessageId("testId").withBody(msgBody)),
+        Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).isEmpty();
+    Mockito.verify(messagingClient, times(1)).publishMessage(Mockito.eq(QueueName.DLQ),
+        Mockito.isNull(), Mockito.any());
+    Mockito.verify(messagingClient, times(0)).handleMessageAsync(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+    Mockito.verify(messageMetrics, times(1)).recordOutcome(QueueName.NEW, RoutingOutcome.DLQ);
+  }
+
+  @Test
+  void canDrainQueueUntilEmptyReceive() throws JsonProcessingException, InstantiationException {
+
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+
+    Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+        .thenReturn(receiveResult(msgBody, msgBody))
+        .thenReturn(receiveResult(msgBody))
+        .thenReturn(receiveResult());
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.REQUEST_LIMIT)).thenReturn("testUrl");
+
+    ReflectionTestUtils.setField(messageHandlingService, "adaptiveDrain", true);
+    messageHandlingService.sendQueuedMessages("request-limit", Deadline.in(60000));
+
+    // assertions
+    Mockito.verify(amazonSqs, times(3)).receiveMessage(Mockito.any(ReceiveMessageRequest.class));
+    Mockito.verify(messagingClient, times(3)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+    Mockito.verify(sqsBatchBuffer, times(3)).delete("testUrl", "testHandle");
+    Mockito.verify(sqsBatchBuffer, times(2)).flush();
+  }
+
+  @Test
+  void canBoundDrainWithoutDeadlineByPollingIterations() throws JsonProcessingException,
+      InstantiationException {
+
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
 
+    Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+        .thenReturn(receiveResult(msgBody));
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
+
+    ReflectionTestUtils.setField(messageHandlingService, "adaptiveDrain", true);
     ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 2);
-    messageHandlingService.sendQueuedMessages("test");
+    messageHandlingService.sendQueuedMessages("new");
 
     // assertions
     Mockito.verify(amazonSqs, times(2)).receiveMessage(Mockito.any(ReceiveMessageRequest.class));
-    Mockito.verify(amazonSqs, times(4)).deleteMessage("testUrl", "testHandle");
-    Mockito.verify(messagingClient, times(2)).publishMessage(null, null);
-    Mockito.verify(messagingClient, times(2)).handleMessage(Mockito.any(SendEmailRequest.class));
+    Mockito.verify(messagingClient, times(2)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+    Mockito.verify(sqsBatchBuffer, times(2)).flush();
+  }
+
+  @Test
+  void canDrainAllQueuesInOneInvocation() throws JsonProcessingException,
+      InstantiationException {
+
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+
+    for (QueueName queue : QueueScheduler.SCHEDULED_QUEUES) {
+      Mockito.doReturn(queue + "Url").when(queueUrlRegistry).getQueueUrl(queue);
+    }
+    stubBacklog("newUrl", "2");
+    stubBacklog("request-limitUrl", "1");
+    stubBacklog("service-errorUrl", "0");
+    stubBacklog("service-downUrl", "0");
+    Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+        .thenReturn(receiveResult(msgBody, msgBody))
+        .thenReturn(receiveResult(msgBody));
+
+    messageHandlingService.sendQueuedMessages(MessageHandlingService.ALL_QUEUES,
+        Deadline.in(60000));
+
+    // assertions
+    ArgumentCaptor<ReceiveMessageRequest> captor =
+        ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+    Mockito.verify(amazonSqs, times(2)).receiveMessage(captor.capture());
+    assertThat(captor.getAllValues()).extracting(ReceiveMessageRequest::getQueueUrl)
+        .containsExactly("newUrl", "request-limitUrl");
+    Mockito.verify(sqsBatchBuffer, times(2)).delete("newUrl", "testHandle");
+    Mockito.verify(sqsBatchBuffer, times(1)).delete("request-limitUrl", "testHandle");
+    Mockito.verify(messageMetrics, times(1)).recordBatch(Mockito.eq(QueueName.REQUEST_LIMIT),
+        Mockito.eq(1), Mockito.anyLong());
+  }
+
+  @Test
+  void canLeaveNewQueueToItsEventSource() {
+    Mockito.doReturn(true).when(queueScheduler).isConsumedByEventSource(QueueName.NEW);
+
+    messageHandlingService.sendQueuedMessages("new", Deadline.in(60000));
+
+    // assertions
+    Mockito.verifyZeroInteractions(amazonSqs, messagingClient, sqsBatchBuffer);
+  }
+
+  @Test
+  void canReleaseMessagesNotStartedBeforeDeadline() throws Exception {
+
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+
+    Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+        .thenReturn(new ReceiveMessageResult().withMessages(
+            new Message().withBody(msgBody).withReceiptHandle("firstHandle"),
+            new Message().withBody(msgBody).withReceiptHandle("secondHandle")));
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class))).thenAnswer(invocation -> {
+          Thread.sleep(200);
+          return RoutingOutcome.SENT;
+        });
+
+    ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 1);
+    messageHandlingService.sendQueuedMessages("new", Deadline.in(100));
+
+    // assertions
+    Mockito.verify(sqsBatchBuffer, times(1)).delete("testUrl", "firstHandle");
+    Mockito.verify(visibilityHeartbeat, times(1)).release("testUrl",
+        Collections.singletonList("secondHandle"));
+  }
+
+  @Test
+  void canWaitForReleaseOfUnstartedMessagesBeforeFlushing() throws Exception {
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+        .thenReturn(new ReceiveMessageResult().withMessages(
+            new Message().withBody(msgBody).withReceiptHandle("firstHandle"),
+            new Message().withBody(msgBody).withReceiptHandle("secondHandle")));
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class))).thenAnswer(invocation -> {
+          Thread.sleep(200);
+          return RoutingOutcome.SENT;
+        });
+    CompletableFuture<Void> released = new CompletableFuture<>();
+    Mockito.doAnswer(invocation -> {
+      CompletableFuture.runAsync(() -> {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        released.complete(null);
+      });
+      return released;
+    }).when(visibilityHeartbeat).release(Mockito.eq("testUrl"), Mockito.anyCollection());
+    List<Boolean> releasedWhenFlushed = new ArrayList<>();
+    Mockito.when(sqsBatchBuffer.flush()).thenAnswer(invocation -> {
+      releasedWhenFlushed.add(released.isDone());
+      return Collections.emptySet();
+    });
+
+    ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 1);
+    ReflectionTestUtils.setField(messageHandlingService, "visibilityChangeWaitMillis", 5000L);
+    messageHandlingService.sendQueuedMessages("new", Deadline.in(100));
+
+    // assertions
+    assertThat(releasedWhenFlushed).containsExactly(true);
+  }
+
+  @Test
+  void canPostponeRequeuedMessagesWhichAreNotDue() throws Exception {
+
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Message notDue = new Message().withBody(msgBody).withReceiptHandle("notDueHandle")
+        .addMessageAttributesEntry(MessagingClient.NOT_BEFORE_ATTRIBUTE,
+            notBefore(System.currentTimeMillis() + 60000));
+    Message due = new Message().withBody(msgBody).withReceiptHandle("dueHandle")
+        .addMessageAttributesEntry(MessagingClient.NOT_BEFORE_ATTRIBUTE,
+            notBefore(System.currentTimeMillis() - 1000));
+
+    Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+        .thenReturn(new ReceiveMessageResult().withMessages(notDue, due));
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.REQUEST_LIMIT)).thenReturn("testUrl");
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class))).thenReturn(RoutingOutcome.SENT);
+
+    ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 1);
+    messageHandlingService.sendQueuedMessages("request-limit");
+
+    // assertions
+    Mockito.verify(visibilityHeartbeat, times(1)).postpone(Mockito.eq("testUrl"),
+        Mockito.eq(notDue), Mockito.longThat(delay -> delay > 50000 && delay <= 60000));
+    Mockito.verify(sqsBatchBuffer, times(1)).delete("testUrl", "dueHandle");
+    Mockito.verify(sqsBatchBuffer, times(0)).delete("testUrl", "notDueHandle");
+    Mockito.verify(messagingClient, times(1)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+    Mockito.verify(messageMetrics, times(1)).recordOutcome(QueueName.REQUEST_LIMIT,
+        RoutingOutcome.DEFERRED);
+  }
+
+  @Test
+  void canReportRequeuedMessagesWhichAreNotDueAsNotProcessed() {
+    Message notDue = new Message().withMessageId("notDue").withReceiptHandle("notDueHandle")
+        .withBody("")
+        .addMessageAttributesEntry(MessagingClient.NOT_BEFORE_ATTRIBUTE,
+            notBefore(System.currentTimeMillis() + 60000));
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.SERVICE_DOWN)).thenReturn("testUrl");
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.SERVICE_DOWN,
+        Collections.singletonList(notDue), Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).containsExactly("notDue");
+    Mockito.verify(visibilityHeartbeat, times(1)).postpone(Mockito.eq("testUrl"),
+        Mockito.eq(notDue), Mockito.anyLong());
+    Mockito.verify(messageMetrics, times(1)).recordOutcome(QueueName.SERVICE_DOWN,
+        RoutingOutcome.DEFERRED);
+    Mockito.verifyZeroInteractions(messagingClient);
+  }
+
+  @Test
+  void canStopDrainingWhenDeadlineHasExpired() {
+    ReflectionTestUtils.setField(messageHandlingService, "adaptiveDrain", true);
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
+
+    messageHandlingService.sendQueuedMessages("new", Deadline.in(0));
+
+    // assertions
+    Mockito.verifyZeroInteractions(amazonSqs, messagingClient, sqsBatchBuffer);
+  }
+
+  @Test
+  void canReportMessagesWhichWereNotProcessed() throws JsonProcessingException,
+      InstantiationException {
+
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Message sent = new Message().withMessageId("sent").withBody(msgBody);
+    Message invalid = new Message().withMessageId("invalid").withBody("");
+    Message failing = new Message().withMessageId("failing").withBody(msgBody);
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class)))
+        .thenReturn(RoutingOutcome.SENT)
+        .thenThrow(new IllegalStateException("Error thrown successfully."));
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.NEW,
+        Arrays.asList(sent, invalid, failing), Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).containsExactly("failing");
+    Mockito.verify(messageMetrics, times(1)).recordOutcome(QueueName.NEW, RoutingOutcome.SENT);
+    Mockito.verify(messageMetrics, times(1)).recordOutcome(QueueName.NEW, RoutingOutcome.DLQ);
+    Mockito.verify(messageMetrics, times(1)).recordBatch(Mockito.eq(QueueName.NEW),
+        Mockito.eq(3), Mockito.anyLong());
+    Mockito.verify(messagingClient, times(1)).publishMessage(Mockito.eq(QueueName.DLQ),
+        Mockito.isNull(), Mockito.any());
+    Mockito.verify(sqsBatchBuffer, times(1)).flush();
+    Mockito.verify(sqsBatchBuffer, times(0)).delete(Mockito.anyString(), Mockito.any());
+    Mockito.verifyZeroInteractions(amazonSqs);
+  }
+
+  @Test
+  void canContinueGroupOnceMessageIsRequeued() throws JsonProcessingException,
+      InstantiationException {
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Message requeued = new Message().withMessageId("requeued").withReceiptHandle("handle1")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup");
+    Message later = new Message().withMessageId("later").withReceiptHandle("handle2")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup");
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class))).thenReturn(RoutingOutcome.REQUEST_LIMIT)
+        .thenReturn(RoutingOutcome.SENT);
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.NEW,
+        Arrays.asList(requeued, later), Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).isEmpty();
+    Mockito.verify(messagingClient, times(2)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+    Mockito.verify(sqsBatchBuffer, times(1)).sendReplacement("handle1");
+  }
+
+  @Test
+  void canSendRestOfGroupWhenFirstMessageHitsRequestLimit() throws JsonProcessingException,
+      InstantiationException {
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    List<Message> messages = new ArrayList<>();
+    for (int i = 1; i <= 3; i++) {
+      messages.add(new Message().withMessageId("message" + i).withReceiptHandle("handle" + i)
+          .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup"));
+    }
+    Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+        .thenReturn(new ReceiveMessageResult().withMessages(messages));
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class))).thenReturn(RoutingOutcome.REQUEST_LIMIT)
+        .thenReturn(RoutingOutcome.SENT);
+    ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 1);
+
+    messageHandlingService.sendQueuedMessages("new");
+
+    // assertions
+    Mockito.verify(messagingClient, times(3)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+    Mockito.verify(messageMetrics, times(2)).recordOutcome(QueueName.NEW, RoutingOutcome.SENT);
+    Mockito.verify(sqsBatchBuffer, times(3)).delete(Mockito.eq("testUrl"), Mockito.anyString());
+    Mockito.verify(visibilityHeartbeat, times(0)).release(Mockito.anyString(),
+        Mockito.anyCollection());
+  }
+
+  @Test
+  void canStopGroupWhenMessageCouldNotBeRequeued() throws JsonProcessingException,
+      InstantiationException {
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Message requeued = new Message().withMessageId("requeued").withReceiptHandle("handle1")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup");
+    Message later = new Message().withMessageId("later").withReceiptHandle("handle2")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup");
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class))).thenReturn(RoutingOutcome.REQUEST_LIMIT);
+    Mockito.when(sqsBatchBuffer.sendReplacement("handle1"))
+        .thenReturn(CompletableFuture.completedFuture(Boolean.FALSE));
+    Mockito.when(sqsBatchBuffer.flush()).thenReturn(Collections.singleton("handle1"));
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.NEW,
+        Arrays.asList(requeued, later), Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).containsExactlyInAnyOrder("requeued", "later");
+    Mockito.verify(messagingClient, times(1)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+  }
+
+  @Test
+  void canStopGroupOnceMessageIsPostponed() {
+    Message notDue = new Message().withMessageId("notDue").withReceiptHandle("notDueHandle")
+        .withBody("").addAttributesEntry("MessageGroupId", "testGroup")
+        .addMessageAttributesEntry(MessagingClient.NOT_BEFORE_ATTRIBUTE,
+            notBefore(System.currentTimeMillis() + 60000));
+    Message later = new Message().withMessageId("later").withReceiptHandle("laterHandle")
+        .withBody("").addAttributesEntry("MessageGroupId", "testGroup");
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.SERVICE_DOWN)).thenReturn("testUrl");
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.SERVICE_DOWN,
+        Arrays.asList(notDue, later), Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).containsExactlyInAnyOrder("notDue", "later");
+    Mockito.verifyZeroInteractions(messagingClient);
+  }
+
+  @Test
+  void canPostponeMessageWhoseEmailIsStillBeingSentInsteadOfDeletingIt() throws Exception {
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Message inProgress = new Message().withMessageId("inProgress").withReceiptHandle("handle1")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup");
+    Message later = new Message().withMessageId("later").withReceiptHandle("handle2")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup");
+    Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+        .thenReturn(new ReceiveMessageResult().withMessages(inProgress, later));
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class))).thenReturn(RoutingOutcome.IN_PROGRESS);
+    ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 1);
+    ReflectionTestUtils.setField(messageHandlingService, "inProgressDelayMillis", 30000L);
+
+    messageHandlingService.sendQueuedMessages("new");
+
+    // assertions
+    Mockito.verify(visibilityHeartbeat, times(1)).postpone("testUrl", inProgress, 30000L);
+    Mockito.verify(sqsBatchBuffer, times(0)).delete(Mockito.anyString(), Mockito.any());
+    Mockito.verify(messagingClient, times(1)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+  }
+
+  @Test
+  void canReportMessageWhoseEmailIsStillBeingSentAsNotProcessed()
+      throws JsonProcessingException, InstantiationException {
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Message inProgress = new Message().withMessageId("inProgress").withReceiptHandle("handle1")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup");
+    Message later = new Message().withMessageId("later").withReceiptHandle("handle2")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup");
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class))).thenReturn(RoutingOutcome.IN_PROGRESS);
+    ReflectionTestUtils.setField(messageHandlingService, "inProgressDelayMillis", 30000L);
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.NEW,
+        Arrays.asList(inProgress, later), Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).containsExactlyInAnyOrder("inProgress", "later");
+    Mockito.verify(visibilityHeartbeat, times(1)).postpone("testUrl", inProgress, 30000L);
+    Mockito.verify(messagingClient, times(1)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+  }
+
+  @Test
+  void canProcessMessageEarlyOnceItHasBeenPostponedOnEnoughReceives()
+      throws JsonProcessingException, InstantiationException {
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Message notDue = new Message().withMessageId("notDue").withBody(msgBody)
+        .addAttributesEntry("ApproximateReceiveCount", "3")
+        .addMessageAttributesEntry(MessagingClient.NOT_BEFORE_ATTRIBUTE,
+            notBefore(System.currentTimeMillis() + 60000));
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class))).thenReturn(RoutingOutcome.SENT);
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.SERVICE_DOWN,
+        Collections.singletonList(notDue), Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).isEmpty();
+    Mockito.verify(visibilityHeartbeat, times(0)).postpone(Mockito.anyString(),
+        Mockito.any(Message.class), Mockito.anyLong());
+  }
+
+  @Test
+  void canReportMessagesWhichCouldNotBeRequeuedWithRestOfTheirGroup()
+      throws JsonProcessingException, InstantiationException {
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Message requeued = new Message().withMessageId("requeued").withReceiptHandle("handle1")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup");
+    Message sent = new Message().withMessageId("sent").withReceiptHandle("handle2")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "testGroup");
+    Message other = new Message().withMessageId("other").withReceiptHandle("handle3")
+        .withBody(msgBody).addAttributesEntry("MessageGroupId", "otherGroup");
+    Mockito.when(messagingClient.handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class))).thenReturn(RoutingOutcome.SENT);
+    Mockito.when(sqsBatchBuffer.flush()).thenReturn(Collections.singleton("handle1"));
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.NEW,
+        Arrays.asList(requeued, sent, other), Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).containsExactlyInAnyOrder("requeued", "sent");
+  }
+
+  @Test
+  void canReportAllMessagesWhenDeadlineHasExpired() {
+    Message message = new Message().withMessageId("testId").withBody("");
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.NEW,
+        Collections.singletonList(message), Deadline.in(0));
+
+    // assertions
+    assertThat(unprocessed).containsExactly("testId");
+    Mockito.verifyZeroInteractions(messagingClient);
+  }
+
+  @Test
+  void canProcessReceivedMessagesAsynchronously()
+      throws JsonProcessingException, InstantiationException {
+    ReflectionTestUtils.setField(messageHandlingService, "asyncNotify", true);
+
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Message sent = new Message().withMessageId("sent").withBody(msgBody);
+    Message invalid = new Message().withMessageId("invalid").withBody("");
+    Message noApiKey = new Message().withMessageId("noApiKey").withBody(msgBody);
+    Message failing = new Message().withMessageId("failing").withBody(msgBody);
+    Mockito.when(messagingClient.handleMessageAsync(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class)))
+        .thenReturn(CompletableFuture.completedFuture(RoutingOutcome.SENT))
+        .thenReturn(failedFuture(new InstantiationException("Error thrown successfully.")))
+        .thenReturn(failedFuture(new IllegalStateException("Error thrown successfully.")));
+
+    Set<String> unprocessed = messageHandlingService.processMessages(QueueName.NEW,
+        Arrays.asList(sent, invalid, noApiKey, failing), Deadline.in(60000));
+
+    // assertions
+    assertThat(unprocessed).containsExactly("failing");
+    Mockito.verify(messageMetrics, times(1)).recordOutcome(QueueName.NEW, RoutingOutcome.SENT);
+    Mockito.verify(messageMetrics, times(2)).recordOutcome(QueueName.NEW, RoutingOutcome.DLQ);
+    Mockito.verify(messagingClient, times(2)).publishMessage(Mockito.eq(QueueName.DLQ),
+        Mockito.isNull(), Mockito.any());
+    Mockito.verify(messagingClient, times(0)).handleMessage(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class));
+    Mockito.verify(sqsBatchBuffer, times(1)).flush();
+  }
+
+  @Test
+  void canDeleteMessagesOnceSentAsynchronously() throws JsonProcessingException {
+    ReflectionTestUtils.setField(messageHandlingService, "asyncNotify", true);
+    ReflectionTestUtils.setField(messageHandlingService, "pollingIterations", 1);
+
+    String msgBody = objectMapper.writeValueAsString(
+        new SendEmailRequest("testTemplate", "testEmail", "{\"name\": \"test\"}",
+            "testReference"));
+    Mockito.when(amazonSqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+        .thenReturn(receiveResult(msgBody, msgBody));
+    Mockito.when(queueUrlRegistry.getQueueUrl(QueueName.NEW)).thenReturn("testUrl");
+    Mockito.when(messagingClient.handleMessageAsync(Mockito.any(EmailMessage.class),
+        Mockito.any(Deadline.class)))
+        .thenReturn(CompletableFuture.completedFuture(RoutingOutcome.SENT))
+        .thenReturn(failedFuture(new IllegalStateException("Error thrown successfully.")));
+
+    messageHandlingService.sendQueuedMessages("new");
+
+    // assertions
+    Mockito.verify(sqsBatchBuffer, times(1)).delete("testUrl", "testHandle");
+    Mockito.verify(messageMetrics, times(1)).recordOutcome(QueueName.NEW, RoutingOutcome.SENT);
+  }
+
+  private static <T> CompletableFuture<T> failedFuture(Throwable error) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(error);
+    return future;
+  }
+
+  private static MessageAttributeValue notBefore(long epochMillis) {
+    return new MessageAttributeValue().withDataType("Number")
+        .withStringValue(String.valueOf(epochMillis));
+  }
+
+  private void stubBacklog(String queueUrl, String approximateNumberOfMessages) {
+    Mockito.doReturn(new GetQueueAttributesResult().addAttributesEntry(
+        "ApproximateNumberOfMessages", approximateNumberOfMessages))
+        .when(amazonSqs).getQueueAttributes(queueUrl,
+            Collections.singletonList("ApproximateNumberOfMessages"));
+  }
 
+  private ReceiveMessageResult receiveResult(String... bodies) {
+    List<Message> messages = new ArrayList<>();
+    for (String body : bodies) {
+      messages.add(new Message().withBody(body).withReceiptHandle("testHandle"));
+    }
+    return new ReceiveMessageResult().withMessages(messages);
   }
 }
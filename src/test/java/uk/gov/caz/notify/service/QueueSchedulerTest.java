@@ -0,0 +1,96 @@
+package uk.gov.caz.notify.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.gov.caz.notify.domain.QueueName;
+import uk.gov.caz.notify.repository.NotifyRateLimiter;
+
+@ExtendWith(MockitoExtension.class)
+public class QueueSchedulerTest {
+
+  @Mock
+  NotifyRateLimiter rateLimiter;
+
+  @Test
+  void shouldReceiveFromNewQueueWhileThereIsNoSpareBudget() {
+    Mockito.when(rateLimiter.getAvailablePermits()).thenReturn(19.0);
+    QueueScheduler.Schedule schedule = scheduler().schedule(backlog(100, 1000, 0, 0));
+
+    assertThat(schedule.next()).isEqualTo(QueueName.NEW);
+    assertThat(schedule.next()).isEqualTo(QueueName.NEW);
+  }
+
+  @Test
+  void shouldShareSpareBudgetByWeightAndBacklog() {
+    Mockito.when(rateLimiter.getAvailablePermits()).thenReturn(Double.POSITIVE_INFINITY);
+    // 2 batches on the new queue give it a weight of 4 * 2 = 8, and a single batch on the
+    // request limit queue gives it a weight of 4 * 1 = 4
+    QueueScheduler.Schedule schedule = scheduler().schedule(backlog(20, 10, 0, 0));
+
+    List<QueueName> order = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      order.add(schedule.next());
+    }
+
+    assertThat(order).containsExactly(QueueName.NEW, QueueName.REQUEST_LIMIT, QueueName.NEW,
+        QueueName.NEW, QueueName.REQUEST_LIMIT, QueueName.NEW);
+  }
+
+  @Test
+  void shouldStopReceivingFromQueueOnceItIsEmpty() {
+    QueueScheduler.Schedule schedule = scheduler().schedule(backlog(0, 0, 15, 0));
+
+    assertThat(schedule.next()).isEqualTo(QueueName.SERVICE_ERROR);
+    schedule.received(QueueName.SERVICE_ERROR, 10);
+    assertThat(schedule.next()).isEqualTo(QueueName.SERVICE_ERROR);
+    schedule.received(QueueName.SERVICE_ERROR, 0);
+    assertThat(schedule.next()).isNull();
+  }
+
+  @Test
+  void shouldKeepReceivingFromQueueReturningFullBatches() {
+    QueueScheduler.Schedule schedule = scheduler().schedule(backlog(5, 0, 0, 0));
+
+    assertThat(schedule.next()).isEqualTo(QueueName.NEW);
+    schedule.received(QueueName.NEW, 10);
+    assertThat(schedule.next()).isEqualTo(QueueName.NEW);
+    schedule.received(QueueName.NEW, 3);
+    assertThat(schedule.next()).isNull();
+  }
+
+  @Test
+  void shouldLeaveOutNewQueueConsumedThroughEventSource() {
+    QueueScheduler scheduler = new QueueScheduler(rateLimiter, 10, 4, 4, 2, 1, true);
+    QueueScheduler.Schedule schedule = scheduler.schedule(backlog(100, 5, 0, 0));
+
+    assertThat(scheduler.getScheduledQueues()).doesNotContain(QueueName.NEW);
+    assertThat(scheduler.isConsumedByEventSource(QueueName.NEW)).isTrue();
+    assertThat(scheduler.isConsumedByEventSource(QueueName.REQUEST_LIMIT)).isFalse();
+    assertThat(schedule.next()).isEqualTo(QueueName.REQUEST_LIMIT);
+    schedule.received(QueueName.REQUEST_LIMIT, 5);
+    assertThat(schedule.next()).isNull();
+  }
+
+  private QueueScheduler scheduler() {
+    return new QueueScheduler(rateLimiter, 10, 4, 4, 2, 1, false);
+  }
+
+  private static Map<QueueName, Long> backlog(long newQueue, long requestLimit,
+      long serviceError, long serviceDown) {
+    Map<QueueName, Long> backlog = new EnumMap<>(QueueName.class);
+    backlog.put(QueueName.NEW, newQueue);
+    backlog.put(QueueName.REQUEST_LIMIT, requestLimit);
+    backlog.put(QueueName.SERVICE_ERROR, serviceError);
+    backlog.put(QueueName.SERVICE_DOWN, serviceDown);
+    return backlog;
+  }
+}